@@ -8,11 +8,86 @@ import java.util.Optional;
 import java.util.ArrayList;
 import java.time.ZoneId;
 import java.time.LocalDateTime;
+import java.time.Duration;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.InputStream;
 import java.util.function.Consumer;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.lang.IllegalStateException;
+import java.util.LinkedHashMap;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.charset.StandardCharsets;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.FileOutputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.stream.IntStream;
+import java.util.function.LongSupplier;
+import java.time.Instant;
+import java.nio.ByteBuffer;
+import java.nio.BufferOverflowException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.zone.ZoneRules;
+import java.time.zone.ZoneOffsetTransition;
+import java.util.concurrent.atomic.LongAdder;
+import java.nio.MappedByteBuffer;
+import java.util.zip.CRC32;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.TreeSet;
+import java.util.HashSet;
+import java.util.Comparator;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.DataFormatException;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.io.BufferedReader;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import java.net.UnixDomainSocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.io.EOFException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.UUID;
+import java.util.Collections;
+import java.util.concurrent.locks.LockSupport;
+import java.util.Iterator;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.util.function.IntPredicate;
 import org.mindrot.jbcrypt.BCrypt;
 
 class Pair<Fst, Snd> {
@@ -38,6 +113,26 @@ interface Repository {
     public boolean saveAccount(Account account);
     public boolean update(Account account);
     public boolean update(Pair<Account, Account> accountPair);
+    public boolean update(List<Account> accounts);
+    public Stream<Account> streamAccounts();
+
+    // a full scan; indexed repositories answer these from their index
+    default List<Account> accountsOf(String username) {
+	return streamAccounts()
+	    .filter(account -> account.getUserName().equals(username))
+	    .sorted(Comparator.comparingInt(Account::getNumber))
+	    .collect(Collectors.toList());
+    }
+
+    default List<String> userNamesStartingWith(String prefix, int limit) {
+	return streamAccounts()
+	    .map(Account::getUserName)
+	    .filter(name -> name.startsWith(prefix))
+	    .distinct()
+	    .sorted()
+	    .limit(limit)
+	    .collect(Collectors.toList());
+    }
 }
 
 class RepositoryInMemory implements Repository {
@@ -79,209 +174,8473 @@ class RepositoryInMemory implements Repository {
 	return true;
 	
     }
+
+    @Override
+    public boolean update(List<Account> accounts) {
+	for (Account account : accounts)
+	    if (!database.containsKey(account.getNumber()))
+		return false;
+	for (Account account : accounts)
+	    database.put(account.getNumber(), account);
+	return true;
+    }
+
+    @Override
+    public Stream<Account> streamAccounts() {
+	return database.values().stream();
+    }
 }
 
-class Service {
-    private final Repository repository;
+class AccountCodec {
+    static final byte checking = 1;
+    static final byte saving = 2;
 
-    Service(Repository repository) {
-	this.repository = repository;
+    static void write(ByteBuffer buffer, Account account) {
+	buffer.putInt(account.getNumber());
+	if (account instanceof CheckingAccount) {
+	    final CheckingAccount checkingAccount = (CheckingAccount) account;
+	    buffer.put(checking);
+	    buffer.putLong(account.getVersion());
+	    buffer.putDouble(account.getBalance());
+	    buffer.putDouble(checkingAccount.getLoanLimit());
+	    buffer.putDouble(checkingAccount.getLoanCurrent());
+	    putString(buffer, checkingAccount.getHashPass());
+	} else {
+	    buffer.put(saving);
+	    buffer.putLong(account.getVersion());
+	    buffer.putDouble(account.getBalance());
+	    buffer.putDouble(0.0);
+	    buffer.putDouble(0.0);
+	    putString(buffer, ((SavingAccount) account).getHashPass());
+	}
+	putString(buffer, account.getBranch());
+	putString(buffer, account.getUserName());
+	putString(buffer, account.getCurrency());
     }
 
-    public boolean createAccount(Account account) {
-	if (account != null)
-	    return repository.saveAccount(account);
-	else
-	    return false;
+    static Account read(ByteBuffer buffer) {
+	final int number = buffer.getInt();
+	final byte type = buffer.get();
+	final long version = buffer.getLong();
+	final double balance = buffer.getDouble();
+	final double loanLimit = buffer.getDouble();
+	final double loanCurrent = buffer.getDouble();
+	final String hashPass = getString(buffer);
+	final String branch = getString(buffer);
+	final String username = getString(buffer);
+	final String currency = getString(buffer);
+
+	if (type == checking)
+	    return CheckingAccount.restore(number, branch, username, balance,
+					   hashPass, loanLimit, loanCurrent,
+					   version, currency);
+	return SavingAccount.restore(number, branch, username, balance,
+	hashPass, version, currency);
     }
 
-    public Optional<Account> getAccountByNumber(int accountNumber) {
-        return repository.getAccountByNumber(accountNumber);
+    static Account withState(
+			     Account account,
+			     double balance,
+			     double loanLimit,
+			     double loanCurrent,
+			     long version) {
+	if (account instanceof CheckingAccount)
+	    return CheckingAccount.restore(
+					   account.getNumber(),
+					   account.getBranch(),
+					   account.getUserName(),
+					   balance,
+					   ((CheckingAccount) account).getHashPass(),
+					   loanLimit,
+					   loanCurrent,
+					   version,
+					   account.getCurrency());
+	return SavingAccount.restore(
+				     account.getNumber(),
+				     account.getBranch(),
+				     account.getUserName(),
+				     balance,
+				     ((SavingAccount) account).getHashPass(),
+				     version,
+				     account.getCurrency());
     }
 
-    public Optional<CheckingAccount> loan(
-					  double amount,
-					  CheckingAccount account) {
-	CheckingAccount updated = account.loan(amount);
-	boolean wasUpdated = repository.update(updated);
-	if (wasUpdated) {
-	    return Optional.of(updated);
-	} else {
-	    return Optional.empty();
+    static double loanLimitOf(Account account) {
+	return account instanceof CheckingAccount
+	    ? ((CheckingAccount) account).getLoanLimit() : 0.0;
+    }
+
+    static double loanCurrentOf(Account account) {
+	return account instanceof CheckingAccount
+	    ? ((CheckingAccount) account).getLoanCurrent() : 0.0;
+    }
+
+    static void putString(ByteBuffer buffer, String value) {
+	final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+	buffer.putShort((short) bytes.length);
+	buffer.put(bytes);
+    }
+
+    static String getString(ByteBuffer buffer) {
+	final byte[] bytes = new byte[buffer.getShort() & 0xffff];
+	buffer.get(bytes);
+	return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
+
+class EventSegment {
+    final Path path;
+    final MappedByteBuffer buffer;
+    final int[] offsets;
+    final int count;
+    final long nextSeq;
+    final long validEnd;
+
+    EventSegment(
+		 Path path,
+		 MappedByteBuffer buffer,
+		 int[] offsets,
+		 int count,
+		 long nextSeq,
+		 long validEnd) {
+	this.path = path;
+	this.buffer = buffer;
+	this.offsets = offsets;
+	this.count = count;
+	this.nextSeq = nextSeq;
+	this.validEnd = validEnd;
+    }
+}
+
+class EventLog {
+    // record layout: int length | long seq | byte type | body | int crc32,
+    // length and crc covering seq through body
+    static final int headerBytes = 4;
+    static final int typeOffset = headerBytes + 8;
+    static final int bodyOffset = typeOffset + 1;
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final boolean syncEachAppend;
+    private ByteBuffer record = ByteBuffer.allocate(64 * 1024);
+    private final CRC32 crc = new CRC32();
+    private FileChannel channel;
+    private long segmentSize;
+    private long nextSeq;
+
+    EventLog(Path directory, long segmentBytes, boolean syncEachAppend) {
+	this.directory = directory;
+	this.segmentBytes = segmentBytes;
+	this.syncEachAppend = syncEachAppend;
+    }
+
+    static long firstSeqOf(Path segment) {
+	final String name = segment.getFileName().toString();
+	return Long.parseLong(name.substring("events-".length(),
+					     name.length() - ".log".length()));
+    }
+
+    ArrayList<Path> segments() throws IOException {
+	final ArrayList<Path> segments = new ArrayList<>();
+	try (Stream<Path> files = Files.list(directory)) {
+	    files.filter(file -> {
+		    final String name = file.getFileName().toString();
+		    return name.startsWith("events-") && name.endsWith(".log");
+		})
+		.sorted()
+		.forEach(segments::add);
 	}
+	return segments;
     }
 
-    public Optional<Account> deposit(double amount, Account account) {
-	Account updated = account.deposit(amount);
-	boolean wasUpdated = repository.update(updated);
-	if (wasUpdated) {
-	    return Optional.of(updated);
-	} else {
-	    return Optional.empty();
+    // maps a segment and indexes its records from fromSeq on, stopping at
+    // the first torn or corrupt record
+    EventSegment index(Path segment, long fromSeq) throws IOException {
+	try (FileChannel file = FileChannel.open(segment,
+						 StandardOpenOption.READ)) {
+	    final long size = file.size();
+	    if (size > Integer.MAX_VALUE)
+		throw new IOException("Server Error: segment too large "
+				      + segment);
+	    final MappedByteBuffer buffer =
+		file.map(FileChannel.MapMode.READ_ONLY, 0, size);
+	    final CRC32 check = new CRC32();
+	    int[] offsets = new int[1024];
+	    int count = 0;
+	    long next = firstSeqOf(segment);
+	    int offset = 0;
+
+	    while (offset + headerBytes <= size) {
+		final int length = buffer.getInt(offset);
+		if (length < 9 || offset + headerBytes + length + 4L > size)
+		    break;
+		check.reset();
+		check.update(buffer.duplicate()
+			     .limit(offset + headerBytes + length)
+			     .position(offset + headerBytes));
+		if ((int) check.getValue()
+		    != buffer.getInt(offset + headerBytes + length))
+		    break;
+		final long seq = buffer.getLong(offset + headerBytes);
+		if (seq >= fromSeq) {
+		    if (count == offsets.length)
+			offsets = Arrays.copyOf(offsets, count * 2);
+		    offsets[count++] = offset;
+		}
+		next = seq + 1;
+		offset += headerBytes + length + 4;
+	    }
+	    return new EventSegment(segment, buffer, offsets, count,
+				    next, offset);
 	}
     }
 
-    public Optional<Account> withdraw(double amount, Account account) {
-	Account updated = account.withdraw(amount);
-	boolean wasUpdated = repository.update(updated);
-	if (wasUpdated) {
-	    return Optional.of(updated);
-	} else {
-	    return Optional.empty();
+    // continues after the last valid record, dropping any torn tail
+    synchronized void openForAppend(Path segment, long validEnd, long nextSeq)
+	throws IOException {
+	this.nextSeq = nextSeq;
+	if (segment == null) {
+	    roll();
+	    return ;
 	}
+	channel = FileChannel.open(segment, StandardOpenOption.WRITE);
+	channel.truncate(validEnd);
+	channel.position(validEnd);
+	segmentSize = validEnd;
     }
 
-    public Optional<Account> transfer(double amount, Account from, Account to) {
-	Pair<Account, Account> updatedPair = from.transfer(amount, to);
-	boolean wasUpdated = repository.update(updatedPair);
-	if (wasUpdated) {
-	    return Optional.of(updatedPair.getFst());
-	} else {
-	    return Optional.empty();
+    synchronized long append(byte type, Consumer<ByteBuffer> body) {
+	try {
+	    if (channel == null || segmentSize >= segmentBytes)
+		roll();
+	    final long seq = nextSeq;
+	    // a body too big for the buffer is written again into a bigger one
+	    while (true) {
+		try {
+		    record.clear();
+		    record.position(headerBytes);
+		    record.putLong(seq);
+		    record.put(type);
+		    body.accept(record);
+		    if (record.remaining() >= 4)
+			break ;
+		} catch (BufferOverflowException ex) {
+		}
+		record = ByteBuffer.allocate(record.capacity() * 2);
+	    }
+	    final int length = record.position() - headerBytes;
+	    record.putInt(0, length);
+	    crc.reset();
+	    crc.update(record.array(), headerBytes, length);
+	    record.putInt((int) crc.getValue());
+	    record.flip();
+	    while (record.hasRemaining())
+		channel.write(record);
+	    if (syncEachAppend)
+		channel.force(false);
+	    segmentSize += headerBytes + length + 4;
+	    nextSeq = seq + 1;
+	    return seq;
+	} catch (IOException ex) {
+	    throw new UncheckedIOException(ex);
 	}
     }
-}
 
-class NumberSequenceGenerator {
-    int number;
+    synchronized long nextSeq() {
+	return nextSeq;
+    }
 
-    NumberSequenceGenerator(int base) {
-        number = base;
+    synchronized void sync() throws IOException {
+	if (channel != null)
+	    channel.force(false);
     }
-    public int newNumber() {
-        return ++number;
+
+    synchronized void close() throws IOException {
+	if (channel != null) {
+	    channel.force(false);
+	    channel.close();
+	}
+	channel = null;
+    }
+
+    private void roll() throws IOException {
+	if (channel != null) {
+	    channel.force(false);
+	    channel.close();
+	}
+	channel = FileChannel.open(directory.resolve(
+						     String.format("events-%020d.log",
+								   nextSeq)),
+				   StandardOpenOption.CREATE,
+				   StandardOpenOption.WRITE,
+				   StandardOpenOption.TRUNCATE_EXISTING);
+	segmentSize = 0;
     }
 }
 
-interface Account {
-    static NumberSequenceGenerator number = new NumberSequenceGenerator(0);
+class ReplayReport {
+    private final long events;
+    private final long fromSeq;
+    private final int partitions;
+    private final long nanos;
+
+    ReplayReport(long events, long fromSeq, int partitions, long nanos) {
+	this.events = events;
+	this.fromSeq = fromSeq;
+	this.partitions = partitions;
+	this.nanos = nanos;
+    }
 
-    public int getNumber();
-    public String getBranch();
-    public String getUserName();
-    public double getBalance();
-    public boolean verifyPass(String passAttempt);
-    public Account deposit(double amount);
-    public Account withdraw(double amount);
-    public boolean isValidWithdraw(double amount);
-    public boolean isValidTransfer(double amount);
-    public Pair<Account, Account> transfer(double amount, Account to);
-    Account copyWithAmount(double amount);
+    public long getEvents() {
+	return this.events;
+    }
 
-    public static int newNumber() {
-        return number.newNumber();
+    public long getFromSeq() {
+	return this.fromSeq;
     }
 
-    default boolean hasBalance(double amount) {
-	return this.getBalance() >= amount;
+    public int getPartitions() {
+	return this.partitions;
+    }
+
+    public long getNanos() {
+	return this.nanos;
+    }
+
+    public double eventsPerSecondPerCore() {
+	final int cores = Math.min(partitions,
+				   Runtime.getRuntime().availableProcessors());
+	return nanos == 0 ? 0.0 : events * 1e9 / nanos / Math.max(1, cores);
+    }
+
+    @Override
+    public String toString() {
+	return String.format(
+			     "ReplayReport(events: %d, from: %d, " +
+			     "partitions: %d, %.0f events/s/core)",
+			     events, fromSeq, partitions,
+			     eventsPerSecondPerCore());
     }
-    
 }
 
-class CheckingAccount implements Account {
+class EventSourcedRepository implements Repository {
+    static final byte opened = 1;
+    static final byte deposited = 2;
+    static final byte withdrew = 3;
+    static final byte transferred = 4;
+    static final byte loaned = 5;
+    static final byte repaid = 6;
+    static final byte batched = 7;
+
+    private static final String checkpointName = "checkpoint.snap";
+
+    private final Path directory;
+    private final EventLog log;
+    private final ConcurrentHashMap<Integer, Account> accounts =
+	new ConcurrentHashMap<>();
+    // appends hold the read side so a checkpoint can find a seq below
+    // which every event is already applied to the projection
+    private final ReentrantReadWriteLock applying = new ReentrantReadWriteLock();
+    private final long checkpointEvery;
+    private final AtomicLong sinceCheckpoint = new AtomicLong();
+    private final AtomicBoolean checkpointing = new AtomicBoolean();
+    private final ExecutorService checkpointer;
+    private ReplayReport lastReplay;
+
+    private EventSourcedRepository(
+				   Path directory,
+				   long segmentBytes,
+				   boolean syncEachAppend,
+				   long checkpointEvery) {
+	this.directory = directory;
+	this.log = new EventLog(directory, segmentBytes, syncEachAppend);
+	this.checkpointEvery = checkpointEvery;
+	this.checkpointer = Executors.newSingleThreadExecutor(task -> {
+		final Thread thread = new Thread(task, "checkpointer");
+		thread.setDaemon(true);
+		return thread;
+	    });
+    }
 
-    private final int number;
-    private final String branch;
-    private final String username;
-    private final double balance;
-    private final String hashpass;
-    private final double loanLimit;
-    private final double loanCurrent;
+    static EventSourcedRepository open(Path directory) throws IOException {
+	return open(directory,
+		    Runtime.getRuntime().availableProcessors(),
+		    64L << 20, true, 100_000);
+    }
+
+    static EventSourcedRepository open(
+				       Path directory,
+				       int partitions,
+				       long segmentBytes,
+				       boolean syncEachAppend,
+				       long checkpointEvery) throws IOException {
+	Files.createDirectories(directory);
+	final EventSourcedRepository repository =
+	    new EventSourcedRepository(directory, segmentBytes,
+				       syncEachAppend, checkpointEvery);
+	repository.replay(Math.max(1, partitions));
+	return repository;
+    }
+
+    public ReplayReport getLastReplay() {
+	return this.lastReplay;
+    }
+
+    public long getEventCount() {
+	return log.nextSeq();
+    }
 
     @Override
-    public int getNumber() {
-        return this.number;
+    public Optional<Account> getAccountByNumber(int accountNumber) {
+	return Optional.ofNullable(accounts.get(accountNumber));
     }
+
     @Override
-    public String getBranch() {
-        return this.branch;
+    public boolean saveAccount(Account account) {
+	applying.readLock().lock();
+	try {
+	    if (accounts.containsKey(account.getNumber()))
+		return false;
+	    log.append(opened, body -> AccountCodec.write(body, account));
+	    accounts.put(account.getNumber(), account);
+	} finally {
+	    applying.readLock().unlock();
+	}
+	afterAppend();
+	return true;
     }
+
+    // the event kind is read off the state change, since Repository only
+    // ever sees the account copies the Service produced
     @Override
-    public String getUserName() {
-        return this.username;
+    public boolean update(Account account) {
+	applying.readLock().lock();
+	try {
+	    final Account old = accounts.get(account.getNumber());
+	    if (old == null)
+		return false;
+	    final double loanDelta = AccountCodec.loanCurrentOf(account)
+		- AccountCodec.loanCurrentOf(old);
+	    final double balanceDelta = account.getBalance() - old.getBalance();
+	    final byte type;
+	    final double amount;
+	    if (loanDelta > 0.0) {
+		type = loaned;
+		amount = loanDelta;
+	    } else if (loanDelta < 0.0) {
+		type = repaid;
+		amount = -balanceDelta;
+	    } else if (balanceDelta >= 0.0) {
+		type = deposited;
+		amount = balanceDelta;
+	    } else {
+		type = withdrew;
+		amount = -balanceDelta;
+	    }
+	    log.append(type, body -> {
+		    body.putInt(account.getNumber());
+		    body.putLong(account.getVersion());
+		    body.putDouble(amount);
+		    body.putDouble(account.getBalance());
+		    body.putDouble(AccountCodec.loanLimitOf(account));
+		    body.putDouble(AccountCodec.loanCurrentOf(account));
+		});
+	    accounts.put(account.getNumber(), account);
+	} finally {
+	    applying.readLock().unlock();
+	}
+	afterAppend();
+	return true;
     }
+
     @Override
-    public double getBalance() {
-        return this.balance;
+    public boolean update(Pair<Account, Account> accountPair) {
+	final Account from = accountPair.getFst();
+	final Account to = accountPair.getSnd();
+	applying.readLock().lock();
+	try {
+	    final Account oldFrom = accounts.get(from.getNumber());
+	    if (oldFrom == null || !accounts.containsKey(to.getNumber()))
+		return false;
+	    final double amount = oldFrom.getBalance() - from.getBalance();
+	    log.append(transferred, body -> {
+		    body.putInt(from.getNumber());
+		    body.putLong(from.getVersion());
+		    body.putDouble(from.getBalance());
+		    body.putInt(to.getNumber());
+		    body.putLong(to.getVersion());
+		    body.putDouble(to.getBalance());
+		    body.putDouble(amount);
+		});
+	    accounts.put(from.getNumber(), from);
+	    accounts.put(to.getNumber(), to);
+	} finally {
+	    applying.readLock().unlock();
+	}
+	afterAppend();
+	return true;
     }
+
+    // one record for the whole batch, so a torn tail drops all of it
     @Override
-    public boolean verifyPass(String passAttempt) {
-	return BCrypt.checkpw(passAttempt, hashpass);
+    public boolean update(List<Account> batch) {
+	applying.readLock().lock();
+	try {
+	    for (Account account : batch)
+		if (!accounts.containsKey(account.getNumber()))
+		    return false;
+	    log.append(batched, body -> {
+		    body.putInt(batch.size());
+		    for (Account account : batch) {
+			body.putInt(account.getNumber());
+			body.putLong(account.getVersion());
+			body.putDouble(account.getBalance());
+		    }
+		});
+	    for (Account account : batch)
+		accounts.put(account.getNumber(), account);
+	} finally {
+	    applying.readLock().unlock();
+	}
+	afterAppend();
+	return true;
     }
 
     @Override
-    public Account copyWithAmount(double amount) {
-	return new CheckingAccount(
-				   this.number,
-				   this.branch,
-				   this.username,
-				   amount,
-				   this.hashpass,
-				   this.loanLimit,
-				   this.loanCurrent
-				   );
+    public Stream<Account> streamAccounts() {
+	return accounts.values().stream();
+    }
+
+    // fuzzy snapshot: replay restarts at a seq every event below which is
+    // in the projection, and skips events the snapshot already holds by
+    // comparing account versions
+    public void checkpoint() throws IOException {
+	final long fromSeq;
+	applying.writeLock().lock();
+	try {
+	    fromSeq = log.nextSeq();
+	} finally {
+	    applying.writeLock().unlock();
+	}
+	log.sync();
+
+	final Path tmp = directory.resolve(checkpointName + ".tmp");
+	final ByteBuffer buffer = ByteBuffer.allocate(256 * 1024);
+	try (FileChannel out = FileChannel.open(tmp,
+						StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+	    buffer.putLong(fromSeq);
+	    for (Account account : accounts.values()) {
+		if (buffer.remaining() < 2048) {
+		    buffer.flip();
+		    while (buffer.hasRemaining())
+			out.write(buffer);
+		    buffer.clear();
+		}
+		AccountCodec.write(buffer, account);
+	    }
+	    buffer.flip();
+	    while (buffer.hasRemaining())
+		out.write(buffer);
+	    out.force(true);
+	}
+	Files.move(tmp, directory.resolve(checkpointName),
+		   StandardCopyOption.REPLACE_EXISTING,
+		   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public void close() throws IOException {
+	checkpointer.shutdown();
+	try {
+	    checkpointer.awaitTermination(1, TimeUnit.MINUTES);
+	} catch (InterruptedException ex) {
+	    Thread.currentThread().interrupt();
+	}
+	log.close();
+    }
+
+    private void afterAppend() {
+	if (sinceCheckpoint.incrementAndGet() < checkpointEvery
+	    || !checkpointing.compareAndSet(false, true))
+	    return ;
+	sinceCheckpoint.set(0);
+	checkpointer.execute(() -> {
+		try {
+		    checkpoint();
+		} catch (IOException ex) {
+		    // the log still holds everything, replay just runs longer
+		} finally {
+		    checkpointing.set(false);
+		}
+	    });
+    }
+
+    private void replay(int partitions) throws IOException {
+	final long start = System.nanoTime();
+	final List<HashMap<Integer, Account>> parts = new ArrayList<>(partitions);
+	for (int part = 0; part < partitions; part++)
+	    parts.add(new HashMap<>());
+
+	long fromSeq = 0;
+	final Path checkpoint = directory.resolve(checkpointName);
+	if (Files.exists(checkpoint)) {
+	    final ByteBuffer buffer =
+		ByteBuffer.wrap(Files.readAllBytes(checkpoint));
+	    fromSeq = buffer.getLong();
+	    while (buffer.hasRemaining()) {
+		final Account account = AccountCodec.read(buffer);
+		parts.get(Math.floorMod(account.getNumber(), partitions))
+		    .put(account.getNumber(), account);
+	    }
+	}
+
+	final ArrayList<Path> segments = log.segments();
+	long events = 0;
+	long nextSeq = fromSeq;
+	Path last = null;
+	long lastEnd = 0;
+	for (int i = 0; i < segments.size(); i++) {
+	    if (i + 1 < segments.size()
+		&& EventLog.firstSeqOf(segments.get(i + 1)) <= fromSeq)
+		continue;
+	    final EventSegment segment = log.index(segments.get(i), fromSeq);
+	    IntStream.range(0, partitions)
+		.parallel()
+		.forEach(part -> applySegment(segment, parts.get(part),
+					      part, partitions));
+	    events += segment.count;
+	    nextSeq = Math.max(nextSeq, segment.nextSeq);
+	    last = segment.path;
+	    lastEnd = segment.validEnd;
+	    if (segment.validEnd < segment.buffer.capacity()) {
+		// a torn record ends the log; later segments cannot follow it
+		for (int j = i + 1; j < segments.size(); j++)
+		    Files.delete(segments.get(j));
+		break;
+	    }
+	}
+
+	parts.parallelStream().forEach(accounts::putAll);
+	log.openForAppend(last, lastEnd, nextSeq);
+	lastReplay = new ReplayReport(events, fromSeq, partitions,
+				      System.nanoTime() - start);
+    }
+
+    private static void applySegment(
+				     EventSegment segment,
+				     HashMap<Integer, Account> part,
+				     int index,
+				     int partitions) {
+	final ByteBuffer buffer = segment.buffer.duplicate();
+	for (int i = 0; i < segment.count; i++) {
+	    final int offset = segment.offsets[i];
+	    final byte type = buffer.get(offset + EventLog.typeOffset);
+	    final int body = offset + EventLog.bodyOffset;
+	    final int number = buffer.getInt(body);
+
+	    if (type == transferred) {
+		if (Math.floorMod(number, partitions) == index)
+		    applyState(part, number, buffer.getLong(body + 4),
+			       buffer.getDouble(body + 12), Double.NaN,
+			       Double.NaN);
+		final int to = buffer.getInt(body + 20);
+		if (Math.floorMod(to, partitions) == index)
+		    applyState(part, to, buffer.getLong(body + 24),
+			       buffer.getDouble(body + 32), Double.NaN,
+			       Double.NaN);
+	    } else if (type == batched) {
+		// a batch leads with its size where other events have a number
+		for (int entry = 0; entry < number; entry++) {
+		    final int at = body + 4 + entry * 20;
+		    final int account = buffer.getInt(at);
+		    if (Math.floorMod(account, partitions) == index)
+			applyState(part, account, buffer.getLong(at + 4),
+				   buffer.getDouble(at + 12), Double.NaN,
+				   Double.NaN);
+		}
+	    } else if (Math.floorMod(number, partitions) != index) {
+		continue;
+	    } else if (type == opened) {
+		if (!part.containsKey(number)) {
+		    buffer.position(body);
+		    part.put(number, AccountCodec.read(buffer));
+		}
+	    } else {
+		applyState(part, number, buffer.getLong(body + 4),
+			   buffer.getDouble(body + 20),
+			   buffer.getDouble(body + 28),
+			   buffer.getDouble(body + 36));
+	    }
+	}
+    }
+
+    // NaN loan fields keep the account's own, as transfers leave them be
+    private static void applyState(
+				   HashMap<Integer, Account> part,
+				   int number,
+				   long version,
+				   double balance,
+				   double loanLimit,
+				   double loanCurrent) {
+	final Account account = part.get(number);
+	if (account == null || account.getVersion() >= version)
+	    return ;
+	part.put(number, AccountCodec.withState(
+						account,
+						balance,
+						Double.isNaN(loanLimit)
+						? AccountCodec.loanLimitOf(account)
+						: loanLimit,
+						Double.isNaN(loanCurrent)
+						? AccountCodec.loanCurrentOf(account)
+						: loanCurrent,
+						version));
+    }
+}
+
+// keeps every account as a chain of immutable versions stamped with the
+// commit sequence that wrote them, so a reader can pin a sequence and
+// see all accounts as of that commit while writers carry on
+class MvccRepository implements Repository {
+    private static class Version {
+	final Account account;
+	final long seq;
+	volatile Version older;
+
+	Version(Account account, long seq, Version older) {
+	    this.account = account;
+	    this.seq = seq;
+	    this.older = older;
+	}
+    }
+
+    class Snapshot implements AutoCloseable {
+	private final long seq;
+	private boolean closed;
+
+	private Snapshot(long seq) {
+	    this.seq = seq;
+	}
+
+	public long getSeq() {
+	    return this.seq;
+	}
+
+	public Optional<Account> getAccountByNumber(int accountNumber) {
+	    return Optional.ofNullable(visible(heads.get(accountNumber), seq));
+	}
+
+	public Stream<Account> streamAccounts() {
+	    return heads.values().stream()
+		.map(head -> visible(head, seq))
+		.filter(account -> account != null);
+	}
+
+	@Override
+	public void close() {
+	    synchronized (this) {
+		if (closed)
+		    return ;
+		closed = true;
+	    }
+	    release(seq);
+	}
+    }
+
+    private final ConcurrentHashMap<Integer, Version> heads =
+	new ConcurrentHashMap<>();
+    // a commit only stamps and links versions under this lock, and a
+    // snapshot only reads the stamp, so neither waits on the other's work
+    private final ReentrantLock commitLock = new ReentrantLock();
+    private final TreeMap<Long, Integer> pinned = new TreeMap<>();
+    private final Set<Integer> withHistory = ConcurrentHashMap.newKeySet();
+    private volatile long committed;
+
+    public long getCommitted() {
+	return this.committed;
+    }
+
+    public Snapshot snapshot() {
+	commitLock.lock();
+	try {
+	    final long seq = committed;
+	    pinned.merge(seq, 1, Integer::sum);
+	    return new Snapshot(seq);
+	} finally {
+	    commitLock.unlock();
+	}
+    }
+
+    public int versionCount(int accountNumber) {
+	int count = 0;
+	for (Version version = heads.get(accountNumber);
+	     version != null; version = version.older)
+	    count++;
+	return count;
     }
 
     @Override
-    public Account deposit(double amount) {
-	return this.copyWithAmount(this.balance + amount);
+    public Optional<Account> getAccountByNumber(int accountNumber) {
+	final Version head = heads.get(accountNumber);
+	return head == null ? Optional.empty() : Optional.of(head.account);
     }
 
     @Override
-    public boolean isValidWithdraw(double amount) {
-	return this.hasBalance(amount);
+    public boolean saveAccount(Account account) {
+	commitLock.lock();
+	try {
+	    if (heads.containsKey(account.getNumber()))
+		return false;
+	    heads.put(account.getNumber(),
+		      new Version(account, ++committed, null));
+	    return true;
+	} finally {
+	    commitLock.unlock();
+	}
     }
-    
+
     @Override
-    public boolean isValidTransfer(double amount){
-	return this.hasBalance(amount);
+    public boolean update(Account account) {
+	commitLock.lock();
+	try {
+	    if (!heads.containsKey(account.getNumber()))
+		return false;
+	    install(account, ++committed);
+	    return true;
+	} finally {
+	    commitLock.unlock();
+	}
     }
 
+    // both sides of a transfer share one sequence, so no snapshot can
+    // see the money leave one account without reaching the other
     @Override
-    public Account withdraw(double amount) {
-	return this.copyWithAmount(this.balance - amount);
+    public boolean update(Pair<Account, Account> accountPair) {
+	commitLock.lock();
+	try {
+	    if (!heads.containsKey(accountPair.getFst().getNumber())
+		|| !heads.containsKey(accountPair.getSnd().getNumber()))
+		return false;
+	    final long seq = ++committed;
+	    install(accountPair.getFst(), seq);
+	    install(accountPair.getSnd(), seq);
+	    return true;
+	} finally {
+	    commitLock.unlock();
+	}
     }
 
     @Override
-    public Pair<Account, Account> transfer(double amount, Account to) {
-	Account updatedFrom = this.copyWithAmount(this.balance - amount);
-	
-	Account updatedTo = to.copyWithAmount(to.getBalance() + amount);
-	return new Pair(updatedFrom, updatedTo);
+    public boolean update(List<Account> accounts) {
+	commitLock.lock();
+	try {
+	    for (Account account : accounts)
+		if (!heads.containsKey(account.getNumber()))
+		    return false;
+	    final long seq = ++committed;
+	    for (Account account : accounts)
+		install(account, seq);
+	    return true;
+	} finally {
+	    commitLock.unlock();
+	}
     }
 
-    public double getLoanLimit() {
-	return this.loanLimit;
+    @Override
+    public Stream<Account> streamAccounts() {
+	return heads.values().stream().map(head -> head.account);
     }
 
-    private CheckingAccount(
-			    int number,
-			    String branch,
-			    String username,
-			    double balance,
-			    String hashPass,
-			    double loanLimit,
-			    double loanCurrent) {
+    // drops versions no open snapshot can reach from accounts that have
+    // not been written since their snapshots closed
+    public void collectGarbage() {
+	final long oldest;
+	commitLock.lock();
+	try {
+	    oldest = oldestPinned();
+	} finally {
+	    commitLock.unlock();
+	}
+	for (Integer number : withHistory) {
+	    final Version head = heads.get(number);
+	    if (head == null || prune(head, oldest))
+		withHistory.remove(number);
+	}
+    }
 
-        this.number = number;
-        this.branch = branch;
-        this.username = username;
-        this.balance = balance;
-        this.hashpass = hashPass;
-	this.loanLimit = loanLimit;
-	this.loanCurrent = loanCurrent;
+    private void install(Account account, long seq) {
+	final Version head =
+	    new Version(account, seq, heads.get(account.getNumber()));
+	heads.put(account.getNumber(), head);
+	if (!prune(head, oldestPinned()))
+	    withHistory.add(account.getNumber());
     }
 
-    public CheckingAccount(String username, String pass) {
-        this(Account.newNumber(), "4242-x", username, 0.0,
-	     BCrypt.hashpw(pass, BCrypt.gensalt()), 500.0, 0.0);
+    // keeps the newest version at or before oldest and everything newer,
+    // returning whether the chain is down to its head
+    private static boolean prune(Version head, long oldest) {
+	Version version = head;
+	while (version.seq > oldest && version.older != null)
+	    version = version.older;
+	version.older = null;
+	return head.older == null;
     }
 
-    public boolean isValidLoanRequest(Optional<Double> maybeLoanRequest) {
-	if (!maybeLoanRequest.isPresent())
-	    return false;
-	double loanRequest = maybeLoanRequest.get();
-	return loanRequest <= this.loanLimit && loanRequest >= 1.0;
+    private long oldestPinned() {
+	return pinned.isEmpty() ? committed : pinned.firstKey();
+    }
+
+    private void release(long seq) {
+	commitLock.lock();
+	try {
+	    pinned.computeIfPresent(seq, (key, count) ->
+				    count == 1 ? null : count - 1);
+	} finally {
+	    commitLock.unlock();
+	}
+	collectGarbage();
+    }
+
+    private static Account visible(Version head, long seq) {
+	Version version = head;
+	while (version != null && version.seq > seq)
+	    version = version.older;
+	return version == null ? null : version.account;
+    }
+}
+
+// recently used accounts stay on the heap, idle ones are moved into a
+// cold file of deflated blocks; a second file holds, eight bytes per
+// account number, where the block with the latest cold copy starts,
+// so neither the cold accounts nor their index take any heap.
+// every write is logged ahead in wal/ before it goes hot, and a
+// checkpoint writes the dirty hot accounts cold, forces both files and
+// records how far they and the log are good; a restart cuts the cold
+// file back to that point and replays the log after it.  opened without
+// syncEachAppend, a crash loses the writes the page cache still held
+class TieredRepository implements Repository {
+    private static final String coldName = "accounts.cold";
+    private static final String indexName = "accounts.index";
+    private static final String walName = "wal";
+    private static final String checkpointName = "checkpoint";
+    private static final byte written = 1;
+    private static final long walSegmentBytes = 8L << 20;
+    private static final long checkpointEvery = 100_000;
+    // compressed bytes, raw bytes, accounts
+    private static final int headerBytes = 12;
+    private static final int blockAccounts = 64;
+
+    private static class Hot {
+	final Account account;
+	// whether the account differs from its cold copy, if it has one
+	final boolean dirty;
+	volatile long lastUsed;
+
+	Hot(Account account, boolean dirty, long lastUsed) {
+	    this.account = account;
+	    this.dirty = dirty;
+	    this.lastUsed = lastUsed;
+	}
+    }
+
+    private final ConcurrentHashMap<Integer, Hot> hot =
+	new ConcurrentHashMap<>();
+    private final Path directory;
+    private final FileChannel cold;
+    private final FileChannel index;
+    private final EventLog wal;
+    private final long idleMillis;
+    private final int maxHot;
+    private final LongSupplier clock;
+    private final ReentrantLock demoting = new ReentrantLock();
+    // writers log and go hot under the read side, so a checkpoint taking
+    // the write side finds a seq every record below which is in hot
+    private final ReentrantReadWriteLock applying = new ReentrantReadWriteLock();
+    private final LongAdder coldHits = new LongAdder();
+    private final LongAdder demoted = new LongAdder();
+    private volatile long coldEnd;
+    // guarded by demoting
+    private long checkpointed;
+
+    private TieredRepository(
+			     Path directory,
+			     FileChannel cold,
+			     FileChannel index,
+			     boolean syncEachAppend,
+			     long idleMillis,
+			     int maxHot,
+			     LongSupplier clock) throws IOException {
+	this.directory = directory;
+	this.cold = cold;
+	this.index = index;
+	this.wal = new EventLog(directory.resolve(walName), walSegmentBytes,
+				syncEachAppend);
+	this.idleMillis = idleMillis;
+	this.maxHot = maxHot;
+	this.clock = clock;
+	this.coldEnd = cold.size();
+    }
+
+    static TieredRepository open(
+				 Path directory,
+				 long idleMillis,
+				 int maxHot) throws IOException {
+	return open(directory, idleMillis, maxHot, true);
+    }
+
+    static TieredRepository open(
+				 Path directory,
+				 long idleMillis,
+				 int maxHot,
+				 boolean syncEachAppend) throws IOException {
+	return open(directory, idleMillis, maxHot, syncEachAppend,
+		    System::currentTimeMillis);
+    }
+
+    static TieredRepository open(
+				 Path directory,
+				 long idleMillis,
+				 int maxHot,
+				 LongSupplier clock) throws IOException {
+	return open(directory, idleMillis, maxHot, true, clock);
+    }
+
+    static TieredRepository open(
+				 Path directory,
+				 long idleMillis,
+				 int maxHot,
+				 boolean syncEachAppend,
+				 LongSupplier clock) throws IOException {
+	Files.createDirectories(directory.resolve(walName));
+	final TieredRepository repository = new TieredRepository(
+								 directory,
+								 FileChannel.open(directory.resolve(coldName),
+										  StandardOpenOption.CREATE,
+										  StandardOpenOption.READ,
+										  StandardOpenOption.WRITE),
+								 FileChannel.open(directory.resolve(indexName),
+										  StandardOpenOption.CREATE,
+										  StandardOpenOption.READ,
+										  StandardOpenOption.WRITE),
+								 syncEachAppend,
+								 idleMillis,
+								 maxHot,
+								 clock);
+	repository.recover();
+	return repository;
+    }
+
+    public int getHotCount() {
+	return hot.size();
+    }
+
+    public long getColdHits() {
+	return coldHits.sum();
+    }
+
+    public long getDemoted() {
+	return demoted.sum();
+    }
+
+    public long getColdBytes() {
+	return this.coldEnd;
+    }
+
+    @Override
+    public Optional<Account> getAccountByNumber(int accountNumber) {
+	final long now = clock.getAsLong();
+	while (true) {
+	    final Hot found = hot.get(accountNumber);
+	    if (found != null) {
+		found.lastUsed = now;
+		return Optional.of(found.account);
+	    }
+	    final long block = blockOf(accountNumber);
+	    if (block < 0)
+		return Optional.empty();
+	    final Hot loaded = new Hot(readCold(block, accountNumber), false, now);
+	    if (hot.putIfAbsent(accountNumber, loaded) != null)
+		continue ;
+	    // a demotion may have written a newer copy after the index was
+	    // read and dropped its hot entry before ours went in
+	    if (blockOf(accountNumber) != block) {
+		hot.remove(accountNumber, loaded);
+		continue ;
+	    }
+	    coldHits.increment();
+	    demoteIfFull();
+	    return Optional.of(loaded.account);
+	}
+    }
+
+    @Override
+    public boolean saveAccount(Account account) {
+	applying.readLock().lock();
+	try {
+	    if (hot.containsKey(account.getNumber())
+		|| blockOf(account.getNumber()) >= 0)
+		return false;
+	    if (hot.putIfAbsent(account.getNumber(),
+				new Hot(account, true, clock.getAsLong())) != null)
+		return false;
+	    log(List.of(account));
+	} finally {
+	    applying.readLock().unlock();
+	}
+	demoteIfFull();
+	return true;
+    }
+
+    @Override
+    public boolean update(Account account) {
+	return update(List.of(account));
+    }
+
+    @Override
+    public boolean update(Pair<Account, Account> accountPair) {
+	return update(List.of(accountPair.getFst(), accountPair.getSnd()));
+    }
+
+    // one record for all of them, so a torn tail drops the whole write
+    @Override
+    public boolean update(List<Account> accounts) {
+	applying.readLock().lock();
+	try {
+	    for (Account account : accounts)
+		if (!exists(account.getNumber()))
+		    return false;
+	    log(accounts);
+	    for (Account account : accounts)
+		put(account);
+	} finally {
+	    applying.readLock().unlock();
+	}
+	demoteIfFull();
+	return true;
+    }
+
+    // hot accounts first, then every cold block in file order, keeping
+    // only the copies the index still points at
+    @Override
+    public Stream<Account> streamAccounts() {
+	final ArrayList<Account> hotAccounts = new ArrayList<>(hot.size());
+	hot.values().forEach(entry -> hotAccounts.add(entry.account));
+	final long end = coldEnd;
+	return Stream.concat(hotAccounts.stream(),
+			     Stream.iterate(0L, block -> block < end,
+					    this::nextBlock)
+			     .flatMap(block -> readBlock(block).stream()
+				      .filter(account -> !hot.containsKey(account.getNumber())
+					      && blockOf(account.getNumber()) == block)));
+    }
+
+    // moves accounts idle past the threshold to the cold file, then
+    // checkpoints, so the log never holds more than a tick of writes
+    public void demoteIdle() {
+	demoting.lock();
+	try {
+	    demote(0);
+	    checkpoint();
+	} catch (IOException ex) {
+	    throw new UncheckedIOException("Server Error: checkpoint", ex);
+	} finally {
+	    demoting.unlock();
+	}
+    }
+
+    // everything goes cold, so the files alone hold every account
+    public void close() throws IOException {
+	demoting.lock();
+	try {
+	    demote(Integer.MAX_VALUE);
+	    checkpoint();
+	    wal.close();
+	    cold.close();
+	    index.close();
+	} finally {
+	    demoting.unlock();
+	}
+    }
+
+    private boolean exists(int number) {
+	return hot.containsKey(number) || blockOf(number) >= 0;
+    }
+
+    private void put(Account account) {
+	hot.put(account.getNumber(), new Hot(account, true, clock.getAsLong()));
+    }
+
+    private void log(List<Account> accounts) {
+	wal.append(written, body -> {
+		body.putInt(accounts.size());
+		for (Account account : accounts)
+		    AccountCodec.write(body, account);
+	    });
+    }
+
+    // over the cap, the least recently used eighth goes cold at once,
+    // by whichever writer gets there first; so does a checkpoint once
+    // the log has grown long enough to slow a restart down
+    private void demoteIfFull() {
+	if ((hot.size() <= maxHot
+	     && wal.nextSeq() - checkpointed < checkpointEvery)
+	    || !demoting.tryLock())
+	    return ;
+	try {
+	    if (hot.size() > maxHot)
+		demote(hot.size() - (maxHot - maxHot / 8));
+	    if (wal.nextSeq() - checkpointed >= checkpointEvery)
+		checkpoint();
+	} catch (IOException ex) {
+	    throw new UncheckedIOException("Server Error: checkpoint", ex);
+	} finally {
+	    demoting.unlock();
+	}
+    }
+
+    // dirty hot accounts are written cold and stay hot, clean; with both
+    // files forced, the log from the seq taken under the write side on
+    // is all a restart needs, so the segments before it go.  called with
+    // demoting held
+    private void checkpoint() throws IOException {
+	final long fromSeq;
+	final ArrayList<Map.Entry<Integer, Hot>> dirty = new ArrayList<>();
+	applying.writeLock().lock();
+	try {
+	    fromSeq = wal.nextSeq();
+	    for (Map.Entry<Integer, Hot> entry : hot.entrySet())
+		if (entry.getValue().dirty)
+		    dirty.add(entry);
+	} finally {
+	    applying.writeLock().unlock();
+	}
+	for (int from = 0; from < dirty.size(); from += blockAccounts)
+	    writeBlock(dirty.subList(from, Math.min(dirty.size(),
+						    from + blockAccounts)));
+	for (Map.Entry<Integer, Hot> entry : dirty)
+	    hot.replace(entry.getKey(), entry.getValue(),
+			new Hot(entry.getValue().account, false,
+				entry.getValue().lastUsed));
+	cold.force(true);
+	index.force(true);
+
+	final Path tmp = directory.resolve(checkpointName + ".tmp");
+	try (FileChannel out = FileChannel.open(tmp,
+						StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+	    final ByteBuffer buffer = ByteBuffer.allocate(16);
+	    buffer.putLong(fromSeq).putLong(coldEnd).flip();
+	    while (buffer.hasRemaining())
+		out.write(buffer);
+	    out.force(true);
+	}
+	Files.move(tmp, directory.resolve(checkpointName),
+		   StandardCopyOption.REPLACE_EXISTING,
+		   StandardCopyOption.ATOMIC_MOVE);
+	checkpointed = fromSeq;
+
+	final ArrayList<Path> segments = wal.segments();
+	for (int i = 0; i + 1 < segments.size()
+		 && EventLog.firstSeqOf(segments.get(i + 1)) <= fromSeq; i++)
+	    Files.delete(segments.get(i));
+    }
+
+    // blocks past the checkpoint may be torn and the index may point into
+    // them, but every account they held is in the log after it: the file
+    // is cut back, the log replayed hot and dirty, and checkpointed again
+    private void recover() throws IOException {
+	long fromSeq = 0;
+	final Path checkpoint = directory.resolve(checkpointName);
+	if (Files.exists(checkpoint)) {
+	    final ByteBuffer saved =
+		ByteBuffer.wrap(Files.readAllBytes(checkpoint));
+	    fromSeq = saved.getLong();
+	    cold.truncate(saved.getLong());
+	} else {
+	    // never checkpointed, so only a torn last block can be cut
+	    long block = 0;
+	    while (block + headerBytes <= cold.size()
+		   && nextBlock(block) <= cold.size())
+		block = nextBlock(block);
+	    cold.truncate(block);
+	}
+	coldEnd = cold.size();
+
+	final long now = clock.getAsLong();
+	final ArrayList<Path> segments = wal.segments();
+	long nextSeq = fromSeq;
+	Path last = null;
+	long lastEnd = 0;
+	for (int i = 0; i < segments.size(); i++) {
+	    if (i + 1 < segments.size()
+		&& EventLog.firstSeqOf(segments.get(i + 1)) <= fromSeq)
+		continue;
+	    final EventSegment segment = wal.index(segments.get(i), fromSeq);
+	    final ByteBuffer buffer = segment.buffer.duplicate();
+	    for (int record = 0; record < segment.count; record++) {
+		buffer.position(segment.offsets[record] + EventLog.bodyOffset);
+		for (int count = buffer.getInt(); count > 0; count--) {
+		    final Account account = AccountCodec.read(buffer);
+		    hot.put(account.getNumber(), new Hot(account, true, now));
+		}
+	    }
+	    nextSeq = Math.max(nextSeq, segment.nextSeq);
+	    last = segment.path;
+	    lastEnd = segment.validEnd;
+	    if (segment.validEnd < segment.buffer.capacity()) {
+		// a torn record ends the log; later segments cannot follow it
+		for (int j = i + 1; j < segments.size(); j++)
+		    Files.delete(segments.get(j));
+		break;
+	    }
+	}
+	wal.openForAppend(last, lastEnd, nextSeq);
+	checkpointed = fromSeq;
+
+	demoting.lock();
+	try {
+	    checkpoint();
+	} finally {
+	    demoting.unlock();
+	}
+    }
+
+    // the coldest entries, at least atLeast of them and all that are
+    // idle; clean ones are dropped, dirty ones written first, and an
+    // entry replaced meanwhile by an update stays hot
+    private void demote(int atLeast) {
+	final long idleBefore = clock.getAsLong() - idleMillis;
+	final ArrayList<Map.Entry<Integer, Hot>> entries =
+	    new ArrayList<>(hot.entrySet());
+	// sorted on a copy of the times, since readers keep touching them
+	final long[] used = new long[entries.size()];
+	final Integer[] order = new Integer[entries.size()];
+	for (int i = 0; i < order.length; i++) {
+	    used[i] = entries.get(i).getValue().lastUsed;
+	    order[i] = i;
+	}
+	Arrays.sort(order, (a, b) -> Long.compare(used[a], used[b]));
+	final ArrayList<Map.Entry<Integer, Hot>> dirty = new ArrayList<>();
+	final ArrayList<Map.Entry<Integer, Hot>> clean = new ArrayList<>();
+	for (int i = 0; i < order.length; i++) {
+	    if (i >= atLeast && used[order[i]] >= idleBefore)
+		break ;
+	    final Map.Entry<Integer, Hot> entry = entries.get(order[i]);
+	    (entry.getValue().dirty ? dirty : clean).add(entry);
+	}
+	try {
+	    for (int from = 0; from < dirty.size(); from += blockAccounts)
+		writeBlock(dirty.subList(from, Math.min(dirty.size(),
+							from + blockAccounts)));
+	} catch (IOException ex) {
+	    throw new UncheckedIOException("Server Error: cold write", ex);
+	}
+	for (Map.Entry<Integer, Hot> entry : dirty)
+	    if (hot.remove(entry.getKey(), entry.getValue()))
+		demoted.increment();
+	for (Map.Entry<Integer, Hot> entry : clean)
+	    if (hot.remove(entry.getKey(), entry.getValue()))
+		demoted.increment();
+    }
+
+    private void writeBlock(List<Map.Entry<Integer, Hot>> entries)
+	throws IOException {
+	final ByteBuffer raw = ByteBuffer.allocate(blockAccounts * 1024);
+	for (Map.Entry<Integer, Hot> entry : entries)
+	    AccountCodec.write(raw, entry.getValue().account);
+	final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	deflater.setInput(raw.array(), 0, raw.position());
+	deflater.finish();
+	byte[] packed = new byte[raw.position() + 64];
+	int length = 0;
+	while (!deflater.finished()) {
+	    if (length == packed.length)
+		packed = Arrays.copyOf(packed, 2 * packed.length);
+	    length += deflater.deflate(packed, length, packed.length - length);
+	}
+	deflater.end();
+
+	final long block = coldEnd;
+	final ByteBuffer out = ByteBuffer.allocate(headerBytes + length);
+	out.putInt(length).putInt(raw.position()).putInt(entries.size());
+	out.put(packed, 0, length).flip();
+	long position = block;
+	while (out.hasRemaining())
+	    position += cold.write(out, position);
+	coldEnd = position;
+	// the index goes after the block, so it never points past the data
+	final ByteBuffer slot = ByteBuffer.allocate(8);
+	for (Map.Entry<Integer, Hot> entry : entries) {
+	    slot.clear();
+	    slot.putLong(block + 1).flip();
+	    index.write(slot, 8L * entry.getKey());
+	}
+    }
+
+    // where the block with the latest cold copy starts, or -1
+    private long blockOf(int number) {
+	final ByteBuffer slot = ByteBuffer.allocate(8);
+	try {
+	    final long position = 8L * number;
+	    while (slot.hasRemaining())
+		if (index.read(slot, position + slot.position()) < 0)
+		    return -1;
+	} catch (IOException ex) {
+	    throw new UncheckedIOException("Server Error: cold index", ex);
+	}
+	return slot.getLong(0) - 1;
+    }
+
+    private long nextBlock(long block) {
+	return block + headerBytes + readFully(block, headerBytes).getInt();
+    }
+
+    private Account readCold(long block, int number) {
+	for (Account account : readBlock(block))
+	    if (account.getNumber() == number)
+		return account;
+	throw new UncheckedIOException(new IOException("Server Error: account "
+						       + number
+						       + " missing from block "
+						       + block));
+    }
+
+    private List<Account> readBlock(long block) {
+	final ByteBuffer header = readFully(block, headerBytes);
+	final int length = header.getInt();
+	final int rawLength = header.getInt();
+	final int count = header.getInt();
+	final byte[] raw = new byte[rawLength];
+	final Inflater inflater = new Inflater();
+	try {
+	    inflater.setInput(readFully(block + headerBytes, length));
+	    int inflated = 0;
+	    while (inflated < rawLength && !inflater.finished()) {
+		final int n = inflater.inflate(raw, inflated, rawLength - inflated);
+		if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+		    break ;
+		inflated += n;
+	    }
+	    if (inflated != rawLength)
+		throw new DataFormatException("cold block inflates to " + inflated
+					      + " bytes, " + rawLength + " expected");
+	} catch (DataFormatException ex) {
+	    throw new UncheckedIOException(new IOException("Server Error: cold block "
+							   + block, ex));
+	} finally {
+	    inflater.end();
+	}
+	final ByteBuffer buffer = ByteBuffer.wrap(raw);
+	final ArrayList<Account> accounts = new ArrayList<>(count);
+	for (int i = 0; i < count; i++)
+	    accounts.add(AccountCodec.read(buffer));
+	return accounts;
+    }
+
+    private ByteBuffer readFully(long position, int length) {
+	final ByteBuffer buffer = ByteBuffer.allocate(length);
+	try {
+	    while (buffer.hasRemaining())
+		if (cold.read(buffer, position + buffer.position()) < 0)
+		    throw new IOException("truncated at " + position);
+	} catch (IOException ex) {
+	    throw new UncheckedIOException("Server Error: cold read", ex);
+	}
+	return buffer.flip();
+    }
+}
+
+// a bounded read-through cache in front of a slower repository; a hit
+// is one map lookup and at most one write of the entry's reference bit,
+// while misses and writes share a lock with the CLOCK hand, since they
+// pay for a trip to the repository behind anyway
+class CachingRepository implements Repository {
+    private static final int stripes = 64;
+
+    private static class Entry {
+	final Account account;
+	final int slot;
+	volatile boolean referenced;
+
+	Entry(Account account, int slot) {
+	    this.account = account;
+	    this.slot = slot;
+	}
+    }
+
+    private final Repository repository;
+    private final ConcurrentHashMap<Integer, Entry> entries;
+    private final Entry[] ring;
+    private final ReentrantLock lock = new ReentrantLock();
+    // bumped by every write, so a miss that loaded an account before
+    // the write does not cache what it read
+    private final AtomicLongArray stamps = new AtomicLongArray(stripes);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private int size;
+    private int hand;
+
+    CachingRepository(Repository repository, int capacity) {
+	this.repository = repository;
+	this.entries = new ConcurrentHashMap<>(2 * capacity);
+	this.ring = new Entry[capacity];
+    }
+
+    public long getHits() {
+	return hits.sum();
+    }
+
+    public long getMisses() {
+	return misses.sum();
+    }
+
+    public long getEvictions() {
+	return evictions.sum();
+    }
+
+    public double hitRatio() {
+	final long hit = hits.sum();
+	final long all = hit + misses.sum();
+	return all == 0 ? 0.0 : (double) hit / all;
+    }
+
+    public int size() {
+	return entries.size();
+    }
+
+    @Override
+    public Optional<Account> getAccountByNumber(int accountNumber) {
+	final Entry entry = entries.get(accountNumber);
+	if (entry != null) {
+	    if (!entry.referenced)
+		entry.referenced = true;
+	    hits.increment();
+	    return Optional.of(entry.account);
+	}
+	misses.increment();
+	final int stripe = accountNumber & (stripes - 1);
+	final long stamp = stamps.get(stripe);
+	final Optional<Account> loaded =
+	    repository.getAccountByNumber(accountNumber);
+	if (loaded.isPresent()) {
+	    lock.lock();
+	    try {
+		if (stamps.get(stripe) == stamp
+		    && !entries.containsKey(accountNumber))
+		    insert(loaded.get());
+	    } finally {
+		lock.unlock();
+	    }
+	}
+	return loaded;
+    }
+
+    // a new account is likely to be read next, so it is cached at once
+    @Override
+    public boolean saveAccount(Account account) {
+	if (!repository.saveAccount(account))
+	    return false;
+	lock.lock();
+	try {
+	    stamps.incrementAndGet(account.getNumber() & (stripes - 1));
+	    if (!entries.containsKey(account.getNumber()))
+		insert(account);
+	} finally {
+	    lock.unlock();
+	}
+	return true;
+    }
+
+    @Override
+    public boolean update(Account account) {
+	if (!repository.update(account))
+	    return false;
+	lock.lock();
+	try {
+	    refresh(account);
+	} finally {
+	    lock.unlock();
+	}
+	return true;
+    }
+
+    @Override
+    public boolean update(Pair<Account, Account> accountPair) {
+	if (!repository.update(accountPair))
+	    return false;
+	lock.lock();
+	try {
+	    refresh(accountPair.getFst());
+	    refresh(accountPair.getSnd());
+	} finally {
+	    lock.unlock();
+	}
+	return true;
+    }
+
+    @Override
+    public boolean update(List<Account> accounts) {
+	if (!repository.update(accounts))
+	    return false;
+	lock.lock();
+	try {
+	    for (Account account : accounts)
+		refresh(account);
+	} finally {
+	    lock.unlock();
+	}
+	return true;
+    }
+
+    @Override
+    public Stream<Account> streamAccounts() {
+	return repository.streamAccounts();
+    }
+
+    @Override
+    public List<Account> accountsOf(String username) {
+	return repository.accountsOf(username);
+    }
+
+    @Override
+    public List<String> userNamesStartingWith(String prefix, int limit) {
+	return repository.userNamesStartingWith(prefix, limit);
+    }
+
+    // writes go through to the repository first, then replace a cached
+    // copy in its slot; an account not cached stays out
+    private void refresh(Account account) {
+	stamps.incrementAndGet(account.getNumber() & (stripes - 1));
+	final Entry cached = entries.get(account.getNumber());
+	if (cached == null)
+	    return ;
+	final Entry updated = new Entry(account, cached.slot);
+	updated.referenced = true;
+	ring[cached.slot] = updated;
+	entries.put(account.getNumber(), updated);
+    }
+
+    // the hand sweeps past entries read since its last visit, clearing
+    // their bit, and evicts the first one that was not
+    private void insert(Account account) {
+	final int slot;
+	if (size < ring.length) {
+	    slot = size++;
+	} else {
+	    while (ring[hand].referenced) {
+		ring[hand].referenced = false;
+		hand = (hand + 1) % ring.length;
+	    }
+	    slot = hand;
+	    hand = (hand + 1) % ring.length;
+	    entries.remove(ring[slot].account.getNumber());
+	    evictions.increment();
+	}
+	ring[slot] = new Entry(account, slot);
+	entries.put(account.getNumber(), ring[slot]);
+    }
+}
+
+// a Bloom filter over account numbers: no false negatives, and false
+// positives at about the rate it was sized for until it holds more
+// than the expected number of accounts
+class BloomFilter {
+    private final AtomicLongArray words;
+    private final long bits;
+    private final int hashes;
+    private final LongAdder count = new LongAdder();
+
+    private BloomFilter(long bits, int hashes) {
+	this.words = new AtomicLongArray((int) ((bits + 63) >>> 6));
+	this.bits = bits;
+	this.hashes = hashes;
+    }
+
+    // m = -n ln p / (ln 2)^2 bits and k = m / n ln 2 hashes
+    static BloomFilter sized(long expected, double falsePositiveRate) {
+	final long n = Math.max(1L, expected);
+	final long bits =
+	    Math.max(64L, (long) Math.ceil(-n * Math.log(falsePositiveRate)
+					   / (Math.log(2) * Math.log(2))));
+	final int hashes =
+	    Math.max(1, (int) Math.round((double) bits / n * Math.log(2)));
+	return new BloomFilter(bits, hashes);
+    }
+
+    public long getBits() {
+	return this.bits;
+    }
+
+    public int getHashes() {
+	return this.hashes;
+    }
+
+    public long getCount() {
+	return count.sum();
+    }
+
+    public long memoryBytes() {
+	return 8L * words.length();
+    }
+
+    // the rate the filter gives at its current fill
+    public double expectedFalsePositiveRate() {
+	return Math.pow(1.0 - Math.exp(-hashes * (double) count.sum() / bits),
+			hashes);
+    }
+
+    public void add(int number) {
+	final long hash = mix(number);
+	final long h1 = hash;
+	final long h2 = (hash >>> 32) | 1L;
+	for (int i = 0; i < hashes; i++) {
+	    final long bit = Math.floorMod(h1 + i * h2, bits);
+	    final int word = (int) (bit >>> 6);
+	    final long mask = 1L << bit;
+	    long old = words.get(word);
+	    while ((old & mask) == 0L && !words.compareAndSet(word, old, old | mask))
+		old = words.get(word);
+	}
+	count.increment();
+    }
+
+    public boolean mightContain(int number) {
+	final long hash = mix(number);
+	final long h1 = hash;
+	final long h2 = (hash >>> 32) | 1L;
+	for (int i = 0; i < hashes; i++) {
+	    final long bit = Math.floorMod(h1 + i * h2, bits);
+	    if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0L)
+		return false;
+	}
+	return true;
+    }
+
+    void save(Path path) throws IOException {
+	final Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+	final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+	try (FileChannel out = FileChannel.open(tmp,
+						StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+	    buffer.putLong(bits).putInt(hashes).putLong(count.sum());
+	    for (int i = 0; i < words.length(); i++) {
+		if (!buffer.hasRemaining()) {
+		    buffer.flip();
+		    while (buffer.hasRemaining())
+			out.write(buffer);
+		    buffer.clear();
+		}
+		buffer.putLong(words.get(i));
+	    }
+	    buffer.flip();
+	    while (buffer.hasRemaining())
+		out.write(buffer);
+	    out.force(true);
+	}
+	Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING,
+		   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    static BloomFilter load(Path path) throws IOException {
+	try (FileChannel in = FileChannel.open(path, StandardOpenOption.READ)) {
+	    final ByteBuffer header = ByteBuffer.allocate(20);
+	    while (header.hasRemaining())
+		if (in.read(header) < 0)
+		    throw new IOException("truncated bloom filter " + path);
+	    header.flip();
+	    final BloomFilter filter =
+		new BloomFilter(header.getLong(), header.getInt());
+	    filter.count.add(header.getLong());
+	    final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+	    int word = 0;
+	    while (word < filter.words.length()) {
+		if (in.read(buffer) < 0)
+		    throw new IOException("truncated bloom filter " + path);
+		buffer.flip();
+		while (buffer.remaining() >= 8 && word < filter.words.length())
+		    filter.words.set(word++, buffer.getLong());
+		buffer.compact();
+	    }
+	    return filter;
+	}
+    }
+
+    // the murmur3 finalizer, so neighbouring numbers spread out
+    private static long mix(int number) {
+	long hash = number * 0x9e3779b97f4a7c15L;
+	hash ^= hash >>> 33;
+	hash *= 0xff51afd7ed558ccdL;
+	hash ^= hash >>> 33;
+	hash *= 0xc4ceb9fe1a85ec53L;
+	hash ^= hash >>> 33;
+	return hash;
+    }
+}
+
+// answers a lookup for an account that was never opened from the
+// filter alone, without reaching the repository behind it
+class BloomFilteredRepository implements Repository {
+    private final Repository repository;
+    private final BloomFilter filter;
+    private final Path path;
+    private final LongAdder rejected = new LongAdder();
+
+    BloomFilteredRepository(Repository repository, BloomFilter filter) {
+	this(repository, filter, null);
+    }
+
+    private BloomFilteredRepository(
+				    Repository repository,
+				    BloomFilter filter,
+				    Path path) {
+	this.repository = repository;
+	this.filter = filter;
+	this.path = path;
+    }
+
+    // the saved filter is deleted once loaded and written again on
+    // close, so after a crash it is rebuilt from the accounts instead
+    // of missing the ones opened since it was saved
+    static BloomFilteredRepository open(
+					Repository repository,
+					Path path,
+					long expected,
+					double falsePositiveRate) throws IOException {
+	BloomFilter filter = null;
+	if (Files.exists(path)) {
+	    filter = BloomFilter.load(path);
+	    Files.delete(path);
+	}
+	if (filter == null) {
+	    final BloomFilter built =
+		BloomFilter.sized(expected, falsePositiveRate);
+	    repository.streamAccounts()
+		.forEach(account -> built.add(account.getNumber()));
+	    filter = built;
+	}
+	return new BloomFilteredRepository(repository, filter, path);
+    }
+
+    public BloomFilter getFilter() {
+	return this.filter;
+    }
+
+    public long getRejected() {
+	return rejected.sum();
+    }
+
+    public void close() throws IOException {
+	if (path != null)
+	    filter.save(path);
+    }
+
+    @Override
+    public Optional<Account> getAccountByNumber(int accountNumber) {
+	if (!filter.mightContain(accountNumber)) {
+	    rejected.increment();
+	    return Optional.empty();
+	}
+	return repository.getAccountByNumber(accountNumber);
+    }
+
+    // the number goes in first, so a reader never misses an account
+    // that is already stored; a failed save only costs a false positive
+    @Override
+    public boolean saveAccount(Account account) {
+	filter.add(account.getNumber());
+	return repository.saveAccount(account);
+    }
+
+    @Override
+    public boolean update(Account account) {
+	return repository.update(account);
+    }
+
+    @Override
+    public boolean update(Pair<Account, Account> accountPair) {
+	return repository.update(accountPair);
+    }
+
+    @Override
+    public boolean update(List<Account> accounts) {
+	return repository.update(accounts);
+    }
+
+    @Override
+    public Stream<Account> streamAccounts() {
+	return repository.streamAccounts();
+    }
+
+    @Override
+    public List<Account> accountsOf(String username) {
+	return repository.accountsOf(username);
+    }
+
+    @Override
+    public List<String> userNamesStartingWith(String prefix, int limit) {
+	return repository.userNamesStartingWith(prefix, limit);
+    }
+}
+
+class ChangeEvent {
+    private final long seq;
+    private final int account;
+    private final double before;
+    private final double after;
+    private final Operation operation;
+
+    ChangeEvent(
+		long seq,
+		int account,
+		double before,
+		double after,
+		Operation operation) {
+	this.seq = seq;
+	this.account = account;
+	this.before = before;
+	this.after = after;
+	this.operation = operation;
+    }
+
+    public long getSeq() {
+	return this.seq;
+    }
+
+    public int getAccount() {
+	return this.account;
+    }
+
+    public double getBefore() {
+	return this.before;
+    }
+
+    public double getAfter() {
+	return this.after;
+    }
+
+    public Operation getOperation() {
+	return this.operation;
+    }
+
+    @Override
+    public String toString() {
+	return String.format(
+			     "ChangeEvent(seq: %d, account: %d, %s, " +
+			     "%.2f -> %.2f)",
+			     seq, account, operation, before, after);
+    }
+}
+
+// an ordered feed of balance changes; the newest events sit in a ring,
+// and as the ring wraps, events an open subscriber has yet to read are
+// spilled to segment files, or without a spill directory the writer
+// waits for that subscriber instead
+class ChangeStream {
+    class Subscriber implements AutoCloseable {
+	private long offset;
+	private boolean closed;
+	private EventSegment segment;
+	private int next;
+
+	private Subscriber(long offset) {
+	    this.offset = offset;
+	}
+
+	// the seq of the next event poll hands out, which a restarted
+	// consumer passes back to subscribe to carry on from there
+	public long getOffset() {
+	    lock.lock();
+	    try {
+		return this.offset;
+	    } finally {
+		lock.unlock();
+	    }
+	}
+
+	// up to maxBatch events in order, waiting up to timeout for the
+	// first; empty once the wait runs out or the stream is closed
+	public List<ChangeEvent> poll(int maxBatch, long timeout, TimeUnit unit)
+	    throws InterruptedException {
+	    final long upTo;
+	    lock.lock();
+	    try {
+		long nanos = unit.toNanos(timeout);
+		while (offset == nextSeq && nanos > 0 && !closed && open)
+		    nanos = published.awaitNanos(nanos);
+		if (closed || offset == nextSeq)
+		    return new ArrayList<>();
+		if (offset >= ringStart()) {
+		    final int count = (int) Math.min(maxBatch, nextSeq - offset);
+		    final ArrayList<ChangeEvent> batch = new ArrayList<>(count);
+		    for (int i = 0; i < count; i++) {
+			final int slot = (int) (offset + i) & mask;
+			batch.add(new ChangeEvent(offset + i, accounts[slot],
+						  befores[slot], afters[slot],
+						  Operation.ofCode(operations[slot])));
+		    }
+		    advance(count);
+		    return batch;
+		}
+		upTo = ringStart();
+	    } finally {
+		lock.unlock();
+	    }
+	    return readSpilled(maxBatch, upTo);
+	}
+
+	@Override
+	public void close() {
+	    lock.lock();
+	    try {
+		if (closed)
+		    return ;
+		closed = true;
+		subscribers.remove(this);
+		consumed.signalAll();
+		published.signalAll();
+	    } finally {
+		lock.unlock();
+	    }
+	}
+
+	private void advance(int count) {
+	    offset += count;
+	    consumed.signalAll();
+	}
+
+	// spilled records below upTo never change, so they are read
+	// without the lock
+	private List<ChangeEvent> readSpilled(int maxBatch, long upTo) {
+	    final ArrayList<ChangeEvent> batch = new ArrayList<>();
+	    try {
+		if (segment == null || next == segment.count) {
+		    segment = spilledSegment(offset);
+		    next = 0;
+		}
+		final ByteBuffer buffer = segment.buffer.duplicate();
+		while (next < segment.count && batch.size() < maxBatch) {
+		    final int record = segment.offsets[next];
+		    final long seq = buffer.getLong(record + EventLog.headerBytes);
+		    if (seq >= upTo)
+			break;
+		    final int body = record + EventLog.bodyOffset;
+		    batch.add(new ChangeEvent(seq, buffer.getInt(body),
+					      buffer.getDouble(body + 4),
+					      buffer.getDouble(body + 12),
+					      Operation.ofCode(buffer.get(record
+									 + EventLog.typeOffset))));
+		    next++;
+		}
+	    } catch (IOException ex) {
+		throw new UncheckedIOException(ex);
+	    }
+	    lock.lock();
+	    try {
+		if (!closed)
+		    advance(batch.size());
+	    } finally {
+		lock.unlock();
+	    }
+	    if (next == segment.count)
+		trimSpill();
+	    return batch;
+	}
+    }
+
+    private final int mask;
+    private final int[] accounts;
+    private final double[] befores;
+    private final double[] afters;
+    private final byte[] operations;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition published = lock.newCondition();
+    private final Condition consumed = lock.newCondition();
+    private final ArrayList<Subscriber> subscribers = new ArrayList<>();
+    private final EventLog spill;
+    private long nextSeq;
+    // the spill holds every seq in [spillFrom, spillTo)
+    private long spillFrom;
+    private long spillTo;
+    private long spilled;
+    private boolean open = true;
+
+    ChangeStream(int capacity) {
+	this(capacity, null);
+    }
+
+    private ChangeStream(int capacity, EventLog spill) {
+	final int slots = Integer.highestOneBit(Math.max(2, capacity) * 2 - 1);
+	this.mask = slots - 1;
+	this.accounts = new int[slots];
+	this.befores = new double[slots];
+	this.afters = new double[slots];
+	this.operations = new byte[slots];
+	this.spill = spill;
+    }
+
+    // the spill only outlives the ring, not the process: segments left
+    // by an earlier run are dropped
+    static ChangeStream open(
+			     Path directory,
+			     int capacity,
+			     long segmentBytes) throws IOException {
+	Files.createDirectories(directory);
+	final EventLog spill = new EventLog(directory, segmentBytes, false);
+	for (Path segment : spill.segments())
+	    Files.delete(segment);
+	return new ChangeStream(capacity, spill);
+    }
+
+    public int capacity() {
+	return mask + 1;
+    }
+
+    public long getNextSeq() {
+	lock.lock();
+	try {
+	    return this.nextSeq;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    public long getSpilled() {
+	lock.lock();
+	try {
+	    return this.spilled;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    // offsets older than the ring and the spill are gone for good
+    public Subscriber subscribe(long offset) {
+	lock.lock();
+	try {
+	    final long earliest = spillTo == ringStart() && spillFrom < spillTo
+		? spillFrom
+		: ringStart();
+	    if (offset < earliest || offset > nextSeq)
+		throw new IllegalArgumentException(String.format(
+								 "Offset %d outside the retained %d to %d",
+								 offset, earliest, nextSeq));
+	    final Subscriber subscriber = new Subscriber(offset);
+	    subscribers.add(subscriber);
+	    return subscriber;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    public long publish(
+			int account,
+			double before,
+			double after,
+			Operation operation) {
+	lock.lock();
+	try {
+	    awaitRoom(1);
+	    return append(account, before, after, operation);
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    // both legs of a transfer get adjacent seqs
+    public long publish(
+			int from,
+			double fromBefore,
+			double fromAfter,
+			int to,
+			double toBefore,
+			double toAfter) {
+	lock.lock();
+	try {
+	    awaitRoom(2);
+	    final long seq = append(from, fromBefore, fromAfter,
+				    Operation.TRANSFER_OUT);
+	    append(to, toBefore, toAfter, Operation.TRANSFER_IN);
+	    return seq;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    // adjacent seqs too, unless a batch without a spill outgrows the
+    // ring, when it goes out a ring at a time as the subscribers drain
+    public long publish(
+			int[] accounts,
+			double[] befores,
+			double[] afters,
+			Operation[] operations) {
+	lock.lock();
+	try {
+	    final long seq = nextSeq;
+	    for (int i = 0; i < accounts.length; i++) {
+		if (i % capacity() == 0)
+		    awaitRoom(Math.min(capacity(), accounts.length - i));
+		append(accounts[i], befores[i], afters[i], operations[i]);
+	    }
+	    return seq;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    public void close() throws IOException {
+	lock.lock();
+	try {
+	    open = false;
+	    published.signalAll();
+	    consumed.signalAll();
+	    if (spill != null)
+		spill.close();
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    private long ringStart() {
+	return Math.max(0L, nextSeq - capacity());
+    }
+
+    private long oldestOffset() {
+	long oldest = nextSeq;
+	for (Subscriber subscriber : subscribers)
+	    oldest = Math.min(oldest, subscriber.offset);
+	return oldest;
+    }
+
+    private void awaitRoom(int events) {
+	if (spill != null)
+	    return ;
+	boolean interrupted = false;
+	while (open && nextSeq + events - capacity() > oldestOffset()) {
+	    try {
+		consumed.await();
+	    } catch (InterruptedException ex) {
+		interrupted = true;
+	    }
+	}
+	if (interrupted)
+	    Thread.currentThread().interrupt();
+    }
+
+    private long append(
+			int account,
+			double before,
+			double after,
+			Operation operation) {
+	final long seq = nextSeq;
+	final int slot = (int) seq & mask;
+	final long evicted = seq - capacity();
+	if (spill != null && evicted >= 0 && evicted >= oldestOffset())
+	    spillSlot(evicted, slot);
+	accounts[slot] = account;
+	befores[slot] = before;
+	afters[slot] = after;
+	operations[slot] = (byte) operation.ordinal();
+	nextSeq = seq + 1;
+	published.signalAll();
+	return seq;
+    }
+
+    // a gap in what was spilled starts the spill over, since nobody can
+    // ask for anything before the event being spilled now
+    private void spillSlot(long seq, int slot) {
+	try {
+	    if (spillTo != seq || spillFrom == spillTo) {
+		spill.close();
+		for (Path segment : spill.segments())
+		    Files.delete(segment);
+		spill.openForAppend(null, 0L, seq);
+		spillFrom = seq;
+	    }
+	    spill.append(operations[slot], body -> {
+		    body.putInt(accounts[slot]);
+		    body.putDouble(befores[slot]);
+		    body.putDouble(afters[slot]);
+		});
+	    spillTo = seq + 1;
+	    spilled++;
+	} catch (IOException ex) {
+	    throw new UncheckedIOException(ex);
+	}
+    }
+
+    private EventSegment spilledSegment(long seq) throws IOException {
+	final ArrayList<Path> segments = spill.segments();
+	for (int i = segments.size() - 1; i >= 0; i--)
+	    if (EventLog.firstSeqOf(segments.get(i)) <= seq)
+		return spill.index(segments.get(i), seq);
+	throw new IOException("Server Error: change " + seq + " not spilled");
+    }
+
+    // drops spilled segments every subscriber has read past
+    private void trimSpill() {
+	lock.lock();
+	try {
+	    final long oldest = oldestOffset();
+	    final ArrayList<Path> segments = spill.segments();
+	    for (int i = 0; i + 1 < segments.size(); i++) {
+		if (EventLog.firstSeqOf(segments.get(i + 1)) > oldest)
+		    break;
+		Files.delete(segments.get(i));
+		spillFrom = EventLog.firstSeqOf(segments.get(i + 1));
+	    }
+	} catch (IOException ex) {
+	    throw new UncheckedIOException(ex);
+	} finally {
+	    lock.unlock();
+	}
+    }
+}
+
+// publishes every change the wrapped repository accepts; changes to one
+// account come out in the order they were made, since the Service only
+// writes an account under its lock
+class ChangeCapturingRepository implements Repository {
+    private final Repository repository;
+    private final ChangeStream changes;
+
+    ChangeCapturingRepository(Repository repository, ChangeStream changes) {
+	this.repository = repository;
+	this.changes = changes;
+    }
+
+    public ChangeStream getChanges() {
+	return this.changes;
+    }
+
+    @Override
+    public Optional<Account> getAccountByNumber(int accountNumber) {
+	return repository.getAccountByNumber(accountNumber);
+    }
+
+    @Override
+    public boolean saveAccount(Account account) {
+	if (!repository.saveAccount(account))
+	    return false;
+	changes.publish(account.getNumber(), 0.0, account.getBalance(),
+			Operation.OPEN);
+	return true;
+    }
+
+    @Override
+    public boolean update(Account account) {
+	final Optional<Account> old =
+	    repository.getAccountByNumber(account.getNumber());
+	if (!old.isPresent() || !repository.update(account))
+	    return false;
+	changes.publish(account.getNumber(), old.get().getBalance(),
+			account.getBalance(), operationOf(old.get(), account));
+	return true;
+    }
+
+    @Override
+    public boolean update(Pair<Account, Account> accountPair) {
+	final Account from = accountPair.getFst();
+	final Account to = accountPair.getSnd();
+	final Optional<Account> oldFrom =
+	    repository.getAccountByNumber(from.getNumber());
+	final Optional<Account> oldTo =
+	    repository.getAccountByNumber(to.getNumber());
+	if (!oldFrom.isPresent() || !oldTo.isPresent()
+	    || !repository.update(accountPair))
+	    return false;
+	changes.publish(from.getNumber(), oldFrom.get().getBalance(),
+			from.getBalance(), to.getNumber(),
+			oldTo.get().getBalance(), to.getBalance());
+	return true;
+    }
+
+    // the repository only sees where each account ended up, so a batch
+    // comes out as one change per account, not one per leg
+    @Override
+    public boolean update(List<Account> batch) {
+	final int[] numbers = new int[batch.size()];
+	final double[] befores = new double[batch.size()];
+	final double[] afters = new double[batch.size()];
+	final Operation[] operations = new Operation[batch.size()];
+	for (int i = 0; i < batch.size(); i++) {
+	    final Account account = batch.get(i);
+	    final Optional<Account> old =
+		repository.getAccountByNumber(account.getNumber());
+	    if (!old.isPresent())
+		return false;
+	    numbers[i] = account.getNumber();
+	    befores[i] = old.get().getBalance();
+	    afters[i] = account.getBalance();
+	    operations[i] = afters[i] < befores[i]
+		? Operation.TRANSFER_OUT
+		: Operation.TRANSFER_IN;
+	}
+	if (!repository.update(batch))
+	    return false;
+	changes.publish(numbers, befores, afters, operations);
+	return true;
+    }
+
+    @Override
+    public Stream<Account> streamAccounts() {
+	return repository.streamAccounts();
+    }
+
+    @Override
+    public List<Account> accountsOf(String username) {
+	return repository.accountsOf(username);
+    }
+
+    @Override
+    public List<String> userNamesStartingWith(String prefix, int limit) {
+	return repository.userNamesStartingWith(prefix, limit);
+    }
+
+    // read off the state change, like the event-sourced repository does
+    private static Operation operationOf(Account old, Account account) {
+	final double loanDelta = AccountCodec.loanCurrentOf(account)
+	    - AccountCodec.loanCurrentOf(old);
+	if (loanDelta > 0.0)
+	    return Operation.LOAN;
+	if (loanDelta < 0.0)
+	    return Operation.REPAY;
+	return account.getBalance() >= old.getBalance()
+	    ? Operation.DEPOSIT
+	    : Operation.WITHDRAW;
+    }
+}
+
+// accounts ordered by balance in cents, ties broken by number
+class BalanceKey implements Comparable<BalanceKey> {
+    final long cents;
+    final int number;
+
+    BalanceKey(long cents, int number) {
+	this.cents = cents;
+	this.number = number;
+    }
+
+    @Override
+    public int compareTo(BalanceKey other) {
+	final int byCents = Long.compare(cents, other.cents);
+	return byCents != 0 ? byCents : Integer.compare(number, other.number);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+	return other instanceof BalanceKey
+	    && compareTo((BalanceKey) other) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+	return Long.hashCode(cents) * 31 + number;
+    }
+}
+
+// a skip list of (balance, number) for ordered walks, plus a Fenwick
+// tree of counts over log-linear balance buckets and the sorted cents
+// of each bucket, so a range count adds up whole buckets and binary
+// searches the bucket at either end, never walking the skip list
+class BalanceIndex {
+    // 4096 buckets per power of two above 4096 cents, each within about
+    // 0.025% of its lower bound, below that one bucket per cent; the
+    // tree is a fixed 2MB, the sorted cents 8 bytes an account
+    private static final int subBits = 12;
+    private static final int buckets = 64 << subBits;
+
+    // the cents of one bucket in order, duplicates included
+    private static class Bucket {
+	private long[] cents = new long[4];
+	private int size;
+
+	synchronized void add(long value) {
+	    final int at = below(value);
+	    if (size == cents.length)
+		cents = Arrays.copyOf(cents, 2 * size);
+	    System.arraycopy(cents, at, cents, at + 1, size - at);
+	    cents[at] = value;
+	    size++;
+	}
+
+	synchronized void remove(long value) {
+	    final int at = below(value);
+	    if (at == size || cents[at] != value)
+		return ;
+	    System.arraycopy(cents, at + 1, cents, at, size - at - 1);
+	    size--;
+	}
+
+	// how many are under value
+	synchronized int below(long value) {
+	    int low = 0;
+	    int high = size;
+	    while (low < high) {
+		final int middle = (low + high) >>> 1;
+		if (cents[middle] < value)
+		    low = middle + 1;
+		else
+		    high = middle;
+	    }
+	    return low;
+	}
+    }
+
+    private final ConcurrentSkipListSet<BalanceKey> keys =
+	new ConcurrentSkipListSet<>();
+    private final AtomicLongArray tree = new AtomicLongArray(buckets + 1);
+    private final AtomicReferenceArray<Bucket> sorted =
+	new AtomicReferenceArray<>(buckets);
+
+    static long centsOf(double balance) {
+	return Math.max(0L, Math.round(balance * 100.0));
+    }
+
+    static int bucketOf(long cents) {
+	if (cents < (1L << subBits))
+	    return (int) cents;
+	final int exponent = 63 - Long.numberOfLeadingZeros(cents);
+	final int sub = (int) (cents >>> (exponent - subBits))
+	    & ((1 << subBits) - 1);
+	return ((exponent - subBits + 1) << subBits) + sub;
+    }
+
+    static long lowerBoundOf(int bucket) {
+	if (bucket < (1 << subBits))
+	    return bucket;
+	final int exponent = (bucket >>> subBits) + subBits - 1;
+	final long sub = bucket & ((1 << subBits) - 1);
+	return ((1L << subBits) + sub) << (exponent - subBits);
+    }
+
+    public int size() {
+	return keys.size();
+    }
+
+    public void add(int number, double balance) {
+	final long cents = centsOf(balance);
+	if (keys.add(new BalanceKey(cents, number))) {
+	    final int bucket = bucketOf(cents);
+	    bucketAt(bucket).add(cents);
+	    count(bucket, 1);
+	}
+    }
+
+    public void remove(int number, double balance) {
+	final long cents = centsOf(balance);
+	if (keys.remove(new BalanceKey(cents, number))) {
+	    final int bucket = bucketOf(cents);
+	    count(bucket, -1);
+	    bucketAt(bucket).remove(cents);
+	}
+    }
+
+    public void move(int number, double before, double after) {
+	if (centsOf(before) == centsOf(after))
+	    return ;
+	remove(number, before);
+	add(number, after);
+    }
+
+    public Stream<BalanceKey> descending() {
+	return keys.descendingSet().stream();
+    }
+
+    public Stream<BalanceKey> below(double threshold) {
+	return keys.headSet(new BalanceKey(centsOf(threshold),
+					   Integer.MIN_VALUE)).stream();
+    }
+
+    // accounts with from <= balance < to
+    public long countBetween(double from, double to) {
+	final long lower = centsOf(from);
+	final long upper = centsOf(to);
+	if (upper <= lower)
+	    return 0L;
+	return rank(upper) - rank(lower);
+    }
+
+    // how many balances are under cents
+    private long rank(long cents) {
+	final int bucket = bucketOf(cents);
+	final long whole = prefix(bucket);
+	if (lowerBoundOf(bucket) == cents)
+	    return whole;
+	final Bucket partial = sorted.get(bucket);
+	return partial == null ? whole : whole + partial.below(cents);
+    }
+
+    private Bucket bucketAt(int bucket) {
+	final Bucket current = sorted.get(bucket);
+	if (current != null)
+	    return current;
+	sorted.compareAndSet(bucket, null, new Bucket());
+	return sorted.get(bucket);
+    }
+
+    private void count(int bucket, long delta) {
+	for (int i = bucket + 1; i <= buckets; i += i & -i)
+	    tree.addAndGet(i, delta);
+    }
+
+    // the count in buckets before bucket
+    private long prefix(int bucket) {
+	long sum = 0;
+	for (int i = bucket; i > 0; i -= i & -i)
+	    sum += tree.get(i);
+	return sum;
+    }
+}
+
+// keeps a BalanceIndex in step with the wrapped repository; each write
+// costs a skip list move and a few counter updates, and none at all
+// when the balance did not change
+class BalanceIndexedRepository implements Repository {
+    private final Repository repository;
+    private final BalanceIndex index = new BalanceIndex();
+
+    BalanceIndexedRepository(Repository repository) {
+	this.repository = repository;
+	repository.streamAccounts()
+	    .forEach(account -> index.add(account.getNumber(),
+					  account.getBalance()));
+    }
+
+    public BalanceIndex getIndex() {
+	return this.index;
+    }
+
+    public List<Account> richest(int count) {
+	return accountsOf(index.descending(), count);
+    }
+
+    public List<Account> below(double threshold, int limit) {
+	return accountsOf(index.below(threshold), limit);
+    }
+
+    public long countBetween(double from, double to) {
+	return index.countBetween(from, to);
+    }
+
+    @Override
+    public Optional<Account> getAccountByNumber(int accountNumber) {
+	return repository.getAccountByNumber(accountNumber);
+    }
+
+    @Override
+    public boolean saveAccount(Account account) {
+	if (!repository.saveAccount(account))
+	    return false;
+	index.add(account.getNumber(), account.getBalance());
+	return true;
+    }
+
+    @Override
+    public boolean update(Account account) {
+	final Optional<Account> old =
+	    repository.getAccountByNumber(account.getNumber());
+	if (!old.isPresent() || !repository.update(account))
+	    return false;
+	index.move(account.getNumber(), old.get().getBalance(),
+		   account.getBalance());
+	return true;
+    }
+
+    @Override
+    public boolean update(Pair<Account, Account> accountPair) {
+	final Optional<Account> oldFrom =
+	    repository.getAccountByNumber(accountPair.getFst().getNumber());
+	final Optional<Account> oldTo =
+	    repository.getAccountByNumber(accountPair.getSnd().getNumber());
+	if (!oldFrom.isPresent() || !oldTo.isPresent()
+	    || !repository.update(accountPair))
+	    return false;
+	index.move(accountPair.getFst().getNumber(),
+		   oldFrom.get().getBalance(),
+		   accountPair.getFst().getBalance());
+	index.move(accountPair.getSnd().getNumber(),
+		   oldTo.get().getBalance(),
+		   accountPair.getSnd().getBalance());
+	return true;
+    }
+
+    @Override
+    public boolean update(List<Account> accounts) {
+	final double[] befores = new double[accounts.size()];
+	for (int i = 0; i < accounts.size(); i++) {
+	    final Optional<Account> old =
+		repository.getAccountByNumber(accounts.get(i).getNumber());
+	    if (!old.isPresent())
+		return false;
+	    befores[i] = old.get().getBalance();
+	}
+	if (!repository.update(accounts))
+	    return false;
+	for (int i = 0; i < accounts.size(); i++)
+	    index.move(accounts.get(i).getNumber(), befores[i],
+		       accounts.get(i).getBalance());
+	return true;
+    }
+
+    @Override
+    public Stream<Account> streamAccounts() {
+	return repository.streamAccounts();
+    }
+
+    @Override
+    public List<Account> accountsOf(String username) {
+	return repository.accountsOf(username);
+    }
+
+    @Override
+    public List<String> userNamesStartingWith(String prefix, int limit) {
+	return repository.userNamesStartingWith(prefix, limit);
+    }
+
+    private List<Account> accountsOf(Stream<BalanceKey> keys, int limit) {
+	final ArrayList<Account> accounts = new ArrayList<>();
+	keys.limit(limit)
+	    .forEach(key -> repository.getAccountByNumber(key.number)
+		     .ifPresent(accounts::add));
+	return accounts;
+    }
+}
+
+// user names to account numbers in two parts: a base of (name, number)
+// sorted by the name's UTF-8 bytes, with every name packed into one
+// byte array, and a small concurrent map taking new entries until they
+// are merged into a rebuilt base once they reach an eighth of it
+class UsernameIndex {
+    private static final int minRecent = 4096;
+
+    private static final class Base {
+	final byte[] names;
+	// entry i's name runs from offsets[i] to offsets[i + 1]
+	final int[] offsets;
+	final int[] numbers;
+
+	Base(byte[] names, int[] offsets, int[] numbers) {
+	    this.names = names;
+	    this.offsets = offsets;
+	    this.numbers = numbers;
+	}
+
+	int size() {
+	    return numbers.length;
+	}
+
+	int compare(int entry, byte[] key) {
+	    return Arrays.compareUnsigned(names, offsets[entry],
+					  offsets[entry + 1], key, 0, key.length);
+	}
+
+	boolean startsWith(int entry, byte[] prefix) {
+	    return offsets[entry + 1] - offsets[entry] >= prefix.length
+		&& Arrays.equals(names, offsets[entry],
+				 offsets[entry] + prefix.length,
+				 prefix, 0, prefix.length);
+	}
+
+	String nameOf(int entry) {
+	    return new String(names, offsets[entry],
+			      offsets[entry + 1] - offsets[entry],
+			      StandardCharsets.UTF_8);
+	}
+
+	// the first entry whose name is not below key
+	int lowerBound(byte[] key) {
+	    int low = 0;
+	    int high = size();
+	    while (low < high) {
+		final int middle = (low + high) >>> 1;
+		if (compare(middle, key) < 0)
+		    low = middle + 1;
+		else
+		    high = middle;
+	    }
+	    return low;
+	}
+    }
+
+    private volatile Base base =
+	new Base(new byte[0], new int[] { 0 }, new int[0]);
+    private final ConcurrentSkipListMap<String, int[]> recent =
+	new ConcurrentSkipListMap<>();
+    private final AtomicLong recentCount = new AtomicLong();
+    private final ReentrantLock merging = new ReentrantLock();
+
+    public long size() {
+	return base.size() + recentCount.get();
+    }
+
+    // the packed base exactly, the recent map at a rough 100 bytes each
+    public long memoryBytes() {
+	final Base current = base;
+	return current.names.length
+	    + 4L * (current.offsets.length + current.numbers.length)
+	    + 100L * recentCount.get();
+    }
+
+    public void add(String name, int number) {
+	recent.merge(name, new int[] { number }, (numbers, added) -> {
+		final int[] joined = Arrays.copyOf(numbers, numbers.length + 1);
+		joined[numbers.length] = added[0];
+		return joined;
+	    });
+	if (recentCount.incrementAndGet() > Math.max(minRecent, base.size() / 8)
+	    && merging.tryLock()) {
+	    try {
+		merge();
+	    } finally {
+		merging.unlock();
+	    }
+	}
+    }
+
+    // recent is read before base: the merge publishes the new base before
+    // it drops the merged entries from recent, so nothing falls between
+    public int[] numbersOf(String name) {
+	final int[] fresh = recent.get(name);
+	final Base current = base;
+	final byte[] key = name.getBytes(StandardCharsets.UTF_8);
+	final IntStream.Builder numbers = IntStream.builder();
+	for (int entry = current.lowerBound(key);
+	     entry < current.size() && current.compare(entry, key) == 0;
+	     entry++)
+	    numbers.add(current.numbers[entry]);
+	if (fresh != null)
+	    for (int number : fresh)
+		numbers.add(number);
+	return numbers.build().sorted().distinct().toArray();
+    }
+
+    public List<String> withPrefix(String prefix, int limit) {
+	final TreeSet<String> names = new TreeSet<>();
+	for (String name : recent.subMap(prefix, true,
+					 prefix + Character.MAX_VALUE, true)
+		 .keySet()) {
+	    if (names.size() == limit)
+		break ;
+	    names.add(name);
+	}
+	final Base current = base;
+	final byte[] key = prefix.getBytes(StandardCharsets.UTF_8);
+	int distinct = 0;
+	String last = null;
+	for (int entry = current.lowerBound(key);
+	     entry < current.size() && current.startsWith(entry, key)
+		 && distinct < limit;
+	     entry++) {
+	    final String name = current.nameOf(entry);
+	    if (!name.equals(last))
+		distinct++;
+	    names.add(name);
+	    last = name;
+	}
+	return names.stream().limit(limit).collect(Collectors.toList());
+    }
+
+    private void merge() {
+	final Base current = base;
+	final ArrayList<Map.Entry<String, int[]>> taken =
+	    new ArrayList<>(recent.entrySet());
+	int added = 0;
+	final byte[][] keys = new byte[taken.size()][];
+	for (int i = 0; i < taken.size(); i++) {
+	    keys[i] = taken.get(i).getKey().getBytes(StandardCharsets.UTF_8);
+	    added += taken.get(i).getValue().length;
+	}
+	final Integer[] order = new Integer[taken.size()];
+	for (int i = 0; i < order.length; i++)
+	    order[i] = i;
+	Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(keys[a], keys[b]));
+
+	final int size = current.size() + added;
+	final ByteBuffer names = ByteBuffer.allocate(namesLength(current, taken, keys));
+	final int[] offsets = new int[size + 1];
+	final int[] numbers = new int[size];
+	int entry = 0;
+	int from = 0;
+	for (int next = 0; next <= order.length; next++) {
+	    // base entries that sort before the next recent name go first
+	    final byte[] key = next < order.length ? keys[order[next]] : null;
+	    while (from < current.size()
+		   && (key == null || current.compare(from, key) <= 0)) {
+		names.put(current.names, current.offsets[from],
+			  current.offsets[from + 1] - current.offsets[from]);
+		numbers[entry] = current.numbers[from];
+		offsets[++entry] = names.position();
+		from++;
+	    }
+	    if (key == null)
+		break ;
+	    final int[] fresh = taken.get(order[next]).getValue().clone();
+	    Arrays.sort(fresh);
+	    for (int number : fresh) {
+		names.put(key);
+		numbers[entry] = number;
+		offsets[++entry] = names.position();
+	    }
+	}
+	base = new Base(names.array(), offsets, numbers);
+
+	for (Map.Entry<String, int[]> merged : taken)
+	    recent.computeIfPresent(merged.getKey(), (name, now) -> {
+		    if (now == merged.getValue())
+			return null;
+		    // numbers added while merging stay for the next round
+		    return Arrays.stream(now)
+			.filter(number -> Arrays.stream(merged.getValue())
+				.noneMatch(seen -> seen == number))
+			.toArray();
+		});
+	recentCount.addAndGet(-added);
+    }
+
+    private static int namesLength(
+				   Base current,
+				   List<Map.Entry<String, int[]>> taken,
+				   byte[][] keys) {
+	int length = current.names.length;
+	for (int i = 0; i < keys.length; i++)
+	    length += keys[i].length * taken.get(i).getValue().length;
+	return length;
+    }
+}
+
+// keeps a UsernameIndex in step with saveAccount; names never change
+// after an account is opened, so updates pass straight through
+class UsernameIndexedRepository implements Repository {
+    private final Repository repository;
+    private final UsernameIndex index = new UsernameIndex();
+
+    UsernameIndexedRepository(Repository repository) {
+	this.repository = repository;
+	repository.streamAccounts()
+	    .forEach(account -> index.add(account.getUserName(),
+					  account.getNumber()));
+    }
+
+    public UsernameIndex getIndex() {
+	return this.index;
+    }
+
+    @Override
+    public Optional<Account> getAccountByNumber(int accountNumber) {
+	return repository.getAccountByNumber(accountNumber);
+    }
+
+    @Override
+    public boolean saveAccount(Account account) {
+	if (!repository.saveAccount(account))
+	    return false;
+	index.add(account.getUserName(), account.getNumber());
+	return true;
+    }
+
+    @Override
+    public boolean update(Account account) {
+	return repository.update(account);
+    }
+
+    @Override
+    public boolean update(Pair<Account, Account> accountPair) {
+	return repository.update(accountPair);
+    }
+
+    @Override
+    public boolean update(List<Account> accounts) {
+	return repository.update(accounts);
+    }
+
+    @Override
+    public Stream<Account> streamAccounts() {
+	return repository.streamAccounts();
+    }
+
+    @Override
+    public List<Account> accountsOf(String username) {
+	final ArrayList<Account> accounts = new ArrayList<>();
+	for (int number : index.numbersOf(username))
+	    repository.getAccountByNumber(number).ifPresent(accounts::add);
+	return accounts;
+    }
+
+    @Override
+    public List<String> userNamesStartingWith(String prefix, int limit) {
+	return index.withPrefix(prefix, limit);
+    }
+}
+
+enum Operation {
+    OPEN(1.0),
+    DEPOSIT(1.0),
+    WITHDRAW(-1.0),
+    TRANSFER_IN(1.0),
+    TRANSFER_OUT(-1.0),
+    LOAN(1.0),
+    REPAY(-1.0);
+
+    private static final Operation[] byCode = Operation.values();
+    private final double sign;
+
+    Operation(double sign) {
+	this.sign = sign;
+    }
+
+    public double signed(double amount) {
+	return this.sign * amount;
+    }
+
+    static Operation ofCode(int code) {
+	return byCode[code];
+    }
+}
+
+interface JournalVisitor {
+    void visit(
+	       long seq,
+	       long timestamp,
+	       Operation operation,
+	       int account,
+	       int counterparty,
+	       double amount,
+	       double balanceAfter);
+}
+
+// every applied mutation in commit order, kept as chunks of primitive
+// columns so millions of entries cost a few dozen bytes each and readers
+// walk them without allocating or taking the append lock.  opened on a
+// directory, each chunk is a file mapped into memory: the columns live
+// in the page cache instead of the heap and are there after a restart,
+// and only the per-account positions are rebuilt when it is opened
+class OperationJournal {
+    private static final int chunkBits = 16;
+    private static final int chunkSize = 1 << chunkBits;
+    private static final int chunkMask = chunkSize - 1;
+    // the columns of a chunk one after another; operations are stored
+    // one up, so a zero marks where the entries end
+    private static final int timestampsAt = 0;
+    private static final int amountsAt = timestampsAt + 8 * chunkSize;
+    private static final int balancesAt = amountsAt + 8 * chunkSize;
+    private static final int accountsAt = balancesAt + 8 * chunkSize;
+    private static final int counterpartiesAt = accountsAt + 4 * chunkSize;
+    private static final int operationsAt = counterpartiesAt + 4 * chunkSize;
+    private static final int chunkBytes = operationsAt + chunkSize;
+
+    // journal positions of one account, in commit and so in time order
+    private static class AccountIndex {
+	volatile long[] seqs = new long[4];
+	volatile int size;
+
+	void add(long seq) {
+	    long[] current = seqs;
+	    if (size == current.length) {
+		current = Arrays.copyOf(current, current.length * 2);
+		seqs = current;
+	    }
+	    current[size] = seq;
+	    size = size + 1;
+	}
+    }
+
+    private final Path directory;
+    private final ZoneId zone;
+    private final LongSupplier clock;
+    private final ConcurrentHashMap<Integer, AccountIndex> indexes;
+    private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+    private volatile long size;
+    private volatile int minAccount = Integer.MAX_VALUE;
+    private volatile int maxAccount;
+    private long lastTimestamp;
+
+    OperationJournal() {
+	this(ZoneId.systemDefault(), System::currentTimeMillis);
+    }
+
+    OperationJournal(ZoneId zone, LongSupplier clock) {
+	this(null, zone, clock);
+    }
+
+    private OperationJournal(Path directory, ZoneId zone, LongSupplier clock) {
+	this.directory = directory;
+	this.zone = zone;
+	this.clock = clock;
+	this.indexes = new ConcurrentHashMap<>();
+    }
+
+    static OperationJournal open(Path directory) throws IOException {
+	return open(directory, ZoneId.systemDefault(), System::currentTimeMillis);
+    }
+
+    static OperationJournal open(
+				 Path directory,
+				 ZoneId zone,
+				 LongSupplier clock) throws IOException {
+	Files.createDirectories(directory);
+	final OperationJournal journal =
+	    new OperationJournal(directory, zone, clock);
+	journal.load();
+	return journal;
+    }
+
+    public long size() {
+	return this.size;
+    }
+
+    // Integer.MAX_VALUE while the journal is empty
+    public int minAccount() {
+	return this.minAccount;
+    }
+
+    public int maxAccount() {
+	return this.maxAccount;
+    }
+
+    public ZoneId getZone() {
+	return this.zone;
+    }
+
+    // the clock entries are stamped with
+    public long now() {
+	return clock.getAsLong();
+    }
+
+    public long toMillis(LocalDateTime time) {
+	return time.atZone(zone).toInstant().toEpochMilli();
+    }
+
+    public LocalDateTime toDateTime(long millis) {
+	return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), zone);
+    }
+
+    public synchronized long append(
+				    Operation operation,
+				    int account,
+				    int counterparty,
+				    double amount,
+				    double balanceAfter) {
+	final long seq = size;
+	final int chunkIndex = (int) (seq >>> chunkBits);
+	ByteBuffer[] current = chunks;
+	if (chunkIndex == current.length) {
+	    current = Arrays.copyOf(current, current.length + 1);
+	    current[chunkIndex] = newChunk(chunkIndex);
+	    chunks = current;
+	}
+	// never going back in time keeps every account index sorted by time
+	lastTimestamp = Math.max(lastTimestamp, clock.getAsLong());
+	final ByteBuffer chunk = current[chunkIndex];
+	final int i = (int) (seq & chunkMask);
+	chunk.putLong(timestampsAt + 8 * i, lastTimestamp);
+	chunk.putDouble(amountsAt + 8 * i, amount);
+	chunk.putDouble(balancesAt + 8 * i, balanceAfter);
+	chunk.putInt(accountsAt + 4 * i, account);
+	chunk.putInt(counterpartiesAt + 4 * i, counterparty);
+	// last, so an entry torn by a crash reads as the end
+	chunk.put(operationsAt + i, (byte) (operation.ordinal() + 1));
+	indexes.computeIfAbsent(account, n -> new AccountIndex()).add(seq);
+	if (account < minAccount)
+	    minAccount = account;
+	if (account > maxAccount)
+	    maxAccount = account;
+	size = seq + 1;
+	return seq;
+    }
+
+    public void forEach(long from, long to, JournalVisitor visitor) {
+	final long end = Math.min(to, size);
+	final ByteBuffer[] current = chunks;
+	for (long seq = from; seq < end; seq++)
+	    visit(current, seq, visitor);
+    }
+
+    public int countOf(int account) {
+	final AccountIndex index = indexes.get(account);
+	return index == null ? 0 : index.size;
+    }
+
+    // entries of one account within [fromMillis, toMillis), skipping the
+    // first offset of them; both ends are found by binary search so the
+    // cost does not depend on how long the account history is
+    public int countOf(int account, long fromMillis, long toMillis) {
+	final AccountIndex index = indexes.get(account);
+	if (index == null)
+	    return 0;
+	final int size = index.size;
+	final long[] seqs = index.seqs;
+	final ByteBuffer[] current = chunks;
+	return lowerBound(current, seqs, size, toMillis)
+	    - lowerBound(current, seqs, size, fromMillis);
+    }
+
+    public void forEachOf(
+			  int account,
+			  long fromMillis,
+			  long toMillis,
+			  int offset,
+			  int limit,
+			  JournalVisitor visitor) {
+	final AccountIndex index = indexes.get(account);
+	if (index == null)
+	    return ;
+	final int size = index.size;
+	final long[] seqs = index.seqs;
+	final ByteBuffer[] current = chunks;
+	final int first = lowerBound(current, seqs, size, fromMillis) + offset;
+	final int end = (int) Math.min(lowerBound(current, seqs, size, toMillis),
+				       (long) first + limit);
+	for (int i = first; i < end; i++)
+	    visit(current, seqs[i], visitor);
+    }
+
+    // forces the mapped chunks out; entries already survive a crash of
+    // the process, as they are in the page cache once appended
+    public synchronized void close() throws IOException {
+	if (directory == null)
+	    return ;
+	for (ByteBuffer chunk : chunks)
+	    ((MappedByteBuffer) chunk).force();
+    }
+
+    private ByteBuffer newChunk(int chunkIndex) {
+	if (directory == null)
+	    return ByteBuffer.allocate(chunkBytes);
+	try {
+	    return map(directory.resolve(String.format("journal-%010d.bin",
+						       chunkIndex)));
+	} catch (IOException ex) {
+	    throw new UncheckedIOException("Server Error: journal chunk", ex);
+	}
+    }
+
+    private static MappedByteBuffer map(Path file) throws IOException {
+	try (FileChannel channel = FileChannel.open(file,
+						    StandardOpenOption.CREATE,
+						    StandardOpenOption.READ,
+						    StandardOpenOption.WRITE)) {
+	    return channel.map(FileChannel.MapMode.READ_WRITE, 0, chunkBytes);
+	}
+    }
+
+    // maps every chunk file and walks the entries up to the first empty
+    // one, putting the account positions back together
+    private void load() throws IOException {
+	final ArrayList<Path> files = new ArrayList<>();
+	try (Stream<Path> listed = Files.list(directory)) {
+	    listed.filter(file -> {
+		    final String name = file.getFileName().toString();
+		    return name.startsWith("journal-") && name.endsWith(".bin");
+		})
+		.sorted()
+		.forEach(files::add);
+	}
+	final ByteBuffer[] loaded = new ByteBuffer[files.size()];
+	for (int c = 0; c < loaded.length; c++)
+	    loaded[c] = map(files.get(c));
+	long seq = 0;
+	while (seq < (long) loaded.length * chunkSize) {
+	    final ByteBuffer chunk = loaded[(int) (seq >>> chunkBits)];
+	    final int i = (int) (seq & chunkMask);
+	    if (chunk.get(operationsAt + i) == 0)
+		break;
+	    final int account = chunk.getInt(accountsAt + 4 * i);
+	    indexes.computeIfAbsent(account, n -> new AccountIndex()).add(seq);
+	    if (account < minAccount)
+		minAccount = account;
+	    if (account > maxAccount)
+		maxAccount = account;
+	    lastTimestamp = Math.max(lastTimestamp,
+				     chunk.getLong(timestampsAt + 8 * i));
+	    seq++;
+	}
+	chunks = loaded;
+	size = seq;
+    }
+
+    private static long timestampAt(ByteBuffer[] current, long seq) {
+	return current[(int) (seq >>> chunkBits)]
+	    .getLong(timestampsAt + 8 * (int) (seq & chunkMask));
+    }
+
+    private static int lowerBound(
+				  ByteBuffer[] current,
+				  long[] seqs,
+				  int size,
+				  long millis) {
+	int low = 0;
+	int high = size;
+	while (low < high) {
+	    final int middle = (low + high) >>> 1;
+	    if (timestampAt(current, seqs[middle]) < millis)
+		low = middle + 1;
+	    else
+		high = middle;
+	}
+	return low;
+    }
+
+    private static void visit(
+			      ByteBuffer[] current,
+			      long seq,
+			      JournalVisitor visitor) {
+	final ByteBuffer chunk = current[(int) (seq >>> chunkBits)];
+	final int i = (int) (seq & chunkMask);
+	visitor.visit(
+		      seq,
+		      chunk.getLong(timestampsAt + 8 * i),
+		      Operation.ofCode(chunk.get(operationsAt + i) - 1),
+		      chunk.getInt(accountsAt + 4 * i),
+		      chunk.getInt(counterpartiesAt + 4 * i),
+		      chunk.getDouble(amountsAt + 8 * i),
+		      chunk.getDouble(balancesAt + 8 * i));
+    }
+}
+
+class Transaction {
+    private final long seq;
+    private final LocalDateTime time;
+    private final Operation operation;
+    private final int counterparty;
+    private final double amount;
+    private final double balanceAfter;
+
+    Transaction(
+		long seq,
+		LocalDateTime time,
+		Operation operation,
+		int counterparty,
+		double amount,
+		double balanceAfter) {
+	this.seq = seq;
+	this.time = time;
+	this.operation = operation;
+	this.counterparty = counterparty;
+	this.amount = amount;
+	this.balanceAfter = balanceAfter;
+    }
+
+    public long getSeq() {
+	return this.seq;
+    }
+
+    public LocalDateTime getTime() {
+	return this.time;
+    }
+
+    public Operation getOperation() {
+	return this.operation;
+    }
+
+    public int getCounterparty() {
+	return this.counterparty;
+    }
+
+    public double getAmount() {
+	return this.amount;
+    }
+
+    public double getBalanceAfter() {
+	return this.balanceAfter;
+    }
+
+    @Override
+    public String toString() {
+	final String with = counterparty == 0 ? "" : " #" + counterparty;
+	return String.format(
+			     "%s %-12s %10.2f balance: %.2f%s",
+			     time.withNano(0), operation,
+			     operation.signed(amount), balanceAfter, with);
+    }
+}
+
+class AccountLocks {
+    static final int defaultStripes = 1024;
+
+    private final ReentrantLock[] stripes;
+    private final int mask;
+
+    AccountLocks(int stripeCount) {
+	int size = Integer.highestOneBit(Math.max(1, stripeCount - 1)) << 1;
+	this.stripes = new ReentrantLock[size];
+	this.mask = size - 1;
+	for (int i = 0; i < size; i++)
+	    stripes[i] = new ReentrantLock();
+    }
+
+    private int index(int accountNumber) {
+	return accountNumber & mask;
+    }
+
+    public void lock(int accountNumber) {
+	stripes[index(accountNumber)].lock();
+    }
+
+    public void unlock(int accountNumber) {
+	stripes[index(accountNumber)].unlock();
+    }
+
+    // stripes are always taken in index order so two transfers
+    // crossing the same pair of accounts can not deadlock
+    public void lock(int fstNumber, int sndNumber) {
+	final int fst = index(fstNumber);
+	final int snd = index(sndNumber);
+	if (fst == snd) {
+	    stripes[fst].lock();
+	} else {
+	    stripes[Math.min(fst, snd)].lock();
+	    stripes[Math.max(fst, snd)].lock();
+	}
+    }
+
+    public void unlock(int fstNumber, int sndNumber) {
+	final int fst = index(fstNumber);
+	final int snd = index(sndNumber);
+	stripes[fst].unlock();
+	if (fst != snd)
+	    stripes[snd].unlock();
+    }
+
+    // every stripe the accounts fall on, in index order like the pair
+    // lock, so batches and transfers can not deadlock each other; the
+    // result is what unlockAll hands back
+    public int[] lockAll(int[] accountNumbers) {
+	final boolean[] wanted = new boolean[stripes.length];
+	int count = 0;
+	for (int number : accountNumbers) {
+	    if (!wanted[index(number)])
+		count++;
+	    wanted[index(number)] = true;
+	}
+	final int[] held = new int[count];
+	for (int stripe = 0, i = 0; stripe < stripes.length; stripe++)
+	    if (wanted[stripe])
+		held[i++] = stripe;
+	for (int stripe : held)
+	    stripes[stripe].lock();
+	return held;
+    }
+
+    public void unlockAll(int[] held) {
+	for (int i = held.length - 1; i >= 0; i--)
+	    stripes[held[i]].unlock();
+    }
+}
+
+class TransferLeg {
+    private final Account from;
+    private final Account to;
+    private final double amount;
+
+    TransferLeg(Account from, Account to, double amount) {
+	this.from = from;
+	this.to = to;
+	this.amount = amount;
+    }
+
+    public Account getFrom() {
+	return this.from;
+    }
+
+    public Account getTo() {
+	return this.to;
+    }
+
+    public double getAmount() {
+	return this.amount;
+    }
+}
+
+enum WorkClass {
+    LOGIN,
+    MUTATION,
+    READ
+}
+
+class ServiceBusyException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final WorkClass workClass;
+
+    ServiceBusyException(WorkClass workClass) {
+	super("Server busy: " + workClass + " rejected");
+	this.workClass = workClass;
+    }
+
+    public WorkClass getWorkClass() {
+	return this.workClass;
+    }
+}
+
+// a concurrency limit steered by latency, after the gradient limit: it
+// grows while recent calls run as fast as the long run average and
+// shrinks in proportion once they slow down, which means work is
+// piling up behind the limit instead of finishing
+class AdaptiveLimit {
+    private static final double tolerance = 1.5;
+    private static final double smoothing = 0.2;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final int queueCapacity;
+    private final long maxWaitNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition freed = lock.newCondition();
+    private double limit;
+    private int inFlight;
+    private int waiting;
+    // moving averages of the latency in nanos over about 10 and 100 calls
+    private double shortLatency;
+    private double longLatency;
+    private long rejected;
+
+    AdaptiveLimit(
+		  int initialLimit,
+		  int minLimit,
+		  int maxLimit,
+		  int queueCapacity,
+		  long maxWaitMillis) {
+	this.limit = initialLimit;
+	this.minLimit = minLimit;
+	this.maxLimit = maxLimit;
+	this.queueCapacity = queueCapacity;
+	this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    }
+
+    static AdaptiveLimit unlimited() {
+	return new AdaptiveLimit(Integer.MAX_VALUE, Integer.MAX_VALUE,
+				 Integer.MAX_VALUE, 0, 0L);
+    }
+
+    public int getLimit() {
+	lock.lock();
+	try {
+	    return (int) this.limit;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    public long getRejected() {
+	lock.lock();
+	try {
+	    return this.rejected;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    // false once the queue is full, or when no slot came free within
+    // the longest wait, so callers beyond the budget hear so at once
+    public boolean acquire() {
+	lock.lock();
+	try {
+	    if (inFlight >= (int) limit) {
+		if (waiting >= queueCapacity) {
+		    rejected++;
+		    return false;
+		}
+		waiting++;
+		try {
+		    long nanos = maxWaitNanos;
+		    while (inFlight >= (int) limit && nanos > 0)
+			nanos = freed.awaitNanos(nanos);
+		} catch (InterruptedException ex) {
+		    Thread.currentThread().interrupt();
+		} finally {
+		    waiting--;
+		}
+		if (inFlight >= (int) limit) {
+		    rejected++;
+		    return false;
+		}
+	    }
+	    inFlight++;
+	    return true;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    public void release(long nanos) {
+	lock.lock();
+	try {
+	    inFlight--;
+	    if (minLimit < maxLimit)
+		adapt(nanos);
+	    freed.signal();
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    private void adapt(long nanos) {
+	if (longLatency == 0.0) {
+	    shortLatency = nanos;
+	    longLatency = nanos;
+	    return ;
+	}
+	shortLatency += (nanos - shortLatency) * 0.1;
+	longLatency += (nanos - longLatency) * 0.01;
+	// after a spike the long average is let down faster, or the limit
+	// would stay high long after the latency it remembers is gone
+	if (longLatency > 2.0 * shortLatency)
+	    longLatency *= 0.95;
+	// a limit nobody comes near says nothing about what it can take
+	if (inFlight + 1 < limit / 2)
+	    return ;
+	final double gradient =
+	    Math.max(0.5, Math.min(1.0, tolerance * longLatency / shortLatency));
+	final double target = limit * gradient + Math.sqrt(limit);
+	limit = Math.max(minLimit,
+			 Math.min(maxLimit,
+				  limit * (1 - smoothing) + target * smoothing));
+    }
+}
+
+// separate budgets for each class of work in front of the Service, so
+// a flood of bcrypt bound logins cannot starve balance reads, and the
+// excess is refused fast instead of queueing without bound
+class AdmissionControl {
+    private final AdaptiveLimit[] limits;
+
+    AdmissionControl(
+		     AdaptiveLimit login,
+		     AdaptiveLimit mutation,
+		     AdaptiveLimit read) {
+	this.limits = new AdaptiveLimit[] { login, mutation, read };
+    }
+
+    static AdmissionControl unlimited() {
+	return new AdmissionControl(AdaptiveLimit.unlimited(),
+				    AdaptiveLimit.unlimited(),
+				    AdaptiveLimit.unlimited());
+    }
+
+    // logins are bound by bcrypt on the cpu, so they start at a core each
+    static AdmissionControl standard() {
+	final int cores = Runtime.getRuntime().availableProcessors();
+	return new AdmissionControl(new AdaptiveLimit(cores, 1, 4 * cores,
+						      8 * cores, 500L),
+				    new AdaptiveLimit(32, 4, 512, 256, 100L),
+				    new AdaptiveLimit(64, 8, 1024, 512, 100L));
+    }
+
+    public AdaptiveLimit limitOf(WorkClass workClass) {
+	return limits[workClass.ordinal()];
+    }
+
+    // throws ServiceBusyException when the class has no room for work
+    public <T> T admit(WorkClass workClass, Supplier<T> work) {
+	final AdaptiveLimit limit = limits[workClass.ordinal()];
+	if (!limit.acquire())
+	    throw new ServiceBusyException(workClass);
+	final long begin = System.nanoTime();
+	try {
+	    return work.get();
+	} finally {
+	    limit.release(System.nanoTime() - begin);
+	}
+    }
+}
+
+// failed logins counted per account and per source, so guessing is
+// slowed down before any bcrypt runs: past a few free attempts each
+// one waits twice as long as the last, up to a lockout, and the counts
+// halve for every half life without an attempt. Every key counts in two
+// slots of a fixed table of longs and is taken at the smaller of them,
+// so a collision can only overcount, and only when both slots collide;
+// a login that succeeds takes back only what its own key is counted at
+class LoginThrottle {
+    // a slot is a 16 bit count over the millis of its last attempt
+    private static final int countShift = 48;
+    private static final long timeMask = (1L << countShift) - 1;
+    private static final long maxCount = (1L << 16) - 1;
+
+    private static class Table {
+	final AtomicLongArray slots;
+	final int mask;
+	final long freeAttempts;
+	final long baseDelayMillis;
+	final long maxDelayMillis;
+	final long halfLifeMillis;
+
+	Table(
+	      int bits,
+	      long freeAttempts,
+	      long baseDelayMillis,
+	      long maxDelayMillis,
+	      long halfLifeMillis) {
+	    this.slots = new AtomicLongArray(1 << bits);
+	    this.mask = (1 << bits) - 1;
+	    this.freeAttempts = freeAttempts;
+	    this.baseDelayMillis = baseDelayMillis;
+	    this.maxDelayMillis = maxDelayMillis;
+	    this.halfLifeMillis = halfLifeMillis;
+	}
+
+	long countOf(long slot, long now) {
+	    final long idle = Math.max(0L, now - (slot & timeMask));
+	    return (slot >>> countShift) >>> Math.min(63L, idle / halfLifeMillis);
+	}
+
+	// millis until the key behind the two slots may try again
+	long waitOf(int first, int second, long now) {
+	    final long a = slots.get(first);
+	    final long b = slots.get(second);
+	    final long slot = countOf(a, now) <= countOf(b, now) ? a : b;
+	    final long count = countOf(slot, now);
+	    if (count < freeAttempts)
+		return 0L;
+	    final long over = count - freeAttempts;
+	    final long delay = over >= Long.numberOfLeadingZeros(baseDelayMillis) - 1
+		? maxDelayMillis
+		: Math.min(maxDelayMillis, baseDelayMillis << over);
+	    return Math.max(0L, (slot & timeMask) + delay - now);
+	}
+
+	void add(int index, long delta, long now) {
+	    long old;
+	    long updated;
+	    do {
+		old = slots.get(index);
+		final long count =
+		    Math.max(0L, Math.min(maxCount, countOf(old, now) + delta));
+		updated = (count << countShift) | (now & timeMask);
+	    } while (!slots.compareAndSet(index, old, updated));
+	}
+
+	// takes the key behind the two slots down by what it is counted
+	// at, so whatever another key sharing one of them added stays
+	void forget(int first, int second, long now) {
+	    final long count = Math.min(countOf(slots.get(first), now),
+					countOf(slots.get(second), now));
+	    add(first, -count, now);
+	    add(second, -count, now);
+	}
+    }
+
+    private final Table accounts;
+    private final Table sources;
+    private final LongSupplier clock;
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+
+    LoginThrottle() {
+	this(System::currentTimeMillis);
+    }
+
+    // 5 tries per account and 20 per source before backing off from a
+    // second up to a 15 minute lockout, forgotten at 15 minutes a half
+    LoginThrottle(LongSupplier clock) {
+	this(new Table(16, 5, 1_000L, 15 * 60_000L, 15 * 60_000L),
+	     new Table(12, 20, 1_000L, 15 * 60_000L, 15 * 60_000L),
+	     clock);
+    }
+
+    private LoginThrottle(Table accounts, Table sources, LongSupplier clock) {
+	this.accounts = accounts;
+	this.sources = sources;
+	this.clock = clock;
+    }
+
+    static LoginThrottle unlimited() {
+	return new LoginThrottle(new Table(1, maxCount + 1, 0L, 0L, 1L),
+				 new Table(1, maxCount + 1, 0L, 0L, 1L),
+				 System::currentTimeMillis);
+    }
+
+    public long getAdmitted() {
+	return admitted.sum();
+    }
+
+    public long getRefused() {
+	return refused.sum();
+    }
+
+    // millis before the source may try again, without counting a try
+    public long waitOf(String source) {
+	final int hash = source.hashCode();
+	return sources.waitOf(first(hash, sources), second(hash, sources),
+			      clock.getAsLong());
+    }
+
+    // 0 when the password may be checked, the attempt being counted as
+    // failed until succeeded says otherwise, so concurrent guesses at
+    // one account see each other; else the millis left to wait
+    public long attempt(int account, String source) {
+	final long now = clock.getAsLong();
+	final int hash = source.hashCode();
+	final long wait =
+	    Math.max(accounts.waitOf(first(account, accounts),
+				     second(account, accounts), now),
+		     sources.waitOf(first(hash, sources),
+				    second(hash, sources), now));
+	if (wait > 0L) {
+	    refused.increment();
+	    return wait;
+	}
+	accounts.add(first(account, accounts), 1L, now);
+	accounts.add(second(account, accounts), 1L, now);
+	sources.add(first(hash, sources), 1L, now);
+	sources.add(second(hash, sources), 1L, now);
+	admitted.increment();
+	return 0L;
+    }
+
+    // a lookup for an account that does not exist counts for the source
+    public void missed(String source) {
+	final long now = clock.getAsLong();
+	final int hash = source.hashCode();
+	sources.add(first(hash, sources), 1L, now);
+	sources.add(second(hash, sources), 1L, now);
+    }
+
+    // an attempt counted but never checked, as the check was shed,
+    // is given back to both
+    public void refund(int account, String source) {
+	final long now = clock.getAsLong();
+	final int hash = source.hashCode();
+	accounts.add(first(account, accounts), -1L, now);
+	accounts.add(second(account, accounts), -1L, now);
+	sources.add(first(hash, sources), -1L, now);
+	sources.add(second(hash, sources), -1L, now);
+	admitted.decrement();
+    }
+
+    // the account starts over, the source only gets its try back
+    public void succeeded(int account, String source) {
+	final long now = clock.getAsLong();
+	final int hash = source.hashCode();
+	accounts.forget(first(account, accounts), second(account, accounts), now);
+	sources.add(first(hash, sources), -1L, now);
+	sources.add(second(hash, sources), -1L, now);
+    }
+
+    private static int first(int key, Table table) {
+	return first(key, table.mask);
+    }
+
+    private static int second(int key, Table table) {
+	return second(key, table.mask);
+    }
+
+    static int first(int key, int mask) {
+	return (int) ((key * 0x9e3779b97f4a7c15L) >>> 40) & mask;
+    }
+
+    static int second(int key, int mask) {
+	return (int) ((key * 0xc4ceb9fe1a85ec53L) >>> 20) & mask;
+    }
+}
+
+// running totals per branch, moved by the Service on every mutation it
+// commits, so a dashboard reads them without scanning any account;
+// money is kept in cents per currency, since summing across currencies
+// would depend on whichever rate table was current at the time
+class BranchTotals {
+    static class Totals {
+	private final LongAdder accounts = new LongAdder();
+	private final ConcurrentHashMap<String, LongAdder> depositCents =
+	    new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, LongAdder> loanCents =
+	    new ConcurrentHashMap<>();
+
+	public long getAccounts() {
+	    return accounts.sum();
+	}
+
+	public double getDeposits(String currency) {
+	    final LongAdder cents = depositCents.get(currency);
+	    return cents == null ? 0.0 : cents.sum() / 100.0;
+	}
+
+	public double getLoans(String currency) {
+	    final LongAdder cents = loanCents.get(currency);
+	    return cents == null ? 0.0 : cents.sum() / 100.0;
+	}
+
+	public Set<String> currencies() {
+	    return depositCents.keySet();
+	}
+
+	private void add(
+			 ConcurrentHashMap<String, LongAdder> totals,
+			 String currency,
+			 long cents) {
+	    if (cents != 0L)
+		totals.computeIfAbsent(currency, key -> new LongAdder())
+		    .add(cents);
+	}
+    }
+
+    private final ConcurrentHashMap<String, Totals> branches =
+	new ConcurrentHashMap<>();
+    // the branches offered when opening an account, in order
+    private final List<String> offered;
+
+    BranchTotals(String ... offered) {
+	this.offered = List.of(offered);
+	for (String branch : offered)
+	    branches.put(branch, new Totals());
+    }
+
+    // -Dshellbank.branches=4242-x,0001-9
+    static BranchTotals parse(String spec) {
+	return new BranchTotals(spec.split(","));
+    }
+
+    public List<String> getOffered() {
+	return this.offered;
+    }
+
+    public boolean offers(String branch) {
+	return offered.contains(branch);
+    }
+
+    public Set<String> branches() {
+	return branches.keySet();
+    }
+
+    public Optional<Totals> totalsOf(String branch) {
+	return Optional.ofNullable(branches.get(branch));
+    }
+
+    public void opened(Account account) {
+	final Totals totals =
+	    branches.computeIfAbsent(account.getBranch(), key -> new Totals());
+	totals.accounts.increment();
+	totals.add(totals.depositCents, account.getCurrency(),
+		   centsOf(account.getBalance()));
+	totals.add(totals.loanCents, account.getCurrency(),
+		   centsOf(AccountCodec.loanCurrentOf(account)));
+    }
+
+    // the cents are rounded on each side, so a run of changes adds up
+    // to exactly the rounded balance of the last version
+    public void changed(Account before, Account after) {
+	final Totals totals =
+	    branches.computeIfAbsent(after.getBranch(), key -> new Totals());
+	totals.add(totals.depositCents, after.getCurrency(),
+		   centsOf(after.getBalance()) - centsOf(before.getBalance()));
+	totals.add(totals.loanCents, after.getCurrency(),
+		   centsOf(AccountCodec.loanCurrentOf(after))
+		   - centsOf(AccountCodec.loanCurrentOf(before)));
+    }
+
+    private static long centsOf(double amount) {
+	return Math.round(amount * 100.0);
+    }
+}
+
+class Service {
+    private final Repository repository;
+    private final OperationJournal journal;
+    private final AccountLocks locks;
+    private final IdempotencyCache idempotency;
+    private final VelocityGuard velocity;
+    private final FxRates fx;
+    private final AdmissionControl admission;
+    private final BranchTotals branches;
+    // bumped after every committed write to an account hashing to the
+    // slot, so a holder of a copy can tell cheaply whether to reload it
+    private static final int changeMask = (1 << 16) - 1;
+    private final AtomicLongArray changes = new AtomicLongArray(changeMask + 1);
+
+    Service(Repository repository) {
+	this(repository, new OperationJournal());
+    }
+
+    Service(Repository repository, OperationJournal journal) {
+	this(repository, journal,
+	     new IdempotencyCache(1 << 14, Duration.ofHours(24).toMillis()));
+    }
+
+    Service(
+	    Repository repository,
+	    OperationJournal journal,
+	    IdempotencyCache idempotency) {
+	this(repository, journal, idempotency, VelocityGuard.unlimited());
+    }
+
+    Service(
+	    Repository repository,
+	    OperationJournal journal,
+	    IdempotencyCache idempotency,
+	    VelocityGuard velocity) {
+	this(repository, journal, idempotency, velocity,
+	     new FxRates(FxTable.single(Account.defaultCurrency)));
+    }
+
+    Service(
+	    Repository repository,
+	    OperationJournal journal,
+	    IdempotencyCache idempotency,
+	    VelocityGuard velocity,
+	    FxRates fx) {
+	this(repository, journal, idempotency, velocity, fx,
+	     AdmissionControl.unlimited());
+    }
+
+    Service(
+	    Repository repository,
+	    OperationJournal journal,
+	    IdempotencyCache idempotency,
+	    VelocityGuard velocity,
+	    FxRates fx,
+	    AdmissionControl admission) {
+	this(repository, journal, idempotency, velocity, fx, admission,
+	     new BranchTotals(Account.defaultBranch));
+    }
+
+    // the totals are seeded from the accounts already stored, the one
+    // scan they ever need
+    Service(
+	    Repository repository,
+	    OperationJournal journal,
+	    IdempotencyCache idempotency,
+	    VelocityGuard velocity,
+	    FxRates fx,
+	    AdmissionControl admission,
+	    BranchTotals branches) {
+	this.repository = repository;
+	this.journal = journal;
+	this.locks = new AccountLocks(AccountLocks.defaultStripes);
+	this.idempotency = idempotency;
+	this.velocity = velocity;
+	this.fx = fx;
+	this.admission = admission;
+	this.branches = branches;
+	repository.streamAccounts().forEach(branches::opened);
+	idempotency.recover(repository);
+    }
+
+    public OperationJournal getJournal() {
+	return this.journal;
+    }
+
+    public FxRates getFx() {
+	return this.fx;
+    }
+
+    // background jobs call the Service directly; the menus go through
+    // admission so a load spike sheds interactive work first
+    public AdmissionControl getAdmission() {
+	return this.admission;
+    }
+
+    public BranchTotals getBranches() {
+	return this.branches;
+    }
+
+    // unchanged since a read means the account is as that read saw it;
+    // a change may also come from another account sharing the slot
+    public long changeStamp(int accountNumber) {
+	return changes.get(accountNumber & changeMask);
+    }
+
+    // what a transfer of amount from one account credits the other
+    public Optional<Double> convert(double amount, Account from, Account to) {
+	final long cents =
+	    fx.current().convertCents(Math.round(amount * 100.0),
+				      from.getCurrency(), to.getCurrency());
+	return cents < 0 ? Optional.empty() : Optional.of(cents / 100.0);
+    }
+
+    public boolean createAccount(Account account) {
+	if (account == null || !fx.current().has(account.getCurrency())
+	    || !branches.offers(account.getBranch()))
+	    return false;
+	locks.lock(account.getNumber());
+	try {
+	    if (!repository.saveAccount(account))
+		return false;
+	    branches.opened(account);
+	    changes.incrementAndGet(account.getNumber() & changeMask);
+	    journal.append(Operation.OPEN, account.getNumber(), 0,
+			   account.getBalance(), account.getBalance());
+	    return true;
+	} finally {
+	    locks.unlock(account.getNumber());
+	}
+    }
+
+    public Optional<Account> getAccountByNumber(int accountNumber) {
+        return repository.getAccountByNumber(accountNumber);
+    }
+
+    public List<Account> accountsOf(String username) {
+	return repository.accountsOf(username);
+    }
+
+    public List<String> userNamesStartingWith(String prefix, int limit) {
+	return repository.userNamesStartingWith(prefix, limit);
+    }
+
+    // lets a menu tell a refusal by the hourly or daily limits apart
+    public boolean withinLimits(
+				Operation operation,
+				Account account,
+				double amount) {
+	locks.lock(account.getNumber());
+	try {
+	    return velocity.allows(operation, account.getNumber(), amount);
+	} finally {
+	    locks.unlock(account.getNumber());
+	}
+    }
+
+    public int countStatement(
+			      Account account,
+			      LocalDateTime from,
+			      LocalDateTime to) {
+	return journal.countOf(account.getNumber(),
+			       journal.toMillis(from),
+			       journal.toMillis(to));
+    }
+
+    public ArrayList<Transaction> statement(
+					    Account account,
+					    LocalDateTime from,
+					    LocalDateTime to,
+					    int offset,
+					    int limit) {
+	final ArrayList<Transaction> transactions = new ArrayList<>();
+	journal.forEachOf(account.getNumber(),
+			  journal.toMillis(from),
+			  journal.toMillis(to),
+			  offset,
+			  limit,
+			  (seq, timestamp, operation, number, counterparty,
+			   amount, balanceAfter) ->
+			  transactions.add(new Transaction(
+							   seq,
+							   journal.toDateTime(timestamp),
+							   operation,
+							   counterparty,
+							   amount,
+							   balanceAfter)));
+	return transactions;
+    }
+
+    // mutations are applied to the stored copy of the account, the
+    // argument only identifies it, so a menu holding a stale copy does
+    // not overwrite changes made meanwhile by the loan scheduler
+    public Optional<CheckingAccount> loan(
+					  double amount,
+					  CheckingAccount account) {
+	return loan(amount, account, null);
+    }
+
+    public Optional<CheckingAccount> loan(
+					  double amount,
+					  CheckingAccount account,
+					  String idempotencyKey) {
+	locks.lock(account.getNumber());
+	try {
+	    return once(idempotencyKey, account.getNumber(), () -> {
+		    final Optional<Account> maybeCurrent =
+			repository.getAccountByNumber(account.getNumber());
+		    if (!maybeCurrent.isPresent()
+			|| !(maybeCurrent.get() instanceof CheckingAccount))
+			return Optional.empty();
+		    final CheckingAccount current =
+			(CheckingAccount) maybeCurrent.get();
+		    if (amount > current.getLoanLimit())
+			return Optional.empty();
+		    CheckingAccount updated = current.loan(amount);
+		    boolean wasUpdated = repository.update(updated);
+		    if (wasUpdated) {
+			committed(current, updated);
+			journal.append(Operation.LOAN, updated.getNumber(), 0,
+				       amount, updated.getBalance());
+			return Optional.of(updated);
+		    } else {
+			return Optional.empty();
+		    }
+		});
+	} finally {
+	    locks.unlock(account.getNumber());
+	}
+    }
+
+    public Optional<CheckingAccount> repay(
+					   double principal,
+					   double interest,
+					   CheckingAccount account) {
+	return repay(principal, interest, account, null);
+    }
+
+    public Optional<CheckingAccount> repay(
+					   double principal,
+					   double interest,
+					   CheckingAccount account,
+					   String idempotencyKey) {
+	locks.lock(account.getNumber());
+	try {
+	    return once(idempotencyKey, account.getNumber(), () -> {
+		    final Optional<Account> maybeCurrent =
+			repository.getAccountByNumber(account.getNumber());
+		    if (!maybeCurrent.isPresent()
+			|| !(maybeCurrent.get() instanceof CheckingAccount))
+			return Optional.empty();
+		    final CheckingAccount current =
+			(CheckingAccount) maybeCurrent.get();
+		    if (!current.isValidRepay(principal, interest))
+			return Optional.empty();
+		    CheckingAccount updated = current.repay(principal, interest);
+		    boolean wasUpdated = repository.update(updated);
+		    if (wasUpdated) {
+			committed(current, updated);
+			journal.append(Operation.REPAY, updated.getNumber(), 0,
+				       principal + interest, updated.getBalance());
+			return Optional.of(updated);
+		    } else {
+			return Optional.empty();
+		    }
+		});
+	} finally {
+	    locks.unlock(account.getNumber());
+	}
+    }
+
+    public Optional<Account> deposit(double amount, Account account) {
+	return deposit(amount, account, null);
+    }
+
+    public Optional<Account> deposit(
+				     double amount,
+				     Account account,
+				     String idempotencyKey) {
+	locks.lock(account.getNumber());
+	try {
+	    return once(idempotencyKey, account.getNumber(), () -> {
+		    final Optional<Account> maybeCurrent =
+			repository.getAccountByNumber(account.getNumber());
+		    if (!maybeCurrent.isPresent())
+			return Optional.empty();
+		    Account updated = maybeCurrent.get().deposit(amount);
+		    boolean wasUpdated = repository.update(updated);
+		    if (wasUpdated) {
+			committed(maybeCurrent.get(), updated);
+			journal.append(Operation.DEPOSIT, updated.getNumber(), 0,
+				       amount, updated.getBalance());
+			return Optional.of(updated);
+		    } else {
+			return Optional.empty();
+		    }
+		});
+	} finally {
+	    locks.unlock(account.getNumber());
+	}
+    }
+
+    public Optional<Account> withdraw(double amount, Account account) {
+	return withdraw(amount, account, null);
+    }
+
+    public Optional<Account> withdraw(
+				      double amount,
+				      Account account,
+				      String idempotencyKey) {
+	locks.lock(account.getNumber());
+	try {
+	    return once(idempotencyKey, account.getNumber(), () -> {
+		    final Optional<Account> maybeCurrent =
+			repository.getAccountByNumber(account.getNumber());
+		    if (!maybeCurrent.isPresent()
+			|| !maybeCurrent.get().isValidWithdraw(amount)
+			|| !velocity.allows(Operation.WITHDRAW,
+					    account.getNumber(), amount))
+			return Optional.empty();
+		    Account updated = maybeCurrent.get().withdraw(amount);
+		    boolean wasUpdated = repository.update(updated);
+		    if (wasUpdated) {
+			committed(maybeCurrent.get(), updated);
+			velocity.record(Operation.WITHDRAW,
+					account.getNumber(), amount);
+			journal.append(Operation.WITHDRAW, updated.getNumber(), 0,
+				       amount, updated.getBalance());
+			return Optional.of(updated);
+		    } else {
+			return Optional.empty();
+		    }
+		});
+	} finally {
+	    locks.unlock(account.getNumber());
+	}
+    }
+
+    public Optional<Account> transfer(double amount, Account from, Account to) {
+	return transfer(amount, from, to, null);
+    }
+
+    public Optional<Account> transfer(
+				      double amount,
+				      Account from,
+				      Account to,
+				      String idempotencyKey) {
+	if (from.getNumber() == to.getNumber())
+	    return Optional.empty();
+	locks.lock(from.getNumber(), to.getNumber());
+	try {
+	    return once(idempotencyKey, from.getNumber(), () -> {
+		    final Optional<Account> maybeFrom =
+			repository.getAccountByNumber(from.getNumber());
+		    final Optional<Account> maybeTo =
+			repository.getAccountByNumber(to.getNumber());
+		    if (!maybeFrom.isPresent() || !maybeTo.isPresent()
+			|| !maybeFrom.get().isValidTransfer(amount)
+			|| !velocity.allows(Operation.TRANSFER_OUT,
+					    from.getNumber(), amount))
+			return Optional.empty();
+		    // rates are read from one snapshot, so a reload midway
+		    // cannot mix two tables in one transfer
+		    final long credited =
+			fx.current().convertCents(Math.round(amount * 100.0),
+						  maybeFrom.get().getCurrency(),
+						  maybeTo.get().getCurrency());
+		    if (credited < 0)
+			return Optional.empty();
+		    Pair<Account, Account> updatedPair =
+			maybeFrom.get().transfer(amount, maybeTo.get(),
+						 credited / 100.0);
+		    boolean wasUpdated = repository.update(updatedPair);
+		    if (wasUpdated) {
+			committed(maybeFrom.get(), updatedPair.getFst());
+			committed(maybeTo.get(), updatedPair.getSnd());
+			velocity.record(Operation.TRANSFER_OUT,
+					from.getNumber(), amount);
+			journal.append(Operation.TRANSFER_OUT,
+				       updatedPair.getFst().getNumber(),
+				       updatedPair.getSnd().getNumber(),
+				       amount, updatedPair.getFst().getBalance());
+			journal.append(Operation.TRANSFER_IN,
+				       updatedPair.getSnd().getNumber(),
+				       updatedPair.getFst().getNumber(),
+				       credited / 100.0,
+				       updatedPair.getSnd().getBalance());
+			return Optional.of(updatedPair.getFst());
+		    } else {
+			return Optional.empty();
+		    }
+		});
+	} finally {
+	    locks.unlock(from.getNumber(), to.getNumber());
+	}
+    }
+
+    // all legs or none: every account in the batch is locked up front,
+    // the legs run in order on running balances, so one account can pay
+    // out what an earlier leg paid in, and only if every leg passes is
+    // each account copied once and the lot written in one update
+    public Optional<List<Account>> transferAll(List<TransferLeg> legs) {
+	if (legs.isEmpty())
+	    return Optional.empty();
+	// a leg of nothing or less would move money the wrong way unchecked
+	for (TransferLeg leg : legs)
+	    if (leg.getAmount() <= 0.0)
+		return Optional.empty();
+	final int[] numbers = new int[2 * legs.size()];
+	for (int i = 0; i < legs.size(); i++) {
+	    numbers[2 * i] = legs.get(i).getFrom().getNumber();
+	    numbers[2 * i + 1] = legs.get(i).getTo().getNumber();
+	}
+	final int[] held = locks.lockAll(numbers);
+	try {
+	    final FxTable rates = fx.current();
+	    final HashMap<Integer, Integer> slots = new HashMap<>();
+	    final ArrayList<Account> current = new ArrayList<>();
+	    final double[] balances = new double[numbers.length];
+	    final double[] paidOut = new double[numbers.length];
+	    final double[] fromAfter = new double[legs.size()];
+	    final double[] toAfter = new double[legs.size()];
+	    final long[] credited = new long[legs.size()];
+	    for (int i = 0; i < legs.size(); i++) {
+		final TransferLeg leg = legs.get(i);
+		final int from = slotOf(slots, current, balances,
+					leg.getFrom().getNumber());
+		final int to = slotOf(slots, current, balances,
+				      leg.getTo().getNumber());
+		// the same balance check isValidTransfer makes, on the
+		// balance the earlier legs left
+		if (from < 0 || to < 0 || from == to
+		    || balances[from] < leg.getAmount())
+		    return Optional.empty();
+		credited[i] =
+		    rates.convertCents(Math.round(leg.getAmount() * 100.0),
+				       current.get(from).getCurrency(),
+				       current.get(to).getCurrency());
+		if (credited[i] < 0)
+		    return Optional.empty();
+		balances[from] -= leg.getAmount();
+		balances[to] += credited[i] / 100.0;
+		paidOut[from] += leg.getAmount();
+		fromAfter[i] = balances[from];
+		toAfter[i] = balances[to];
+	    }
+	    // the velocity limits see each payer's total as one movement
+	    for (int slot = 0; slot < current.size(); slot++)
+		if (paidOut[slot] > 0.0
+		    && !velocity.allows(Operation.TRANSFER_OUT,
+					current.get(slot).getNumber(),
+					paidOut[slot]))
+		    return Optional.empty();
+
+	    final ArrayList<Account> accounts = new ArrayList<>(current.size());
+	    for (int slot = 0; slot < current.size(); slot++)
+		accounts.add(current.get(slot).copyWithAmount(balances[slot]));
+	    if (!repository.update(accounts))
+		return Optional.empty();
+	    for (int slot = 0; slot < current.size(); slot++)
+		committed(current.get(slot), accounts.get(slot));
+	    for (int slot = 0; slot < current.size(); slot++)
+		if (paidOut[slot] > 0.0)
+		    velocity.record(Operation.TRANSFER_OUT,
+				    current.get(slot).getNumber(), paidOut[slot]);
+	    for (int i = 0; i < legs.size(); i++) {
+		final int from = legs.get(i).getFrom().getNumber();
+		final int to = legs.get(i).getTo().getNumber();
+		journal.append(Operation.TRANSFER_OUT, from, to,
+			       legs.get(i).getAmount(), fromAfter[i]);
+		journal.append(Operation.TRANSFER_IN, to, from,
+			       credited[i] / 100.0, toAfter[i]);
+	    }
+	    return Optional.of(accounts);
+	} finally {
+	    locks.unlockAll(held);
+	}
+    }
+
+    private void committed(Account before, Account after) {
+	branches.changed(before, after);
+	changes.incrementAndGet(after.getNumber() & changeMask);
+    }
+
+    // the account's place in the batch, loading it on first sight, or
+    // -1 when there is no such account
+    private int slotOf(
+		       HashMap<Integer, Integer> slots,
+		       ArrayList<Account> current,
+		       double[] balances,
+		       int number) {
+	final Integer slot = slots.get(number);
+	if (slot != null)
+	    return slot;
+	final Optional<Account> account = repository.getAccountByNumber(number);
+	if (!account.isPresent())
+	    return -1;
+	balances[current.size()] = account.get().getBalance();
+	slots.put(number, current.size());
+	current.add(account.get());
+	return current.size() - 1;
+    }
+
+    // runs under the account lock, so a retry racing the first attempt
+    // waits for it and then finds its outcome; a repeated key gets back
+    // the account as the first attempt left it, not the current one.
+    // A durable cache logs the key as begun first, so a crash before
+    // the outcome is logged cannot let a retry apply it again
+    @SuppressWarnings("unchecked")
+    private <A extends Account> Optional<A> once(
+						 String idempotencyKey,
+						 int number,
+						 Supplier<Optional<A>> mutation) {
+	if (idempotencyKey == null)
+	    return mutation.get();
+	final Optional<IdempotencyCache.Outcome> seen =
+	    idempotency.lookup(idempotencyKey);
+	if (seen.isPresent()) {
+	    final IdempotencyCache.Outcome outcome = seen.get();
+	    if (!outcome.succeeded)
+		return Optional.empty();
+	    return repository.getAccountByNumber(outcome.account)
+		.map(current -> (A) AccountCodec.withState(
+							   current,
+							   outcome.balance,
+							   outcome.loanLimit,
+							   outcome.loanCurrent,
+							   outcome.version));
+	}
+	if (idempotency.isDurable())
+	    idempotency.begin(idempotencyKey, number,
+			      repository.getAccountByNumber(number)
+			      .map(Account::getVersion).orElse(-1L));
+	final Optional<A> result;
+	try {
+	    result = mutation.get();
+	} catch (RuntimeException ex) {
+	    idempotency.abandon(idempotencyKey);
+	    throw ex;
+	}
+	idempotency.remember(idempotencyKey, number, result);
+	return result;
+    }
+}
+
+// accounts sharded by number over partitions, one thread each, every
+// partition keeping its accounts in a plain HashMap only its own thread
+// touches, so deposits and withdrawals take no lock and share no cache
+// line with other partitions. A transfer within a partition runs in one
+// step; across partitions the source debits and hands the credit to the
+// target, which applies it or, if the account is gone, hands the money
+// back. Callers get futures; the journal, idempotency and limits of
+// Service are not kept in this mode
+class PartitionedService implements AutoCloseable {
+
+    private static class Partition {
+	final ExecutorService executor;
+	final HashMap<Integer, Account> accounts = new HashMap<>();
+	final LongAdder crossTransfers = new LongAdder();
+	final LongAdder refunds = new LongAdder();
+
+	Partition(int index) {
+	    this.executor = Executors.newSingleThreadExecutor(task -> {
+		    final Thread thread = new Thread(task, "partition-" + index);
+		    thread.setDaemon(true);
+		    return thread;
+		});
+	}
+    }
+
+    private final Partition[] partitions;
+    private final FxRates fx;
+
+    PartitionedService(int partitions) {
+	this(partitions, new FxRates(FxTable.single(Account.defaultCurrency)));
+    }
+
+    PartitionedService(int partitions, FxRates fx) {
+	this.partitions = new Partition[partitions];
+	for (int i = 0; i < partitions; i++)
+	    this.partitions[i] = new Partition(i);
+	this.fx = fx;
+    }
+
+    public int getPartitions() {
+	return partitions.length;
+    }
+
+    public int partitionOf(int accountNumber) {
+	return Math.floorMod(accountNumber, partitions.length);
+    }
+
+    public long getCrossTransfers() {
+	return Arrays.stream(partitions)
+	    .mapToLong(partition -> partition.crossTransfers.sum())
+	    .sum();
+    }
+
+    public long getRefunds() {
+	return Arrays.stream(partitions)
+	    .mapToLong(partition -> partition.refunds.sum())
+	    .sum();
+    }
+
+    public CompletableFuture<Boolean> createAccount(Account account) {
+	return on(account.getNumber(), accounts -> {
+		if (!fx.current().has(account.getCurrency()))
+		    return false;
+		return accounts.putIfAbsent(account.getNumber(), account) == null;
+	    });
+    }
+
+    public CompletableFuture<Optional<Account>> getAccountByNumber(
+								  int accountNumber) {
+	return on(accountNumber,
+		  accounts -> Optional.ofNullable(accounts.get(accountNumber)));
+    }
+
+    public CompletableFuture<Optional<Account>> deposit(
+						       double amount,
+						       Account account) {
+	return on(account.getNumber(), accounts -> {
+		final Account current = accounts.get(account.getNumber());
+		if (current == null)
+		    return Optional.empty();
+		final Account updated = current.deposit(amount);
+		accounts.put(updated.getNumber(), updated);
+		return Optional.of(updated);
+	    });
+    }
+
+    public CompletableFuture<Optional<Account>> withdraw(
+							double amount,
+							Account account) {
+	return on(account.getNumber(), accounts -> {
+		final Account current = accounts.get(account.getNumber());
+		if (current == null || !current.isValidWithdraw(amount))
+		    return Optional.empty();
+		final Account updated = current.withdraw(amount);
+		accounts.put(updated.getNumber(), updated);
+		return Optional.of(updated);
+	    });
+    }
+
+    // completes once the money has reached the target, or come back
+    public CompletableFuture<Optional<Account>> transfer(
+							double amount,
+							Account from,
+							Account to) {
+	final int source = partitionOf(from.getNumber());
+	final int target = partitionOf(to.getNumber());
+	if (from.getNumber() == to.getNumber())
+	    return CompletableFuture.completedFuture(Optional.empty());
+	if (source == target)
+	    return on(from.getNumber(), accounts -> {
+		    final Account payer = accounts.get(from.getNumber());
+		    final Account payee = accounts.get(to.getNumber());
+		    if (payer == null || payee == null
+			|| !payer.isValidTransfer(amount))
+			return Optional.empty();
+		    final long credited =
+			fx.current().convertCents(Math.round(amount * 100.0),
+						  payer.getCurrency(),
+						  payee.getCurrency());
+		    if (credited < 0)
+			return Optional.empty();
+		    final Pair<Account, Account> updated =
+			payer.transfer(amount, payee, credited / 100.0);
+		    accounts.put(from.getNumber(), updated.getFst());
+		    accounts.put(to.getNumber(), updated.getSnd());
+		    return Optional.of(updated.getFst());
+		});
+
+	final CompletableFuture<Optional<Account>> done =
+	    new CompletableFuture<>();
+	// step one, on the source: debit and send the credit on
+	partitions[source].executor.execute(() -> {
+		final HashMap<Integer, Account> accounts =
+		    partitions[source].accounts;
+		final Account payer = accounts.get(from.getNumber());
+		if (payer == null || !payer.isValidTransfer(amount)) {
+		    done.complete(Optional.empty());
+		    return ;
+		}
+		final Account debited = payer.withdraw(amount);
+		accounts.put(debited.getNumber(), debited);
+		partitions[source].crossTransfers.increment();
+		// step two, on the target: credit, or refund the source
+		partitions[target].executor.execute(() -> {
+			final HashMap<Integer, Account> payees =
+			    partitions[target].accounts;
+			final Account payee = payees.get(to.getNumber());
+			final long credited = payee == null
+			    ? -1L
+			    : fx.current().convertCents(Math.round(amount * 100.0),
+							debited.getCurrency(),
+							payee.getCurrency());
+			if (credited >= 0) {
+			    payees.put(to.getNumber(), payee.deposit(credited / 100.0));
+			    done.complete(Optional.of(debited));
+			    return ;
+			}
+			partitions[source].executor.execute(() -> {
+				final Account refunded =
+				    accounts.get(from.getNumber()).deposit(amount);
+				accounts.put(refunded.getNumber(), refunded);
+				partitions[source].refunds.increment();
+				done.complete(Optional.empty());
+			    });
+		    });
+	    });
+	return done;
+    }
+
+    // every partition's accounts, each read on its own thread; money a
+    // transfer has taken from one partition but not yet handed to the
+    // other is in neither
+    public List<Account> snapshot() {
+	final ArrayList<Account> all = new ArrayList<>();
+	for (Partition partition : partitions)
+	    all.addAll(CompletableFuture
+		       .supplyAsync(() -> new ArrayList<>(partition.accounts.values()),
+				    partition.executor)
+		       .join());
+	return all;
+    }
+
+    @Override
+    public void close() {
+	for (Partition partition : partitions)
+	    partition.executor.shutdown();
+	for (Partition partition : partitions) {
+	    try {
+		partition.executor.awaitTermination(1, TimeUnit.MINUTES);
+	    } catch (InterruptedException ex) {
+		Thread.currentThread().interrupt();
+		return ;
+	    }
+	}
+    }
+
+    private <T> CompletableFuture<T> on(
+					int accountNumber,
+					Function<HashMap<Integer, Account>, T> work) {
+	final Partition partition = partitions[partitionOf(accountNumber)];
+	return CompletableFuture.supplyAsync(() -> work.apply(partition.accounts),
+					     partition.executor);
+    }
+}
+
+// account numbers to cluster nodes by consistent hashing: every node
+// puts points on a ring of 64 bit hashes and an account belongs to the
+// first point at or after its own hash, so a node joining only takes
+// over the accounts landing just before its points
+class HashRing {
+    static final int pointsPerNode = 64;
+
+    private final long version;
+    private final TreeMap<Integer, String> nodes;
+    private final long[] points;
+    private final int[] owners;
+
+    HashRing(long version, Map<Integer, String> nodes) {
+	this.version = version;
+	this.nodes = new TreeMap<>(nodes);
+	final TreeMap<Long, Integer> ring = new TreeMap<>();
+	for (int id : this.nodes.keySet())
+	    for (int i = 0; i < pointsPerNode; i++)
+		ring.put(mix(id * 1_000_003L + i), id);
+	this.points = new long[ring.size()];
+	this.owners = new int[ring.size()];
+	int i = 0;
+	for (Map.Entry<Long, Integer> point : ring.entrySet()) {
+	    points[i] = point.getKey();
+	    owners[i++] = point.getValue();
+	}
+    }
+
+    // 1;1=/tmp/bank/1/node.sock,2=/tmp/bank/2/node.sock
+    static HashRing parse(String spec) {
+	final String[] parts = spec.trim().split(";", 2);
+	final TreeMap<Integer, String> nodes = new TreeMap<>();
+	for (String node : parts[1].split(",")) {
+	    final String[] pair = node.split("=", 2);
+	    nodes.put(Integer.parseInt(pair[0]), pair[1]);
+	}
+	return new HashRing(Long.parseLong(parts[0]), nodes);
+    }
+
+    public String encode() {
+	return version + ";" + nodes.entrySet().stream()
+	    .map(node -> node.getKey() + "=" + node.getValue())
+	    .collect(Collectors.joining(","));
+    }
+
+    public long getVersion() {
+	return this.version;
+    }
+
+    public Map<Integer, String> getNodes() {
+	return Collections.unmodifiableMap(this.nodes);
+    }
+
+    public String addressOf(int node) {
+	return nodes.get(node);
+    }
+
+    public HashRing with(int node, String address) {
+	final TreeMap<Integer, String> grown = new TreeMap<>(nodes);
+	grown.put(node, address);
+	return new HashRing(version + 1, grown);
+    }
+
+    public int ownerOf(int accountNumber) {
+	final int found = Arrays.binarySearch(points, mix(accountNumber));
+	final int at = found >= 0 ? found : -found - 1;
+	return owners[at == points.length ? 0 : at];
+    }
+
+    private static long mix(long key) {
+	long hash = key * 0x9e3779b97f4a7c15L;
+	hash ^= hash >>> 33;
+	hash *= 0xff51afd7ed558ccdL;
+	hash ^= hash >>> 33;
+	return hash;
+    }
+}
+
+// frames on a cluster socket: an int length, then an op code in a
+// request or a status in a reply, then its fields; strings are written
+// as AccountCodec writes them. A message grows with what is put into
+// it, and one over maxFrame is answered refused instead of being sent
+class ClusterWire {
+    static final byte ring = 1;
+    static final byte open = 2;
+    static final byte save = 3;
+    static final byte get = 4;
+    static final byte deposit = 5;
+    static final byte withdraw = 6;
+    static final byte transfer = 7;
+    static final byte rebalance = 8;
+    static final byte count = 9;
+    static final byte keys = 10;
+
+    static final byte ok = 0;
+    static final byte notFound = 1;
+    static final byte refused = 2;
+    // the node no longer owns the account; ask it for its ring
+    static final byte moved = 3;
+    // the node owns the account but has not received it yet
+    static final byte retry = 4;
+
+    static final int maxFrame = 1 << 16;
+
+    static ByteBuffer message(byte code) {
+	return ByteBuffer.allocate(4096).put(code);
+    }
+
+    // the buffer to go on with, a larger copy when this did not fit
+    static ByteBuffer putString(ByteBuffer buffer, String value) {
+	final byte[] bytes =
+	    (value == null ? "" : value).getBytes(StandardCharsets.UTF_8);
+	return ensure(buffer, 2 + bytes.length)
+	    .putShort((short) bytes.length).put(bytes);
+    }
+
+    static ByteBuffer putAccount(ByteBuffer buffer, Account account) {
+	final int at = buffer.position();
+	while (true) {
+	    try {
+		AccountCodec.write(buffer, account);
+		return buffer;
+	    } catch (BufferOverflowException ex) {
+		buffer.position(at);
+		buffer = ensure(buffer, buffer.capacity());
+	    }
+	}
+    }
+
+    static ByteBuffer ensure(ByteBuffer buffer, int bytes) {
+	if (buffer.remaining() >= bytes)
+	    return buffer;
+	return ByteBuffer.allocate(Math.max(2 * buffer.capacity(),
+					    buffer.position() + bytes))
+	    .put(buffer.flip());
+    }
+
+    // more than the other side takes as a frame; a string over 64k is
+    // always that, so its length never wraps on the wire
+    static boolean oversize(ByteBuffer message) {
+	return message.position() > maxFrame;
+    }
+
+    static String getString(ByteBuffer buffer) {
+	return AccountCodec.getString(buffer);
+    }
+
+    // sends what was put into message so far, leaving it as it was
+    static void send(SocketChannel channel, ByteBuffer message)
+	throws IOException {
+	final ByteBuffer body = message.duplicate().flip();
+	final ByteBuffer[] frame = {
+	    ByteBuffer.allocate(4).putInt(body.remaining()).flip(), body
+	};
+	while (body.hasRemaining())
+	    channel.write(frame);
+    }
+
+    static ByteBuffer receive(SocketChannel channel) throws IOException {
+	final ByteBuffer length = ByteBuffer.allocate(4);
+	readFully(channel, length);
+	final int size = length.flip().getInt();
+	if (size < 1 || size > maxFrame)
+	    throw new IOException("bad cluster frame of " + size + " bytes");
+	final ByteBuffer body = ByteBuffer.allocate(size);
+	readFully(channel, body);
+	return body.flip();
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer buffer)
+	throws IOException {
+	while (buffer.hasRemaining())
+	    if (channel.read(buffer) < 0)
+		throw new EOFException("cluster socket closed");
+    }
+}
+
+// sends each call to the node that owns the account, over pooled unix
+// sockets; a node answering moved knows a newer ring, which is fetched
+// before trying again, and a node that is down or still receiving its
+// accounts is tried again with backoff until the deadline
+class ClusterClient implements AutoCloseable {
+    static class Reply {
+	final byte status;
+	final ByteBuffer body;
+
+	Reply(byte status, ByteBuffer body) {
+	    this.status = status;
+	    this.body = body;
+	}
+    }
+
+    private volatile HashRing ring;
+    private final long deadlineMillis;
+    // a node calling itself goes straight to its own handler
+    private final int self;
+    private final Function<ByteBuffer, ByteBuffer> local;
+    private final ConcurrentHashMap<String, ConcurrentLinkedQueue<SocketChannel>> idle =
+	new ConcurrentHashMap<>();
+    private final AtomicLong nextOpen = new AtomicLong();
+    private volatile boolean closed;
+
+    ClusterClient(HashRing ring) {
+	this(ring, 30_000L, -1, null);
+    }
+
+    ClusterClient(
+		  HashRing ring,
+		  long deadlineMillis,
+		  int self,
+		  Function<ByteBuffer, ByteBuffer> local) {
+	this.ring = ring;
+	this.deadlineMillis = deadlineMillis;
+	this.self = self;
+	this.local = local;
+    }
+
+    static ClusterClient connect(String seed) throws IOException {
+	final ClusterClient client = new ClusterClient(null);
+	client.ring = client.ringAt(seed);
+	return client;
+    }
+
+    public HashRing getRing() {
+	return this.ring;
+    }
+
+    public synchronized void adopt(HashRing newer) {
+	if (newer.getVersion() > ring.getVersion())
+	    ring = newer;
+    }
+
+    // the node asked picks the number and saves the account at its owner
+    public int open(boolean checking, String username, String hashPass) {
+	ByteBuffer request = ClusterWire.message(ClusterWire.open)
+	    .put(checking ? AccountCodec.checking : AccountCodec.saving);
+	request = ClusterWire.putString(request, username);
+	request = ClusterWire.putString(request, hashPass);
+	final List<Integer> nodes = new ArrayList<>(ring.getNodes().keySet());
+	final int node =
+	    nodes.get((int) (nextOpen.getAndIncrement() % nodes.size()));
+	final Reply reply = callNode(node, request, deadlineMillis);
+	return reply.status == ClusterWire.ok ? reply.body.getInt() : -1;
+    }
+
+    public Optional<Account> getAccountByNumber(int accountNumber) {
+	return accountOf(route(accountNumber,
+			       ClusterWire.message(ClusterWire.get)
+			       .putInt(accountNumber),
+			       deadlineMillis));
+    }
+
+    public Optional<Account> deposit(double amount, int accountNumber) {
+	return accountOf(route(accountNumber,
+			       change(ClusterWire.deposit, accountNumber,
+				      amount, null),
+			       deadlineMillis));
+    }
+
+    public Optional<Account> withdraw(double amount, int accountNumber) {
+	return accountOf(route(accountNumber,
+			       change(ClusterWire.withdraw, accountNumber,
+				      amount, null),
+			       deadlineMillis));
+    }
+
+    // the key makes a retry after a lost reply safe
+    public Optional<Account> transfer(double amount, int from, int to) {
+	final ByteBuffer request =
+	    ClusterWire.putString(ClusterWire.message(ClusterWire.transfer)
+				  .putInt(from).putInt(to).putDouble(amount),
+				  UUID.randomUUID().toString());
+	return accountOf(route(from, request, deadlineMillis));
+    }
+
+    // accounts and balance summed over what every node owns
+    public double[] totals() {
+	final double[] totals = new double[2];
+	for (int node : ring.getNodes().keySet()) {
+	    final Reply reply = callNode(node,
+					 ClusterWire.message(ClusterWire.count),
+					 deadlineMillis);
+	    totals[0] += reply.body.getLong();
+	    totals[1] += reply.body.getDouble();
+	}
+	return totals;
+    }
+
+    static ByteBuffer change(byte op, int number, double amount, String key) {
+	final ByteBuffer request =
+	    ClusterWire.message(op).putInt(number).putDouble(amount);
+	return ClusterWire.putString(request, key);
+    }
+
+    Reply route(int accountNumber, ByteBuffer request, long deadline) {
+	final long giveUp = deadlineOf(deadline);
+	long backoff = 1L;
+	while (true) {
+	    final int owner = ring.ownerOf(accountNumber);
+	    try {
+		final Reply reply = call(owner, request);
+		if (reply.status == ClusterWire.moved)
+		    adopt(ringAt(ring.addressOf(owner)));
+		else if (reply.status != ClusterWire.retry)
+		    return reply;
+	    } catch (IOException ex) {
+		if (closed)
+		    throw new UncheckedIOException(ex);
+	    }
+	    backoff = pause(backoff, giveUp, accountNumber);
+	}
+    }
+
+    Reply callNode(int node, ByteBuffer request, long deadline) {
+	final long giveUp = deadlineOf(deadline);
+	long backoff = 1L;
+	while (true) {
+	    try {
+		return call(node, request);
+	    } catch (IOException ex) {
+		if (closed)
+		    throw new UncheckedIOException(ex);
+	    }
+	    backoff = pause(backoff, giveUp, node);
+	}
+    }
+
+    HashRing ringAt(String address) throws IOException {
+	final Reply reply = exchange(address, ClusterWire.message(ClusterWire.ring));
+	return HashRing.parse(ClusterWire.getString(reply.body));
+    }
+
+    @Override
+    public void close() {
+	closed = true;
+	for (ConcurrentLinkedQueue<SocketChannel> channels : idle.values())
+	    for (SocketChannel channel = channels.poll(); channel != null;
+		 channel = channels.poll()) {
+		try {
+		    channel.close();
+		} catch (IOException ex) {
+		    // closing anyway
+		}
+	    }
+    }
+
+    private Reply call(int node, ByteBuffer request) throws IOException {
+	if (ClusterWire.oversize(request))
+	    return new Reply(ClusterWire.refused, ByteBuffer.allocate(0));
+	if (node == self) {
+	    final ByteBuffer reply = local.apply(request.duplicate().flip()).flip();
+	    return new Reply(reply.get(), reply);
+	}
+	return exchange(ring.addressOf(node), request);
+    }
+
+    private Reply exchange(String address, ByteBuffer request)
+	throws IOException {
+	final ConcurrentLinkedQueue<SocketChannel> channels =
+	    idle.computeIfAbsent(address, key -> new ConcurrentLinkedQueue<>());
+	SocketChannel channel = channels.poll();
+	if (channel == null)
+	    channel = SocketChannel.open(UnixDomainSocketAddress.of(address));
+	try {
+	    ClusterWire.send(channel, request);
+	    final ByteBuffer reply = ClusterWire.receive(channel);
+	    channels.add(channel);
+	    return new Reply(reply.get(), reply);
+	} catch (IOException ex) {
+	    channel.close();
+	    throw ex;
+	}
+    }
+
+    private long deadlineOf(long deadline) {
+	return deadline == Long.MAX_VALUE
+	    ? Long.MAX_VALUE
+	    : System.currentTimeMillis() + deadline;
+    }
+
+    private long pause(long backoff, long giveUp, int key) {
+	if (closed || System.currentTimeMillis() >= giveUp)
+	    throw new UncheckedIOException(new IOException("no node answered for "
+							   + key));
+	LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(backoff));
+	return Math.min(1_000L, 2 * backoff);
+    }
+
+    private static Optional<Account> accountOf(Reply reply) {
+	return reply.status == ClusterWire.ok
+	    ? Optional.of(AccountCodec.read(reply.body))
+	    : Optional.empty();
+    }
+}
+
+// one process of a cluster: it keeps the accounts its ring gives it in
+// an event sourced repository of its own and answers ClusterWire on a
+// unix socket in its directory. A transfer to another node's account is
+// a saga driven by the source's node: a begin line is logged before the
+// first step and a done line after the last, every step goes through
+// Service with its own idempotency key, and on start the node runs again
+// every saga not logged done, so steps that already ran are not repeated
+class ClusterNode implements AutoCloseable {
+    static final String socketName = "node.sock";
+    static final String ringName = "ring";
+    static final String sagaName = "sagas.log";
+
+    private final int id;
+    private final Path directory;
+    private final boolean sync;
+    private final EventSourcedRepository repository;
+    private final IdempotencyCache idempotency;
+    private final Service service;
+    private final ClusterClient peers;
+    // ops hold the read side while they check the account is theirs,
+    // so once a new ring is in under the write side none is left
+    // running on an account that is moving away
+    private final ReentrantReadWriteLock ringLock = new ReentrantReadWriteLock();
+    private final ConcurrentHashMap<SocketChannel, Boolean> connections =
+	new ConcurrentHashMap<>();
+    private final FileChannel sagas;
+    private volatile HashRing ring;
+    private volatile boolean joining;
+    private volatile boolean closed;
+    private ServerSocketChannel server;
+    private Thread acceptor;
+
+    private ClusterNode(
+			int id,
+			Path directory,
+			HashRing ring,
+			boolean sync) throws IOException {
+	this.id = id;
+	this.directory = directory;
+	this.sync = sync;
+	this.ring = ring;
+	this.repository =
+	    EventSourcedRepository.open(directory.resolve("events"),
+					Runtime.getRuntime().availableProcessors(),
+					64L << 20, sync, 100_000);
+	this.idempotency =
+	    IdempotencyCache.open(directory.resolve("idempotency.log"), 1 << 18,
+				  Duration.ofHours(24).toMillis(), sync);
+	this.service = new Service(repository, new OperationJournal(), idempotency);
+	this.peers = new ClusterClient(ring, Long.MAX_VALUE, id, this::handle);
+	this.sagas = FileChannel.open(directory.resolve(sagaName),
+				      StandardOpenOption.CREATE,
+				      StandardOpenOption.WRITE,
+				      StandardOpenOption.APPEND);
+	// numbers this node hands out start at id << 24, clear of the
+	// others'; one node per process, as the sequence is process wide
+	Account.number.skipTo(id << 24);
+	repository.streamAccounts()
+	    .mapToInt(Account::getNumber)
+	    .filter(number -> number >>> 24 == id)
+	    .max()
+	    .ifPresent(Account.number::skipTo);
+    }
+
+    static Path socketOf(Path directory) {
+	return directory.resolve(socketName);
+    }
+
+    // a ring saved by an earlier run wins over the one given
+    static ClusterNode start(
+			     int id,
+			     Path directory,
+			     HashRing ring,
+			     boolean sync) throws IOException {
+	Files.createDirectories(directory);
+	final Path saved = directory.resolve(ringName);
+	final HashRing current = Files.exists(saved)
+	    ? HashRing.parse(Files.readString(saved))
+	    : ring;
+	final ClusterNode node = new ClusterNode(id, directory, current, sync);
+	node.saveRing(current);
+	node.listen();
+	node.recover();
+	return node;
+    }
+
+    // takes the ring from seed with this node added, then has every
+    // other node adopt it and send over the accounts that now land here
+    static ClusterNode join(
+			    int id,
+			    Path directory,
+			    String seed,
+			    boolean sync) throws IOException {
+	Files.createDirectories(directory);
+	final HashRing current;
+	try (ClusterClient client = ClusterClient.connect(seed)) {
+	    current = client.getRing();
+	}
+	final HashRing grown =
+	    current.with(id, socketOf(directory).toString());
+	final ClusterNode node = new ClusterNode(id, directory, grown, sync);
+	node.joining = true;
+	node.saveRing(grown);
+	node.listen();
+	final ByteBuffer request =
+	    ClusterWire.putString(ClusterWire.message(ClusterWire.rebalance),
+				  grown.encode());
+	for (int other : current.getNodes().keySet())
+	    node.peers.callNode(other, request, Long.MAX_VALUE);
+	node.joining = false;
+	return node;
+    }
+
+    public int getId() {
+	return this.id;
+    }
+
+    public HashRing getRing() {
+	return this.ring;
+    }
+
+    public Service getService() {
+	return this.service;
+    }
+
+    public void awaitClose() throws InterruptedException {
+	acceptor.join();
+    }
+
+    @Override
+    public void close() throws IOException {
+	closed = true;
+	server.close();
+	for (SocketChannel channel : connections.keySet())
+	    channel.close();
+	try {
+	    acceptor.join();
+	} catch (InterruptedException ex) {
+	    Thread.currentThread().interrupt();
+	}
+	peers.close();
+	sagas.close();
+	idempotency.close();
+	repository.close();
+	Files.deleteIfExists(socketOf(directory));
+    }
+
+    private void listen() throws IOException {
+	final Path socket = socketOf(directory);
+	Files.deleteIfExists(socket);
+	server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+	server.bind(UnixDomainSocketAddress.of(socket));
+	acceptor = new Thread(() -> {
+		while (!closed) {
+		    final SocketChannel channel;
+		    try {
+			channel = server.accept();
+		    } catch (IOException ex) {
+			return ;
+		    }
+		    connections.put(channel, true);
+		    final Thread worker = new Thread(() -> serve(channel),
+						     "node-" + id + "-connection");
+		    worker.setDaemon(true);
+		    worker.start();
+		}
+	}, "node-" + id);
+	acceptor.start();
+    }
+
+    private void serve(SocketChannel channel) {
+	try (channel) {
+	    while (!closed) {
+		final ByteBuffer reply = handle(ClusterWire.receive(channel));
+		ClusterWire.send(channel, ClusterWire.oversize(reply)
+				 ? ClusterWire.message(ClusterWire.refused)
+				 : reply);
+	    }
+	} catch (IOException | UncheckedIOException ex) {
+	    // the peer went away, or this node is closing
+	} finally {
+	    connections.remove(channel);
+	}
+    }
+
+    private ByteBuffer handle(ByteBuffer request) {
+	final byte op = request.get();
+	switch (op) {
+	case ClusterWire.ring:
+	    return ClusterWire.putString(ClusterWire.message(ClusterWire.ok),
+					 ring.encode());
+	case ClusterWire.open:
+	    return open(request.get() == AccountCodec.checking,
+			ClusterWire.getString(request),
+			ClusterWire.getString(request));
+	case ClusterWire.save:
+	    return save(AccountCodec.read(request));
+	case ClusterWire.get:
+	case ClusterWire.deposit:
+	case ClusterWire.withdraw:
+	    return change(op, request);
+	case ClusterWire.transfer:
+	    return transfer(request.getInt(), request.getInt(),
+			    request.getDouble(), ClusterWire.getString(request));
+	case ClusterWire.rebalance:
+	    return rebalance(HashRing.parse(ClusterWire.getString(request)));
+	case ClusterWire.count:
+	    return count();
+	case ClusterWire.keys:
+	    return keys(request);
+	default:
+	    return ClusterWire.message(ClusterWire.refused);
+	}
+    }
+
+    private ByteBuffer open(boolean checking, String username, String hashPass) {
+	final Account account = checking
+	    ? CheckingAccount.ofHash(username, hashPass)
+	    : SavingAccount.ofHash(username, hashPass);
+	final ByteBuffer request =
+	    ClusterWire.putAccount(ClusterWire.message(ClusterWire.save), account);
+	final ClusterClient.Reply reply =
+	    peers.route(account.getNumber(), request, Long.MAX_VALUE);
+	if (reply.status != ClusterWire.ok)
+	    return ClusterWire.message(reply.status);
+	return ClusterWire.message(ClusterWire.ok).putInt(account.getNumber());
+    }
+
+    private ByteBuffer save(Account account) {
+	ringLock.readLock().lock();
+	try {
+	    if (ring.ownerOf(account.getNumber()) != id)
+		return ClusterWire.message(ClusterWire.moved);
+	    return ClusterWire.message(service.createAccount(account)
+				       ? ClusterWire.ok
+				       : ClusterWire.refused);
+	} finally {
+	    ringLock.readLock().unlock();
+	}
+    }
+
+    private ByteBuffer change(byte op, ByteBuffer request) {
+	final int number = request.getInt();
+	ringLock.readLock().lock();
+	try {
+	    if (ring.ownerOf(number) != id)
+		return ClusterWire.message(ClusterWire.moved);
+	    final Optional<Account> current = service.getAccountByNumber(number);
+	    if (!current.isPresent())
+		return ClusterWire.message(joining
+					   ? ClusterWire.retry
+					   : ClusterWire.notFound);
+	    final Optional<Account> result;
+	    if (op == ClusterWire.get) {
+		result = current;
+	    } else {
+		final double amount = request.getDouble();
+		final String key = ClusterWire.getString(request);
+		result = op == ClusterWire.deposit
+		    ? service.deposit(amount, current.get(),
+				      key.isEmpty() ? null : key)
+		    : service.withdraw(amount, current.get(),
+				       key.isEmpty() ? null : key);
+	    }
+	    if (!result.isPresent())
+		return ClusterWire.message(ClusterWire.refused);
+	    return ClusterWire.putAccount(ClusterWire.message(ClusterWire.ok),
+					  result.get());
+	} finally {
+	    ringLock.readLock().unlock();
+	}
+    }
+
+    private ByteBuffer transfer(int from, int to, double amount, String key) {
+	ringLock.readLock().lock();
+	try {
+	    if (ring.ownerOf(from) != id)
+		return ClusterWire.message(ClusterWire.moved);
+	    // both here: one local transfer, no saga
+	    if (ring.ownerOf(to) == id && !joining) {
+		final Optional<Account> payer = service.getAccountByNumber(from);
+		final Optional<Account> payee = service.getAccountByNumber(to);
+		if (!payer.isPresent() || !payee.isPresent())
+		    return ClusterWire.message(ClusterWire.notFound);
+		final Optional<Account> result =
+		    service.transfer(amount, payer.get(), payee.get(), key);
+		if (!result.isPresent())
+		    return ClusterWire.message(ClusterWire.refused);
+		return ClusterWire.putAccount(ClusterWire.message(ClusterWire.ok),
+					      result.get());
+	    }
+	} finally {
+	    ringLock.readLock().unlock();
+	}
+	// the saga moves amount as it is on both sides, while the local
+	// path converts through the service's rates, so it only runs
+	// between accounts of one currency
+	final Optional<Account> payer = service.getAccountByNumber(from);
+	final Optional<Account> payee = peers.getAccountByNumber(to);
+	if (!payer.isPresent() || !payee.isPresent())
+	    return ClusterWire.message(ClusterWire.notFound);
+	if (!payer.get().getCurrency().equals(payee.get().getCurrency()))
+	    return ClusterWire.message(ClusterWire.refused);
+	logSaga("begin " + key + " " + from + " " + to + " " + amount);
+	final ByteBuffer reply = settle(key, from, to, amount);
+	logSaga("done " + key);
+	return reply;
+    }
+
+    // debit the source, credit the target, or refund the source if the
+    // target does not exist; each step routed to whoever owns it now
+    private ByteBuffer settle(String key, int from, int to, double amount) {
+	final ClusterClient.Reply debit =
+	    peers.route(from, ClusterClient.change(ClusterWire.withdraw, from,
+						   amount, key + ":debit"),
+			Long.MAX_VALUE);
+	if (debit.status != ClusterWire.ok)
+	    return ClusterWire.message(debit.status);
+	final ClusterClient.Reply credit =
+	    peers.route(to, ClusterClient.change(ClusterWire.deposit, to,
+						 amount, key + ":credit"),
+			Long.MAX_VALUE);
+	if (credit.status != ClusterWire.ok) {
+	    peers.route(from, ClusterClient.change(ClusterWire.deposit, from,
+						   amount, key + ":refund"),
+			Long.MAX_VALUE);
+	    return ClusterWire.message(credit.status);
+	}
+	return ClusterWire.ensure(ClusterWire.message(ClusterWire.ok),
+				  debit.body.remaining()).put(debit.body);
+    }
+
+    // sagas begun and never logged done, run again on their own thread
+    // as the nodes they need may not be up yet
+    private void recover() throws IOException {
+	final LinkedHashMap<String, String[]> pending = new LinkedHashMap<>();
+	for (String line : Files.readAllLines(directory.resolve(sagaName))) {
+	    final String[] fields = line.split(" ");
+	    if (fields[0].equals("begin") && fields.length == 5)
+		pending.put(fields[1], fields);
+	    else if (fields[0].equals("done") && fields.length == 2)
+		pending.remove(fields[1]);
+	}
+	if (pending.isEmpty())
+	    return ;
+	final Thread recovery = new Thread(() -> {
+		for (String[] saga : pending.values()) {
+		    settle(saga[1], Integer.parseInt(saga[2]),
+			   Integer.parseInt(saga[3]), Double.parseDouble(saga[4]));
+		    logSaga("done " + saga[1]);
+		}
+	}, "node-" + id + "-recovery");
+	recovery.setDaemon(true);
+	recovery.start();
+    }
+
+    // the new ring goes in under the write side, then every account that
+    // was ours and is not any more is saved at its new owner, after the
+    // outcomes of its idempotency keys, so a saga step retried there is
+    // not applied twice; until the account arrives the owner answers retry
+    private ByteBuffer rebalance(HashRing newer) {
+	final HashRing older;
+	ringLock.writeLock().lock();
+	try {
+	    older = ring;
+	    if (newer.getVersion() <= older.getVersion())
+		return ClusterWire.message(ClusterWire.ok);
+	    saveRing(newer);
+	    ring = newer;
+	    peers.adopt(newer);
+	} finally {
+	    ringLock.writeLock().unlock();
+	}
+	final HashMap<Integer, ArrayList<byte[]>> outcomes =
+	    idempotency.outcomesOf(number -> older.ownerOf(number) == id
+				   && newer.ownerOf(number) != id);
+	final int perMessage =
+	    (ClusterWire.maxFrame - 16) / IdempotencyCache.recordBytes;
+	repository.streamAccounts()
+	    .filter(account -> older.ownerOf(account.getNumber()) == id
+		    && newer.ownerOf(account.getNumber()) != id)
+	    .forEach(account -> {
+		    final List<byte[]> records =
+			outcomes.getOrDefault(account.getNumber(), new ArrayList<>());
+		    for (int first = 0; first < records.size(); first += perMessage) {
+			final List<byte[]> chunk =
+			    records.subList(first, Math.min(records.size(),
+							    first + perMessage));
+			final ByteBuffer keys =
+			    ByteBuffer.allocate(5 + chunk.size()
+						* IdempotencyCache.recordBytes)
+			    .put(ClusterWire.keys).putInt(account.getNumber());
+			chunk.forEach(keys::put);
+			peers.route(account.getNumber(), keys, Long.MAX_VALUE);
+		    }
+		    peers.route(account.getNumber(),
+				ClusterWire.putAccount(ClusterWire.message(ClusterWire.save),
+						       account),
+				Long.MAX_VALUE);
+		});
+	return ClusterWire.message(ClusterWire.ok);
+    }
+
+    // outcomes of keys on an account moving here, ahead of the account
+    private ByteBuffer keys(ByteBuffer request) {
+	final int number = request.getInt();
+	ringLock.readLock().lock();
+	try {
+	    if (ring.ownerOf(number) != id)
+		return ClusterWire.message(ClusterWire.moved);
+	    idempotency.adopt(request);
+	    return ClusterWire.message(ClusterWire.ok);
+	} finally {
+	    ringLock.readLock().unlock();
+	}
+    }
+
+    private ByteBuffer count() {
+	final HashRing current = ring;
+	final long[] accounts = { 0L };
+	final double[] balance = { 0.0 };
+	repository.streamAccounts()
+	    .filter(account -> current.ownerOf(account.getNumber()) == id)
+	    .forEach(account -> {
+		    accounts[0]++;
+		    balance[0] += account.getBalance();
+		});
+	return ClusterWire.message(ClusterWire.ok)
+	    .putLong(accounts[0]).putDouble(balance[0]);
+    }
+
+    private void saveRing(HashRing saved) {
+	try {
+	    final Path path = directory.resolve(ringName);
+	    final Path tmp = directory.resolve(ringName + ".tmp");
+	    Files.writeString(tmp, saved.encode() + "\n");
+	    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING,
+		       StandardCopyOption.ATOMIC_MOVE);
+	} catch (IOException ex) {
+	    throw new UncheckedIOException("Server Error: ring", ex);
+	}
+    }
+
+    private synchronized void logSaga(String line) {
+	try {
+	    final ByteBuffer bytes =
+		ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+	    while (bytes.hasRemaining())
+		sagas.write(bytes);
+	    if (sync)
+		sagas.force(false);
+	} catch (IOException ex) {
+	    throw new UncheckedIOException("Server Error: saga log", ex);
+	}
+    }
+}
+
+// the primary's side of replication: every write that goes through is
+// logged as the full state of the accounts it left behind, and the log
+// is served over loopback TCP, a deflated batch of records per frame;
+// a record carries account versions, so applying it twice, or after a
+// newer one, changes nothing
+class ReplicationLeader implements Repository, AutoCloseable {
+    // frames of records, chunks of a snapshot, and a snapshot's end
+    static final byte records = 1;
+    static final byte snapshot = 2;
+    static final byte snapshotEnd = 3;
+    // kind, seq, records, raw bytes, compressed bytes
+    static final int headerBytes = 21;
+    static final int maxFrameRecords = 4096;
+    // raw bytes a frame carries, and deflate's worst case on top of them
+    static final int maxFrameBytes = maxFrameRecords * 2048;
+    static final int maxPackedBytes = maxFrameBytes + (maxFrameBytes >> 10) + 64;
+
+    private final Repository repository;
+    private final boolean sync;
+    private final long syncTimeoutMillis;
+    // a follower that falls further behind than this gets a snapshot
+    private final byte[][] log;
+    // so a follower of an earlier run of the primary starts over
+    private final long epoch = new SecureRandom().nextLong() | 1L;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    private final Condition acked = lock.newCondition();
+    private final ConcurrentHashMap<SocketChannel, Boolean> connections =
+	new ConcurrentHashMap<>();
+    private final LongAdder frames = new LongAdder();
+    private final LongAdder rawBytes = new LongAdder();
+    private final LongAdder packedBytes = new LongAdder();
+    private final LongAdder snapshots = new LongAdder();
+    private final LongAdder synced = new LongAdder();
+    private final LongAdder degraded = new LongAdder();
+    private final ServerSocketChannel server;
+    private final Thread acceptor;
+    private long nextSeq;
+    // every record below it is applied on at least one follower
+    private long ackedSeq;
+    private int followers;
+    private volatile boolean closed;
+
+    private ReplicationLeader(
+			      Repository repository,
+			      ServerSocketChannel server,
+			      boolean sync,
+			      long syncTimeoutMillis,
+			      int capacity) {
+	this.repository = repository;
+	this.server = server;
+	this.sync = sync;
+	this.syncTimeoutMillis = syncTimeoutMillis;
+	this.log = new byte[capacity][];
+	this.acceptor = new Thread(this::accept, "replication-leader");
+    }
+
+    // port 0 takes any free one, see getPort
+    static ReplicationLeader listen(
+				    Repository repository,
+				    int port,
+				    boolean sync) throws IOException {
+	return listen(repository, port, sync, 1000L, 1 << 16);
+    }
+
+    static ReplicationLeader listen(
+				    Repository repository,
+				    int port,
+				    boolean sync,
+				    long syncTimeoutMillis,
+				    int capacity) throws IOException {
+	final ServerSocketChannel server = ServerSocketChannel.open();
+	server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+	final ReplicationLeader leader =
+	    new ReplicationLeader(repository, server, sync,
+				  syncTimeoutMillis, capacity);
+	leader.acceptor.start();
+	return leader;
+    }
+
+    public int getPort() throws IOException {
+	return ((InetSocketAddress) server.getLocalAddress()).getPort();
+    }
+
+    public boolean isSync() {
+	return this.sync;
+    }
+
+    public long getNextSeq() {
+	lock.lock();
+	try {
+	    return this.nextSeq;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    public long getAcked() {
+	lock.lock();
+	try {
+	    return this.ackedSeq;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    // records written here that no follower has applied yet
+    public long getLag() {
+	lock.lock();
+	try {
+	    return nextSeq - ackedSeq;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    public int getFollowers() {
+	lock.lock();
+	try {
+	    return this.followers;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    public long getFrames() {
+	return frames.sum();
+    }
+
+    public long getRawBytes() {
+	return rawBytes.sum();
+    }
+
+    public long getPackedBytes() {
+	return packedBytes.sum();
+    }
+
+    public long getSnapshots() {
+	return snapshots.sum();
+    }
+
+    public long getSynced() {
+	return synced.sum();
+    }
+
+    // transfers that went on without a follower's ack in sync mode
+    public long getDegraded() {
+	return degraded.sum();
+    }
+
+    @Override
+    public Optional<Account> getAccountByNumber(int accountNumber) {
+	return repository.getAccountByNumber(accountNumber);
+    }
+
+    @Override
+    public boolean saveAccount(Account account) {
+	if (!repository.saveAccount(account))
+	    return false;
+	append(account);
+	return true;
+    }
+
+    @Override
+    public boolean update(Account account) {
+	if (!repository.update(account))
+	    return false;
+	append(account);
+	return true;
+    }
+
+    // transfers are the writes sync mode holds back for a follower
+    @Override
+    public boolean update(Pair<Account, Account> accountPair) {
+	if (!repository.update(accountPair))
+	    return false;
+	awaitFollower(append(accountPair.getFst(), accountPair.getSnd()));
+	return true;
+    }
+
+    @Override
+    public boolean update(List<Account> accounts) {
+	if (!repository.update(accounts))
+	    return false;
+	awaitFollower(append(accounts.toArray(new Account[0])));
+	return true;
+    }
+
+    @Override
+    public Stream<Account> streamAccounts() {
+	return repository.streamAccounts();
+    }
+
+    @Override
+    public List<Account> accountsOf(String username) {
+	return repository.accountsOf(username);
+    }
+
+    @Override
+    public List<String> userNamesStartingWith(String prefix, int limit) {
+	return repository.userNamesStartingWith(prefix, limit);
+    }
+
+    @Override
+    public void close() throws IOException {
+	closed = true;
+	server.close();
+	for (SocketChannel channel : connections.keySet())
+	    channel.close();
+	lock.lock();
+	try {
+	    appended.signalAll();
+	    acked.signalAll();
+	} finally {
+	    lock.unlock();
+	}
+	try {
+	    acceptor.join();
+	} catch (InterruptedException ex) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+
+    // the accounts are encoded before the lock, which only orders them;
+    // a write too big for one frame is logged as several records in a
+    // row, and the seq returned is the last one's
+    private long append(Account... accounts) {
+	final ArrayList<byte[]> records = new ArrayList<>(1);
+	ByteBuffer encoded = ByteBuffer.allocate(1024);
+	ByteBuffer record = ByteBuffer.allocate(1028);
+	int count = 0;
+	record.putInt(0);
+	for (Account account : accounts) {
+	    encoded = encode(encoded, account);
+	    if (count > 0
+		&& record.position() + encoded.remaining() > maxFrameBytes) {
+		records.add(finish(record, count));
+		record.clear();
+		record.putInt(0);
+		count = 0;
+	    }
+	    if (record.remaining() < encoded.remaining())
+		record = ByteBuffer.allocate(Math.max(2 * record.capacity(),
+						      record.position()
+						      + encoded.remaining()))
+		    .put(record.flip());
+	    record.put(encoded);
+	    count++;
+	}
+	records.add(finish(record, count));
+	lock.lock();
+	try {
+	    for (byte[] bytes : records)
+		log[(int) (nextSeq++ % log.length)] = bytes;
+	    appended.signalAll();
+	    return nextSeq - 1;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    // an account too big for the buffer is written again into a bigger one
+    private static ByteBuffer encode(ByteBuffer buffer, Account account) {
+	while (true) {
+	    try {
+		buffer.clear();
+		AccountCodec.write(buffer, account);
+		return buffer.flip();
+	    } catch (BufferOverflowException ex) {
+		buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+	    }
+	}
+    }
+
+    private static byte[] finish(ByteBuffer record, int count) {
+	record.putInt(0, count);
+	return Arrays.copyOf(record.array(), record.position());
+    }
+
+    // semi-synchronous: one follower applying the record is enough, and
+    // with none connected, or none answering in time, the transfer that
+    // has already committed here goes on without one
+    private void awaitFollower(long seq) {
+	if (!sync)
+	    return ;
+	lock.lock();
+	try {
+	    long nanos = TimeUnit.MILLISECONDS.toNanos(syncTimeoutMillis);
+	    while (ackedSeq <= seq && followers > 0 && nanos > 0 && !closed)
+		nanos = acked.awaitNanos(nanos);
+	    if (ackedSeq > seq)
+		synced.increment();
+	    else
+		degraded.increment();
+	} catch (InterruptedException ex) {
+	    Thread.currentThread().interrupt();
+	    degraded.increment();
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    private void accept() {
+	while (!closed) {
+	    final SocketChannel channel;
+	    try {
+		channel = server.accept();
+		channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+	    } catch (IOException ex) {
+		return ;
+	    }
+	    connections.put(channel, true);
+	    lock.lock();
+	    try {
+		followers++;
+	    } finally {
+		lock.unlock();
+	    }
+	    final Thread sender = new Thread(() -> serve(channel),
+					     "replication-sender");
+	    sender.setDaemon(true);
+	    sender.start();
+	}
+    }
+
+    // the leader sends its epoch, the follower answers with the seq it
+    // needs next, or -1 when it holds nothing of this epoch
+    private void serve(SocketChannel channel) {
+	final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	try (channel) {
+	    write(channel, ByteBuffer.allocate(8).putLong(epoch).flip());
+	    final ByteBuffer hello = ByteBuffer.allocate(8);
+	    readFully(channel, hello);
+	    long offset = hello.flip().getLong();
+	    final Thread acks = new Thread(() -> readAcks(channel),
+					   "replication-acks");
+	    acks.setDaemon(true);
+	    acks.start();
+	    final ArrayList<byte[]> batch = new ArrayList<>();
+	    while (!closed) {
+		batch.clear();
+		final long first = take(offset, batch);
+		if (first < 0)
+		    offset = sendSnapshot(channel, deflater);
+		else if (!batch.isEmpty()) {
+		    send(channel, deflater, records, first, batch);
+		    offset = first + batch.size();
+		}
+	    }
+	} catch (IOException ex) {
+	    // the follower went away, or the leader is closing
+	} finally {
+	    deflater.end();
+	    connections.remove(channel);
+	    lock.lock();
+	    try {
+		followers--;
+		acked.signalAll();
+	    } finally {
+		lock.unlock();
+	    }
+	}
+    }
+
+    private void readAcks(SocketChannel channel) {
+	final ByteBuffer ack = ByteBuffer.allocate(8);
+	try (channel) {
+	    while (!closed) {
+		ack.clear();
+		readFully(channel, ack);
+		final long offset = ack.flip().getLong();
+		lock.lock();
+		try {
+		    if (offset > ackedSeq) {
+			ackedSeq = offset;
+			acked.signalAll();
+		    }
+		} finally {
+		    lock.unlock();
+		}
+	    }
+	} catch (IOException ex) {
+	    // closing the channel stops the sender too
+	}
+    }
+
+    // whatever piled up from offset on, waiting a little for the first;
+    // the batch grows with the load, so a busy primary sends fewer and
+    // larger frames. -1 when offset is no longer, or never was, in the log
+    private long take(long offset, List<byte[]> batch) throws IOException {
+	lock.lock();
+	try {
+	    if (offset < Math.max(0L, nextSeq - log.length) || offset > nextSeq)
+		return -1L;
+	    if (offset == nextSeq && !closed)
+		appended.awaitNanos(TimeUnit.MILLISECONDS.toNanos(100));
+	    if (offset < Math.max(0L, nextSeq - log.length))
+		return -1L;
+	    final long end = Math.min(nextSeq, offset + maxFrameRecords);
+	    int bytes = 0;
+	    for (long seq = offset; seq < end; seq++) {
+		final byte[] record = log[(int) (seq % log.length)];
+		if (!batch.isEmpty() && bytes + record.length > maxFrameBytes)
+		    break ;
+		batch.add(record);
+		bytes += record.length;
+	    }
+	    return offset;
+	} catch (InterruptedException ex) {
+	    Thread.currentThread().interrupt();
+	    throw new IOException("replication interrupted", ex);
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    // every account as it is now, then the log from the seq read before
+    // the first one; a write that lands meanwhile is in the log anyway
+    private long sendSnapshot(SocketChannel channel, Deflater deflater)
+	throws IOException {
+	final long from = getNextSeq();
+	final ArrayList<byte[]> chunk = new ArrayList<>();
+	ByteBuffer encoded = ByteBuffer.allocate(1024);
+	int bytes = 0;
+	final Iterator<Account> accounts = repository.streamAccounts().iterator();
+	while (accounts.hasNext()) {
+	    encoded = encode(encoded, accounts.next());
+	    final byte[] record = new byte[4 + encoded.remaining()];
+	    ByteBuffer.wrap(record).putInt(1).put(encoded);
+	    if (!chunk.isEmpty() && (chunk.size() == maxFrameRecords
+				     || bytes + record.length > maxFrameBytes)) {
+		send(channel, deflater, snapshot, from, chunk);
+		chunk.clear();
+		bytes = 0;
+	    }
+	    chunk.add(record);
+	    bytes += record.length;
+	}
+	if (!chunk.isEmpty())
+	    send(channel, deflater, snapshot, from, chunk);
+	// counted first, as the follower may be caught up once the end is sent
+	snapshots.increment();
+	send(channel, deflater, snapshotEnd, from, chunk.subList(0, 0));
+	return from;
+    }
+
+    private void send(
+		      SocketChannel channel,
+		      Deflater deflater,
+		      byte kind,
+		      long seq,
+		      List<byte[]> batch) throws IOException {
+	int rawLength = 0;
+	for (byte[] record : batch)
+	    rawLength += record.length;
+	final byte[] raw = new byte[rawLength];
+	int at = 0;
+	for (byte[] record : batch) {
+	    System.arraycopy(record, 0, raw, at, record.length);
+	    at += record.length;
+	}
+	deflater.reset();
+	deflater.setInput(raw);
+	deflater.finish();
+	byte[] packed = new byte[rawLength / 2 + 64];
+	int length = 0;
+	while (!deflater.finished()) {
+	    if (length == packed.length)
+		packed = Arrays.copyOf(packed, 2 * packed.length);
+	    length += deflater.deflate(packed, length, packed.length - length);
+	}
+	final ByteBuffer header = ByteBuffer.allocate(headerBytes);
+	header.put(kind).putLong(seq).putInt(batch.size())
+	    .putInt(rawLength).putInt(length).flip();
+	final ByteBuffer[] frame = { header, ByteBuffer.wrap(packed, 0, length) };
+	while (frame[0].hasRemaining() || frame[1].hasRemaining())
+	    channel.write(frame);
+	frames.increment();
+	rawBytes.add(rawLength);
+	packedBytes.add(length);
+    }
+
+    static void write(SocketChannel channel, ByteBuffer buffer)
+	throws IOException {
+	while (buffer.hasRemaining())
+	    channel.write(buffer);
+    }
+
+    static void readFully(SocketChannel channel, ByteBuffer buffer)
+	throws IOException {
+	while (buffer.hasRemaining())
+	    if (channel.read(buffer) < 0)
+		throw new EOFException("replication socket closed");
+    }
+}
+
+// the follower's side: a hot copy of the primary's accounts in an
+// MvccRepository of its own, which each frame is applied to in one go
+// before its seq is acked; it only answers reads until promoted, and
+// when the primary goes away it dials again with backoff
+class ReplicationFollower implements AutoCloseable {
+    private final int port;
+    private final MvccRepository replica = new MvccRepository();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition advanced = lock.newCondition();
+    private final LongAdder applied = new LongAdder();
+    private final Thread worker;
+    // the primary's epoch the offset counts in, 0 before any snapshot
+    private long epoch;
+    private long offset;
+    private volatile SocketChannel channel;
+    private volatile boolean closed;
+
+    private ReplicationFollower(int port) {
+	this.port = port;
+	this.worker = new Thread(this::run, "replication-follower");
+	this.worker.setDaemon(true);
+    }
+
+    static ReplicationFollower follow(int port) {
+	final ReplicationFollower follower = new ReplicationFollower(port);
+	follower.worker.start();
+	return follower;
+    }
+
+    // the seq of the next record the follower needs
+    public long getOffset() {
+	lock.lock();
+	try {
+	    return this.offset;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    public long getApplied() {
+	return applied.sum();
+    }
+
+    // false when the wait ran out first
+    public boolean awaitOffset(long seq, long timeout, TimeUnit unit)
+	throws InterruptedException {
+	lock.lock();
+	try {
+	    long nanos = unit.toNanos(timeout);
+	    while (offset < seq && nanos > 0)
+		nanos = advanced.awaitNanos(nanos);
+	    return offset >= seq;
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    public Optional<Account> getAccountByNumber(int accountNumber) {
+	return replica.getAccountByNumber(accountNumber);
+    }
+
+    public Optional<Double> balanceOf(int accountNumber) {
+	return replica.getAccountByNumber(accountNumber).map(Account::getBalance);
+    }
+
+    public Stream<Account> streamAccounts() {
+	return replica.streamAccounts();
+    }
+
+    // stops following and hands over the copy, to build a Service on
+    // when the primary is gone for good
+    public MvccRepository promote() throws IOException {
+	close();
+	return replica;
+    }
+
+    @Override
+    public void close() throws IOException {
+	closed = true;
+	final SocketChannel current = channel;
+	if (current != null)
+	    current.close();
+	worker.interrupt();
+	try {
+	    worker.join();
+	} catch (InterruptedException ex) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+
+    private void run() {
+	long backoff = 10L;
+	while (!closed) {
+	    try (SocketChannel opened =
+		 SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+							  port))) {
+		channel = opened;
+		if (closed)
+		    return ;
+		opened.setOption(StandardSocketOptions.TCP_NODELAY, true);
+		backoff = 10L;
+		receive(opened);
+	    } catch (IOException | DataFormatException ex) {
+		// the primary is not up, went away, or is being closed
+	    }
+	    try {
+		Thread.sleep(backoff);
+	    } catch (InterruptedException ex) {
+		return ;
+	    }
+	    backoff = Math.min(1000L, 2 * backoff);
+	}
+    }
+
+    private void receive(SocketChannel opened)
+	throws IOException, DataFormatException {
+	final ByteBuffer hello = ByteBuffer.allocate(8);
+	ReplicationLeader.readFully(opened, hello);
+	final long leaderEpoch = hello.flip().getLong();
+	final long from;
+	lock.lock();
+	try {
+	    from = leaderEpoch == epoch ? offset : -1L;
+	} finally {
+	    lock.unlock();
+	}
+	ReplicationLeader.write(opened, ByteBuffer.allocate(8).putLong(from).flip());
+	final ByteBuffer header = ByteBuffer.allocate(ReplicationLeader.headerBytes);
+	final ByteBuffer ack = ByteBuffer.allocate(8);
+	final Inflater inflater = new Inflater();
+	try {
+	    while (!closed) {
+		header.clear();
+		ReplicationLeader.readFully(opened, header);
+		header.flip();
+		final byte kind = header.get();
+		final long seq = header.getLong();
+		final int count = header.getInt();
+		final int rawLength = header.getInt();
+		final int length = header.getInt();
+		if (rawLength < 0 || rawLength > ReplicationLeader.maxFrameBytes
+		    || length < 0 || length > ReplicationLeader.maxPackedBytes)
+		    throw new IOException("bad replication frame of "
+					  + length + " bytes");
+		final ByteBuffer packed = ByteBuffer.allocate(length);
+		ReplicationLeader.readFully(opened, packed);
+		final byte[] raw = new byte[rawLength];
+		inflater.reset();
+		inflater.setInput(packed.array());
+		int inflated = 0;
+		while (inflated < rawLength && !inflater.finished()) {
+		    final int n = inflater.inflate(raw, inflated, rawLength - inflated);
+		    // a short frame would have inflate return 0 for good
+		    if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+			throw new DataFormatException("replication frame cut short");
+		    inflated += n;
+		}
+		if (inflated != rawLength)
+		    throw new DataFormatException("replication frame of " + inflated
+						  + " bytes, " + rawLength + " expected");
+		final ByteBuffer buffer = ByteBuffer.wrap(raw);
+		for (int i = 0; i < count; i++)
+		    apply(buffer);
+		if (kind == ReplicationLeader.snapshot)
+		    continue ;
+		final long next = kind == ReplicationLeader.records ? seq + count : seq;
+		lock.lock();
+		try {
+		    epoch = leaderEpoch;
+		    offset = next;
+		    advanced.signalAll();
+		} finally {
+		    lock.unlock();
+		}
+		ack.clear();
+		ReplicationLeader.write(opened, ack.putLong(next).flip());
+	    }
+	} finally {
+	    inflater.end();
+	}
+    }
+
+    // the accounts of one record land in one commit, so a reader never
+    // sees one side of a transfer without the other
+    private void apply(ByteBuffer buffer) {
+	final int size = buffer.getInt();
+	final ArrayList<Account> newer = new ArrayList<>(size);
+	for (int i = 0; i < size; i++) {
+	    final Account account = AccountCodec.read(buffer);
+	    final Optional<Account> held =
+		replica.getAccountByNumber(account.getNumber());
+	    if (!held.isPresent())
+		replica.saveAccount(account);
+	    else if (held.get().getVersion() < account.getVersion())
+		newer.add(account);
+	}
+	if (newer.size() == 1)
+	    replica.update(newer.get(0));
+	else if (newer.size() > 1)
+	    replica.update(newer);
+	applied.increment();
+    }
+}
+
+class IdempotencyCache {
+    static class Outcome {
+	final boolean succeeded;
+	final int account;
+	final long version;
+	final double balance;
+	final double loanLimit;
+	final double loanCurrent;
+
+	Outcome(
+		boolean succeeded,
+		int account,
+		long version,
+		double balance,
+		double loanLimit,
+		double loanCurrent) {
+	    this.succeeded = succeeded;
+	    this.account = account;
+	    this.version = version;
+	    this.balance = balance;
+	    this.loanLimit = loanLimit;
+	    this.loanCurrent = loanCurrent;
+	}
+    }
+
+    private static final int ways = 8;
+    private static final int stripeCount = 64;
+    // fingerprint, fingerprint, expiry, version, balance, loan limit,
+    // loan current, account, kind
+    static final int recordBytes = 8 * 7 + 4 + 1;
+    private static final byte failed = 0;
+    private static final byte succeeded = 1;
+    // logged before the mutation with the version the account had
+    private static final byte begun = 2;
+    // the mutation threw, so a retry may run it
+    private static final byte abandoned = 3;
+
+    private final long ttlMillis;
+    private final LongSupplier clock;
+    private final int bucketMask;
+    // a bucket's fingerprints and expiries each fill one cache line,
+    // followed by six longs per way: check, version, balance, loan
+    // limit, loan current and account shifted left over the success bit
+    private static final int expiryOffset = ways;
+    private static final int payloadOffset = 2 * ways;
+    private static final int payloadLongs = 6;
+    private static final int bucketLongs = payloadOffset + ways * payloadLongs;
+
+    private final ReentrantLock[] stripes;
+    // memory is fixed up front and a bucket is probed with no allocation
+    private final long[] table;
+
+    private final Path path;
+    private final boolean syncEachAppend;
+    private final ByteBuffer record = ByteBuffer.allocate(recordBytes);
+    // keys begun and never settled by the last run, by fingerprint:
+    // fingerprint, check, expiry, account, version before
+    private final LinkedHashMap<Long, long[]> unresolved = new LinkedHashMap<>();
+    private FileChannel log;
+    private long logged;
+
+    IdempotencyCache(int capacity, long ttlMillis) {
+	this(capacity, ttlMillis, System::currentTimeMillis);
+    }
+
+    IdempotencyCache(int capacity, long ttlMillis, LongSupplier clock) {
+	this(capacity, ttlMillis, clock, null, false);
+    }
+
+    private IdempotencyCache(
+		     int capacity,
+		     long ttlMillis,
+		     LongSupplier clock,
+		     Path path,
+		     boolean syncEachAppend) {
+	final int wanted = Math.max(1, (capacity + ways - 1) / ways);
+	final int buckets = Integer.highestOneBit(wanted * 2 - 1);
+	this.ttlMillis = ttlMillis;
+	this.clock = clock;
+	this.bucketMask = buckets - 1;
+	this.stripes = new ReentrantLock[stripeCount];
+	for (int i = 0; i < stripeCount; i++)
+	    stripes[i] = new ReentrantLock();
+	this.table = new long[buckets * bucketLongs];
+	this.path = path;
+	this.syncEachAppend = syncEachAppend;
+    }
+
+    // entries written to path survive a restart, like the durable
+    // repositories they sit next to; with syncEachAppend they also
+    // survive the machine going down, as the event log does
+    static IdempotencyCache open(
+				 Path path,
+				 int capacity,
+				 long ttlMillis) throws IOException {
+	return open(path, capacity, ttlMillis, true);
+    }
+
+    static IdempotencyCache open(
+				 Path path,
+				 int capacity,
+				 long ttlMillis,
+				 boolean syncEachAppend) throws IOException {
+	return open(path, capacity, ttlMillis, System::currentTimeMillis,
+		    syncEachAppend);
+    }
+
+    static IdempotencyCache open(
+				 Path path,
+				 int capacity,
+				 long ttlMillis,
+				 LongSupplier clock) throws IOException {
+	return open(path, capacity, ttlMillis, clock, true);
+    }
+
+    static IdempotencyCache open(
+				 Path path,
+				 int capacity,
+				 long ttlMillis,
+				 LongSupplier clock,
+				 boolean syncEachAppend) throws IOException {
+	final IdempotencyCache cache =
+	    new IdempotencyCache(capacity, ttlMillis, clock, path,
+				 syncEachAppend);
+	cache.load();
+	return cache;
+    }
+
+    public int capacity() {
+	return (bucketMask + 1) * ways;
+    }
+
+    public boolean isDurable() {
+	return path != null;
+    }
+
+    public Optional<Outcome> lookup(String key) {
+	if (key == null)
+	    return Optional.empty();
+	final long fingerprint = fingerprint(key);
+	final long check = check(key);
+	final int bucket = (int) (fingerprint >>> 32) & bucketMask;
+	final long now = clock.getAsLong();
+	final ReentrantLock stripe = stripes[bucket & (stripeCount - 1)];
+	stripe.lock();
+	try {
+	    final int base = bucket * bucketLongs;
+	    for (int way = 0; way < ways; way++) {
+		final int payload = base + payloadOffset + way * payloadLongs;
+		if (table[base + way] == fingerprint
+		    && table[base + expiryOffset + way] > now
+		    && table[payload] == check)
+		    return Optional.of(outcomeAt(payload));
+	    }
+	} finally {
+	    stripe.unlock();
+	}
+	return Optional.empty();
+    }
+
+    // logged before the mutation runs, so a crash between the mutation
+    // reaching the repository and its outcome reaching this log leaves
+    // the key begun instead of forgotten; recover settles it
+    public void begin(String key, int account, long version) {
+	if (key == null || path == null)
+	    return ;
+	append(fingerprint(key), check(key), clock.getAsLong() + ttlMillis,
+	       begun, account, version, 0.0, 0.0, 0.0);
+    }
+
+    public void abandon(String key) {
+	if (key == null || path == null)
+	    return ;
+	append(fingerprint(key), check(key), clock.getAsLong() + ttlMillis,
+	       abandoned, 0, 0L, 0.0, 0.0, 0.0);
+    }
+
+    // a begun key went through if its account has moved past the version
+    // logged with it: the account lock was held from begin until the
+    // outcome would have been logged, so nothing else can have moved it
+    // before the crash, and nothing runs before this after the restart
+    public synchronized void recover(Repository repository) {
+	if (unresolved.isEmpty())
+	    return ;
+	for (long[] intent : unresolved.values()) {
+	    final Optional<Account> account =
+		repository.getAccountByNumber((int) intent[3]);
+	    if (!account.isPresent() || account.get().getVersion() <= intent[4])
+		continue ;
+	    final Account applied = account.get();
+	    put(intent[0], intent[1], intent[2], true, applied.getNumber(),
+		applied.getVersion(), applied.getBalance(),
+		AccountCodec.loanLimitOf(applied),
+		AccountCodec.loanCurrentOf(applied));
+	}
+	unresolved.clear();
+	try {
+	    compact();
+	} catch (IOException ex) {
+	    throw new UncheckedIOException(ex);
+	}
+    }
+
+    public void remember(
+			 String key,
+			 int account,
+			 Optional<? extends Account> result) {
+	if (key == null)
+	    return ;
+	final long fingerprint = fingerprint(key);
+	final long check = check(key);
+	final long expiry = clock.getAsLong() + ttlMillis;
+	final Account updated = result.orElse(null);
+	final boolean success = updated != null;
+	final int number = success ? updated.getNumber() : account;
+	final long version = success ? updated.getVersion() : 0L;
+	final double balance = success ? updated.getBalance() : 0.0;
+	final double loanLimit =
+	    success ? AccountCodec.loanLimitOf(updated) : 0.0;
+	final double loanCurrent =
+	    success ? AccountCodec.loanCurrentOf(updated) : 0.0;
+	put(fingerprint, check, expiry, success, number, version,
+	    balance, loanLimit, loanCurrent);
+	if (path != null)
+	    append(fingerprint, check, expiry, success ? succeeded : failed,
+		   number, version, balance, loanLimit, loanCurrent);
+    }
+
+    // the live outcomes of the accounts that match, as log records by
+    // account, so they can follow the accounts into another cache
+    public HashMap<Integer, ArrayList<byte[]>> outcomesOf(IntPredicate accounts) {
+	final HashMap<Integer, ArrayList<byte[]>> outcomes = new HashMap<>();
+	final long now = clock.getAsLong();
+	for (int stripe = 0; stripe < stripeCount; stripe++) {
+	    stripes[stripe].lock();
+	    try {
+		for (int bucket = stripe; bucket <= bucketMask;
+		     bucket += stripeCount) {
+		    final int base = bucket * bucketLongs;
+		    for (int way = 0; way < ways; way++) {
+			final int payload = base + payloadOffset + way * payloadLongs;
+			final Outcome outcome = outcomeAt(payload);
+			if (table[base + expiryOffset + way] <= now
+			    || !accounts.test(outcome.account))
+			    continue ;
+			final ByteBuffer buffer = ByteBuffer.allocate(recordBytes);
+			putRecord(buffer, table[base + way], table[payload],
+				  table[base + expiryOffset + way],
+				  outcome.version, outcome.balance,
+				  outcome.loanLimit, outcome.loanCurrent,
+				  outcome.account,
+				  outcome.succeeded ? succeeded : failed);
+			outcomes.computeIfAbsent(outcome.account,
+						 number -> new ArrayList<>())
+			    .add(buffer.array());
+		    }
+		}
+	    } finally {
+		stripes[stripe].unlock();
+	    }
+	}
+	return outcomes;
+    }
+
+    // takes in records from outcomesOf until the buffer runs out
+    public void adopt(ByteBuffer records) {
+	while (records.remaining() >= recordBytes) {
+	    final long fingerprint = records.getLong();
+	    final long check = records.getLong();
+	    final long expiry = records.getLong();
+	    final long version = records.getLong();
+	    final double balance = records.getDouble();
+	    final double loanLimit = records.getDouble();
+	    final double loanCurrent = records.getDouble();
+	    final int account = records.getInt();
+	    final byte kind = records.get();
+	    put(fingerprint, check, expiry, kind == succeeded, account,
+		version, balance, loanLimit, loanCurrent);
+	    if (path != null)
+		append(fingerprint, check, expiry, kind, account, version,
+		       balance, loanLimit, loanCurrent);
+	}
+    }
+
+    public synchronized void close() throws IOException {
+	if (log != null)
+	    log.close();
+	log = null;
+    }
+
+    // a full bucket gives up the entry closest to expiring
+    private void put(
+		     long fingerprint,
+		     long check,
+		     long expiry,
+		     boolean success,
+		     int account,
+		     long version,
+		     double balance,
+		     double loanLimit,
+		     double loanCurrent) {
+	final int bucket = (int) (fingerprint >>> 32) & bucketMask;
+	final ReentrantLock stripe = stripes[bucket & (stripeCount - 1)];
+	stripe.lock();
+	try {
+	    final int base = bucket * bucketLongs;
+	    int victim = 0;
+	    for (int way = 0; way < ways; way++) {
+		if (table[base + way] == fingerprint
+		    && table[base + payloadOffset + way * payloadLongs] == check) {
+		    victim = way;
+		    break;
+		}
+		if (table[base + expiryOffset + way]
+		    < table[base + expiryOffset + victim])
+		    victim = way;
+	    }
+	    final int payload = base + payloadOffset + victim * payloadLongs;
+	    table[base + victim] = fingerprint;
+	    table[base + expiryOffset + victim] = expiry;
+	    table[payload] = check;
+	    table[payload + 1] = version;
+	    table[payload + 2] = Double.doubleToRawLongBits(balance);
+	    table[payload + 3] = Double.doubleToRawLongBits(loanLimit);
+	    table[payload + 4] = Double.doubleToRawLongBits(loanCurrent);
+	    table[payload + 5] = ((long) account << 1) | (success ? 1 : 0);
+	} finally {
+	    stripe.unlock();
+	}
+    }
+
+    private synchronized void append(
+				     long fingerprint,
+				     long check,
+				     long expiry,
+				     byte kind,
+				     int account,
+				     long version,
+				     double balance,
+				     double loanLimit,
+				     double loanCurrent) {
+	try {
+	    // the log holds at most a few tables worth before it is
+	    // rewritten with only the live entries
+	    if (logged >= 4L * capacity())
+		compact();
+	    record.clear();
+	    putRecord(record, fingerprint, check, expiry, version, balance,
+		      loanLimit, loanCurrent, account, kind);
+	    record.flip();
+	    while (record.hasRemaining())
+		log.write(record);
+	    if (syncEachAppend)
+		log.force(false);
+	    logged++;
+	} catch (IOException ex) {
+	    throw new UncheckedIOException(ex);
+	}
+    }
+
+    private synchronized void load() throws IOException {
+	if (Files.exists(path)) {
+	    final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+	    final long now = clock.getAsLong();
+	    // a torn last record is shorter than recordBytes and is dropped
+	    while (buffer.remaining() >= recordBytes) {
+		final long fingerprint = buffer.getLong();
+		final long check = buffer.getLong();
+		final long expiry = buffer.getLong();
+		final long version = buffer.getLong();
+		final double balance = buffer.getDouble();
+		final double loanLimit = buffer.getDouble();
+		final double loanCurrent = buffer.getDouble();
+		final int account = buffer.getInt();
+		final byte kind = buffer.get();
+		final long[] intent = unresolved.get(fingerprint);
+		if (intent != null && intent[1] == check)
+		    unresolved.remove(fingerprint);
+		if (expiry <= now)
+		    continue ;
+		if (kind == begun)
+		    unresolved.put(fingerprint, new long[] {
+			    fingerprint, check, expiry, account, version
+			});
+		else if (kind != abandoned)
+		    put(fingerprint, check, expiry, kind == succeeded, account,
+			version, balance, loanLimit, loanCurrent);
+	    }
+	}
+	compact();
+    }
+
+    private void compact() throws IOException {
+	if (log != null)
+	    log.close();
+	final Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+	final long now = clock.getAsLong();
+	final ByteBuffer buffer = ByteBuffer.allocate(recordBytes * 1024);
+	logged = 0;
+	try (FileChannel out = FileChannel.open(tmp,
+						StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+	    for (int stripe = 0; stripe < stripeCount; stripe++) {
+		stripes[stripe].lock();
+		try {
+		    for (int bucket = stripe; bucket <= bucketMask;
+			 bucket += stripeCount) {
+			final int base = bucket * bucketLongs;
+			for (int way = 0; way < ways; way++) {
+			    if (table[base + expiryOffset + way] <= now)
+				continue ;
+			    final Outcome outcome = outcomeAt(base + payloadOffset
+							      + way * payloadLongs);
+			    if (buffer.remaining() < recordBytes) {
+				buffer.flip();
+				while (buffer.hasRemaining())
+				    out.write(buffer);
+				buffer.clear();
+			    }
+			    putRecord(buffer, table[base + way],
+				      table[base + payloadOffset + way * payloadLongs],
+				      table[base + expiryOffset + way],
+				      outcome.version, outcome.balance,
+				      outcome.loanLimit, outcome.loanCurrent,
+				      outcome.account,
+				      outcome.succeeded ? succeeded : failed);
+			    logged++;
+			}
+		    }
+		} finally {
+		    stripes[stripe].unlock();
+		}
+	    }
+	    // begun keys stay until recover has seen the repository
+	    for (long[] intent : unresolved.values()) {
+		if (buffer.remaining() < recordBytes) {
+		    buffer.flip();
+		    while (buffer.hasRemaining())
+			out.write(buffer);
+		    buffer.clear();
+		}
+		putRecord(buffer, intent[0], intent[1], intent[2], intent[4],
+			  0.0, 0.0, 0.0, (int) intent[3], begun);
+		logged++;
+	    }
+	    buffer.flip();
+	    while (buffer.hasRemaining())
+		out.write(buffer);
+	    out.force(true);
+	}
+	Files.move(tmp, path,
+		   StandardCopyOption.REPLACE_EXISTING,
+		   StandardCopyOption.ATOMIC_MOVE);
+	log = FileChannel.open(path,
+			       StandardOpenOption.WRITE,
+			       StandardOpenOption.APPEND);
+    }
+
+    private static void putRecord(
+				  ByteBuffer buffer,
+				  long fingerprint,
+				  long check,
+				  long expiry,
+				  long version,
+				  double balance,
+				  double loanLimit,
+				  double loanCurrent,
+				  int account,
+				  byte kind) {
+	buffer.putLong(fingerprint);
+	buffer.putLong(check);
+	buffer.putLong(expiry);
+	buffer.putLong(version);
+	buffer.putDouble(balance);
+	buffer.putDouble(loanLimit);
+	buffer.putDouble(loanCurrent);
+	buffer.putInt(account);
+	buffer.put(kind);
+    }
+
+    private Outcome outcomeAt(int payload) {
+	return new Outcome(
+			   (table[payload + 5] & 1) == 1,
+			   (int) (table[payload + 5] >> 1),
+			   table[payload + 1],
+			   Double.longBitsToDouble(table[payload + 2]),
+			   Double.longBitsToDouble(table[payload + 3]),
+			   Double.longBitsToDouble(table[payload + 4]));
+    }
+
+    // two independent 64 bit hashes of the key stand in for the key
+    // itself, so slots stay fixed size whatever clients send
+    private static long fingerprint(String key) {
+	long hash = 0xcbf29ce484222325L;
+	for (int i = 0; i < key.length(); i++) {
+	    hash ^= key.charAt(i);
+	    hash *= 0x100000001b3L;
+	}
+	return hash == 0 ? 1 : hash;
+    }
+
+    private static long check(String key) {
+	long hash = 0x9e3779b97f4a7c15L;
+	for (int i = 0; i < key.length(); i++) {
+	    hash = (hash ^ key.charAt(i)) * 0xbf58476d1ce4e5b9L;
+	    hash ^= hash >>> 31;
+	}
+	return hash;
+    }
+}
+
+class VelocityLimits {
+    private final double hourAmount;
+    private final int hourCount;
+    private final double dayAmount;
+    private final int dayCount;
+
+    VelocityLimits(
+		   double hourAmount,
+		   int hourCount,
+		   double dayAmount,
+		   int dayCount) {
+	this.hourAmount = hourAmount;
+	this.hourCount = hourCount;
+	this.dayAmount = dayAmount;
+	this.dayCount = dayCount;
+    }
+
+    static VelocityLimits unlimited() {
+	return new VelocityLimits(Double.POSITIVE_INFINITY, Integer.MAX_VALUE,
+				  Double.POSITIVE_INFINITY, Integer.MAX_VALUE);
+    }
+
+    // "hourAmount,hourCount,dayAmount,dayCount"
+    static VelocityLimits parse(String spec) {
+	final String[] fields = spec.split(",");
+	if (fields.length != 4)
+	    throw new IllegalArgumentException(
+					       "Expected hourAmount,hourCount,dayAmount,dayCount but got "
+					       + spec);
+	return new VelocityLimits(Double.parseDouble(fields[0].trim()),
+				  Integer.parseInt(fields[1].trim()),
+				  Double.parseDouble(fields[2].trim()),
+				  Integer.parseInt(fields[3].trim()));
+    }
+
+    public double getHourAmount() {
+	return this.hourAmount;
+    }
+
+    public int getHourCount() {
+	return this.hourCount;
+    }
+
+    public double getDayAmount() {
+	return this.dayAmount;
+    }
+
+    public int getDayCount() {
+	return this.dayCount;
+    }
+
+    public boolean isUnlimited() {
+	return hourAmount == Double.POSITIVE_INFINITY
+	    && dayAmount == Double.POSITIVE_INFINITY
+	    && hourCount == Integer.MAX_VALUE
+	    && dayCount == Integer.MAX_VALUE;
+    }
+}
+
+class VelocityGuard {
+    // the hour slides in 12 buckets of 5 minutes, the day in 24 of an hour
+    private static final int hourBuckets = 12;
+    private static final long hourBucketMillis = 5 * 60_000L;
+    private static final int dayBuckets = 24;
+    private static final long dayBucketMillis = 60 * 60_000L;
+    // each bucket is two longs: its stamp shifted over a 20 bit count,
+    // then the amount in cents
+    private static final int countBits = 20;
+    private static final long countMask = (1L << countBits) - 1;
+    private static final int kindLongs = 2 * (hourBuckets + dayBuckets);
+    private static final int dayOffset = 2 * hourBuckets;
+    private static final int pageBits = 16;
+    private static final int pageMask = (1 << pageBits) - 1;
+
+    private final VelocityLimits withdrawLimits;
+    private final VelocityLimits transferLimits;
+    private final LongSupplier clock;
+    // counters live in pages indexed by account number, so finding them
+    // needs neither boxing nor a shared lock; each account's cells are
+    // only touched under that account's lock in Service
+    private final AtomicReferenceArray<long[][]> pages =
+	new AtomicReferenceArray<>(1 << (31 - pageBits));
+
+    VelocityGuard(VelocityLimits withdrawLimits, VelocityLimits transferLimits) {
+	this(withdrawLimits, transferLimits, System::currentTimeMillis);
+    }
+
+    VelocityGuard(
+		  VelocityLimits withdrawLimits,
+		  VelocityLimits transferLimits,
+		  LongSupplier clock) {
+	this.withdrawLimits = withdrawLimits;
+	this.transferLimits = transferLimits;
+	this.clock = clock;
+    }
+
+    static VelocityGuard unlimited() {
+	return new VelocityGuard(VelocityLimits.unlimited(),
+				 VelocityLimits.unlimited());
+    }
+
+    public boolean allows(Operation operation, int account, double amount) {
+	final VelocityLimits limits = limitsOf(operation);
+	if (limits == null || limits.isUnlimited())
+	    return true;
+	final long cents = Math.round(amount * 100.0);
+	final long[] cells = cellsOf(account, false);
+	final long now = clock.getAsLong();
+	final int base = kindOf(operation) * kindLongs;
+
+	long hourCount = 0;
+	long hourCents = 0;
+	long dayCount = 0;
+	long dayCents = 0;
+	if (cells != null) {
+	    final long hourStamp = now / hourBucketMillis;
+	    for (int bucket = 0; bucket < hourBuckets; bucket++) {
+		final int cell = base + 2 * bucket;
+		final long stamp = cells[cell] >>> countBits;
+		if (stamp > hourStamp - hourBuckets && stamp <= hourStamp) {
+		    hourCount += cells[cell] & countMask;
+		    hourCents += cells[cell + 1];
+		}
+	    }
+	    final long dayStamp = now / dayBucketMillis;
+	    for (int bucket = 0; bucket < dayBuckets; bucket++) {
+		final int cell = base + dayOffset + 2 * bucket;
+		final long stamp = cells[cell] >>> countBits;
+		if (stamp > dayStamp - dayBuckets && stamp <= dayStamp) {
+		    dayCount += cells[cell] & countMask;
+		    dayCents += cells[cell + 1];
+		}
+	    }
+	}
+	return hourCount < limits.getHourCount()
+	    && dayCount < limits.getDayCount()
+	    && hourCents + cents <= Math.round(limits.getHourAmount() * 100.0)
+	    && dayCents + cents <= Math.round(limits.getDayAmount() * 100.0);
+    }
+
+    public void record(Operation operation, int account, double amount) {
+	final VelocityLimits limits = limitsOf(operation);
+	if (limits == null || limits.isUnlimited())
+	    return ;
+	final long cents = Math.round(amount * 100.0);
+	final long[] cells = cellsOf(account, true);
+	final long now = clock.getAsLong();
+	final int base = kindOf(operation) * kindLongs;
+	add(cells, base, hourBuckets, now / hourBucketMillis, cents);
+	add(cells, base + dayOffset, dayBuckets, now / dayBucketMillis, cents);
+    }
+
+    private static void add(
+			    long[] cells,
+			    int base,
+			    int buckets,
+			    long stamp,
+			    long cents) {
+	final int cell = base + 2 * (int) (stamp % buckets);
+	if (cells[cell] >>> countBits != stamp) {
+	    cells[cell] = stamp << countBits;
+	    cells[cell + 1] = 0;
+	}
+	if ((cells[cell] & countMask) < countMask)
+	    cells[cell]++;
+	cells[cell + 1] += cents;
+    }
+
+    private VelocityLimits limitsOf(Operation operation) {
+	switch (operation) {
+	case WITHDRAW:
+	    return withdrawLimits;
+	case TRANSFER_OUT:
+	    return transferLimits;
+	default:
+	    return null;
+	}
+    }
+
+    private static int kindOf(Operation operation) {
+	return operation == Operation.WITHDRAW ? 0 : 1;
+    }
+
+    private long[] cellsOf(int account, boolean create) {
+	final int index = account >>> pageBits;
+	long[][] page = pages.get(index);
+	if (page == null) {
+	    if (!create)
+		return null;
+	    pages.compareAndSet(index, null, new long[1 << pageBits][]);
+	    page = pages.get(index);
+	}
+	long[] cells = page[account & pageMask];
+	if (cells == null && create) {
+	    cells = new long[2 * kindLongs];
+	    page[account & pageMask] = cells;
+	}
+	return cells;
+    }
+}
+
+// an immutable table of exact rates, each scaled by rateScale; a reload
+// builds a new table and swaps it in whole
+class FxTable {
+    static final long rateScale = 100_000_000L;
+    private static final BigInteger bigScale = BigInteger.valueOf(rateScale);
+
+    private final String[] currencies;
+    private final HashMap<String, Integer> index;
+    // rates[from * n + to], zero where no rate is known
+    private final long[] rates;
+    private final long modified;
+
+    private FxTable(String[] currencies, long[] rates, long modified) {
+	this.currencies = currencies;
+	this.rates = rates;
+	this.modified = modified;
+	this.index = new HashMap<>();
+	for (int i = 0; i < currencies.length; i++)
+	    index.put(currencies[i], i);
+    }
+
+    static FxTable single(String currency) {
+	return new FxTable(new String[] { currency },
+			   new long[] { rateScale }, 0L);
+    }
+
+    // one "FROM,TO,RATE" per line, '#' starts a comment; a missing
+    // inverse is derived from the given rate
+    static FxTable parse(List<String> lines, long modified) {
+	final ArrayList<String> codes = new ArrayList<>();
+	final ArrayList<long[]> given = new ArrayList<>();
+	final HashMap<String, Integer> seen = new HashMap<>();
+	for (String line : lines) {
+	    final String trimmed = line.trim();
+	    if (trimmed.isEmpty() || trimmed.startsWith("#"))
+		continue ;
+	    final String[] fields = trimmed.split(",");
+	    if (fields.length != 3)
+		throw new IllegalArgumentException("Invalid rate line " + line);
+	    final long rate = new BigDecimal(fields[2].trim())
+		.movePointRight(8)
+		.setScale(0, RoundingMode.HALF_EVEN)
+		.longValueExact();
+	    if (rate <= 0)
+		throw new IllegalArgumentException("Invalid rate line " + line);
+	    final int from = seen.computeIfAbsent(fields[0].trim(), code -> {
+		    codes.add(code);
+		    return codes.size() - 1;
+		});
+	    final int to = seen.computeIfAbsent(fields[1].trim(), code -> {
+		    codes.add(code);
+		    return codes.size() - 1;
+		});
+	    given.add(new long[] { from, to, rate });
+	}
+	if (!seen.containsKey(Account.defaultCurrency))
+	    codes.add(Account.defaultCurrency);
+
+	final int n = codes.size();
+	final long[] rates = new long[n * n];
+	for (int i = 0; i < n; i++)
+	    rates[i * n + i] = rateScale;
+	for (long[] rate : given) {
+	    final int from = (int) rate[0];
+	    final int to = (int) rate[1];
+	    rates[from * n + to] = rate[2];
+	    if (rates[to * n + from] == 0)
+		rates[to * n + from] = BigDecimal.valueOf(rateScale * rateScale)
+		    .divide(BigDecimal.valueOf(rate[2]), 0, RoundingMode.HALF_EVEN)
+		    .longValueExact();
+	}
+	// explicit rates win over derived inverses
+	for (long[] rate : given)
+	    rates[(int) rate[0] * n + (int) rate[1]] = rate[2];
+	return new FxTable(codes.toArray(new String[0]), rates, modified);
+    }
+
+    public String[] currencies() {
+	return currencies.clone();
+    }
+
+    public boolean has(String currency) {
+	return index.containsKey(currency);
+    }
+
+    public long getModified() {
+	return this.modified;
+    }
+
+    public long rate(String from, String to) {
+	final Integer fromIndex = index.get(from);
+	final Integer toIndex = index.get(to);
+	if (fromIndex == null || toIndex == null)
+	    return 0L;
+	return rates[fromIndex * currencies.length + toIndex];
+    }
+
+    // cents times the scaled rate, rounded half even back to cents;
+    // negative when there is no rate
+    public long convertCents(long cents, String from, String to) {
+	if (from.equals(to))
+	    return cents;
+	final long rate = rate(from, to);
+	if (rate == 0L || cents < 0)
+	    return -1L;
+	final long high = Math.multiplyHigh(cents, rate);
+	final long low = cents * rate;
+	if (high != 0 || low < 0)
+	    return new BigDecimal(BigInteger.valueOf(cents)
+				  .multiply(BigInteger.valueOf(rate)))
+		.divide(new BigDecimal(bigScale), 0, RoundingMode.HALF_EVEN)
+		.longValueExact();
+	final long quotient = low / rateScale;
+	final long remainder = low % rateScale;
+	if (remainder * 2 > rateScale
+	    || (remainder * 2 == rateScale && (quotient & 1) == 1))
+	    return quotient + 1;
+	return quotient;
+    }
+}
+
+class FxRates {
+    private final Path path;
+    private volatile FxTable table;
+
+    FxRates(FxTable table) {
+	this.path = null;
+	this.table = table;
+    }
+
+    private FxRates(Path path, FxTable table) {
+	this.path = path;
+	this.table = table;
+    }
+
+    static FxRates load(Path path) throws IOException {
+	return new FxRates(path,
+			   FxTable.parse(Files.readAllLines(path),
+					 Files.getLastModifiedTime(path)
+					 .toMillis()));
+    }
+
+    public FxTable current() {
+	return table;
+    }
+
+    // a broken file leaves the last good table in place
+    public boolean reloadIfChanged() {
+	if (path == null)
+	    return false;
+	try {
+	    final long modified = Files.getLastModifiedTime(path).toMillis();
+	    if (modified == table.getModified())
+		return false;
+	    table = FxTable.parse(Files.readAllLines(path), modified);
+	    return true;
+	} catch (IOException | RuntimeException ex) {
+	    return false;
+	}
+    }
+}
+
+class ReconciliationReport {
+    private static final int maxViolations = 100;
+
+    private final long snapshot;
+    private final double[] operationTotals;
+    private final Map<String, double[]> groupTotals;
+    private final ArrayList<String> violations;
+    private final ArrayList<Integer> changedAccounts;
+    private long violationCount;
+    private long checked;
+
+    ReconciliationReport(long snapshot) {
+	this.snapshot = snapshot;
+	this.operationTotals = new double[Operation.values().length];
+	this.groupTotals = new TreeMap<>();
+	this.violations = new ArrayList<>();
+	this.changedAccounts = new ArrayList<>();
+    }
+
+    public long getSnapshot() {
+	return this.snapshot;
+    }
+
+    public long getChecked() {
+	return this.checked;
+    }
+
+    // accounts that kept changing while the check ran and were not verified
+    public long getChanged() {
+	return this.changedAccounts.size();
+    }
+
+    public long getViolationCount() {
+	return this.violationCount;
+    }
+
+    public ArrayList<String> getViolations() {
+	return this.violations;
+    }
+
+    public boolean isBalanced() {
+	return this.violationCount == 0;
+    }
+
+    public double total(Operation operation) {
+	return operationTotals[operation.ordinal()];
+    }
+
+    // group is "<account type>/<branch>", totals are accounts, balance
+    // and the balance expected from the journal
+    public Map<String, double[]> getGroupTotals() {
+	return this.groupTotals;
+    }
+
+    // the money the bank has handed out must be exactly what accounts hold
+    public double expectedTotalBalance() {
+	double total = 0.0;
+	for (Operation operation : Operation.values())
+	    if (operation != Operation.TRANSFER_IN
+		&& operation != Operation.TRANSFER_OUT)
+		total += operation.signed(total(operation));
+	return total;
+    }
+
+    void addOperation(Operation operation, double amount) {
+	operationTotals[operation.ordinal()] += amount;
+    }
+
+    void addViolation(String violation) {
+	violationCount++;
+	if (violations.size() < maxViolations)
+	    violations.add(violation);
+    }
+
+    void addChecked(String group, double balance, double expected) {
+	checked++;
+	final double[] totals =
+	    groupTotals.computeIfAbsent(group, g -> new double[3]);
+	totals[0] += 1.0;
+	totals[1] += balance;
+	totals[2] += expected;
+    }
+
+    void addChanged(int accountNumber) {
+	changedAccounts.add(accountNumber);
+    }
+
+    ArrayList<Integer> changedAccounts() {
+	return this.changedAccounts;
+    }
+
+    ReconciliationReport withoutChanged() {
+	changedAccounts.clear();
+	return this;
+    }
+
+    ReconciliationReport merge(ReconciliationReport other) {
+	for (int i = 0; i < operationTotals.length; i++)
+	    operationTotals[i] += other.operationTotals[i];
+	for (Map.Entry<String, double[]> entry : other.groupTotals.entrySet()) {
+	    final double[] totals =
+		groupTotals.computeIfAbsent(entry.getKey(), g -> new double[3]);
+	    for (int i = 0; i < totals.length; i++)
+		totals[i] += entry.getValue()[i];
+	}
+	for (String violation : other.violations)
+	    if (violations.size() < maxViolations)
+		violations.add(violation);
+	violationCount += other.violationCount;
+	checked += other.checked;
+	changedAccounts.addAll(other.changedAccounts);
+	return this;
+    }
+
+    @Override
+    public String toString() {
+	final StringBuilder builder = new StringBuilder();
+	builder.append(String.format(
+				     "Reconciliation(snapshot: %d, checked: %d, " +
+				     "changed: %d, violations: %d)\n",
+				     snapshot, checked, getChanged(),
+				     violationCount));
+	for (Operation operation : Operation.values())
+	    builder.append(String.format("  %-12s %16.2f\n",
+					 operation, total(operation)));
+	for (Map.Entry<String, double[]> entry : groupTotals.entrySet())
+	    builder.append(String.format(
+					 "  %-24s accounts: %.0f balance: %.2f expected: %.2f\n",
+					 entry.getKey(),
+					 entry.getValue()[0],
+					 entry.getValue()[1],
+					 entry.getValue()[2]));
+	for (String violation : violations)
+	    builder.append("  ").append(violation).append('\n');
+	return builder.toString();
+    }
+}
+
+// checks that every account holds exactly what its journal entries put
+// there, against a live repository and without taking any account lock:
+// the snapshot is a journal position and an account whose version moved
+// past it is only checked against its own journal entries
+class Reconciler {
+    private static final double tolerance = 0.005;
+
+    private final Repository repository;
+    private final OperationJournal journal;
+    private final int parallelism;
+
+    Reconciler(Repository repository, OperationJournal journal) {
+	this(repository, journal, Runtime.getRuntime().availableProcessors());
+    }
+
+    Reconciler(Repository repository, OperationJournal journal, int parallelism) {
+	this.repository = repository;
+	this.journal = journal;
+	this.parallelism = Math.max(1, parallelism);
+    }
+
+    private static class Partition {
+	final int first;
+	final double[] flows;
+	final int[] versions;
+	final ReconciliationReport report;
+
+	Partition(int first, int count, long snapshot) {
+	    this.first = first;
+	    this.flows = new double[count];
+	    this.versions = new int[count];
+	    this.report = new ReconciliationReport(snapshot);
+	}
+
+	boolean owns(int account) {
+	    return account >= first && account - first < flows.length;
+	}
+    }
+
+    public ReconciliationReport run() {
+	final long snapshot = journal.size();
+	// numbers on a cluster node start far from 0, so the arrays only
+	// span the numbers the journal has seen
+	final int low = Math.min(journal.minAccount(), journal.maxAccount());
+	final int accounts = journal.maxAccount() - low + 1;
+	final int width = (accounts + parallelism - 1) / parallelism;
+
+	// each partition owns a range of account numbers and streams the
+	// whole journal, so partitions never write to shared state
+	final Partition[] partitions = new Partition[parallelism];
+	for (int p = 0; p < parallelism; p++)
+	    partitions[p] = new Partition(low + p * width, width, snapshot);
+	IntStream.range(0, parallelism).parallel()
+	    .forEach(p -> scan(partitions[p], 0, snapshot, p == 0));
+
+	final ReconciliationReport partial = repository.streamAccounts()
+	    .parallel()
+	    .collect(() -> new ReconciliationReport(snapshot),
+		     (report, account) -> check(partitions, report, account),
+		     ReconciliationReport::merge);
+
+	// accounts written while we streamed are caught up with the short
+	// journal tail written meanwhile and checked once more
+	final long tail = journal.size();
+	for (Partition partition : partitions)
+	    scan(partition, snapshot, tail, partition == partitions[0]);
+	final ReconciliationReport report = new ReconciliationReport(tail);
+	for (int number : partial.changedAccounts())
+	    repository.getAccountByNumber(number)
+		.ifPresent(account -> check(partitions, report, account));
+	report.merge(partial.withoutChanged());
+	for (Partition partition : partitions)
+	    report.merge(partition.report);
+	return report;
+    }
+
+    private void scan(
+		      Partition partition,
+		      long from,
+		      long to,
+		      boolean totals) {
+	journal.forEach(from, to,
+			(seq, timestamp, operation, account, counterparty,
+			 amount, balanceAfter) -> {
+			    if (totals)
+				partition.report.addOperation(operation, amount);
+			    if (!partition.owns(account))
+				return ;
+			    final int i = account - partition.first;
+			    partition.flows[i] += operation.signed(amount);
+			    // opening an account does not bump its version
+			    if (operation != Operation.OPEN)
+				partition.versions[i]++;
+			    if (Math.abs(partition.flows[i] - balanceAfter)
+				> tolerance)
+				partition.report.addViolation(String.format(
+									    "entry %d: account %d recorded %.2f " +
+									    "but its entries add up to %.2f",
+									    seq, account, balanceAfter,
+									    partition.flows[i]));
+			});
+    }
+
+    private void check(
+		       Partition[] partitions,
+		       ReconciliationReport report,
+		       Account account) {
+	final int number = account.getNumber();
+	double expected = 0.0;
+	long journaled = 0;
+	for (Partition partition : partitions) {
+	    if (partition.owns(number)) {
+		expected = partition.flows[number - partition.first];
+		journaled = partition.versions[number - partition.first];
+		break ;
+	    }
+	}
+	if (account.getVersion() > journaled) {
+	    report.addChanged(number);
+	    return ;
+	}
+	if (account.getVersion() < journaled) {
+	    report.addViolation(String.format(
+					      "account %d is at version %d " +
+					      "but journal has version %d",
+					      number, account.getVersion(), journaled));
+	    return ;
+	}
+	if (Math.abs(account.getBalance() - expected) > tolerance)
+	    report.addViolation(String.format(
+					      "account %d holds %.2f but journal expects %.2f",
+					      number, account.getBalance(), expected));
+	report.addChecked(account.getClass().getSimpleName() + "/"
+			  + account.getBranch() + "/" + account.getCurrency(),
+			  account.getBalance(),
+			  expected);
+    }
+}
+
+// renders csv fields straight into a bounded byte buffer that is written
+// to the current channel whenever it fills, so rows never become strings
+class CsvBuffer {
+    private static final int maxField = 64;
+    private static final long dayMillis = 86_400_000L;
+
+    private final ByteBuffer buffer;
+    private final ZoneId zone;
+    private final byte[] digits = new byte[20];
+    private FileChannel channel;
+    private long written;
+    private long offsetValidFrom = Long.MAX_VALUE;
+    private long offsetValidTo = Long.MIN_VALUE;
+    private long offsetMillis;
+    private long cachedDay = Long.MIN_VALUE;
+    private final byte[] cachedDate = new byte[10];
+
+    CsvBuffer(int size, ZoneId zone) {
+	this.buffer = ByteBuffer.allocateDirect(size);
+	this.zone = zone;
+    }
+
+    public void target(FileChannel channel) {
+	this.channel = channel;
+	this.written = 0;
+    }
+
+    public long getWritten() {
+	return this.written + buffer.position();
+    }
+
+    public CsvBuffer putByte(char value) {
+	ensure(1);
+	buffer.put((byte) value);
+	return this;
+    }
+
+    // utf-8, quoted when the field holds a separator, a quote or a line
+    // break; a lone surrogate is written as '?'
+    public CsvBuffer putText(String value) {
+	boolean quote = false;
+	for (int i = 0; i < value.length() && !quote; i++) {
+	    final char c = value.charAt(i);
+	    quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+	}
+	if (quote)
+	    putByte('"');
+	for (int i = 0; i < value.length(); i++) {
+	    final char c = value.charAt(i);
+	    if (c < 0x80) {
+		if (c == '"')
+		    putByte('"');
+		putByte(c);
+	    } else {
+		i += putCodePoint(value.codePointAt(i)) - 1;
+	    }
+	}
+	if (quote)
+	    putByte('"');
+	return this;
+    }
+
+    // the chars of the string the code point took
+    private int putCodePoint(int codePoint) {
+	ensure(4);
+	if (codePoint < 0x800) {
+	    buffer.put((byte) (0xc0 | codePoint >>> 6));
+	} else if (codePoint < 0x10000) {
+	    if (Character.isSurrogate((char) codePoint)) {
+		buffer.put((byte) '?');
+		return 1;
+	    }
+	    buffer.put((byte) (0xe0 | codePoint >>> 12));
+	    buffer.put((byte) (0x80 | (codePoint >>> 6 & 0x3f)));
+	} else {
+	    buffer.put((byte) (0xf0 | codePoint >>> 18));
+	    buffer.put((byte) (0x80 | (codePoint >>> 12 & 0x3f)));
+	    buffer.put((byte) (0x80 | (codePoint >>> 6 & 0x3f)));
+	}
+	buffer.put((byte) (0x80 | (codePoint & 0x3f)));
+	return Character.charCount(codePoint);
+    }
+
+    public CsvBuffer putLong(long value) {
+	ensure(maxField);
+	if (value < 0) {
+	    buffer.put((byte) '-');
+	    value = -value;
+	}
+	int n = 0;
+	do {
+	    digits[n++] = (byte) ('0' + value % 10);
+	    value /= 10;
+	} while (value > 0);
+	while (n > 0)
+	    buffer.put(digits[--n]);
+	return this;
+    }
+
+    public CsvBuffer putCents(double amount) {
+	long cents = Math.round(amount * 100.0);
+	if (cents < 0) {
+	    putByte('-');
+	    cents = -cents;
+	}
+	putLong(cents / 100);
+	ensure(3);
+	buffer.put((byte) '.');
+	buffer.put((byte) ('0' + (cents % 100) / 10));
+	buffer.put((byte) ('0' + cents % 10));
+	return this;
+    }
+
+    // local date time as yyyy-MM-ddTHH:mm:ss, the zone offset and the
+    // date digits are only looked up again when they change
+    public CsvBuffer putTimestamp(long millis) {
+	if (millis < offsetValidFrom || millis >= offsetValidTo)
+	    refreshOffset(millis);
+	final long local = millis + offsetMillis;
+	final long day = Math.floorDiv(local, dayMillis);
+	if (day != cachedDay) {
+	    final byte[] date = LocalDate.ofEpochDay(day).toString()
+		.getBytes(StandardCharsets.US_ASCII);
+	    System.arraycopy(date, 0, cachedDate, 0, cachedDate.length);
+	    cachedDay = day;
+	}
+	final long seconds = Math.floorMod(local, dayMillis) / 1000;
+	ensure(19);
+	buffer.put(cachedDate);
+	buffer.put((byte) 'T');
+	putTwoDigits(seconds / 3600);
+	buffer.put((byte) ':');
+	putTwoDigits(seconds / 60 % 60);
+	buffer.put((byte) ':');
+	putTwoDigits(seconds % 60);
+	return this;
+    }
+
+    private void putTwoDigits(long value) {
+	buffer.put((byte) ('0' + value / 10));
+	buffer.put((byte) ('0' + value % 10));
+    }
+
+    private void refreshOffset(long millis) {
+	final Instant instant = Instant.ofEpochMilli(millis);
+	final ZoneRules rules = zone.getRules();
+	offsetMillis = rules.getOffset(instant).getTotalSeconds() * 1000L;
+	final ZoneOffsetTransition previous = rules.previousTransition(instant);
+	final ZoneOffsetTransition next = rules.nextTransition(instant);
+	offsetValidFrom = previous == null
+	    ? Long.MIN_VALUE
+	    : previous.getInstant().toEpochMilli();
+	offsetValidTo = next == null
+	    ? Long.MAX_VALUE
+	    : next.getInstant().toEpochMilli();
+    }
+
+    private void ensure(int bytes) {
+	if (buffer.remaining() < bytes)
+	    flush();
+    }
+
+    public void flush() {
+	buffer.flip();
+	try {
+	    while (buffer.hasRemaining())
+		written += channel.write(buffer);
+	} catch (IOException ex) {
+	    throw new UncheckedIOException(ex);
+	}
+	buffer.clear();
+    }
+}
+
+class ExportReport {
+    private final long accounts;
+    private final long skipped;
+    private final long rows;
+    private final long bytes;
+    private final long nanos;
+
+    ExportReport(long accounts, long skipped, long rows, long bytes, long nanos) {
+	this.accounts = accounts;
+	this.skipped = skipped;
+	this.rows = rows;
+	this.bytes = bytes;
+	this.nanos = nanos;
+    }
+
+    public long getAccounts() {
+	return this.accounts;
+    }
+
+    public long getSkipped() {
+	return this.skipped;
+    }
+
+    public long getRows() {
+	return this.rows;
+    }
+
+    public long getBytes() {
+	return this.bytes;
+    }
+
+    public double megabytesPerSecond() {
+	return nanos == 0 ? 0.0 : (bytes / 1e6) / (nanos / 1e9);
+    }
+
+    @Override
+    public String toString() {
+	return String.format(
+			     "ExportReport(accounts: %d, skipped: %d, rows: %d, " +
+			     "bytes: %d, %.1f MB/s)",
+			     accounts, skipped, rows, bytes,
+			     megabytesPerSecond());
+    }
+}
+
+// exports one csv per account in parallel, each written to a .part file
+// that is renamed once complete, so a rerun after a crash skips the
+// accounts already done; the combined file is the per account files
+// concatenated in account order with FileChannel.transferTo. A marker
+// file holds the range the directory was exported for and, while the
+// range still reaches the present, the journal's size; files left by
+// another range, or by a journal that has grown since, are deleted
+// rather than skipped as done
+class StatementExporter {
+    static final int defaultBufferSize = 64 * 1024;
+    static final String combinedName = "statements.csv";
+    static final String rangeName = "export.range";
+
+    private final Repository repository;
+    private final OperationJournal journal;
+    private final int bufferSize;
+    private final boolean forceSegments;
+
+    StatementExporter(Repository repository, OperationJournal journal) {
+	this(repository, journal, defaultBufferSize, false);
+    }
+
+    // forcing every account file survives a power loss as well as a
+    // crash of the process, at the price of one fsync per account
+    StatementExporter(
+		      Repository repository,
+		      OperationJournal journal,
+		      int bufferSize,
+		      boolean forceSegments) {
+	this.repository = repository;
+	this.journal = journal;
+	this.bufferSize = bufferSize;
+	this.forceSegments = forceSegments;
+    }
+
+    static Path accountFile(Path directory, int accountNumber) {
+	return directory.resolve("statement-" + accountNumber + ".csv");
+    }
+
+    public ExportReport export(
+			       Path directory,
+			       LocalDateTime from,
+			       LocalDateTime to,
+			       boolean combined) {
+	final long begin = System.nanoTime();
+	final long fromMillis = journal.toMillis(from);
+	final long toMillis = journal.toMillis(to);
+	final ThreadLocal<CsvBuffer> buffers =
+	    ThreadLocal.withInitial(() -> new CsvBuffer(bufferSize,
+							journal.getZone()));
+	final LongAdder accounts = new LongAdder();
+	final LongAdder skipped = new LongAdder();
+	final LongAdder rows = new LongAdder();
+	final LongAdder bytes = new LongAdder();
+
+	try {
+	    Files.createDirectories(directory);
+	    claim(directory, fromMillis, toMillis,
+		  toMillis <= journal.now() ? -1L : journal.size());
+	} catch (IOException ex) {
+	    throw new UncheckedIOException(ex);
+	}
+	repository.streamAccounts()
+	    .parallel()
+	    .forEach(account -> {
+		    final Path done = accountFile(directory, account.getNumber());
+		    if (Files.exists(done)) {
+			skipped.increment();
+			return ;
+		    }
+		    final long[] counts = exportAccount(buffers.get(), account,
+							done, fromMillis, toMillis);
+		    accounts.increment();
+		    rows.add(counts[0]);
+		    bytes.add(counts[1]);
+		});
+
+	if (combined)
+	    bytes.add(concatenate(directory, repository.streamAccounts()
+				  .mapToInt(Account::getNumber)
+				  .sorted()
+				  .toArray()));
+	return new ExportReport(accounts.sum(), skipped.sum(), rows.sum(),
+				bytes.sum(), System.nanoTime() - begin);
+    }
+
+    // a directory without the marker may hold files of any range, so
+    // they go too; the marker is in place before the first account file.
+    // A range already over takes no more entries, so its size is -1
+    private static void claim(
+			      Path directory,
+			      long fromMillis,
+			      long toMillis,
+			      long journalSize) throws IOException {
+	final Path marker = directory.resolve(rangeName);
+	final String range = fromMillis + "," + toMillis + "," + journalSize;
+	if (Files.exists(marker) && Files.readString(marker).equals(range))
+	    return ;
+	try (Stream<Path> files = Files.list(directory)) {
+	    for (Path file : files.filter(StatementExporter::isExported)
+		     .collect(Collectors.toList()))
+		Files.delete(file);
+	}
+	final Path tmp = directory.resolve(rangeName + ".tmp");
+	Files.writeString(tmp, range);
+	Files.move(tmp, marker,
+		   StandardCopyOption.REPLACE_EXISTING,
+		   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static boolean isExported(Path file) {
+	final String name = file.getFileName().toString();
+	return name.startsWith(combinedName)
+	    || name.matches("statement-[0-9]+\\.csv(\\.part)?");
+    }
+
+    private long[] exportAccount(
+				 CsvBuffer csv,
+				 Account account,
+				 Path done,
+				 long fromMillis,
+				 long toMillis) {
+	final Path part = done.resolveSibling(done.getFileName() + ".part");
+	final long[] rows = {0L};
+
+	try (FileChannel channel = FileChannel.open(
+						    part,
+						    StandardOpenOption.CREATE,
+						    StandardOpenOption.WRITE,
+						    StandardOpenOption.TRUNCATE_EXISTING)) {
+	    csv.target(channel);
+	    csv.putText("account").putByte(',')
+		.putLong(account.getNumber()).putByte(',')
+		.putText(account.getClass().getSimpleName()).putByte(',')
+		.putText(account.getBranch()).putByte(',')
+		.putText(account.getUserName()).putByte('\n');
+	    journal.forEachOf(account.getNumber(), fromMillis, toMillis,
+			      0, Integer.MAX_VALUE,
+			      (seq, timestamp, operation, number, counterparty,
+			       amount, balanceAfter) -> {
+				  csv.putLong(seq).putByte(',')
+				      .putTimestamp(timestamp).putByte(',')
+				      .putText(operation.name()).putByte(',')
+				      .putCents(operation.signed(amount)).putByte(',')
+				      .putLong(counterparty).putByte(',')
+				      .putCents(balanceAfter).putByte('\n');
+				  rows[0]++;
+			      });
+	    csv.flush();
+	    if (forceSegments)
+		channel.force(false);
+	    Files.move(part, done,
+		       StandardCopyOption.REPLACE_EXISTING,
+		       StandardCopyOption.ATOMIC_MOVE);
+	    return new long[] {rows[0], csv.getWritten()};
+	} catch (IOException ex) {
+	    throw new UncheckedIOException(ex);
+	}
+    }
+
+    private long concatenate(Path directory, int[] numbers) {
+	final Path done = directory.resolve(combinedName);
+	final Path part = directory.resolve(combinedName + ".part");
+	long total = 0;
+
+	try (FileChannel out = FileChannel.open(
+						part,
+						StandardOpenOption.CREATE,
+						StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+	    for (int number : numbers) {
+		final Path segment = accountFile(directory, number);
+		// accounts opened after the export started have no file
+		if (!Files.exists(segment))
+		    continue ;
+		try (FileChannel in = FileChannel.open(
+						       segment,
+						       StandardOpenOption.READ)) {
+		    final long size = in.size();
+		    long position = 0;
+		    while (position < size)
+			position += in.transferTo(position, size - position, out);
+		    total += size;
+		}
+	    }
+	    out.force(false);
+	} catch (IOException ex) {
+	    throw new UncheckedIOException(ex);
+	}
+	try {
+	    Files.move(part, done,
+		       StandardCopyOption.REPLACE_EXISTING,
+		       StandardCopyOption.ATOMIC_MOVE);
+	} catch (IOException ex) {
+	    throw new UncheckedIOException(ex);
+	}
+	return total;
+    }
+}
+
+class ImportReport {
+    private final long imported;
+    private final long skipped;
+    private final long failed;
+    private final List<String> failures;
+    private final int hashers;
+    private final long nanos;
+
+    ImportReport(
+		 long imported,
+		 long skipped,
+		 long failed,
+		 List<String> failures,
+		 int hashers,
+		 long nanos) {
+	this.imported = imported;
+	this.skipped = skipped;
+	this.failed = failed;
+	this.failures = failures;
+	this.hashers = hashers;
+	this.nanos = nanos;
+    }
+
+    public long getImported() {
+	return this.imported;
+    }
+
+    public long getSkipped() {
+	return this.skipped;
+    }
+
+    public long getFailed() {
+	return this.failed;
+    }
+
+    // the first few, as "line: reason"; all of them are in the rejects file
+    public List<String> getFailures() {
+	return this.failures;
+    }
+
+    public int getHashers() {
+	return this.hashers;
+    }
+
+    public double accountsPerSecond() {
+	return nanos == 0 ? 0.0 : imported / (nanos / 1e9);
+    }
+
+    @Override
+    public String toString() {
+	return String.format(
+			     "ImportReport(imported: %d, skipped: %d, failed: %d, " +
+			     "hashers: %d, %.0f accounts/s, %.0f per hasher)",
+			     imported, skipped, failed, hashers,
+			     accountsPerSecond(), accountsPerSecond() / hashers);
+    }
+}
+
+// imports accounts from a csv of type,name,password[,currency[,branch]]
+// in three stages joined by bounded queues: a thread parsing and
+// checking batches of rows, a pool of threads running bcrypt on them,
+// and the calling thread saving each batch in file order. After every
+// batch the last line saved goes to a .progress file, so a rerun starts
+// after it, and each row refused is appended to a .rejects file. Before
+// a batch is saved the account number of each of its rows goes there
+// too, so a rerun after a crash in the middle of it skips the rows
+// whose account is already in the store, and only those
+class BulkImporter {
+    static final int defaultBatchRows = 256;
+    static final int keptFailures = 100;
+
+    private static class Row {
+	final int line;
+	final String type;
+	final String name;
+	final String pass;
+	final String currency;
+	final String branch;
+	String failure;
+	boolean skipped;
+	Account account;
+	// the account a run before this one saved, or meant to save, it as
+	int savedAs;
+
+	Row(
+	    int line,
+	    String type,
+	    String name,
+	    String pass,
+	    String currency,
+	    String branch) {
+	    this.line = line;
+	    this.type = type;
+	    this.name = name;
+	    this.pass = pass;
+	    this.currency = currency;
+	    this.branch = branch;
+	}
+    }
+
+    private static class Batch {
+	final long seq;
+	final List<Row> rows;
+
+	Batch(long seq, List<Row> rows) {
+	    this.seq = seq;
+	    this.rows = rows;
+	}
+    }
+
+    // tells the next stage one thread of this one is done
+    private static final Batch end = new Batch(-1L, List.of());
+
+    private final Service service;
+    private final int hashers;
+    private final int batchRows;
+    private final int logRounds;
+
+    BulkImporter(Service service) {
+	this(service, Runtime.getRuntime().availableProcessors(),
+	     defaultBatchRows, 10);
+    }
+
+    BulkImporter(Service service, int hashers, int batchRows, int logRounds) {
+	this.service = service;
+	this.hashers = hashers;
+	this.batchRows = batchRows;
+	this.logRounds = logRounds;
+    }
+
+    static Path progressFile(Path csv) {
+	return csv.resolveSibling(csv.getFileName() + ".progress");
+    }
+
+    static Path rejectsFile(Path csv) {
+	return csv.resolveSibling(csv.getFileName() + ".rejects");
+    }
+
+    public ImportReport run(Path csv) throws IOException {
+	final long begin = System.nanoTime();
+	final Path progress = progressFile(csv);
+	// the last line done, then line,account of the batch after it
+	final List<String> saved = Files.exists(progress)
+	    ? Files.readAllLines(progress, StandardCharsets.UTF_8)
+	    : List.of("0");
+	final int resumeAfter = Integer.parseInt(saved.get(0).trim());
+	final HashMap<Integer, Integer> pending = new HashMap<>();
+	for (String entry : saved.subList(1, saved.size())) {
+	    final String[] fields = entry.split(",");
+	    if (fields.length == 2)
+		pending.put(Integer.parseInt(fields[0].trim()),
+			    Integer.parseInt(fields[1].trim()));
+	}
+	final ArrayBlockingQueue<Batch> parsed =
+	    new ArrayBlockingQueue<>(2 * hashers);
+	final ArrayBlockingQueue<Batch> hashed =
+	    new ArrayBlockingQueue<>(2 * hashers);
+	final AtomicReference<Throwable> crashed = new AtomicReference<>();
+	final ArrayList<Thread> threads = new ArrayList<>();
+
+	threads.add(new Thread(() -> {
+		    try {
+			parse(csv, resumeAfter, pending, parsed);
+		    } catch (IOException | RuntimeException ex) {
+			crashed.compareAndSet(null, ex);
+		    } finally {
+			for (int i = 0; i < hashers; i++)
+			    if (!putQuietly(parsed, end))
+				return ;
+		    }
+	}, "import-parser"));
+	for (int i = 0; i < hashers; i++)
+	    threads.add(new Thread(() -> {
+			try {
+			    hash(parsed, hashed);
+			} catch (RuntimeException ex) {
+			    crashed.compareAndSet(null, ex);
+			} finally {
+			    putQuietly(hashed, end);
+			}
+	    }, "import-hasher-" + i));
+	for (Thread thread : threads) {
+	    thread.setDaemon(true);
+	    thread.start();
+	}
+
+	long imported = 0;
+	long skipped = 0;
+	long failed = 0;
+	final ArrayList<String> failures = new ArrayList<>();
+	try (BufferedWriter rejects =
+	     Files.newBufferedWriter(rejectsFile(csv), StandardCharsets.UTF_8,
+				     StandardOpenOption.CREATE,
+				     StandardOpenOption.APPEND)) {
+	    // hashers finish out of order, so batches wait here for their turn
+	    final HashMap<Long, Batch> waiting = new HashMap<>();
+	    final StringBuilder intents = new StringBuilder();
+	    int done = resumeAfter;
+	    long next = 0;
+	    int ended = 0;
+	    while (ended < hashers) {
+		final Batch batch = hashed.take();
+		if (batch == end) {
+		    ended++;
+		    continue ;
+		}
+		waiting.put(batch.seq, batch);
+		for (Batch ready = waiting.remove(next); ready != null;
+		     ready = waiting.remove(++next)) {
+		    // a row skipped here stays listed, should this batch
+		    // be cut short again
+		    intents.setLength(0);
+		    intents.append(done).append('\n');
+		    for (Row row : ready.rows)
+			if (row.skipped)
+			    intents.append(row.line).append(',')
+				.append(row.savedAs).append('\n');
+			else if (row.failure == null)
+			    intents.append(row.line).append(',')
+				.append(row.account.getNumber()).append('\n');
+		    saveProgress(progress, intents.toString());
+		    for (Row row : ready.rows) {
+			if (row.skipped) {
+			    skipped++;
+			    continue ;
+			}
+			if (row.failure == null
+			    && !service.createAccount(row.account))
+			    row.failure = "refused by the service";
+			if (row.failure == null) {
+			    imported++;
+			    continue ;
+			}
+			failed++;
+			if (failures.size() < keptFailures)
+			    failures.add(row.line + ": " + row.failure);
+			rejects.write(row.line + "," + row.failure + "\n");
+		    }
+		    // rejects first, so a row is never counted done without them
+		    rejects.flush();
+		    done = ready.rows.get(ready.rows.size() - 1).line;
+		    saveProgress(progress, done + "\n");
+		}
+	    }
+	    if (crashed.get() != null)
+		throw new IOException("import of " + csv + " stopped", crashed.get());
+	} catch (InterruptedException ex) {
+	    Thread.currentThread().interrupt();
+	    throw new IOException("import of " + csv + " interrupted", ex);
+	} finally {
+	    for (Thread thread : threads)
+		thread.interrupt();
+	}
+	return new ImportReport(imported, skipped, failed, failures, hashers,
+				System.nanoTime() - begin);
+    }
+
+    private void parse(
+		       Path csv,
+		       int resumeAfter,
+		       Map<Integer, Integer> pending,
+		       ArrayBlockingQueue<Batch> parsed) throws IOException {
+	try (BufferedReader reader =
+	     Files.newBufferedReader(csv, StandardCharsets.UTF_8)) {
+	    long seq = 0;
+	    ArrayList<Row> rows = new ArrayList<>(batchRows);
+	    int line = 0;
+	    for (String text = reader.readLine(); text != null;
+		 text = reader.readLine()) {
+		line++;
+		if (line <= resumeAfter || text.isBlank()
+		    || (line == 1 && text.startsWith("type,")))
+		    continue ;
+		rows.add(check(parseRow(line, text),
+			       pending.getOrDefault(line, 0)));
+		if (rows.size() == batchRows) {
+		    if (!putQuietly(parsed, new Batch(seq++, rows)))
+			return ;
+		    rows = new ArrayList<>(batchRows);
+		}
+	    }
+	    if (!rows.isEmpty())
+		putQuietly(parsed, new Batch(seq, rows));
+	}
+    }
+
+    private void hash(
+		      ArrayBlockingQueue<Batch> parsed,
+		      ArrayBlockingQueue<Batch> hashed) {
+	while (true) {
+	    final Batch batch;
+	    try {
+		batch = parsed.take();
+	    } catch (InterruptedException ex) {
+		return ;
+	    }
+	    if (batch == end)
+		return ;
+	    for (Row row : batch.rows) {
+		if (row.failure != null || row.skipped)
+		    continue ;
+		final String hashPass =
+		    BCrypt.hashpw(row.pass, BCrypt.gensalt(logRounds));
+		row.account = row.type.equals("checking")
+		    ? CheckingAccount.ofHash(row.name, hashPass,
+					     row.currency, row.branch)
+		    : SavingAccount.ofHash(row.name, hashPass,
+					   row.currency, row.branch);
+	    }
+	    if (!putQuietly(hashed, batch))
+		return ;
+	}
+    }
+
+    private Row check(Row row, int savedAs) {
+	if (row.failure != null)
+	    return row;
+	if (!row.type.equals("checking") && !row.type.equals("saving"))
+	    row.failure = "unknown type " + row.type;
+	else if (row.name.isBlank())
+	    row.failure = "blank name";
+	else if (!row.pass.matches("\\d{4}"))
+	    row.failure = "password is not 4 digits";
+	else if (!service.getFx().current().has(row.currency))
+	    row.failure = "unknown currency " + row.currency;
+	else if (!service.getBranches().offers(row.branch))
+	    row.failure = "branch " + row.branch + " not offered";
+	else if (savedAs != 0) {
+	    // a number never saved may since have gone to someone else
+	    row.skipped = service.getAccountByNumber(savedAs)
+		.filter(account -> account.getUserName().equals(row.name)
+			&& account.getClass().getSimpleName()
+			.equalsIgnoreCase(row.type + "Account")
+			&& account.getCurrency().equals(row.currency)
+			&& account.getBranch().equals(row.branch))
+		.isPresent();
+	    row.savedAs = savedAs;
+	}
+	return row;
+    }
+
+    // comma separated, a field in double quotes may hold commas and
+    // doubled quotes, as CsvBuffer writes them
+    private static Row parseRow(int line, String text) {
+	final ArrayList<String> fields = new ArrayList<>(5);
+	final StringBuilder field = new StringBuilder();
+	boolean quoted = false;
+	for (int i = 0; i < text.length(); i++) {
+	    final char c = text.charAt(i);
+	    if (quoted) {
+		if (c == '"' && i + 1 < text.length() && text.charAt(i + 1) == '"') {
+		    field.append('"');
+		    i++;
+		} else if (c == '"') {
+		    quoted = false;
+		} else {
+		    field.append(c);
+		}
+	    } else if (c == '"') {
+		quoted = true;
+	    } else if (c == ',') {
+		fields.add(field.toString());
+		field.setLength(0);
+	    } else {
+		field.append(c);
+	    }
+	}
+	fields.add(field.toString());
+	if (fields.size() < 3 || fields.size() > 5) {
+	    final Row row = new Row(line, "", "", "", "", "");
+	    row.failure = "expected type,name,password[,currency[,branch]]";
+	    return row;
+	}
+	return new Row(line,
+		       fields.get(0).trim().toLowerCase(),
+		       fields.get(1).trim(),
+		       fields.get(2).trim(),
+		       fields.size() > 3 ? fields.get(3).trim()
+		       : Account.defaultCurrency,
+		       fields.size() > 4 ? fields.get(4).trim()
+		       : Account.defaultBranch);
+    }
+
+    private static void saveProgress(Path progress, String text)
+	throws IOException {
+	final Path tmp = progress.resolveSibling(progress.getFileName() + ".tmp");
+	Files.writeString(tmp, text);
+	Files.move(tmp, progress, StandardCopyOption.REPLACE_EXISTING,
+		   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // false once the importer gave up and interrupted the stage
+    private static boolean putQuietly(ArrayBlockingQueue<Batch> queue, Batch batch) {
+	try {
+	    queue.put(batch);
+	    return true;
+	} catch (InterruptedException ex) {
+	    return false;
+	}
+    }
+}
+
+class NumberSequenceGenerator {
+    int number;
+
+    NumberSequenceGenerator(int base) {
+        number = base;
+    }
+    public synchronized int newNumber() {
+        return ++number;
+    }
+
+    // keeps numbers handed out after a restart clear of restored accounts
+    public synchronized void skipTo(int base) {
+	number = Math.max(number, base);
+    }
+}
+
+interface Account {
+    static NumberSequenceGenerator number = new NumberSequenceGenerator(0);
+    static String defaultCurrency = "BRL";
+    static String defaultBranch = "4242-x";
+
+    public int getNumber();
+    public String getBranch();
+    public String getUserName();
+    public double getBalance();
+    public String getCurrency();
+    public long getVersion();
+    public boolean verifyPass(String passAttempt);
+    public Account deposit(double amount);
+    public Account withdraw(double amount);
+    public boolean isValidWithdraw(double amount);
+    public boolean isValidTransfer(double amount);
+    public Pair<Account, Account> transfer(double amount, Account to);
+    Account copyWithAmount(double amount);
+
+    public static int newNumber() {
+        return number.newNumber();
+    }
+
+    default boolean hasBalance(double amount) {
+	return this.getBalance() >= amount;
+    }
+
+    // across currencies the amount credited is the converted one
+    default Pair<Account, Account> transfer(
+					    double amount,
+					    Account to,
+					    double credited) {
+	return new Pair<>(this.copyWithAmount(this.getBalance() - amount),
+			  to.copyWithAmount(to.getBalance() + credited));
+    }
+    
+}
+
+class CheckingAccount implements Account {
+
+    private final int number;
+    private final String branch;
+    private final String username;
+    private final double balance;
+    private final String currency;
+    private final String hashpass;
+    private final double loanLimit;
+    private final double loanCurrent;
+    private final long version;
+
+    @Override
+    public int getNumber() {
+        return this.number;
+    }
+    @Override
+    public String getBranch() {
+        return this.branch;
+    }
+    @Override
+    public String getUserName() {
+        return this.username;
+    }
+    @Override
+    public double getBalance() {
+        return this.balance;
+    }
+    @Override
+    public String getCurrency() {
+	return this.currency;
+    }
+    @Override
+    public long getVersion() {
+	return this.version;
+    }
+    @Override
+    public boolean verifyPass(String passAttempt) {
+	return BCrypt.checkpw(passAttempt, hashpass);
+    }
+
+    @Override
+    public Account copyWithAmount(double amount) {
+	return new CheckingAccount(
+				   this.number,
+				   this.branch,
+				   this.username,
+				   amount,
+				   this.hashpass,
+				   this.loanLimit,
+				   this.loanCurrent,
+				   this.version + 1,
+				   this.currency
+				   );
+    }
+
+    @Override
+    public Account deposit(double amount) {
+	return this.copyWithAmount(this.balance + amount);
+    }
+
+    @Override
+    public boolean isValidWithdraw(double amount) {
+	return this.hasBalance(amount);
+    }
+    
+    @Override
+    public boolean isValidTransfer(double amount){
+	return this.hasBalance(amount);
+    }
+
+    @Override
+    public Account withdraw(double amount) {
+	return this.copyWithAmount(this.balance - amount);
+    }
+
+    @Override
+    public Pair<Account, Account> transfer(double amount, Account to) {
+	Account updatedFrom = this.copyWithAmount(this.balance - amount);
+	
+	Account updatedTo = to.copyWithAmount(to.getBalance() + amount);
+	return new Pair(updatedFrom, updatedTo);
+    }
+
+    public double getLoanLimit() {
+	return this.loanLimit;
+    }
+
+    public double getLoanCurrent() {
+	return this.loanCurrent;
+    }
+
+    private CheckingAccount(
+			    int number,
+			    String branch,
+			    String username,
+			    double balance,
+			    String hashPass,
+			    double loanLimit,
+			    double loanCurrent,
+			    long version,
+			    String currency) {
+
+        this.number = number;
+        this.branch = branch;
+        this.username = username;
+        this.balance = balance;
+        this.hashpass = hashPass;
+	this.loanLimit = loanLimit;
+	this.loanCurrent = loanCurrent;
+	this.version = version;
+	this.currency = currency;
+    }
+
+    public CheckingAccount(String username, String pass) {
+	this(username, pass, Account.defaultCurrency);
+    }
+
+    public CheckingAccount(String username, String pass, String currency) {
+	this(username, pass, currency, Account.defaultBranch);
+    }
+
+    public CheckingAccount(
+			   String username,
+			   String pass,
+			   String currency,
+			   String branch) {
+	this(Account.newNumber(), branch, username, 0.0,
+	     BCrypt.hashpw(pass, BCrypt.gensalt()), 500.0, 0.0, 0L, currency);
+    }
+
+    static CheckingAccount ofHash(String username, String hashPass) {
+	return ofHash(username, hashPass, Account.defaultBranch);
+    }
+
+    static CheckingAccount ofHash(
+				  String username,
+				  String hashPass,
+				  String branch) {
+	return ofHash(username, hashPass, Account.defaultCurrency, branch);
+    }
+
+    static CheckingAccount ofHash(
+				  String username,
+				  String hashPass,
+				  String currency,
+				  String branch) {
+	return new CheckingAccount(Account.newNumber(), branch, username,
+				   0.0, hashPass, 500.0, 0.0, 0L, currency);
+    }
+
+    static CheckingAccount restore(
+				   int number,
+				   String branch,
+				   String username,
+				   double balance,
+				   String hashPass,
+				   double loanLimit,
+				   double loanCurrent,
+				   long version,
+				   String currency) {
+	return new CheckingAccount(number, branch, username, balance,
+				   hashPass, loanLimit, loanCurrent, version,
+				   currency);
+    }
+
+    String getHashPass() {
+	return this.hashpass;
+    }
+
+    public boolean isValidLoanRequest(Optional<Double> maybeLoanRequest) {
+	if (!maybeLoanRequest.isPresent())
+	    return false;
+	double loanRequest = maybeLoanRequest.get();
+	return loanRequest <= this.loanLimit && loanRequest >= 1.0;
     }
 
     public CheckingAccount loan(double loanAmount) {
@@ -292,113 +8651,1556 @@ class CheckingAccount implements Account {
 				   this.balance + loanAmount,
 				   this.hashpass,
 				   this.loanLimit - loanAmount,
-				   this.loanCurrent + loanAmount
+				   this.loanCurrent + loanAmount,
+				   this.version + 1,
+				   this.currency
+				   );
+    }
+
+    public boolean isValidRepay(double principal, double interest) {
+	return principal >= 0.0 && interest >= 0.0
+	    && principal <= this.loanCurrent + 0.005
+	    && this.hasBalance(principal + interest);
+    }
+
+    public CheckingAccount repay(double principal, double interest) {
+	return new CheckingAccount(
+				   this.number,
+				   this.branch,
+				   this.username,
+				   this.balance - principal - interest,
+				   this.hashpass,
+				   this.loanLimit + principal,
+				   this.loanCurrent - principal,
+				   this.version + 1,
+				   this.currency
 				   );
     }
 
-    @Override
-    public String toString() {
-        return String.format(
-			     "CheckingAccount(" +
-			     "number: %d, branch: %s, " +
-			     "username: %s, balance: %.2f)",
-			     number, branch, username, balance);
+    @Override
+    public String toString() {
+        return String.format(
+			     "CheckingAccount(" +
+			     "number: %d, branch: %s, " +
+			     "username: %s, balance: %.2f %s)",
+			     number, branch, username, balance, currency);
+    }
+}
+
+class SavingAccount implements Account {
+
+    private final int number;
+    private final String branch;
+    private final String username;
+    private final double balance;
+    private final String currency;
+    private final String hashpass;
+    private final long version;
+
+    @Override
+    public int getNumber() {
+        return this.number;
+    }
+    @Override
+    public String getBranch() {
+        return this.branch;
+    }
+    @Override
+    public String getUserName() {
+        return this.username;
+    }
+    @Override
+    public double getBalance() {
+        return this.balance;
+    }
+    @Override
+    public String getCurrency() {
+	return this.currency;
+    }
+    @Override
+    public long getVersion() {
+	return this.version;
+    }
+    @Override
+    public boolean verifyPass(String passAttempt) {
+	return BCrypt.checkpw(passAttempt, hashpass);
+    }
+
+    @Override
+    public Account copyWithAmount(double amount) {
+	return new SavingAccount(
+				 this.number,
+				 this.branch,
+				 this.username,
+				 amount,
+				 this.hashpass,
+				 this.version + 1,
+				 this.currency
+				 );
+    }
+
+    @Override
+    public Account deposit(double amount) {
+	return this.copyWithAmount(this.balance + amount);
+    }
+    
+    @Override
+    public boolean isValidTransfer(double amount){
+	return this.hasBalance(amount);
+    }
+
+    @Override
+    public Pair<Account, Account> transfer(double amount, Account to) {
+	Account updatedFrom = this.copyWithAmount(this.balance - amount);
+	
+	Account updatedTo = to.copyWithAmount(to.getBalance() + amount);
+	return new Pair(updatedFrom, updatedTo);
+    }
+
+    @Override
+    public boolean isValidWithdraw(double amount) {
+	return this.hasBalance(amount);
+    }
+    
+    @Override
+    public Account withdraw(double amount) {
+	return this.copyWithAmount(this.balance - amount);
+    }
+
+    private SavingAccount(
+			  int number,
+			  String branch,
+			  String username,
+			  double balance,
+			  String hashPass,
+			  long version,
+			  String currency) {
+        this.number = number;
+        this.branch = branch;
+        this.username = username;
+        this.balance = balance;
+        this.hashpass = hashPass;
+	this.version = version;
+	this.currency = currency;
+    }
+
+    public SavingAccount(String username, String pass) {
+	this(username, pass, Account.defaultCurrency);
+    }
+
+    public SavingAccount(String username, String pass, String currency) {
+	this(username, pass, currency, Account.defaultBranch);
+    }
+
+    public SavingAccount(
+			 String username,
+			 String pass,
+			 String currency,
+			 String branch) {
+	this(Account.newNumber(), branch, username, 0.0,
+	     BCrypt.hashpw(pass, BCrypt.gensalt()), 0L, currency);
+    }
+
+    static SavingAccount ofHash(String username, String hashPass) {
+	return ofHash(username, hashPass, Account.defaultBranch);
+    }
+
+    static SavingAccount ofHash(
+				String username,
+				String hashPass,
+				String branch) {
+	return ofHash(username, hashPass, Account.defaultCurrency, branch);
+    }
+
+    static SavingAccount ofHash(
+				String username,
+				String hashPass,
+				String currency,
+				String branch) {
+	return new SavingAccount(Account.newNumber(), branch, username,
+				 0.0, hashPass, 0L, currency);
+    }
+
+    static SavingAccount restore(
+				 int number,
+				 String branch,
+				 String username,
+				 double balance,
+				 String hashPass,
+				 long version,
+				 String currency) {
+	return new SavingAccount(number, branch, username, balance,
+				 hashPass, version, currency);
+    }
+
+    String getHashPass() {
+	return this.hashpass;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+			     "SavingAccount(" +
+			     "number: %d, branch: %s, " +
+			     "username: %s, balance: %.2f %s)",
+			     number, branch, username, balance, currency);
+    }
+}
+
+class TimingWheel<T> {
+    private static final int slotBits = 6;
+    private static final int slotCount = 1 << slotBits;
+    private static final int slotMask = slotCount - 1;
+    private static final int levels = 4;
+
+    private static class Entry<T> {
+	final long tick;
+	final T item;
+
+	Entry(long tick, T item) {
+	    this.tick = tick;
+	    this.item = item;
+	}
+    }
+
+    private final long tickMillis;
+    private final ArrayList<Entry<T>>[][] wheel;
+    private long currentTick;
+    private int size;
+
+    // level n holds entries due within 64^(n + 1) ticks, so inserting
+    // and expiring are O(1) no matter how many entries are waiting
+    TimingWheel(long tickMillis, long startMillis) {
+	this.tickMillis = tickMillis;
+	this.currentTick = startMillis / tickMillis;
+	@SuppressWarnings("unchecked")
+	final ArrayList<Entry<T>>[][] slots =
+	    (ArrayList<Entry<T>>[][]) new ArrayList<?>[levels][slotCount];
+	this.wheel = slots;
+	for (int level = 0; level < levels; level++)
+	    for (int slot = 0; slot < slotCount; slot++)
+		wheel[level][slot] = new ArrayList<>();
+    }
+
+    public int size() {
+	return this.size;
+    }
+
+    public long getTickMillis() {
+	return this.tickMillis;
+    }
+
+    public void schedule(long deadlineMillis, T item) {
+	final long tick =
+	    Math.max(ceilDiv(deadlineMillis, tickMillis), currentTick + 1);
+	place(new Entry<>(tick, item));
+	size++;
+    }
+
+    public void advance(long nowMillis, Consumer<T> expired) {
+	final long target = nowMillis / tickMillis;
+
+	while (currentTick < target) {
+	    if (size == 0) {
+		currentTick = target;
+		break ;
+	    }
+	    currentTick++;
+	    for (int level = levels - 1; level > 0; level--) {
+		if ((currentTick & ((1L << (slotBits * level)) - 1)) == 0)
+		    cascade(level);
+	    }
+	    final int slot = (int) (currentTick & slotMask);
+	    final ArrayList<Entry<T>> due = wheel[0][slot];
+	    if (due.isEmpty())
+		continue ;
+	    wheel[0][slot] = new ArrayList<>();
+	    size -= due.size();
+	    for (Entry<T> entry : due)
+		expired.accept(entry.item);
+	}
+    }
+
+    private void cascade(int level) {
+	final int slot = (int) ((currentTick >> (slotBits * level)) & slotMask);
+	final ArrayList<Entry<T>> entries = wheel[level][slot];
+	if (entries.isEmpty())
+	    return ;
+	wheel[level][slot] = new ArrayList<>();
+	for (Entry<T> entry : entries)
+	    place(entry);
+    }
+
+    private void place(Entry<T> entry) {
+	final long tick = Math.max(entry.tick, currentTick);
+	final long delta = tick - currentTick;
+
+	for (int level = 0; level < levels; level++) {
+	    if (delta < (1L << (slotBits * (level + 1)))) {
+		final int slot =
+		    (int) ((tick >> (slotBits * level)) & slotMask);
+		wheel[level][slot].add(entry);
+		return ;
+	    }
+	}
+	// beyond the wheel range: park it in the farthest slot, it is
+	// placed again by its real tick when that slot cascades
+	final int top = levels - 1;
+	final long farthest = currentTick + (1L << (slotBits * levels)) - 1;
+	final int slot = (int) ((farthest >> (slotBits * top)) & slotMask);
+	wheel[top][slot].add(entry);
+    }
+
+    private static long ceilDiv(long value, long divisor) {
+	return -Math.floorDiv(-value, divisor);
+    }
+}
+
+class LoanPlan {
+    private final long id;
+    private final int accountNumber;
+    private final double principal;
+    private final double monthlyRate;
+    private final int installments;
+    private final double payment;
+    private final LocalDateTime start;
+    private int paid;
+    private int missed;
+    // refused repayments of the current installment, due or early
+    private int refused;
+    private double remaining;
+    private LocalDateTime nextAttempt;
+
+    LoanPlan(
+	     long id,
+	     int accountNumber,
+	     double principal,
+	     double annualRate,
+	     int installments,
+	     LocalDateTime start) {
+	this.id = id;
+	this.accountNumber = accountNumber;
+	this.principal = principal;
+	this.monthlyRate = annualRate / 12.0;
+	this.installments = installments;
+	this.payment = annuity(principal, monthlyRate, installments);
+	this.start = start;
+	this.paid = 0;
+	this.missed = 0;
+	this.remaining = principal;
+	this.nextAttempt = getNextDue();
+    }
+
+    private LoanPlan(
+		     long id,
+		     int accountNumber,
+		     double principal,
+		     double monthlyRate,
+		     int installments,
+		     double payment,
+		     LocalDateTime start,
+		     int paid,
+		     int missed,
+		     int refused,
+		     double remaining,
+		     LocalDateTime nextAttempt) {
+	this.id = id;
+	this.accountNumber = accountNumber;
+	this.principal = principal;
+	this.monthlyRate = monthlyRate;
+	this.installments = installments;
+	this.payment = payment;
+	this.start = start;
+	this.paid = paid;
+	this.missed = missed;
+	this.refused = refused;
+	this.remaining = remaining;
+	this.nextAttempt = nextAttempt;
+    }
+
+    static double cents(double amount) {
+	return Math.round(amount * 100.0) / 100.0;
+    }
+
+    static double annuity(double principal, double rate, int installments) {
+	if (rate == 0.0)
+	    return cents(principal / installments);
+	return cents(principal * rate
+		     / (1.0 - Math.pow(1.0 + rate, -installments)));
+    }
+
+    public long getId() {
+	return this.id;
+    }
+
+    public int getAccountNumber() {
+	return this.accountNumber;
+    }
+
+    public double getPrincipal() {
+	return this.principal;
+    }
+
+    public double getPayment() {
+	return this.payment;
+    }
+
+    public double getRemaining() {
+	return this.remaining;
+    }
+
+    public int getInstallmentsLeft() {
+	return this.installments - this.paid;
+    }
+
+    public int getMissed() {
+	return this.missed;
+    }
+
+    public LocalDateTime getNextDue() {
+	return start.plusMonths(paid + 1);
+    }
+
+    public LocalDateTime getNextAttempt() {
+	return this.nextAttempt;
+    }
+
+    public boolean isSettled() {
+	return this.paid >= this.installments;
+    }
+
+    public double nextInterest() {
+	return cents(remaining * monthlyRate);
+    }
+
+    // the last installment takes whatever rounding left behind
+    public double nextPrincipal() {
+	if (paid == installments - 1)
+	    return remaining;
+	return Math.min(remaining, cents(payment - nextInterest()));
+    }
+
+    void markPaid() {
+	remaining = cents(remaining - nextPrincipal());
+	paid++;
+	refused = 0;
+	nextAttempt = getNextDue();
+    }
+
+    void markMissed(LocalDateTime retryAt) {
+	missed++;
+	refused++;
+	nextAttempt = retryAt;
+    }
+
+    void markRefused() {
+	refused++;
+    }
+
+    void retryAt(LocalDateTime retryAt) {
+	nextAttempt = retryAt;
+    }
+
+    // names the attempt at an installment, so one that ran before a
+    // crash but was not yet saved as paid is not paid twice, while one
+    // refused, and remembered as such, does not refuse the next
+    String installmentKey() {
+	return "loan-" + id + "-" + paid + "-" + refused;
+    }
+
+    String toLine() {
+	return String.join(",",
+			   Long.toString(id),
+			   Integer.toString(accountNumber),
+			   Double.toString(principal),
+			   Double.toString(monthlyRate),
+			   Integer.toString(installments),
+			   Double.toString(payment),
+			   start.toString(),
+			   Integer.toString(paid),
+			   Integer.toString(missed),
+			   Integer.toString(refused),
+			   Double.toString(remaining),
+			   nextAttempt.toString());
+    }
+
+    static LoanPlan fromLine(String line) {
+	final String[] fields = line.split(",");
+	if (fields.length != 12)
+	    throw new IllegalArgumentException("Invalid plan line: " + line);
+	return new LoanPlan(
+			    Long.parseLong(fields[0]),
+			    Integer.parseInt(fields[1]),
+			    Double.parseDouble(fields[2]),
+			    Double.parseDouble(fields[3]),
+			    Integer.parseInt(fields[4]),
+			    Double.parseDouble(fields[5]),
+			    LocalDateTime.parse(fields[6]),
+			    Integer.parseInt(fields[7]),
+			    Integer.parseInt(fields[8]),
+			    Integer.parseInt(fields[9]),
+			    Double.parseDouble(fields[10]),
+			    LocalDateTime.parse(fields[11]));
+    }
+
+    @Override
+    public String toString() {
+	return String.format(
+			     "LoanPlan(" +
+			     "account: %d, principal: %.2f, " +
+			     "payment: %.2f, left: %d, remaining: %.2f)",
+			     accountNumber, principal, payment,
+			     getInstallmentsLeft(), remaining);
+    }
+}
+
+interface LoanPlanStore {
+    public ArrayList<LoanPlan> loadAll();
+    public void save(ArrayList<LoanPlan> saved, ArrayList<Long> removed);
+}
+
+class LoanPlanStoreInMemory implements LoanPlanStore {
+    private final Map<Long, LoanPlan> plans = new HashMap<>();
+
+    @Override
+    public synchronized ArrayList<LoanPlan> loadAll() {
+	return new ArrayList<>(plans.values());
+    }
+
+    @Override
+    public synchronized void save(
+				  ArrayList<LoanPlan> saved,
+				  ArrayList<Long> removed) {
+	for (LoanPlan plan : saved)
+	    plans.put(plan.getId(), plan);
+	for (Long id : removed)
+	    plans.remove(id);
+    }
+}
+
+// append only log of plan lines ("S,<plan>" or "R,<id>"), synced once
+// per saved batch and compacted to the live plans when it is loaded
+class LoanPlanStoreFile implements LoanPlanStore {
+    private final Path path;
+    private FileOutputStream out;
+    private BufferedWriter writer;
+
+    LoanPlanStoreFile(Path path) {
+	this.path = path;
+    }
+
+    @Override
+    public synchronized ArrayList<LoanPlan> loadAll() {
+	final Map<Long, LoanPlan> live = new LinkedHashMap<>();
+
+	try {
+	    if (Files.exists(path)) {
+		for (String line : Files.readAllLines(path)) {
+		    try {
+			if (line.startsWith("S,")) {
+			    final LoanPlan plan =
+				LoanPlan.fromLine(line.substring(2));
+			    live.put(plan.getId(), plan);
+			} else if (line.startsWith("R,")) {
+			    live.remove(Long.parseLong(line.substring(2)));
+			}
+		    } catch (RuntimeException ex) {
+			// torn last line of a write interrupted by a crash
+		    }
+		}
+	    }
+	    compact(live.values());
+	} catch (IOException ex) {
+	    throw new UncheckedIOException(ex);
+	}
+	return new ArrayList<>(live.values());
+    }
+
+    @Override
+    public synchronized void save(
+				  ArrayList<LoanPlan> saved,
+				  ArrayList<Long> removed) {
+	if (saved.isEmpty() && removed.isEmpty())
+	    return ;
+	try {
+	    if (writer == null)
+		open();
+	    for (LoanPlan plan : saved) {
+		writer.write("S,");
+		writer.write(plan.toLine());
+		writer.newLine();
+	    }
+	    for (Long id : removed) {
+		writer.write("R,");
+		writer.write(Long.toString(id));
+		writer.newLine();
+	    }
+	    writer.flush();
+	    out.getFD().sync();
+	} catch (IOException ex) {
+	    throw new UncheckedIOException(ex);
+	}
+    }
+
+    private void compact(Iterable<LoanPlan> live) throws IOException {
+	close();
+	final Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+	try (FileOutputStream tmpOut = new FileOutputStream(tmp.toFile());
+	     BufferedWriter tmpWriter = new BufferedWriter(
+							   new OutputStreamWriter(
+										  tmpOut,
+										  StandardCharsets.UTF_8))) {
+	    for (LoanPlan plan : live) {
+		tmpWriter.write("S,");
+		tmpWriter.write(plan.toLine());
+		tmpWriter.newLine();
+	    }
+	    tmpWriter.flush();
+	    tmpOut.getFD().sync();
+	}
+	Files.move(tmp, path,
+		   StandardCopyOption.REPLACE_EXISTING,
+		   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void open() throws IOException {
+	out = new FileOutputStream(path.toFile(), true);
+	writer = new BufferedWriter(
+				    new OutputStreamWriter(
+							   out,
+							   StandardCharsets.UTF_8));
+    }
+
+    public synchronized void close() throws IOException {
+	if (writer != null)
+	    writer.close();
+	writer = null;
+	out = null;
+    }
+}
+
+// the scheduler's lock only guards the plans and the wheel: the Service
+// is always called outside it, with the plans being paid marked busy so
+// a payment ahead of time and a due one never take the same installment
+class LoanScheduler {
+    static final int defaultInstallments = 12;
+    static final double defaultAnnualRate = 0.12;
+    private static final long tickMillis = 60_000L;
+    private static final byte paid = 0;
+    private static final byte missed = 1;
+    private static final byte failed = 2;
+
+    private final ZoneId zone;
+    private final double annualRate;
+    private final int installments;
+    private final Duration retryDelay;
+    private final LoanPlanStore store;
+    private final TimingWheel<LoanPlan> wheel;
+    private final Map<Integer, ArrayList<LoanPlan>> plansByAccount;
+    private final Set<LoanPlan> busy = new HashSet<>();
+    // what a failed save left behind, written with the next batch
+    private final ArrayList<LoanPlan> unsaved = new ArrayList<>();
+    private final ArrayList<Long> unremoved = new ArrayList<>();
+    private long lastId;
+
+    LoanScheduler() {
+	this(new LoanPlanStoreInMemory());
+    }
+
+    LoanScheduler(LoanPlanStore store) {
+	this(ZoneId.systemDefault(), defaultAnnualRate, defaultInstallments,
+	     Duration.ofDays(1), store, LocalDateTime.now());
+    }
+
+    LoanScheduler(
+		  ZoneId zone,
+		  double annualRate,
+		  int installments,
+		  Duration retryDelay,
+		  LocalDateTime start) {
+	this(zone, annualRate, installments, retryDelay,
+	     new LoanPlanStoreInMemory(), start);
+    }
+
+    LoanScheduler(
+		  ZoneId zone,
+		  double annualRate,
+		  int installments,
+		  Duration retryDelay,
+		  LoanPlanStore store,
+		  LocalDateTime start) {
+	this.zone = zone;
+	this.annualRate = annualRate;
+	this.installments = installments;
+	this.retryDelay = retryDelay;
+	this.store = store;
+	this.wheel = new TimingWheel<>(tickMillis, toMillis(start));
+	this.plansByAccount = new HashMap<>();
+	for (LoanPlan plan : store.loadAll()) {
+	    plansByAccount
+		.computeIfAbsent(plan.getAccountNumber(), n -> new ArrayList<>())
+		.add(plan);
+	    lastId = Math.max(lastId, plan.getId());
+	    wheel.schedule(toMillis(plan.getNextAttempt()), plan);
+	}
+    }
+
+    private long toMillis(LocalDateTime time) {
+	return time.atZone(zone).toInstant().toEpochMilli();
+    }
+
+    // settled plans may still sit in the wheel until their tick comes
+    public synchronized int outstanding() {
+	int plans = 0;
+	for (ArrayList<LoanPlan> ofAccount : plansByAccount.values())
+	    plans += ofAccount.size();
+	return plans;
+    }
+
+    // a crash between the loan and the plan's save leaves the loan
+    // without a schedule, never a schedule without the loan
+    public Optional<CheckingAccount> openLoan(
+					      Service service,
+					      double amount,
+					      CheckingAccount account,
+					      LocalDateTime now) {
+	final Optional<CheckingAccount> maybeUpdated =
+	    service.loan(amount, account);
+	if (!maybeUpdated.isPresent() || amount <= 0.0)
+	    return maybeUpdated;
+
+	synchronized (this) {
+	    final LoanPlan plan = new LoanPlan(
+					       ++lastId,
+					       account.getNumber(),
+					       amount,
+					       annualRate,
+					       installments,
+					       now);
+	    plansByAccount
+		.computeIfAbsent(account.getNumber(), n -> new ArrayList<>())
+		.add(plan);
+	    wheel.schedule(toMillis(plan.getNextAttempt()), plan);
+	    final ArrayList<LoanPlan> saved = new ArrayList<>();
+	    saved.add(plan);
+	    save(saved, new ArrayList<>());
+	}
+	return maybeUpdated;
+    }
+
+    public synchronized Optional<LoanPlan> nextPlan(int accountNumber) {
+	final ArrayList<LoanPlan> plans = plansByAccount.get(accountNumber);
+	if (plans == null || plans.isEmpty())
+	    return Optional.empty();
+	return Optional.of(plans.get(0));
+    }
+
+    // pays the next installment of the oldest plan ahead of its due date,
+    // the plan keeps its timer and it is moved forward when it fires
+    public Optional<CheckingAccount> payNext(
+					     Service service,
+					     CheckingAccount account) {
+	final LoanPlan plan;
+	synchronized (this) {
+	    final Optional<LoanPlan> maybePlan = nextPlan(account.getNumber());
+	    if (!maybePlan.isPresent() || !busy.add(maybePlan.get()))
+		return Optional.empty();
+	    plan = maybePlan.get();
+	}
+	Optional<CheckingAccount> maybeUpdated = Optional.empty();
+	try {
+	    maybeUpdated = service.repay(plan.nextPrincipal(),
+					 plan.nextInterest(), account,
+					 plan.installmentKey());
+	} finally {
+	    synchronized (this) {
+		busy.remove(plan);
+		recordPayment(plan, maybeUpdated.isPresent());
+	    }
+	}
+	return maybeUpdated;
+    }
+
+    // due plans are taken off the wheel under the lock, collected outside
+    // it and put back under it; nothing thrown gets out, as it would stop
+    // the ticker for good
+    public int runDue(Service service, LocalDateTime now) {
+	final ArrayList<LoanPlan> due = new ArrayList<>();
+	synchronized (this) {
+	    wheel.advance(toMillis(now), plan -> {
+		    if (plan.isSettled())
+			return ;
+		    // one paid ahead or being paid right now waits its turn
+		    if (plan.getNextAttempt().isAfter(now) || busy.contains(plan))
+			wheel.schedule(Math.max(toMillis(plan.getNextAttempt()),
+						toMillis(now) + tickMillis),
+				       plan);
+		    else if (busy.add(plan))
+			due.add(plan);
+		});
+	}
+	if (due.isEmpty())
+	    return 0;
+
+	final byte[] outcomes = new byte[due.size()];
+	for (int i = 0; i < due.size(); i++)
+	    outcomes[i] = collect(service, due.get(i));
+
+	int collected = 0;
+	synchronized (this) {
+	    final ArrayList<LoanPlan> saved = new ArrayList<>();
+	    final ArrayList<Long> removed = new ArrayList<>();
+	    for (int i = 0; i < due.size(); i++) {
+		final LoanPlan plan = due.get(i);
+		busy.remove(plan);
+		if (outcomes[i] == paid) {
+		    collected++;
+		    plan.markPaid();
+		} else if (outcomes[i] == missed) {
+		    plan.markMissed(now.plus(retryDelay));
+		} else {
+		    // the service threw, not the plan: same installment, next tick
+		    plan.retryAt(now.plusMinutes(1));
+		}
+		if (plan.isSettled()) {
+		    forget(plan);
+		    removed.add(plan.getId());
+		} else {
+		    wheel.schedule(toMillis(plan.getNextAttempt()), plan);
+		    saved.add(plan);
+		}
+	    }
+	    save(saved, removed);
+	}
+	return collected;
+    }
+
+    private byte collect(Service service, LoanPlan plan) {
+	try {
+	    final Optional<Account> maybeAccount =
+		service.getAccountByNumber(plan.getAccountNumber());
+	    if (!maybeAccount.isPresent()
+		|| !(maybeAccount.get() instanceof CheckingAccount))
+		return missed;
+	    final Optional<CheckingAccount> maybeUpdated =
+		service.repay(
+			      plan.nextPrincipal(),
+			      plan.nextInterest(),
+			      (CheckingAccount) maybeAccount.get(),
+			      plan.installmentKey());
+	    return maybeUpdated.isPresent() ? paid : missed;
+	} catch (RuntimeException ex) {
+	    return failed;
+	}
+    }
+
+    private void recordPayment(LoanPlan plan, boolean accepted) {
+	if (accepted)
+	    plan.markPaid();
+	else
+	    plan.markRefused();
+	final ArrayList<LoanPlan> saved = new ArrayList<>();
+	final ArrayList<Long> removed = new ArrayList<>();
+	if (plan.isSettled()) {
+	    forget(plan);
+	    removed.add(plan.getId());
+	} else {
+	    saved.add(plan);
+	}
+	save(saved, removed);
+    }
+
+    // a store that fails keeps the changes for the next save; until then
+    // a restart asks for those installments again, under the same keys
+    private void save(ArrayList<LoanPlan> saved, ArrayList<Long> removed) {
+	unsaved.addAll(saved);
+	unremoved.addAll(removed);
+	try {
+	    store.save(unsaved, unremoved);
+	    unsaved.clear();
+	    unremoved.clear();
+	} catch (RuntimeException ex) {
+	}
+    }
+
+    private void forget(LoanPlan plan) {
+	final ArrayList<LoanPlan> plans =
+	    plansByAccount.get(plan.getAccountNumber());
+	if (plans == null)
+	    return ;
+	plans.remove(plan);
+	if (plans.isEmpty())
+	    plansByAccount.remove(plan.getAccountNumber());
+    }
+}
+
+class StandingOrder {
+    private final long id;
+    private final int fromNumber;
+    private final int toNumber;
+    private final double amount;
+    private final LocalDateTime due;
+    private final int periodMonths;
+    private final int attempts;
+
+    StandingOrder(
+		  long id,
+		  int fromNumber,
+		  int toNumber,
+		  double amount,
+		  LocalDateTime due,
+		  int periodMonths,
+		  int attempts) {
+	this.id = id;
+	this.fromNumber = fromNumber;
+	this.toNumber = toNumber;
+	this.amount = amount;
+	this.due = due;
+	this.periodMonths = periodMonths;
+	this.attempts = attempts;
+    }
+
+    public long getId() {
+	return this.id;
+    }
+
+    public int getFromNumber() {
+	return this.fromNumber;
+    }
+
+    public int getToNumber() {
+	return this.toNumber;
+    }
+
+    public double getAmount() {
+	return this.amount;
+    }
+
+    public LocalDateTime getDue() {
+	return this.due;
+    }
+
+    public int getPeriodMonths() {
+	return this.periodMonths;
+    }
+
+    public int getAttempts() {
+	return this.attempts;
+    }
+
+    public boolean isRecurring() {
+	return this.periodMonths > 0;
+    }
+
+    public LocalDateTime nextAttemptAt(RetryPolicy retryPolicy) {
+	return due.plus(retryPolicy.getDelay().multipliedBy(attempts));
+    }
+
+    public StandingOrder retried() {
+	return new StandingOrder(id, fromNumber, toNumber, amount,
+				 due, periodMonths, attempts + 1);
+    }
+
+    public StandingOrder nextPeriod() {
+	return new StandingOrder(id, fromNumber, toNumber, amount,
+				 due.plusMonths(periodMonths), periodMonths, 0);
+    }
+
+    String toLine() {
+	return String.join(",",
+			   Long.toString(id),
+			   Integer.toString(fromNumber),
+			   Integer.toString(toNumber),
+			   Double.toString(amount),
+			   due.toString(),
+			   Integer.toString(periodMonths),
+			   Integer.toString(attempts));
+    }
+
+    static StandingOrder fromLine(String line) {
+	final String[] fields = line.split(",");
+	if (fields.length != 7)
+	    throw new IllegalArgumentException("Invalid order line: " + line);
+	return new StandingOrder(
+				 Long.parseLong(fields[0]),
+				 Integer.parseInt(fields[1]),
+				 Integer.parseInt(fields[2]),
+				 Double.parseDouble(fields[3]),
+				 LocalDateTime.parse(fields[4]),
+				 Integer.parseInt(fields[5]),
+				 Integer.parseInt(fields[6]));
+    }
+
+    @Override
+    public String toString() {
+	return String.format(
+			     "StandingOrder(" +
+			     "id: %d, from: %d, to: %d, amount: %.2f, " +
+			     "due: %s, every %d months)",
+			     id, fromNumber, toNumber, amount,
+			     due, periodMonths);
+    }
+}
+
+class RetryPolicy {
+    static final RetryPolicy none = new RetryPolicy(1, Duration.ZERO);
+
+    private final int maxAttempts;
+    private final Duration delay;
+
+    RetryPolicy(int maxAttempts, Duration delay) {
+	this.maxAttempts = maxAttempts;
+	this.delay = delay;
+    }
+
+    public Duration getDelay() {
+	return this.delay;
+    }
+
+    public boolean canRetry(StandingOrder order) {
+	return order.getAttempts() + 1 < maxAttempts;
+    }
+}
+
+interface TransferOrderStore {
+    public ArrayList<StandingOrder> loadAll();
+    public void save(ArrayList<StandingOrder> saved, ArrayList<Long> removed);
+}
+
+class TransferOrderStoreInMemory implements TransferOrderStore {
+    private final Map<Long, StandingOrder> orders = new HashMap<>();
+
+    @Override
+    public synchronized ArrayList<StandingOrder> loadAll() {
+	return new ArrayList<>(orders.values());
+    }
+
+    @Override
+    public synchronized void save(
+				  ArrayList<StandingOrder> saved,
+				  ArrayList<Long> removed) {
+	for (StandingOrder order : saved)
+	    orders.put(order.getId(), order);
+	for (Long id : removed)
+	    orders.remove(id);
+    }
+}
+
+// append only log of order lines ("S,<order>" or "R,<id>"), synced once
+// per saved batch and compacted to the live orders when it is loaded
+class TransferOrderStoreFile implements TransferOrderStore {
+    private final Path path;
+    private FileOutputStream out;
+    private BufferedWriter writer;
+
+    TransferOrderStoreFile(Path path) {
+	this.path = path;
+    }
+
+    @Override
+    public synchronized ArrayList<StandingOrder> loadAll() {
+	final Map<Long, StandingOrder> live = new LinkedHashMap<>();
+
+	try {
+	    if (Files.exists(path)) {
+		for (String line : Files.readAllLines(path)) {
+		    try {
+			if (line.startsWith("S,")) {
+			    final StandingOrder order =
+				StandingOrder.fromLine(line.substring(2));
+			    live.put(order.getId(), order);
+			} else if (line.startsWith("R,")) {
+			    live.remove(Long.parseLong(line.substring(2)));
+			}
+		    } catch (RuntimeException ex) {
+			// torn last line of a write interrupted by a crash
+		    }
+		}
+	    }
+	    compact(live.values());
+	} catch (IOException ex) {
+	    throw new UncheckedIOException(ex);
+	}
+	return new ArrayList<>(live.values());
+    }
+
+    @Override
+    public synchronized void save(
+				  ArrayList<StandingOrder> saved,
+				  ArrayList<Long> removed) {
+	if (saved.isEmpty() && removed.isEmpty())
+	    return ;
+	try {
+	    if (writer == null)
+		open();
+	    for (StandingOrder order : saved) {
+		writer.write("S,");
+		writer.write(order.toLine());
+		writer.newLine();
+	    }
+	    for (Long id : removed) {
+		writer.write("R,");
+		writer.write(Long.toString(id));
+		writer.newLine();
+	    }
+	    writer.flush();
+	    out.getFD().sync();
+	} catch (IOException ex) {
+	    throw new UncheckedIOException(ex);
+	}
+    }
+
+    private void compact(Iterable<StandingOrder> live) throws IOException {
+	close();
+	final Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+	try (FileOutputStream tmpOut = new FileOutputStream(tmp.toFile());
+	     BufferedWriter tmpWriter = new BufferedWriter(
+							   new OutputStreamWriter(
+										  tmpOut,
+										  StandardCharsets.UTF_8))) {
+	    for (StandingOrder order : live) {
+		tmpWriter.write("S,");
+		tmpWriter.write(order.toLine());
+		tmpWriter.newLine();
+	    }
+	    tmpWriter.flush();
+	    tmpOut.getFD().sync();
+	}
+	Files.move(tmp, path,
+		   StandardCopyOption.REPLACE_EXISTING,
+		   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void open() throws IOException {
+	out = new FileOutputStream(path.toFile(), true);
+	writer = new BufferedWriter(
+				    new OutputStreamWriter(
+							   out,
+							   StandardCharsets.UTF_8));
+    }
+
+    public synchronized void close() throws IOException {
+	if (writer != null)
+	    writer.close();
+	writer = null;
+	out = null;
+    }
+}
+
+class TransferRunReport {
+    private final int executed;
+    private final int retried;
+    private final int dropped;
+
+    TransferRunReport(int executed, int retried, int dropped) {
+	this.executed = executed;
+	this.retried = retried;
+	this.dropped = dropped;
+    }
+
+    public int getExecuted() {
+	return this.executed;
+    }
+
+    public int getRetried() {
+	return this.retried;
+    }
+
+    public int getDropped() {
+	return this.dropped;
+    }
+
+    @Override
+    public String toString() {
+	return String.format(
+			     "TransferRunReport(" +
+			     "executed: %d, retried: %d, dropped: %d)",
+			     executed, retried, dropped);
+    }
+}
+
+class TransferScheduler {
+    private static final long tickMillis = 1_000L;
+    private static final byte executed = 0;
+    private static final byte retry = 1;
+    private static final byte missing = 2;
+    private static final byte failed = 3;
+
+    private final ZoneId zone;
+    private final RetryPolicy retryPolicy;
+    private final TransferOrderStore store;
+    private final TimingWheel<StandingOrder> wheel;
+    private final Map<Long, StandingOrder> orders;
+    // what a failed save left behind, written with the next batch
+    private final ArrayList<StandingOrder> unsaved = new ArrayList<>();
+    private final ArrayList<Long> unremoved = new ArrayList<>();
+    private long lastId;
+
+    TransferScheduler(TransferOrderStore store) {
+	this(ZoneId.systemDefault(),
+	     new RetryPolicy(3, Duration.ofHours(1)),
+	     store,
+	     LocalDateTime.now());
+    }
+
+    TransferScheduler(
+		      ZoneId zone,
+		      RetryPolicy retryPolicy,
+		      TransferOrderStore store,
+		      LocalDateTime start) {
+	this.zone = zone;
+	this.retryPolicy = retryPolicy;
+	this.store = store;
+	this.wheel = new TimingWheel<>(tickMillis, toMillis(start));
+	this.orders = new HashMap<>();
+	for (StandingOrder order : store.loadAll()) {
+	    orders.put(order.getId(), order);
+	    lastId = Math.max(lastId, order.getId());
+	    wheel.schedule(toMillis(order.nextAttemptAt(retryPolicy)), order);
+	}
+    }
+
+    private long toMillis(LocalDateTime time) {
+	return time.atZone(zone).toInstant().toEpochMilli();
+    }
+
+    public synchronized int pending() {
+	return orders.size();
+    }
+
+    public synchronized StandingOrder schedule(
+					       int fromNumber,
+					       int toNumber,
+					       double amount,
+					       LocalDateTime due,
+					       int periodMonths) {
+	final StandingOrder order = new StandingOrder(
+						      ++lastId,
+						      fromNumber,
+						      toNumber,
+						      amount,
+						      due,
+						      periodMonths,
+						      0);
+	final ArrayList<StandingOrder> saved = new ArrayList<>();
+	saved.add(order);
+	write(saved, new ArrayList<>());
+	orders.put(order.getId(), order);
+	wheel.schedule(toMillis(due), order);
+	return order;
+    }
+
+    public synchronized boolean cancel(long id) {
+	if (orders.remove(id) == null)
+	    return false;
+	final ArrayList<Long> removed = new ArrayList<>();
+	removed.add(id);
+	write(new ArrayList<>(), removed);
+	return true;
+    }
+
+    public synchronized ArrayList<StandingOrder> ordersFrom(int accountNumber) {
+	final ArrayList<StandingOrder> from = new ArrayList<>();
+	for (StandingOrder order : orders.values())
+	    if (order.getFromNumber() == accountNumber)
+		from.add(order);
+	return from;
+    }
+
+    // every order due up to now runs as one batch: orders are grouped by
+    // source account, groups run in parallel and each group runs in order
+    // on a single thread, so no two workers ever wait on the same source.
+    // nothing thrown gets out, as it would stop the ticker for good
+    public synchronized TransferRunReport runDue(
+						 Service service,
+						 LocalDateTime now) {
+	final ArrayList<StandingOrder> due = new ArrayList<>();
+	wheel.advance(toMillis(now), order -> {
+		// cancelled or already rescheduled orders leave stale timers
+		if (orders.get(order.getId()) == order)
+		    due.add(order);
+	    });
+	if (due.isEmpty()) {
+	    save(new ArrayList<>(), new ArrayList<>());
+	    return new TransferRunReport(0, 0, 0);
+	}
+
+	final Map<Integer, ArrayList<Integer>> bySource = new HashMap<>();
+	for (int i = 0; i < due.size(); i++)
+	    bySource.computeIfAbsent(due.get(i).getFromNumber(),
+				     n -> new ArrayList<>()).add(i);
+	final byte[] outcomes = new byte[due.size()];
+	bySource.values().parallelStream().forEach(group -> {
+		for (int i : group)
+		    outcomes[i] = execute(service, due.get(i));
+	    });
+
+	final ArrayList<StandingOrder> saved = new ArrayList<>();
+	final ArrayList<Long> removed = new ArrayList<>();
+	int executedCount = 0;
+	int retriedCount = 0;
+	int droppedCount = 0;
+	for (int i = 0; i < due.size(); i++) {
+	    final StandingOrder order = due.get(i);
+	    final StandingOrder next;
+	    if (outcomes[i] == executed) {
+		executedCount++;
+		next = order.isRecurring() ? order.nextPeriod() : null;
+	    } else if (outcomes[i] == failed) {
+		// the service threw, not the order: the same attempt is armed
+		// again for the next tick, and its key keeps it from paying twice
+		retriedCount++;
+		wheel.schedule(toMillis(now) + tickMillis, order);
+		continue;
+	    } else if (outcomes[i] == retry && retryPolicy.canRetry(order)) {
+		retriedCount++;
+		next = order.retried();
+	    } else {
+		droppedCount++;
+		next = outcomes[i] != missing && order.isRecurring()
+		    ? order.nextPeriod()
+		    : null;
+	    }
+	    if (next == null) {
+		orders.remove(order.getId());
+		removed.add(order.getId());
+	    } else {
+		orders.put(next.getId(), next);
+		saved.add(next);
+		wheel.schedule(toMillis(next.nextAttemptAt(retryPolicy)), next);
+	    }
+	}
+	save(saved, removed);
+	return new TransferRunReport(executedCount, retriedCount, droppedCount);
+    }
+
+    // a store that fails keeps the changes for the next run; until then
+    // a restart runs those orders again, under the same keys
+    private void save(ArrayList<StandingOrder> saved, ArrayList<Long> removed) {
+	try {
+	    write(saved, removed);
+	} catch (RuntimeException ex) {
+	    unsaved.addAll(saved);
+	    unremoved.addAll(removed);
+	}
+    }
+
+    // whatever a failed save left behind goes first, so a later change
+    // to the same order is not undone by it
+    private void write(ArrayList<StandingOrder> saved, ArrayList<Long> removed) {
+	final ArrayList<StandingOrder> allSaved = new ArrayList<>(unsaved);
+	allSaved.addAll(saved);
+	final ArrayList<Long> allRemoved = new ArrayList<>(unremoved);
+	allRemoved.addAll(removed);
+	store.save(allSaved, allRemoved);
+	unsaved.clear();
+	unremoved.clear();
+    }
+
+    private byte execute(Service service, StandingOrder order) {
+	try {
+	    final Optional<Account> maybeFrom =
+		service.getAccountByNumber(order.getFromNumber());
+	    final Optional<Account> maybeTo =
+		service.getAccountByNumber(order.getToNumber());
+	    if (!maybeFrom.isPresent() || !maybeTo.isPresent())
+		return missing;
+	    // keyed by attempt, so an attempt that ran before a crash but was
+	    // not yet saved as done is not paid twice when it runs again
+	    final Optional<Account> maybeUpdated =
+		service.transfer(order.getAmount(), maybeFrom.get(), maybeTo.get(),
+				 "order-" + order.getId() + "-" + order.getDue()
+				 + "-" + order.getAttempts());
+	    return maybeUpdated.isPresent() ? executed : retry;
+	} catch (RuntimeException ex) {
+	    return failed;
+	}
+    }
+}
+
+// one logged in user: the token naming the session, and the copy of
+// the account the menus show, reloaded only once the Service reports
+// a change to it
+class Session {
+    private final String token;
+    private final int number;
+    private volatile Account account;
+    // the change stamp the copy was read under, or -1 when stale
+    private volatile long seen;
+    private volatile long lastActive;
+    private volatile boolean closed;
+
+    // the copy a login read is checked once by the first refresh, as
+    // nothing tells which stamp it was read under
+    Session(String token, Account account, long now) {
+	this.token = token;
+	this.number = account.getNumber();
+	this.account = account;
+	this.seen = -1L;
+	this.lastActive = now;
+    }
+
+    public String getToken() {
+	return this.token;
+    }
+
+    public int getNumber() {
+	return this.number;
+    }
+
+    public Account getAccount() {
+	return this.account;
+    }
+
+    public boolean isClosed() {
+	return this.closed;
+    }
+
+    long getLastActive() {
+	return this.lastActive;
     }
-}
 
-class SavingAccount implements Account {
+    void touch(long now) {
+	this.lastActive = now;
+    }
 
-    private final int number;
-    private final String branch;
-    private final String username;
-    private final double balance;
-    private final String hashpass;
+    void close() {
+	this.closed = true;
+    }
 
-    @Override
-    public int getNumber() {
-        return this.number;
+    void load(Account account, long seen) {
+	this.account = account;
+	this.seen = seen;
     }
-    @Override
-    public String getBranch() {
-        return this.branch;
+
+    long getSeen() {
+	return this.seen;
     }
-    @Override
-    public String getUserName() {
-        return this.username;
+}
+
+// sessions by token, each closed after idling past the timeout; a touch
+// only stamps the session, the wheel entry is left where it was, and
+// when it fires a session used since is scheduled again at its new
+// deadline instead of closed
+class SessionManager {
+    private final ConcurrentHashMap<String, Session> sessions =
+	new ConcurrentHashMap<>();
+    private final TimingWheel<Session> wheel;
+    private final ReentrantLock wheelLock = new ReentrantLock();
+    private final long idleMillis;
+    private final LongSupplier clock;
+    private final SecureRandom random = new SecureRandom();
+    private final LongAdder reloads = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+
+    SessionManager(long idleMillis) {
+	this(idleMillis, System::currentTimeMillis);
     }
-    @Override
-    public double getBalance() {
-        return this.balance;
+
+    SessionManager(long idleMillis, LongSupplier clock) {
+	this.idleMillis = idleMillis;
+	this.clock = clock;
+	this.wheel = new TimingWheel<>(Math.max(1L, idleMillis / 64),
+				       clock.getAsLong());
     }
-    @Override
-    public boolean verifyPass(String passAttempt) {
-	return BCrypt.checkpw(passAttempt, hashpass);
+
+    public int size() {
+	return sessions.size();
     }
 
-    @Override
-    public Account copyWithAmount(double amount) {
-	return new SavingAccount(
-				 this.number,
-				 this.branch,
-				 this.username,
-				 amount,
-				 this.hashpass
-				 );
+    public long getReloads() {
+	return reloads.sum();
     }
 
-    @Override
-    public Account deposit(double amount) {
-	return this.copyWithAmount(this.balance + amount);
+    public long getExpired() {
+	return expired.sum();
     }
-    
-    @Override
-    public boolean isValidTransfer(double amount){
-	return this.hasBalance(amount);
+
+    public Session open(Account account) {
+	final byte[] bytes = new byte[16];
+	random.nextBytes(bytes);
+	final long now = clock.getAsLong();
+	final Session session =
+	    new Session(HexFormat.of().formatHex(bytes), account, now);
+	sessions.put(session.getToken(), session);
+	wheelLock.lock();
+	try {
+	    wheel.schedule(now + idleMillis, session);
+	} finally {
+	    wheelLock.unlock();
+	}
+	return session;
     }
 
-    @Override
-    public Pair<Account, Account> transfer(double amount, Account to) {
-	Account updatedFrom = this.copyWithAmount(this.balance - amount);
-	
-	Account updatedTo = to.copyWithAmount(to.getBalance() + amount);
-	return new Pair(updatedFrom, updatedTo);
+    public Optional<Session> find(String token) {
+	final Session session = sessions.get(token);
+	if (session == null || !touch(session))
+	    return Optional.empty();
+	return Optional.of(session);
     }
 
-    @Override
-    public boolean isValidWithdraw(double amount) {
-	return this.hasBalance(amount);
+    // false once the session has timed out or was closed
+    public boolean touch(Session session) {
+	final long now = clock.getAsLong();
+	if (session.isClosed() || now - session.getLastActive() >= idleMillis) {
+	    close(session);
+	    return false;
+	}
+	session.touch(now);
+	return true;
     }
-    
-    @Override
-    public Account withdraw(double amount) {
-	return this.copyWithAmount(this.balance - amount);
+
+    // the cached copy, unless the account's change stamp moved since it
+    // was read; the stamp is read before the account, so a write racing
+    // the reload leaves the copy marked stale rather than current
+    public Account refresh(Session session, Service service) {
+	final long stamp = service.changeStamp(session.getNumber());
+	if (stamp == session.getSeen())
+	    return session.getAccount();
+	reloads.increment();
+	final Optional<Account> current =
+	    service.getAccountByNumber(session.getNumber());
+	if (current.isPresent())
+	    session.load(current.get(), stamp);
+	return session.getAccount();
     }
 
-    private SavingAccount(
-			  int number,
-			  String branch,
-			  String username,
-			  double balance,
-			  String hashPass) {
-        this.number = number;
-        this.branch = branch;
-        this.username = username;
-        this.balance = balance;
-        this.hashpass = hashPass;
+    // a copy a mutation just returned; the next refresh checks it again
+    public void update(Session session, Account updated) {
+	if (updated.getNumber() != session.getNumber())
+	    throw new IllegalStateException("session of account "
+					    + session.getNumber()
+					    + " updated with account "
+					    + updated.getNumber());
+	session.load(updated, -1L);
     }
 
-    public SavingAccount(String username, String pass) {
-        this(Account.newNumber(), "4242-x", username, 0.0,
-	     BCrypt.hashpw(pass, BCrypt.gensalt()));
+    public void close(Session session) {
+	session.close();
+	sessions.remove(session.getToken(), session);
     }
 
-    @Override
-    public String toString() {
-        return String.format(
-			     "SavingAccount(" +
-			     "number: %d, branch: %s, " +
-			     "username: %s, balance: %.2f)",
-			     number, branch, username, balance);
+    public int expireDue() {
+	final long now = clock.getAsLong();
+	final ArrayList<Session> due = new ArrayList<>();
+	wheelLock.lock();
+	try {
+	    wheel.advance(now, due::add);
+	    for (Session session : due)
+		if (!session.isClosed()
+		    && now - session.getLastActive() < idleMillis)
+		    wheel.schedule(session.getLastActive() + idleMillis, session);
+	} finally {
+	    wheelLock.unlock();
+	}
+	int count = 0;
+	for (Session session : due)
+	    if (!session.isClosed() && now - session.getLastActive() >= idleMillis) {
+		close(session);
+		expired.increment();
+		count++;
+	    }
+	return count;
     }
 }
 
@@ -409,6 +10211,11 @@ interface IoAdapter {
     public String readPassword(String fmt, Object ... args);
     public String readPassword();
 
+    // where the user is connecting from, for throttling logins
+    default String getSource() {
+	return "local";
+    }
+
     default int readNumberUnsigned() {
 	String inputLine;
         int option;
@@ -456,6 +10263,15 @@ class ConsoleWrapper implements IoAdapter {
 	this.console = console;
     }
 
+    // the client address when the shell runs under ssh
+    @Override
+    public String getSource() {
+	final String client = System.getenv("SSH_CLIENT");
+	if (client == null || client.isBlank())
+	    return "local";
+	return client.split(" ")[0];
+    }
+
     @Override
     public IoAdapter printf(String format, Object ... args) {
 	console.printf(format, args);
@@ -488,10 +10304,21 @@ class ConsoleWrapper implements IoAdapter {
 class StreamWrapper implements IoAdapter {
     PrintStream out;
     Scanner in;
+    String source;
 
     public StreamWrapper(PrintStream out, InputStream in) {
+	this(out, in, "local");
+    }
+
+    public StreamWrapper(PrintStream out, InputStream in, String source) {
 	this.out = out;
 	this.in = new Scanner(in);
+	this.source = source;
+    }
+
+    @Override
+    public String getSource() {
+	return this.source;
     }
 
     @Override
@@ -524,6 +10351,7 @@ class StreamWrapper implements IoAdapter {
 
 abstract class Menu<A> {
     protected static final String invalidChoice = "Invalid Choice\n";
+    protected static final String busy = "Server busy, try again later\n";
     protected final IoAdapter console;
 
     protected Menu(IoAdapter console) {
@@ -589,8 +10417,10 @@ class MainMenu extends Menu<Void> {
         boolean wasCreated = false;
         Account account = null;
 
-	account = newAccountForm.collect(null);
-	wasCreated = service.createAccount(account);
+	account = newAccountForm.collect(service);
+	final Account created = account;
+	wasCreated = service.getAdmission()
+	    .admit(WorkClass.MUTATION, () -> service.createAccount(created));
 
 	if (!wasCreated) {
             console.printf("Account creation failed\n");
@@ -628,10 +10458,14 @@ class MainMenu extends Menu<Void> {
 	int choice = -1;
 	while (choice != 0) {
 	    choice = this.promptMenuChoice();
-	    if (choice == 1) {
-		this.login(service);
-	    } else if (choice == 2) {
-		this.promptNewAccount(service);
+	    try {
+		if (choice == 1) {
+		    this.login(service);
+		} else if (choice == 2) {
+		    this.promptNewAccount(service);
+		}
+	    } catch (ServiceBusyException ex) {
+		console.printf(this.busy);
 	    }
 	}
     }
@@ -639,35 +10473,65 @@ class MainMenu extends Menu<Void> {
 
 abstract class UserMenu<TypeAccount extends Account> extends Menu<TypeAccount> {
 
-    protected Optional<TypeAccount> maybeUser = Optional.empty();
-    
-    UserMenu(IoAdapter console) {
+    protected static final int statementPage = 10;
+    protected final SessionManager sessions;
+
+    UserMenu(IoAdapter console, SessionManager sessions) {
 	super(console);
+	this.sessions = sessions;
     }
 
     protected void greeting(Account account) {
 	console.printf("Welcome to ShellBank %s\n", account.getUserName());
     }
     
-    protected void logOffSession() {
-	maybeUser = Optional.empty();
+    protected void printStatement(Service service, Account account, int days) {
+	final LocalDateTime to = LocalDateTime.now().plusSeconds(1);
+	final LocalDateTime from = to.minusDays(days);
+	final int total = service.getAdmission()
+	    .admit(WorkClass.READ,
+		   () -> service.countStatement(account, from, to));
+
+	console.printf("%d transactions in the last %d days\n", total, days);
+	for (int offset = 0; offset < total; offset += statementPage) {
+	    final int first = offset;
+	    for (Transaction transaction : service.getAdmission()
+		     .admit(WorkClass.READ,
+			    () -> service.statement(account, from, to,
+						    first, statementPage)))
+		console.printf("%s\n", transaction);
+	    if (offset + statementPage >= total)
+		break ;
+	    console.printf("More (1), Back (0)\n");
+	    if (console.readNumberUnsigned() != 1)
+		break ;
+	}
     }
 
-    protected void logInSession(TypeAccount account) {
-	maybeUser = Optional.ofNullable(account);
+    protected void logOffSession(Session session) {
+	sessions.close(session);
     }
 
-    protected void updateSession(TypeAccount updated) {
-	if (!maybeUser.isPresent())
-	    return ;
-	final Account current = maybeUser.get();
-	if (current.number != updated.number) {
-	    throw new IllegalStateException(
-					    "updateSession shold be called " +
-					    "only whith updated copy of " +
-					    "current Account");
-	} else
-	    this.maybeUser = Optional.of(updated);
+    protected Session logInSession(TypeAccount account) {
+	return sessions.open(account);
+    }
+
+    protected void updateSession(Session session, TypeAccount updated) {
+	sessions.update(session, updated);
+    }
+
+    protected boolean stillActive(Session session) {
+	if (sessions.touch(session))
+	    return true;
+	console.printf("Session expired\n");
+	return false;
+    }
+
+    // the session's copy, read again only when the account has changed,
+    // be it by this session or by another one paying into it
+    @SuppressWarnings("unchecked")
+    protected TypeAccount currentOf(Service service, Session session) {
+	return (TypeAccount) sessions.refresh(session, service);
     }
 }
 
@@ -676,7 +10540,7 @@ class AccountMenu extends UserMenu<Account> {
     private final ArrayList<Object> menus;
     
     AccountMenu(IoAdapter console, CheckingAccountMenu checkingAccountMenu, SavingAccountMenu savingAccountMenu) {
-	super(console);
+	super(console, null); // sessions kept by the delegates
 	menus = new ArrayList<Object>();
 	menus.add(checkingAccountMenu);
 	menus.add(savingAccountMenu);
@@ -718,58 +10582,134 @@ class AccountMenu extends UserMenu<Account> {
 class CheckingAccountMenu extends UserMenu<CheckingAccount> {
 
     private static final String startMenu =
-	"Balance (1), Loan (2), Deposit (3), Withdraw (4), Transfer (5) Back (0)\n";
+	"Balance (1), Loan (2), Deposit (3), Withdraw (4), Transfer (5), " +
+	"Repay (6), Schedule (7), Statement (8) Back (0)\n";
+    private final LoanScheduler loanScheduler;
     private final LoanIoForm loanForm;
     private final DepositIoForm depositForm;
     private final WithdrawIoForm withdrawForm;
     private final TransferIoForm transferForm;
+    private final ScheduleTransferIoForm scheduleForm;
+    private final StatementIoForm statementForm;
     
     CheckingAccountMenu(
 			IoAdapter console,
+			SessionManager sessions,
+			LoanScheduler loanScheduler,
 			LoanIoForm loanForm,
 			DepositIoForm depositForm,
 			WithdrawIoForm withdrawForm,
-			TransferIoForm transferForm) {
-	super(console);
+			TransferIoForm transferForm,
+			ScheduleTransferIoForm scheduleForm,
+			StatementIoForm statementForm) {
+	super(console, sessions);
+	this.loanScheduler = loanScheduler;
 	this.loanForm = loanForm;
 	this.depositForm = depositForm;
 	this.withdrawForm = withdrawForm;
 	this.transferForm = transferForm;
+	this.scheduleForm = scheduleForm;
+	this.statementForm = statementForm;
     }
     
     private void balance(Account account) {
-	console.printf("balance: %.2f\n", account.getBalance());
+	console.printf("balance: %.2f %s\n",
+		       account.getBalance(), account.getCurrency());
+    }
+
+    private void statement(Service service, CheckingAccount account) {
+	final Optional<Integer> maybeDays = statementForm.collect(account);
+
+	if (!maybeDays.isPresent()) {
+	    console.printf("Statement was not shown\n");
+	} else {
+	    this.printStatement(service, account, maybeDays.get());
+	}
+    }
+
+    private void schedule(Service service, CheckingAccount account) {
+	final Optional<StandingOrder> maybeOrder =
+	    scheduleForm.collect(new Pair<>(account, service));
+
+	if (!maybeOrder.isPresent()) {
+	    console.printf("Transfer was not scheduled\n");
+	} else {
+	    console.printf("Transfer scheduled: %s\n", maybeOrder.get());
+	}
     }
 
-    private void loan(Service service, CheckingAccount account) {
+    private void loan(
+		      Service service,
+		      Session session,
+		      CheckingAccount account) {
 	double validatedLoanAmount = loanForm.collect(account);
 	final Optional<CheckingAccount> maybeUpdated =
-	    service.loan(validatedLoanAmount, account);
+	    service.getAdmission()
+	    .admit(WorkClass.MUTATION,
+		   () -> loanScheduler.openLoan(
+						service,
+						validatedLoanAmount,
+						account,
+						LocalDateTime.now()));
 
 	if (!maybeUpdated.isPresent()) {
 	    console.printf("Server Error: Loan was not created\n");
 	} else {
 	    console.printf("Loan amount is now available\n");
-	    this.updateSession(maybeUpdated.get());
+	    this.updateSession(session, maybeUpdated.get());
+	}
+    }
+
+    private void repay(
+		      Service service,
+		      Session session,
+		      CheckingAccount account) {
+	final Optional<LoanPlan> maybePlan =
+	    loanScheduler.nextPlan(account.getNumber());
+
+	if (!maybePlan.isPresent()) {
+	    console.printf("No loan to repay\n");
+	    return;
+	}
+	console.printf("Repay:\n");
+	console.printf("Loan: %s\n", maybePlan.get());
+	final Optional<CheckingAccount> maybeUpdated =
+	    service.getAdmission()
+	    .admit(WorkClass.MUTATION,
+		   () -> loanScheduler.payNext(service, account));
+
+	if (!maybeUpdated.isPresent()) {
+	    console.printf("Installment was not paid\n");
+	} else {
+	    console.printf("Installment paid\n");
+	    this.updateSession(session, maybeUpdated.get());
 	}
     }
 
-    private void deposit(Service service, CheckingAccount account) {
+    private void deposit(
+		      Service service,
+		      Session session,
+		      CheckingAccount account) {
 	
 	double validatedLoanAmount = depositForm.collect(account);
 	final Optional<Account> maybeUpdated =
-	    service.deposit(validatedLoanAmount, account);
+	    service.getAdmission()
+	    .admit(WorkClass.MUTATION,
+		   () -> service.deposit(validatedLoanAmount, account));
 
 	if (!maybeUpdated.isPresent()
 	    || !(maybeUpdated.get() instanceof CheckingAccount)) {
 	    console.printf("Server Error: Deposit was not registered\n");
 	} else {
 	    console.printf("Deposit amount is now available\n");
-	    this.updateSession((CheckingAccount) maybeUpdated.get());
+	    this.updateSession(session, (CheckingAccount) maybeUpdated.get());
 	}
     }
 
-    private void transfer(Service service, CheckingAccount accountFrom) {
+    private void transfer(
+			  Service service,
+			  Session session,
+			  CheckingAccount accountFrom) {
 	
 	final Optional<Pair<Double, Account>>  maybeAmountToAccount =
 	    transferForm.collect(new Pair(accountFrom, service));
@@ -784,35 +10724,51 @@ class CheckingAccountMenu extends UserMenu<CheckingAccount> {
 	    maybeAmountToAccount.get().getSnd();
 
 	final Optional<Account> maybeUpdated =
-	    service.transfer(validatedTransferAmount, accountFrom, accountTo);
+	    service.getAdmission()
+	    .admit(WorkClass.MUTATION,
+		   () -> service.transfer(validatedTransferAmount,
+					  accountFrom, accountTo));
 
 	if (!maybeUpdated.isPresent()
-	    || !(maybeUpdated.get() instanceof CheckingAccount)) {
+	    && !service.withinLimits(Operation.TRANSFER_OUT, accountFrom,
+				     validatedTransferAmount)) {
+	    console.printf("Transfer limit reached, try again later\n");
+	} else if (!maybeUpdated.isPresent()
+		   || !(maybeUpdated.get() instanceof CheckingAccount)) {
 	    console.printf("Server Error: Transfer was not registered\n");
 	} else {
 	    console.printf("Transfer completed\n");
-	    this.updateSession((CheckingAccount) maybeUpdated.get());
+	    this.updateSession(session, (CheckingAccount) maybeUpdated.get());
 	}
     }
     
-    private void withdraw(Service service, CheckingAccount account) {
+    private void withdraw(
+		      Service service,
+		      Session session,
+		      CheckingAccount account) {
 	
 	double validatedLoanAmount = withdrawForm.collect(account);
 	final Optional<Account> maybeUpdated =
-	    service.withdraw(validatedLoanAmount, account);
+	    service.getAdmission()
+	    .admit(WorkClass.MUTATION,
+		   () -> service.withdraw(validatedLoanAmount, account));
 
 	if (!maybeUpdated.isPresent()
-	    || !(maybeUpdated.get() instanceof CheckingAccount)) {
+	    && !service.withinLimits(Operation.WITHDRAW, account,
+				     validatedLoanAmount)) {
+	    console.printf("Withdraw limit reached, try again later\n");
+	} else if (!maybeUpdated.isPresent()
+		   || !(maybeUpdated.get() instanceof CheckingAccount)) {
 	    console.printf("Server Error: Withdraw was not registered\n");
 	} else {
 	    console.printf("Withdraw amount is now available\n");
-	    this.updateSession((CheckingAccount) maybeUpdated.get());
+	    this.updateSession(session, (CheckingAccount) maybeUpdated.get());
 	}
     }
 
     @Override
     public Integer getMenuSize() {
-	return 5;
+	return 8;
     }
     
     @Override
@@ -825,83 +10781,142 @@ class CheckingAccountMenu extends UserMenu<CheckingAccount> {
 
 	int choice = -1;
 
-	this.logInSession(account);
+	final Session session = this.logInSession(account);
 	this.greeting(account);
 	account = null;
-	while (choice != 0 && maybeUser.isPresent()) {
-	    final CheckingAccount current = maybeUser.get(); 
+	while (choice != 0) {
 	    choice = this.promptMenuChoice();
-	    if (choice == 1) {
-		balance(current); 
-	    } else if (choice == 2) {
-		loan(service, current);
-	    } else if (choice == 3) {
-		deposit(service, current);
-	    } else if (choice == 4) {
-		withdraw(service, current);
-	    } else if (choice == 5) {
-		transfer(service, current);
-	    }	    
+	    if (!this.stillActive(session))
+		break ;
+	    final CheckingAccount current = this.currentOf(service, session);
+	    try {
+		if (choice == 1) {
+		    balance(current); 
+		} else if (choice == 2) {
+		    loan(service, session, current);
+		} else if (choice == 3) {
+		    deposit(service, session, current);
+		} else if (choice == 4) {
+		    withdraw(service, session, current);
+		} else if (choice == 5) {
+		    transfer(service, session, current);
+		} else if (choice == 6) {
+		    repay(service, session, current);
+		} else if (choice == 7) {
+		    schedule(service, current);
+		} else if (choice == 8) {
+		    statement(service, current);
+		}
+	    } catch (ServiceBusyException ex) {
+		console.printf(this.busy);
+	    }
 	}
-	this.logOffSession();
+	this.logOffSession(session);
     }
 }
 
 class SavingAccountMenu extends UserMenu<SavingAccount> {
 
     private static final String startMenu =
-	"Balance (1), Deposit (2), Withdraw (3), Transfer (4), Back (0)\n";
+	"Balance (1), Deposit (2), Withdraw (3), Transfer (4), " +
+	"Schedule (5), Statement (6), Back (0)\n";
     private final DepositIoForm depositForm;
     private final WithdrawIoForm withdrawForm;
     private final TransferIoForm transferForm;
-    
+    private final ScheduleTransferIoForm scheduleForm;
+    private final StatementIoForm statementForm;
+
     SavingAccountMenu(
 		      IoAdapter console,
+		      SessionManager sessions,
 		      DepositIoForm depositForm,
 		      WithdrawIoForm withdrawForm,
-		      TransferIoForm transferForm) {
+		      TransferIoForm transferForm,
+		      ScheduleTransferIoForm scheduleForm,
+		      StatementIoForm statementForm) {
 
-	super(console);
+	super(console, sessions);
 	this.depositForm = depositForm;
 	this.withdrawForm = withdrawForm;
 	this.transferForm = transferForm;
+	this.scheduleForm = scheduleForm;
+	this.statementForm = statementForm;
     }
 
     private void balance(Account account) {
-	console.printf("balance: %.2f\n", account.getBalance());
+	console.printf("balance: %.2f %s\n",
+		       account.getBalance(), account.getCurrency());
+    }
+
+    private void statement(Service service, SavingAccount account) {
+	final Optional<Integer> maybeDays = statementForm.collect(account);
+
+	if (!maybeDays.isPresent()) {
+	    console.printf("Statement was not shown\n");
+	} else {
+	    this.printStatement(service, account, maybeDays.get());
+	}
     }
 
-    private void deposit(Service service, SavingAccount account) {
+    private void schedule(Service service, SavingAccount account) {
+	final Optional<StandingOrder> maybeOrder =
+	    scheduleForm.collect(new Pair<>(account, service));
+
+	if (!maybeOrder.isPresent()) {
+	    console.printf("Transfer was not scheduled\n");
+	} else {
+	    console.printf("Transfer scheduled: %s\n", maybeOrder.get());
+	}
+    }
+
+    private void deposit(
+		      Service service,
+		      Session session,
+		      SavingAccount account) {
 	
 	double validatedLoanAmount = depositForm.collect(account);
 	final Optional<Account> maybeUpdated =
-	    service.deposit(validatedLoanAmount, account);
+	    service.getAdmission()
+	    .admit(WorkClass.MUTATION,
+		   () -> service.deposit(validatedLoanAmount, account));
 
 	if (!maybeUpdated.isPresent()
 	    || !(maybeUpdated.get() instanceof SavingAccount)) {
 	    console.printf("Server Error: Deposit was not registered\n");
 	} else {
 	    console.printf("Deposit amount is now available\n");
-	    this.updateSession((SavingAccount) maybeUpdated.get());
+	    this.updateSession(session, (SavingAccount) maybeUpdated.get());
 	}
     }
     
-    private void withdraw(Service service, SavingAccount account) {
+    private void withdraw(
+		      Service service,
+		      Session session,
+		      SavingAccount account) {
 	
 	double validatedLoanAmount = withdrawForm.collect(account);
 	final Optional<Account> maybeUpdated =
-	    service.withdraw(validatedLoanAmount, account);
+	    service.getAdmission()
+	    .admit(WorkClass.MUTATION,
+		   () -> service.withdraw(validatedLoanAmount, account));
 
 	if (!maybeUpdated.isPresent()
-	    || !(maybeUpdated.get() instanceof SavingAccount)) {
+	    && !service.withinLimits(Operation.WITHDRAW, account,
+				     validatedLoanAmount)) {
+	    console.printf("Withdraw limit reached, try again later\n");
+	} else if (!maybeUpdated.isPresent()
+		   || !(maybeUpdated.get() instanceof SavingAccount)) {
 	    console.printf("Server Error: Withdraw was not registered\n");
 	} else {
 	    console.printf("Withdraw amount is now available\n");
-	    this.updateSession((SavingAccount) maybeUpdated.get());
+	    this.updateSession(session, (SavingAccount) maybeUpdated.get());
 	}
     }
     
-    private void transfer(Service service, SavingAccount accountFrom) {
+    private void transfer(
+			  Service service,
+			  Session session,
+			  SavingAccount accountFrom) {
 	
 	final Optional<Pair<Double, Account>>  maybeAmountToAccount =
 	    transferForm.collect(new Pair(accountFrom, service));
@@ -916,20 +10931,27 @@ class SavingAccountMenu extends UserMenu<SavingAccount> {
 	    maybeAmountToAccount.get().getSnd();
 
 	final Optional<Account> maybeUpdated =
-	    service.transfer(validatedTransferAmount, accountFrom, accountTo);
+	    service.getAdmission()
+	    .admit(WorkClass.MUTATION,
+		   () -> service.transfer(validatedTransferAmount,
+					  accountFrom, accountTo));
 
 	if (!maybeUpdated.isPresent()
-	    || !(maybeUpdated.get() instanceof SavingAccount)) {
+	    && !service.withinLimits(Operation.TRANSFER_OUT, accountFrom,
+				     validatedTransferAmount)) {
+	    console.printf("Transfer limit reached, try again later\n");
+	} else if (!maybeUpdated.isPresent()
+		   || !(maybeUpdated.get() instanceof SavingAccount)) {
 	    console.printf("Server Error: Transfer was not registered\n");
 	} else {
 	    console.printf("Transfer completed\n");
-	    this.updateSession((SavingAccount) maybeUpdated.get());
+	    this.updateSession(session, (SavingAccount) maybeUpdated.get());
 	}
     }
     
     @Override
     public Integer getMenuSize() {
-	return 4;
+	return 6;
     }
     
     @Override
@@ -942,23 +10964,33 @@ class SavingAccountMenu extends UserMenu<SavingAccount> {
 
 	int choice = -1;
 
-	this.logInSession(account);
+	final Session session = this.logInSession(account);
 	this.greeting(account);
 	account = null;
-	while (choice != 0 && maybeUser.isPresent()) {
-	    final SavingAccount current = maybeUser.get(); 
+	while (choice != 0) {
 	    choice = this.promptMenuChoice();
-	    if (choice == 1) {
-		balance(current); 
-	    } else if (choice == 2) {
-		deposit(service, current);
-	    } else if (choice == 3) {
-		withdraw(service, current);
-	    } else if (choice == 4) {
-		transfer(service, current);
+	    if (!this.stillActive(session))
+		break ;
+	    final SavingAccount current = this.currentOf(service, session);
+	    try {
+		if (choice == 1) {
+		    balance(current); 
+		} else if (choice == 2) {
+		    deposit(service, session, current);
+		} else if (choice == 3) {
+		    withdraw(service, session, current);
+		} else if (choice == 4) {
+		    transfer(service, session, current);
+		} else if (choice == 5) {
+		    schedule(service, current);
+		} else if (choice == 6) {
+		    statement(service, current);
+		}
+	    } catch (ServiceBusyException ex) {
+		console.printf(this.busy);
 	    }
 	}
-	this.logOffSession();
+	this.logOffSession(session);
     }
 }
 
@@ -1039,7 +11071,9 @@ class TransferIoForm extends IoForm<Optional<Pair<Double, Account>>, Pair<Accoun
 	    }
 
 	    final Optional<Account> maybeToAccount =
-		service.getAccountByNumber(numberToAccount);
+		service.getAdmission()
+		.admit(WorkClass.READ,
+		       () -> service.getAccountByNumber(numberToAccount));
 	    if (!maybeToAccount.isPresent()) {
 		console.printf("Account not found\n");
 		if (tryAgain()) {
@@ -1051,7 +11085,8 @@ class TransferIoForm extends IoForm<Optional<Pair<Double, Account>>, Pair<Accoun
 	    final Account toAccount = maybeToAccount.get();
 	    
 	    console.printf("How much would you like to transfer:\n");
-	    console.printf("Balance: %.2f\n", fromAccount.getBalance());
+	    console.printf("Balance: %.2f %s\n",
+			   fromAccount.getBalance(), fromAccount.getCurrency());
 	    final Optional<Double> maybeTransferAmount =
 		console.readDoublerUnsigned();
 
@@ -1065,12 +11100,109 @@ class TransferIoForm extends IoForm<Optional<Pair<Double, Account>>, Pair<Accoun
 		    break ;
 	    }
 	    final Double transferAmount = maybeTransferAmount.get();
+	    if (!fromAccount.getCurrency().equals(toAccount.getCurrency())) {
+		final Optional<Double> credited =
+		    service.convert(transferAmount, fromAccount, toAccount);
+		if (!credited.isPresent()) {
+		    console.printf("No exchange rate from %s to %s\n",
+				   fromAccount.getCurrency(),
+				   toAccount.getCurrency());
+		    if (tryAgain())
+			continue ;
+		    else
+			break ;
+		}
+		console.printf("Credits %.2f %s\n",
+			       credited.get(), toAccount.getCurrency());
+	    }
 	    return Optional.of(new Pair(transferAmount, toAccount));
 	}
 	return Optional.empty();
     }
 }
 
+class ScheduleTransferIoForm
+    extends IoForm<Optional<StandingOrder>, Pair<Account, Service>> {
+
+    private final TransferIoForm transferForm;
+    private final TransferScheduler transferScheduler;
+
+    public ScheduleTransferIoForm(
+				  IoAdapter console,
+				  TransferIoForm transferForm,
+				  TransferScheduler transferScheduler) {
+	super(console);
+	this.transferForm = transferForm;
+	this.transferScheduler = transferScheduler;
+    }
+
+    @Override
+    public Optional<StandingOrder> collect(Pair<Account, Service> accountToService) {
+
+	final Account fromAccount = accountToService.getFst();
+
+	console.printf("Schedule:\n");
+	final Optional<Pair<Double, Account>> maybeAmountToAccount =
+	    transferForm.collect(accountToService);
+	if (!maybeAmountToAccount.isPresent())
+	    return Optional.empty();
+
+	while (true) {
+	    console.printf("In how many days: ");
+	    final int days = console.readNumberUnsigned();
+	    if (days < 0) {
+		console.printf("Invalid number of days\n");
+		if (tryAgain())
+		    continue;
+		else
+		    break;
+	    }
+	    console.printf("Repeat every month: No (0), Yes (1)\n");
+	    final int repeat = console.readNumberUnsigned();
+	    if (repeat < 0 || repeat > 1) {
+		console.printf("Invalid choice\n");
+		if (tryAgain())
+		    continue;
+		else
+		    break;
+	    }
+	    return Optional.of(transferScheduler.schedule(
+							  fromAccount.getNumber(),
+							  maybeAmountToAccount.get().getSnd().getNumber(),
+							  maybeAmountToAccount.get().getFst(),
+							  LocalDateTime.now().plusDays(days),
+							  repeat));
+	}
+	return Optional.empty();
+    }
+}
+
+class StatementIoForm extends IoForm<Optional<Integer>, Account> {
+
+    public StatementIoForm(IoAdapter console) {
+	super(console);
+    }
+
+    @Override
+    public Optional<Integer> collect(Account account) {
+
+	console.printf("Statement:\n");
+	while (true) {
+	    console.printf("How many days back: ");
+	    final int days = console.readNumberUnsigned();
+	    if (days <= 0) {
+		console.printf("Invalid number of days\n");
+		if (tryAgain())
+		    continue;
+		else
+		    break;
+	    }
+	    return Optional.of(days);
+	}
+	return Optional.empty();
+    }
+}
+
 class WithdrawIoForm extends IoForm<Double, Account> {
 
     public WithdrawIoForm(IoAdapter console) {
@@ -1144,7 +11276,7 @@ class LoanIoForm extends IoForm<Double, Account> {
     }
 }
 
-class NewAccountIoForm extends IoForm<Account, Void> {
+class NewAccountIoForm extends IoForm<Account, Service> {
     private static final String promptName = "Please type your name\n";
 
     public NewAccountIoForm(IoAdapter console) {
@@ -1152,7 +11284,7 @@ class NewAccountIoForm extends IoForm<Account, Void> {
     }
 
     @Override
-    public Account collect(Void args) {
+    public Account collect(Service service) {
         Account account = null;
 
 	console.printf("New Account:\n");
@@ -1167,6 +11299,44 @@ class NewAccountIoForm extends IoForm<Account, Void> {
 		    break;
 	    }
 
+	    // only asked when the rate table knows more than one currency
+	    final String[] currencies = service.getFx().current().currencies();
+	    String currency = Account.defaultCurrency;
+	    if (currencies.length > 1) {
+		console.printf("Choose currency:");
+		for (int i = 0; i < currencies.length; i++)
+		    console.printf(" %s (%d)%s", currencies[i], i + 1,
+				   i + 1 < currencies.length ? "," : "\n");
+		final int choice = console.readNumberUnsigned();
+		if (choice < 1 || choice > currencies.length) {
+		    console.printf("Invalid currency\n");
+		    if (tryAgain())
+			continue;
+		    else
+			break;
+		}
+		currency = currencies[choice - 1];
+	    }
+
+	    // likewise only asked when more than one branch is open
+	    final List<String> branches = service.getBranches().getOffered();
+	    String branch = Account.defaultBranch;
+	    if (branches.size() > 1) {
+		console.printf("Choose branch:");
+		for (int i = 0; i < branches.size(); i++)
+		    console.printf(" %s (%d)%s", branches.get(i), i + 1,
+				   i + 1 < branches.size() ? "," : "\n");
+		final int choice = console.readNumberUnsigned();
+		if (choice < 1 || choice > branches.size()) {
+		    console.printf("Invalid branch\n");
+		    if (tryAgain())
+			continue;
+		    else
+			break;
+		}
+		branch = branches.get(choice - 1);
+	    }
+
 	    final String name = console.readLine(this.promptName);
 	    if (name == null || name.isBlank()) {
 		console.printf("Invalid name\n");
@@ -1194,9 +11364,9 @@ class NewAccountIoForm extends IoForm<Account, Void> {
 		    break;
 	    }
 	    if (type == 1)
-		account = new CheckingAccount(name, pass);
+		account = new CheckingAccount(name, pass, currency, branch);
 	    else if (type == 2)
-		account = new SavingAccount(name, pass);
+		account = new SavingAccount(name, pass, currency, branch);
 	    else
 		throw new IllegalStateException("Invalid account type " +
 						"while creating new account");
@@ -1207,40 +11377,96 @@ class NewAccountIoForm extends IoForm<Account, Void> {
 }
 
 class LoginIoForm extends IoForm<Optional<Account>, Service> {
+    private final LoginThrottle throttle;
 
     public LoginIoForm(IoAdapter console) {
+	this(console, new LoginThrottle());
+    }
+
+    public LoginIoForm(IoAdapter console, LoginThrottle throttle) {
 	super(console);
+	this.throttle = throttle;
     }
 
     @Override
     public Optional<Account> collect(Service service) {
-        int numberAccount;
-        Optional<Account> maybeAccount;
+	final List<Account> found;
 	Account account;
         String pass;
 
         console.printf("Login:\n");
+	console.printf("(an account number, or the user name)\n");
 	console.printf("Number Account: ");
 
-	numberAccount = console.readNumberUnsigned();
-	if (numberAccount < 0) {
-            console.printf("Account not found\n");
+	final String source = console.getSource();
+	final long sourceWait = throttle.waitOf(source);
+	if (sourceWait > 0L) {
+	    tooMany(sourceWait);
 	    return Optional.empty();
-        }
-
-	maybeAccount = service.getAccountByNumber(numberAccount);
-	if (!maybeAccount.isPresent()) {
+	}
+	found = find(service, console.readLine());
+	if (found.isEmpty()) {
+	    throttle.missed(source);
             console.printf("Account not found\n");
 	    return Optional.empty();
         }
-	account = maybeAccount.get();
+	// listing the accounts behind a shared name would give their kinds
+	// and numbers away before any password is checked
+	if (found.size() > 1) {
+	    throttle.missed(source);
+	    console.printf("More than one account has that name, "
+			   + "log in with the account number\n");
+	    return Optional.empty();
+	}
+	account = found.get(0);
 
 	pass = console.readPassword("Enter 4 digit number password: ");
-        if (!account.verifyPass(pass)) {
+	final long wait = throttle.attempt(account.getNumber(), source);
+	if (wait > 0L) {
+	    tooMany(wait);
+	    return Optional.empty();
+	}
+	final boolean verified;
+	try {
+	    verified = service.getAdmission()
+		.admit(WorkClass.LOGIN, () -> account.verifyPass(pass));
+	} catch (ServiceBusyException ex) {
+	    // shed before bcrypt ran, so the password was never tried
+	    throttle.refund(account.getNumber(), source);
+	    throw ex;
+	}
+	if (!verified) {
             console.printf("Invalid password\n");
 	    return Optional.empty();
 	}
-	return maybeAccount;
+	throttle.succeeded(account.getNumber(), source);
+	return Optional.of(account);
+    }
+
+    private void tooMany(long waitMillis) {
+	console.printf("Too many attempts, try again in %d seconds\n",
+		       (waitMillis + 999L) / 1000L);
+    }
+
+    // the account behind a number, or every account holding a name
+    private List<Account> find(Service service, String input) {
+	if (input == null || input.isEmpty())
+	    return List.of();
+	if (input.chars().allMatch(Character::isDigit)) {
+	    final int numberAccount;
+	    try {
+		numberAccount = Integer.parseInt(input);
+	    } catch (NumberFormatException ex) {
+		return List.of();
+	    }
+	    return service.getAdmission()
+		.admit(WorkClass.READ,
+		       () -> service.getAccountByNumber(numberAccount))
+		.map(List::of)
+		.orElse(List.of());
+	}
+	return service.getAdmission()
+	    .admit(WorkClass.READ, () -> service.accountsOf(input));
     }
 }
 
@@ -1265,30 +11491,132 @@ class Presenter {
 
 class Main {
 
+    // -Dshellbank.node.ring=1;1=/bank/1/node.sock,2=/bank/2/node.sock
+    // starts one of the first nodes, -Dshellbank.node.join=/bank/1/node.sock
+    // adds one to a running cluster
+    static void runNode(Path directory) {
+	final int id = Integer.getInteger("shellbank.node.id", 1);
+	final boolean sync =
+	    Boolean.parseBoolean(System.getProperty("shellbank.node.sync", "true"));
+	final String seed = System.getProperty("shellbank.node.join");
+	final String spec =
+	    System.getProperty("shellbank.node.ring",
+			       "1;" + id + "=" + ClusterNode.socketOf(directory));
+	try {
+	    final ClusterNode node = seed != null
+		? ClusterNode.join(id, directory, seed, sync)
+		: ClusterNode.start(id, directory, HashRing.parse(spec), sync);
+	    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+			    node.close();
+			} catch (IOException ex) {
+			    // exiting anyway
+			}
+	    }));
+	    node.awaitClose();
+	} catch (IOException ex) {
+	    throw new UncheckedIOException(ex);
+	} catch (InterruptedException ex) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+
+    // -Dshellbank.follow=port keeps a copy of the primary replicating to
+    // that port and answers balances from it, an account number a line
+    static void runFollower(int port) {
+	try (ReplicationFollower follower = ReplicationFollower.follow(port)) {
+	    final Scanner in = new Scanner(System.in);
+	    while (in.hasNextLine()) {
+		final String line = in.nextLine().trim();
+		if (line.isEmpty())
+		    continue ;
+		final int number;
+		try {
+		    number = Integer.parseInt(line);
+		} catch (NumberFormatException ex) {
+		    System.out.printf("Invalid account number %s\n", line);
+		    continue ;
+		}
+		final Optional<Double> balance = follower.balanceOf(number);
+		if (balance.isPresent())
+		    System.out.printf("%d %.2f\n", number, balance.get());
+		else
+		    System.out.printf("%d not found\n", number);
+	    }
+	} catch (IOException ex) {
+	    throw new UncheckedIOException(ex);
+	}
+    }
+
     static public Presenter defaultPresenter(IoAdapter ioAdapter) {
+	return defaultPresenter(
+				ioAdapter,
+				new LoanScheduler(),
+				new TransferScheduler(
+						      new TransferOrderStoreInMemory()));
+    }
+
+    static public Presenter defaultPresenter(
+					     IoAdapter ioAdapter,
+					     LoanScheduler loanScheduler,
+					     TransferScheduler transferScheduler) {
+	return defaultPresenter(ioAdapter, loanScheduler, transferScheduler,
+				new SessionManager(Duration.ofMinutes(15)
+						   .toMillis()));
+    }
+
+    static public Presenter defaultPresenter(
+					     IoAdapter ioAdapter,
+					     LoanScheduler loanScheduler,
+					     TransferScheduler transferScheduler,
+					     SessionManager sessions) {
+	return defaultPresenter(ioAdapter, loanScheduler, transferScheduler,
+				sessions, new LoginThrottle());
+    }
+
+    // consoles sharing one throttle are counted together
+    static public Presenter defaultPresenter(
+					     IoAdapter ioAdapter,
+					     LoanScheduler loanScheduler,
+					     TransferScheduler transferScheduler,
+					     SessionManager sessions,
+					     LoginThrottle throttle) {
 
 	final NewAccountIoForm newAccountForm = new NewAccountIoForm(ioAdapter);
-	final LoginIoForm loginForm = new LoginIoForm(ioAdapter);
+	final LoginIoForm loginForm = new LoginIoForm(ioAdapter, throttle);
 
 	final LoanIoForm loanForm = new LoanIoForm(ioAdapter);
 	final DepositIoForm depositForm = new DepositIoForm(ioAdapter);
 	final WithdrawIoForm withdrawForm = new WithdrawIoForm(ioAdapter);
 	final TransferIoForm transferForm = new TransferIoForm(ioAdapter);
+	final ScheduleTransferIoForm scheduleForm =
+	    new ScheduleTransferIoForm(
+				       ioAdapter,
+				       transferForm,
+				       transferScheduler);
+	final StatementIoForm statementForm = new StatementIoForm(ioAdapter);
 	
 	final CheckingAccountMenu chekingAccountMenu =
 	    new CheckingAccountMenu(
 				    ioAdapter,
+				    sessions,
+				    loanScheduler,
 				    loanForm,
 				    depositForm,
 				    withdrawForm,
-				    transferForm);
+				    transferForm,
+				    scheduleForm,
+				    statementForm);
 
 	final SavingAccountMenu savingAccountMenu =
 	    new SavingAccountMenu(
 				  ioAdapter,
+				  sessions,
 				  depositForm,
 				  withdrawForm,
-				  transferForm);
+				  transferForm,
+				  scheduleForm,
+				  statementForm);
 
 	final AccountMenu accountMenu =
 	    new AccountMenu(ioAdapter, chekingAccountMenu, savingAccountMenu);
@@ -1305,8 +11633,26 @@ class Main {
 	return presenter;
     }
 
+    // -Dshellbank.limits.withdraw=hourAmount,hourCount,dayAmount,dayCount
+    static VelocityLimits limitsOf(String property) {
+	final String spec = System.getProperty(property);
+	return spec == null ? VelocityLimits.unlimited() : VelocityLimits.parse(spec);
+    }
+
     public static void main(String[] args) {
 
+	// -Dshellbank.node=dir runs a cluster node instead of the console
+	final String nodePath = System.getProperty("shellbank.node");
+	if (nodePath != null) {
+	    runNode(Paths.get(nodePath));
+	    return ;
+	}
+	final Integer followPort = Integer.getInteger("shellbank.follow");
+	if (followPort != null) {
+	    runFollower(followPort);
+	    return ;
+	}
+
 	final Console console = System.console();
 	final IoAdapter ioAdapter;
 	if (console != null)
@@ -1315,10 +11661,152 @@ class Main {
 	    ioAdapter = new StreamWrapper(System.out, System.in);
 	}
 
-	final Repository repository = new RepositoryInMemory(new HashMap<>());
-	final Service service = new Service(repository);
-	final Presenter presenter = defaultPresenter(ioAdapter);
-
-        presenter.mainMenu(service);
+	final String eventsPath = System.getProperty("shellbank.events");
+	final String fxPath = System.getProperty("shellbank.fx");
+	final String branchesSpec = System.getProperty("shellbank.branches");
+	final String tierPath = System.getProperty("shellbank.tier");
+	final double bloomRate =
+	    Double.parseDouble(System.getProperty("shellbank.bloom.fpp", "0.01"));
+	final EventSourcedRepository eventSourced;
+	final TieredRepository tiered;
+	final BloomFilteredRepository filtered;
+	final IdempotencyCache idempotency;
+	final OperationJournal journal;
+	final FxRates fx;
+	try {
+	    fx = fxPath == null
+		? new FxRates(FxTable.single(Account.defaultCurrency))
+		: FxRates.load(Paths.get(fxPath));
+	    eventSourced = eventsPath == null
+		? null
+		: EventSourcedRepository.open(Paths.get(eventsPath));
+	    // accounts idle for ten minutes, or beyond the first 100k, go cold
+	    tiered = eventsPath != null || tierPath == null
+		? null
+		: TieredRepository.open(Paths.get(tierPath),
+					Duration.ofMinutes(10).toMillis(),
+					Integer.getInteger("shellbank.tier.hot",
+							   100_000));
+	    // numbers nobody opened are turned away before the cold file
+	    filtered = tiered == null
+		? null
+		: BloomFilteredRepository.open(tiered,
+					       Paths.get(tierPath)
+					       .resolve("accounts.bloom"),
+					       Long.getLong("shellbank.bloom.expected",
+							    10_000_000L),
+					       bloomRate);
+	    idempotency = eventsPath == null
+		? new IdempotencyCache(1 << 16, Duration.ofHours(24).toMillis())
+		: IdempotencyCache.open(Paths.get(eventsPath)
+					.resolve("idempotency.log"),
+					1 << 16,
+					Duration.ofHours(24).toMillis());
+	    // the journal lives next to the accounts it reconciles, so a
+	    // restart does not leave every account newer than its entries
+	    journal = eventsPath != null
+		? OperationJournal.open(Paths.get(eventsPath).resolve("journal"))
+		: tierPath != null
+		? OperationJournal.open(Paths.get(tierPath).resolve("journal"))
+		: new OperationJournal();
+	} catch (IOException ex) {
+	    throw new UncheckedIOException(ex);
+	}
+	final Repository indexed =
+	    new UsernameIndexedRepository(eventSourced != null
+					  ? eventSourced
+					  : filtered != null
+					  ? filtered
+					  : new MvccRepository());
+	// -Dshellbank.replicate=port streams every write to followers on
+	// that port; with -Dshellbank.replicate.sync=true transfers wait
+	// until one of them has applied it
+	final Integer replicatePort = Integer.getInteger("shellbank.replicate");
+	final ReplicationLeader leader;
+	try {
+	    leader = replicatePort == null
+		? null
+		: ReplicationLeader.listen(indexed, replicatePort,
+					   Boolean.getBoolean("shellbank.replicate.sync"));
+	} catch (IOException ex) {
+	    throw new UncheckedIOException(ex);
+	}
+	final Repository repository = leader != null ? leader : indexed;
+	repository.streamAccounts()
+	    .mapToInt(Account::getNumber)
+	    .max()
+	    .ifPresent(Account.number::skipTo);
+	final VelocityGuard velocity =
+	    new VelocityGuard(limitsOf("shellbank.limits.withdraw"),
+			      limitsOf("shellbank.limits.transfer"));
+	final Service service = new Service(
+					    repository,
+					    journal,
+					    idempotency,
+					    velocity,
+					    fx,
+					    AdmissionControl.standard(),
+					    branchesSpec == null
+					    ? new BranchTotals(Account.defaultBranch)
+					    : BranchTotals.parse(branchesSpec));
+	final String loansPath = System.getProperty("shellbank.loans");
+	final LoanScheduler loanScheduler =
+	    new LoanScheduler(loansPath == null
+			      ? new LoanPlanStoreInMemory()
+			      : new LoanPlanStoreFile(Paths.get(loansPath)));
+	final String ordersPath = System.getProperty("shellbank.orders");
+	final TransferScheduler transferScheduler =
+	    new TransferScheduler(ordersPath == null
+				  ? new TransferOrderStoreInMemory()
+				  : new TransferOrderStoreFile(
+							       Paths.get(ordersPath)));
+	final SessionManager sessions =
+	    new SessionManager(Duration.ofMinutes(15).toMillis());
+	final String importPath = System.getProperty("shellbank.import");
+	final Presenter presenter =
+	    defaultPresenter(ioAdapter, loanScheduler, transferScheduler,
+			     sessions);
+	final ScheduledExecutorService ticker =
+	    Executors.newSingleThreadScheduledExecutor();
+
+	ticker.scheduleAtFixedRate(
+				   () -> loanScheduler.runDue(
+							      service,
+							      LocalDateTime.now()),
+				   1, 1, TimeUnit.MINUTES);
+	ticker.scheduleAtFixedRate(
+				   () -> transferScheduler.runDue(
+								  service,
+								  LocalDateTime.now()),
+				   1, 1, TimeUnit.SECONDS);
+	ticker.scheduleAtFixedRate(fx::reloadIfChanged, 1, 1, TimeUnit.SECONDS);
+	ticker.scheduleAtFixedRate(sessions::expireDue, 1, 1, TimeUnit.SECONDS);
+	if (tiered != null)
+	    ticker.scheduleAtFixedRate(tiered::demoteIdle, 1, 1, TimeUnit.MINUTES);
+	// -Dshellbank.import=users.csv imports the file instead of serving
+	try {
+	    if (importPath == null)
+		presenter.mainMenu(service);
+	    else
+		ioAdapter.printf("%s\n",
+				 new BulkImporter(service).run(Paths.get(importPath)));
+	} catch (IOException ex) {
+	    throw new UncheckedIOException(ex);
+	}
+	ticker.shutdownNow();
+	try {
+	    if (leader != null)
+		leader.close();
+	    idempotency.close();
+	    journal.close();
+	    if (eventSourced != null)
+		eventSourced.close();
+	    if (tiered != null) {
+		filtered.close();
+		tiered.close();
+	    }
+	} catch (IOException ex) {
+	    throw new UncheckedIOException(ex);
+	}
     }
 }
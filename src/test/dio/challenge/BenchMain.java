@@ -0,0 +1,1789 @@
+package dio.challenge;
+
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.stream.Stream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Collectors;
+import java.util.function.IntFunction;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.IntConsumer;
+import java.util.Optional;
+import java.util.HashMap;
+import java.nio.file.Paths;
+import java.io.IOException;
+import java.util.Comparator;
+import org.mindrot.jbcrypt.BCrypt;
+
+public class BenchMain {
+
+    interface Bench {
+	void run(String[] args) throws Exception;
+    }
+
+    // a cheap hash, benchmarks measure the bank and not bcrypt
+    static final String hashPass = BCrypt.hashpw("1234", BCrypt.gensalt(4));
+    // results written here cannot be optimized away
+    static volatile long blackhole;
+
+    public static void main(String[] args) throws Exception {
+	final Map<String, Bench> benches = new LinkedHashMap<>();
+	benches.put("loan-scheduler", BenchMain::loanScheduler);
+	benches.put("transfer-burst", BenchMain::transferBurst);
+	benches.put("reconcile", BenchMain::reconcile);
+	benches.put("statement", BenchMain::statement);
+	benches.put("export", BenchMain::export);
+	benches.put("replay", BenchMain::replay);
+	benches.put("idempotency", BenchMain::idempotency);
+	benches.put("velocity", BenchMain::velocity);
+	benches.put("fx", BenchMain::fx);
+	benches.put("mvcc", BenchMain::mvcc);
+	benches.put("changes", BenchMain::changes);
+	benches.put("admission", BenchMain::admission);
+	benches.put("payroll", BenchMain::payroll);
+	benches.put("balance-index", BenchMain::balanceIndex);
+	benches.put("usernames", BenchMain::usernames);
+	benches.put("branches", BenchMain::branches);
+	benches.put("tiering", BenchMain::tiering);
+	benches.put("cache", BenchMain::cache);
+	benches.put("bloom", BenchMain::bloom);
+	benches.put("sessions", BenchMain::sessions);
+	benches.put("throttle", BenchMain::throttle);
+	benches.put("import", BenchMain::bulkImport);
+	benches.put("partitions", BenchMain::partitions);
+	benches.put("cluster", BenchMain::cluster);
+	benches.put("replication", BenchMain::replication);
+
+	final String name = args.length > 0 ? args[0] : "all";
+	final String[] rest = args.length > 1
+	    ? Arrays.copyOfRange(args, 1, args.length)
+	    : new String[0];
+	boolean found = false;
+	for (Map.Entry<String, Bench> bench : benches.entrySet()) {
+	    if (!name.equals("all") && !name.equals(bench.getKey()))
+		continue ;
+	    found = true;
+	    System.out.printf("== %s\n", bench.getKey());
+	    bench.getValue().run(rest);
+	}
+	if (!found)
+	    System.out.printf("Unknown benchmark %s, expected one of %s\n",
+			      name, benches.keySet());
+    }
+
+    static int[] sizes(String[] args, int ... defaults) {
+	if (args.length == 0)
+	    return defaults;
+	return Arrays.stream(args).mapToInt(Integer::parseInt).toArray();
+    }
+
+    static Service serviceWithCheckingAccounts(int count, int[] numbers) {
+	final Repository repository =
+	    new RepositoryInMemory(new ConcurrentHashMap<>(count * 2));
+	final Service service = new Service(repository);
+	for (int i = 0; i < count; i++) {
+	    final CheckingAccount account =
+		CheckingAccount.ofHash("bench" + i, hashPass);
+	    service.createAccount(account);
+	    service.deposit(1_000.0, account);
+	    numbers[i] = account.getNumber();
+	}
+	return service;
+    }
+
+    static void deleteTree(Path directory) throws IOException {
+	try (Stream<Path> files = Files.walk(directory)) {
+	    for (Path file : files.sorted(Comparator.reverseOrder())
+		     .collect(Collectors.toList()))
+		Files.delete(file);
+	}
+    }
+
+    static double nanosPer(long nanos, long operations) {
+	return operations == 0 ? 0.0 : (double) nanos / operations;
+    }
+
+    // runs client 0 .. threads - 1 each on its own thread, the nanos
+    // until all are done
+    static long inThreads(int threads, IntConsumer client) throws Exception {
+	final ArrayList<Thread> started = new ArrayList<>();
+	final long begin = System.nanoTime();
+	for (int t = 0; t < threads; t++) {
+	    final int index = t;
+	    final Thread thread = new Thread(() -> client.accept(index));
+	    thread.start();
+	    started.add(thread);
+	}
+	for (Thread thread : started)
+	    thread.join();
+	return System.nanoTime() - begin;
+    }
+
+    static void loanScheduler(String[] args) {
+	System.out.printf("%10s %14s %14s %16s\n",
+			  "loans", "open ns/loan", "idle ns/tick",
+			  "due ns/install");
+	for (int loans : sizes(args, 1_000, 10_000, 100_000, 1_000_000)) {
+	    final int[] numbers = new int[loans];
+	    final Service service = serviceWithCheckingAccounts(loans, numbers);
+	    final LocalDateTime start = LocalDateTime.of(2024, 1, 1, 0, 0);
+	    final LoanScheduler scheduler = new LoanScheduler(
+							      ZoneId.of("UTC"),
+							      0.12,
+							      12,
+							      Duration.ofDays(1),
+							      start);
+
+	    long begin = System.nanoTime();
+	    for (int i = 0; i < loans; i++) {
+		final CheckingAccount account = (CheckingAccount)
+		    service.getAccountByNumber(numbers[i]).get();
+		// loans opened over one day so installments spread on ticks
+		scheduler.openLoan(service, 100.0, account,
+				   start.plusMinutes(i % 1440));
+	    }
+	    final long openNanos = System.nanoTime() - begin;
+
+	    final int idleTicks = 20 * 1440;
+	    begin = System.nanoTime();
+	    for (int minute = 1; minute <= idleTicks; minute++)
+		scheduler.runDue(service, start.plusDays(5).plusMinutes(minute));
+	    final long idleNanos = System.nanoTime() - begin;
+
+	    int collected = 0;
+	    begin = System.nanoTime();
+	    for (int minute = 0; minute <= 1440; minute++)
+		collected += scheduler.runDue(service,
+					      start.plusMonths(1)
+					      .plusMinutes(minute));
+	    final long dueNanos = System.nanoTime() - begin;
+
+	    System.out.printf("%10d %14.1f %14.1f %16.1f\n",
+			      loans,
+			      nanosPer(openNanos, loans),
+			      nanosPer(idleNanos, idleTicks),
+			      nanosPer(dueNanos, collected));
+	}
+    }
+
+    // transfers on a primary with a follower in this process, over
+    // loopback TCP, against the same transfers with no replication;
+    // lag runs from a transfer starting to the follower applying it,
+    // so it is only taken with one writer, where each transfer's seq
+    // is known, and also paced, so the follower gets the core too
+    static void replication(String[] args) throws Exception {
+	final int accounts = 10_000;
+	System.out.printf("%10s %6s %8s %8s %14s %12s %12s %10s %8s %9s\n",
+			  "transfers", "mode", "pace us", "threads", "transfers/s",
+			  "lag p50 us", "lag p99 us", "per frame", "packed",
+			  "degraded");
+	for (int transfers : sizes(args, 100_000)) {
+	    final Service plain = new Service(new MvccRepository());
+	    final Account[] plainAccounts = new Account[accounts];
+	    for (int i = 0; i < accounts; i++) {
+		plainAccounts[i] = CheckingAccount.ofHash("bench" + i, hashPass);
+		plain.createAccount(plainAccounts[i]);
+		plain.deposit(1_000_000.0, plainAccounts[i]);
+	    }
+	    final long plainBegin = System.nanoTime();
+	    for (int i = 0; i < transfers; i++)
+		plain.transfer(0.01, plainAccounts[i % accounts],
+			       plainAccounts[otherThan(i, accounts)]);
+	    System.out.printf("%10d %6s %8d %8d %14.0f %12s %12s %10s %8s %9s\n",
+			      transfers, "none", 0, 1,
+			      transfers / ((System.nanoTime() - plainBegin) / 1e9),
+			      "-", "-", "-", "-", "-");
+
+	    replicated(transfers, accounts, false, 0L, 1);
+	    replicated(transfers, accounts, false, 20_000L, 1);
+	    replicated(transfers, accounts, true, 0L, 1);
+	    replicated(transfers, accounts, false, 0L, 4);
+	    replicated(transfers, accounts, true, 0L, 4);
+	}
+    }
+
+    static void replicated(
+			   int transfers,
+			   int accounts,
+			   boolean sync,
+			   long pace,
+			   int threads) throws Exception {
+	final ReplicationLeader leader =
+	    ReplicationLeader.listen(new MvccRepository(), 0, sync);
+	final Service service = new Service(leader);
+	final Account[] opened = new Account[accounts];
+	for (int i = 0; i < accounts; i++) {
+	    opened[i] = CheckingAccount.ofHash("bench" + i, hashPass);
+	    service.createAccount(opened[i]);
+	    service.deposit(1_000_000.0, opened[i]);
+	}
+	final ReplicationFollower follower =
+	    ReplicationFollower.follow(leader.getPort());
+	follower.awaitOffset(leader.getNextSeq(), 60, TimeUnit.SECONDS);
+
+	final int count = (pace == 0 ? transfers : transfers / 20) / threads * threads;
+	final long base = leader.getNextSeq();
+	final long frames = leader.getFrames();
+	final long raw = leader.getRawBytes();
+	final long packed = leader.getPackedBytes();
+	final long[] starts = new long[count];
+	final long[] lags = new long[count];
+	final Thread watcher = new Thread(() -> {
+		try {
+		    int seen = 0;
+		    while (seen < count) {
+			follower.awaitOffset(base + seen + 1, 1, TimeUnit.SECONDS);
+			final long now = System.nanoTime();
+			final long offset =
+			    Math.min(follower.getOffset() - base, count);
+			for (; seen < offset; seen++)
+			    lags[seen] = now - starts[seen];
+		    }
+		} catch (InterruptedException ex) {
+		    Thread.currentThread().interrupt();
+		}
+	    });
+	if (threads == 1)
+	    watcher.start();
+	final int each = count / threads;
+	final long nanos = inThreads(threads, client -> {
+		for (int i = 0; i < each; i++) {
+		    final int from = (int) ((client * 7_919L + i) % accounts);
+		    starts[client * each + i] = System.nanoTime();
+		    service.transfer(0.01, opened[from],
+				     opened[otherThan(from, accounts)]);
+		    if (pace > 0)
+			LockSupport.parkNanos(pace);
+		}
+	    });
+	follower.awaitOffset(leader.getNextSeq(), 60, TimeUnit.SECONDS);
+	if (threads == 1)
+	    watcher.join();
+
+	Arrays.sort(lags);
+	System.out.printf("%10d %6s %8d %8d %14.0f %12s %12s %10.1f %7.0f%% %9d\n",
+			  count, sync ? "sync" : "async", pace / 1_000, threads,
+			  count / (nanos / 1e9),
+			  threads == 1 ? String.format("%.1f", lags[count / 2] / 1e3) : "-",
+			  threads == 1
+			  ? String.format("%.1f", lags[(int) (count * 0.99)] / 1e3)
+			  : "-",
+			  (double) count / Math.max(1L, leader.getFrames() - frames),
+			  100.0 * (leader.getPackedBytes() - packed)
+			  / Math.max(1L, leader.getRawBytes() - raw),
+			  leader.getDegraded());
+	follower.close();
+	leader.close();
+    }
+
+    // a cluster of 1, 2 and 4 node processes on this machine, each a
+    // separate JVM, driven by client threads in this one over unix
+    // sockets: deposits and withdrawals, one in ten a transfer, most of
+    // those crossing nodes once there is more than one
+    static void cluster(String[] args) throws Exception {
+	final int accounts = 2_000;
+	final int clients = 8;
+	System.out.printf("%10s %6s %12s %12s %12s\n",
+			  "operations", "nodes", "ops/s", "per node", "sagas");
+	for (int operations : sizes(args, 40_000)) {
+	    for (int count : new int[] { 1, 2, 4 }) {
+		final Path directory = Files.createTempDirectory("cluster");
+		final HashMap<Integer, String> nodes = new HashMap<>();
+		for (int id = 1; id <= count; id++)
+		    nodes.put(id, ClusterNode.socketOf(directory.resolve("" + id))
+			      .toString());
+		final String spec = new HashRing(1, nodes).encode();
+		final ArrayList<Process> processes = new ArrayList<>();
+		for (int id = 1; id <= count; id++) {
+		    final Path node = directory.resolve("" + id);
+		    Files.createDirectories(node);
+		    processes.add(new ProcessBuilder("java", "-Xmx256m",
+						     "-cp", System.getProperty("java.class.path"),
+						     "-Dshellbank.node=" + node,
+						     "-Dshellbank.node.id=" + id,
+						     "-Dshellbank.node.ring=" + spec,
+						     "-Dshellbank.node.sync=false",
+						     "dio.challenge.Main")
+				  .redirectErrorStream(true)
+				  .redirectOutput(node.resolve("out.log").toFile())
+				  .start());
+		}
+		try {
+		    for (String socket : nodes.values())
+			while (!Files.exists(Paths.get(socket)))
+			    Thread.sleep(10);
+		    final ClusterClient client = ClusterClient.connect(nodes.get(1));
+		    final int[] numbers = new int[accounts];
+		    for (int i = 0; i < accounts; i++) {
+			numbers[i] = client.open(true, "bench" + i, hashPass);
+			client.deposit(1_000.0, numbers[i]);
+		    }
+		    final HashRing ring = client.getRing();
+		    final AtomicLong sagas = new AtomicLong();
+		    final int each = operations / clients;
+		    final long nanos = inThreads(clients, thread -> {
+			    for (int i = 0; i < each; i++) {
+				final int at = (int) ((thread * 7_919L + i * 104_729L) % accounts);
+				if (i % 10 == 9) {
+				    final int to = otherThan(at, accounts);
+				    if (ring.ownerOf(numbers[at]) != ring.ownerOf(numbers[to]))
+					sagas.incrementAndGet();
+				    client.transfer(0.01, numbers[at], numbers[to]);
+				} else if ((i & 1) == 0) {
+				    client.deposit(1.0, numbers[at]);
+				} else {
+				    client.withdraw(1.0, numbers[at]);
+				}
+			    }
+			});
+		    client.close();
+		    final double rate = each * clients / (nanos / 1e9);
+		    System.out.printf("%10d %6d %12.0f %12.0f %12d\n",
+				      operations, count, rate, rate / count,
+				      sagas.get());
+		} finally {
+		    for (Process process : processes)
+			process.destroy();
+		    for (Process process : processes)
+			process.waitFor();
+		}
+	    }
+	}
+    }
+
+    // deposits and withdrawals from as many client threads as there are
+    // partitions, against the locked Service and the partitioned one,
+    // then transfers between random accounts, most of them crossing
+    // partitions; clients keep up to a thousand operations in flight
+    static void partitions(String[] args) throws Exception {
+	final int accounts = 100_000;
+	final int cores = Runtime.getRuntime().availableProcessors();
+	System.out.printf("%10s %6s %14s %14s %10s %14s\n",
+			  "operations", "cores", "locked/s", "partitioned/s",
+			  "speedup", "transfers/s");
+	for (int operations : sizes(args, 1_000_000)) {
+	    double single = 0.0;
+	    for (int threads : Arrays.stream(new int[] { 1, 2, 4, cores })
+		     .filter(count -> count <= cores)
+		     .distinct().sorted().toArray()) {
+		final Service locked = new Service(new MvccRepository());
+		final PartitionedService partitioned =
+		    new PartitionedService(threads);
+		final Account[] opened = new Account[accounts];
+		for (int i = 0; i < accounts; i++) {
+		    opened[i] = CheckingAccount.ofHash("bench" + i, hashPass);
+		    locked.createAccount(opened[i]);
+		    partitioned.createAccount(opened[i]);
+		    locked.deposit(1_000.0, opened[i]);
+		    partitioned.deposit(1_000.0, opened[i]).join();
+		}
+		final int each = operations / threads;
+		final long lockedNanos = inThreads(threads, client -> {
+			for (int i = 0; i < each; i++) {
+			    final Account account =
+				opened[(int) ((client * 7_919L + i * 104_729L) % accounts)];
+			    if ((i & 1) == 0)
+				locked.deposit(1.0, account);
+			    else
+				locked.withdraw(1.0, account);
+			}
+		    });
+		final long partitionedNanos = inThreads(threads, client -> {
+			final ArrayDeque<CompletableFuture<Optional<Account>>> sent =
+			    new ArrayDeque<>();
+			for (int i = 0; i < each; i++) {
+			    final Account account =
+				opened[(int) ((client * 7_919L + i * 104_729L) % accounts)];
+			    sent.add((i & 1) == 0
+				     ? partitioned.deposit(1.0, account)
+				     : partitioned.withdraw(1.0, account));
+			    if (sent.size() == 1_000)
+				sent.poll().join();
+			}
+			sent.forEach(CompletableFuture::join);
+		    });
+		final int transfers = operations / 4 / threads;
+		final long transferNanos = inThreads(threads, client -> {
+			final ArrayDeque<CompletableFuture<Optional<Account>>> sent =
+			    new ArrayDeque<>();
+			for (int i = 0; i < transfers; i++) {
+			    final int from = (int) ((client + i * 7_919L) % accounts);
+			    sent.add(partitioned.transfer(0.01, opened[from],
+							  opened[otherThan(from, accounts)]));
+			    if (sent.size() == 1_000)
+				sent.poll().join();
+			}
+			sent.forEach(CompletableFuture::join);
+		    });
+		partitioned.close();
+
+		final double rate = operations / (partitionedNanos / 1e9);
+		if (threads == 1)
+		    single = rate;
+		System.out.printf("%10d %6d %14.0f %14.0f %10.2f %14.0f\n",
+				  operations, threads,
+				  operations / (lockedNanos / 1e9),
+				  rate, rate / single,
+				  transfers * threads / (transferNanos / 1e9));
+	    }
+	}
+    }
+
+    // accounts per second from a csv, one at a time the way the menu
+    // opens them and through the import pipeline at several hasher
+    // counts; per core divides by the cores the hashers could use
+    static void bulkImport(String[] args) throws Exception {
+	final int logRounds = 6;
+	final int cores = Runtime.getRuntime().availableProcessors();
+	System.out.printf("bcrypt cost %d, %d cores\n", logRounds, cores);
+	System.out.printf("%8s %10s %8s %12s %12s\n",
+			  "rows", "mode", "hashers", "accounts/s", "per core");
+	for (int rows : sizes(args, 2_000)) {
+	    final Path directory = Files.createTempDirectory("import");
+	    final Path csv = directory.resolve("users.csv");
+	    final StringBuilder text = new StringBuilder();
+	    for (int i = 0; i < rows; i++)
+		text.append(i % 3 == 0 ? "saving" : "checking")
+		    .append(",user").append(i).append(',')
+		    .append(String.format("%04d", i % 10_000)).append('\n');
+	    Files.writeString(csv, text);
+
+	    final Service serial = new Service(new MvccRepository());
+	    final long begin = System.nanoTime();
+	    for (String line : Files.readAllLines(csv)) {
+		final String[] fields = line.split(",");
+		final String hash =
+		    BCrypt.hashpw(fields[2], BCrypt.gensalt(logRounds));
+		serial.createAccount(fields[0].equals("saving")
+				     ? SavingAccount.ofHash(fields[1], hash)
+				     : CheckingAccount.ofHash(fields[1], hash));
+	    }
+	    final double serialRate = rows / ((System.nanoTime() - begin) / 1e9);
+	    System.out.printf("%8d %10s %8d %12.0f %12.0f\n",
+			      rows, "serial", 1, serialRate, serialRate);
+
+	    for (int hashers : Arrays.stream(new int[] { 1, 2, 4, cores, 2 * cores })
+		     .distinct().sorted().toArray()) {
+		Files.deleteIfExists(BulkImporter.progressFile(csv));
+		final ImportReport report =
+		    new BulkImporter(new Service(new MvccRepository()), hashers,
+				     BulkImporter.defaultBatchRows, logRounds)
+		    .run(csv);
+		System.out.printf("%8d %10s %8d %12.0f %12.0f\n",
+				  rows, "pipeline", hashers,
+				  report.accountsPerSecond(),
+				  report.accountsPerSecond()
+				  / Math.min(hashers, cores));
+	    }
+	}
+    }
+
+    // legitimate logins at a steady pace, alone and then beside threads
+    // guessing wrong passwords from a handful of sources, without and
+    // with the throttle; a guess it refuses never reaches bcrypt
+    static void throttle(String[] args) throws Exception {
+	final String hash = BCrypt.hashpw("1234", BCrypt.gensalt(8));
+	final Account[] opened = new Account[1_000];
+	for (int i = 0; i < opened.length; i++)
+	    opened[i] = CheckingAccount.ofHash("bench" + i, hash);
+	System.out.printf("%8s %10s %8s %8s %8s %10s %10s %10s\n",
+			  "seconds", "mode", "logins", "refused", "p50 ms",
+			  "p99 ms", "guesses", "hashed");
+	for (int seconds : sizes(args, 5)) {
+	    for (String mode : new String[] { "quiet", "open", "throttled" }) {
+		final LoginThrottle throttle = mode.equals("throttled")
+		    ? new LoginThrottle()
+		    : LoginThrottle.unlimited();
+		final AtomicBoolean stop = new AtomicBoolean();
+		final AtomicLong guesses = new AtomicLong();
+		final AtomicLong hashed = new AtomicLong();
+		final ArrayList<Thread> attackers = new ArrayList<>();
+		final int threads = mode.equals("quiet") ? 0 : 4;
+		for (int t = 0; t < threads; t++) {
+		    final Random random = new Random(t);
+		    final Thread attacker = new Thread(() -> {
+			    while (!stop.get()) {
+				final Account target =
+				    opened[random.nextInt(opened.length)];
+				final String source = "10.6.6." + random.nextInt(8);
+				if (throttle.attempt(target.getNumber(), source) == 0L) {
+				    target.verifyPass("0000");
+				    hashed.incrementAndGet();
+				}
+				guesses.incrementAndGet();
+				LockSupport.parkNanos(250_000L);
+			    }
+		    });
+		    attacker.start();
+		    attackers.add(attacker);
+		}
+
+		final int logins = 20 * seconds;
+		final long[] latencies = new long[logins];
+		int refused = 0;
+		final long start = System.nanoTime();
+		for (int i = 0; i < logins; i++) {
+		    final long arrival = start + i * 50_000_000L;
+		    LockSupport.parkNanos(arrival - System.nanoTime());
+		    final long begin = System.nanoTime();
+		    final Account account = opened[(i * 7919) % opened.length];
+		    final String source = "192.168.0." + (i % 200);
+		    if (throttle.attempt(account.getNumber(), source) != 0L) {
+			refused++;
+		    } else if (account.verifyPass("1234")) {
+			throttle.succeeded(account.getNumber(), source);
+		    }
+		    latencies[i] = System.nanoTime() - begin;
+		}
+		stop.set(true);
+		for (Thread attacker : attackers)
+		    attacker.join();
+		Arrays.sort(latencies);
+		System.out.printf("%8d %10s %8d %8d %8.1f %10.1f %10d %10d\n",
+				  seconds, mode, logins, refused,
+				  latencies[logins / 2] / 1e6,
+				  latencies[(int) (logins * 0.99)] / 1e6,
+				  guesses.get(), hashed.get());
+	    }
+	}
+    }
+
+    // a menu loop's account refresh when nothing changed, against the
+    // repository read it replaces, plus opening sessions and expiring
+    // all of them in one sweep of the wheel
+    static void sessions(String[] args) {
+	System.out.printf("%10s %10s %12s %12s %12s %12s\n",
+			  "sessions", "open ns", "refresh ns", "read ns",
+			  "changed ns", "expire ms");
+	for (int count : sizes(args, 100_000, 1_000_000)) {
+	    final Service service = new Service(new MvccRepository());
+	    final Account[] opened = new Account[count];
+	    for (int i = 0; i < count; i++) {
+		opened[i] = CheckingAccount.ofHash("bench" + i, hashPass);
+		service.createAccount(opened[i]);
+	    }
+	    final AtomicLong now = new AtomicLong();
+	    final SessionManager sessions =
+		new SessionManager(Duration.ofMinutes(15).toMillis(), now::get);
+	    final Session[] open = new Session[count];
+	    long begin = System.nanoTime();
+	    for (int i = 0; i < count; i++)
+		open[i] = sessions.open(opened[i]);
+	    final long openNanos = System.nanoTime() - begin;
+	    for (Session session : open)
+		sessions.refresh(session, service);
+
+	    final int loops = 2_000_000;
+	    long refreshNanos = 0;
+	    long readNanos = 0;
+	    for (int round = 0; round < 2; round++) {
+		begin = System.nanoTime();
+		for (int i = 0; i < loops; i++) {
+		    final Session session = open[(int) ((i * 7919L) % count)];
+		    sessions.touch(session);
+		    blackhole += sessions.refresh(session, service).getNumber();
+		}
+		refreshNanos = System.nanoTime() - begin;
+		begin = System.nanoTime();
+		for (int i = 0; i < loops; i++)
+		    blackhole += service.getAccountByNumber(opened[(int) ((i * 7919L) % count)]
+							    .getNumber())
+			.get().getNumber();
+		readNanos = System.nanoTime() - begin;
+	    }
+	    // a refresh after each account took a deposit reloads it
+	    final int deposits = Math.min(200_000, count);
+	    for (int i = 0; i < deposits; i++)
+		service.deposit(0.01, opened[i]);
+	    begin = System.nanoTime();
+	    for (int i = 0; i < deposits; i++)
+		blackhole += sessions.refresh(open[i], service).getNumber();
+	    final long changedNanos = System.nanoTime() - begin;
+
+	    now.addAndGet(Duration.ofMinutes(16).toMillis());
+	    begin = System.nanoTime();
+	    final int expired = sessions.expireDue();
+	    final long expireNanos = System.nanoTime() - begin;
+
+	    System.out.printf("%10d %10.0f %12.1f %12.1f %12.0f %12.1f\n",
+			      count,
+			      nanosPer(openNanos, count),
+			      nanosPer(refreshNanos, loops),
+			      nanosPer(readNanos, loops),
+			      nanosPer(changedNanos, deposits),
+			      expireNanos / 1e6);
+	    blackhole += expired;
+	}
+    }
+
+    // filter size per million accounts and its measured false positive
+    // rate at three target rates, and a lookup of a number nobody opened
+    // through the filter against the tiered repository's index read
+    static void bloom(String[] args) throws Exception {
+	System.out.printf("%10s %8s %8s %6s %12s %12s %8s %10s %10s\n",
+			  "accounts", "target", "bits/acc", "k", "MB/million",
+			  "measured", "add ns", "miss ns", "bare ns");
+	for (int accounts : sizes(args, 1_000_000)) {
+	    // odd numbers are never opened
+	    final int first = Account.newNumber() + 1;
+	    final Path directory = Files.createTempDirectory("bench-bloom");
+	    final TieredRepository tiered =
+		TieredRepository.open(directory, 60_000L, 10_000, false);
+	    for (int i = 0; i < accounts; i++)
+		tiered.saveAccount(CheckingAccount.restore(first + 2 * i, "4242-x",
+							   "bench" + i, 0.0,
+							   hashPass, 500.0, 0.0,
+							   0L, "BRL"));
+	    for (int i = 0; i <= 2 * accounts; i++)
+		Account.newNumber();
+
+	    final int probes = 1_000_000;
+	    long bareNanos = 0;
+	    for (int round = 0; round < 2; round++) {
+		final long begin = System.nanoTime();
+		for (int i = 0; i < probes; i++)
+		    blackhole += tiered.getAccountByNumber(first + 2 * (i % accounts) + 1)
+			.isPresent() ? 1 : 0;
+		bareNanos = System.nanoTime() - begin;
+	    }
+
+	    for (double rate : new double[] { 0.01, 0.001, 0.0001 }) {
+		final BloomFilter filter = BloomFilter.sized(accounts, rate);
+		long begin = System.nanoTime();
+		for (int i = 0; i < accounts; i++)
+		    filter.add(first + 2 * i);
+		final long addNanos = System.nanoTime() - begin;
+		final BloomFilteredRepository repository =
+		    new BloomFilteredRepository(tiered, filter);
+
+		long missNanos = 0;
+		for (int round = 0; round < 2; round++) {
+		    begin = System.nanoTime();
+		    for (int i = 0; i < probes; i++)
+			blackhole += repository
+			    .getAccountByNumber(first + 2 * (i % accounts) + 1)
+			    .isPresent() ? 1 : 0;
+		    missNanos = System.nanoTime() - begin;
+		}
+		final double measured =
+		    1.0 - (double) repository.getRejected() / (2L * probes);
+
+		System.out.printf("%10d %8.4f %8.2f %6d %12.2f %12.5f %8.0f %10.0f %10.0f\n",
+				  accounts, rate,
+				  (double) filter.getBits() / accounts,
+				  filter.getHashes(),
+				  filter.memoryBytes() / 1e6 * 1_000_000 / accounts,
+				  measured,
+				  nanosPer(addNanos, accounts),
+				  nanosPer(missNanos, probes),
+				  nanosPer(bareNanos, probes));
+	    }
+	    tiered.close();
+	    deleteTree(directory);
+	}
+    }
+
+    // zipfian reads over accounts kept in a mostly cold tiered
+    // repository, bare and behind caches of 1%, 5% and 10% of them
+    static void cache(String[] args) throws Exception {
+	System.out.printf("%10s %10s %10s %10s %10s %10s\n",
+			  "accounts", "cache", "hit ratio", "mean us",
+			  "p99 us", "hit ns");
+	for (int accounts : sizes(args, 1_000_000)) {
+	    final int first = Account.newNumber();
+	    final Path directory = Files.createTempDirectory("bench-cache");
+	    final TieredRepository tiered =
+		TieredRepository.open(directory, 60_000L, 1_000, false);
+	    final Random salts = new Random(3);
+	    for (int i = 0; i < accounts; i++) {
+		final char[] hash = hashPass.toCharArray();
+		for (int c = 7; c < hash.length; c++)
+		    hash[c] = (char) ('a' + salts.nextInt(26));
+		tiered.saveAccount(CheckingAccount.restore(first + i, "4242-x",
+							   "bench" + i, i / 100.0,
+							   new String(hash), 500.0,
+							   0.0, 0L, "BRL"));
+	    }
+
+	    // ranks are scattered over the numbers, so hot accounts do not
+	    // share cold blocks
+	    final double[] cdf = new double[accounts];
+	    double sum = 0.0;
+	    for (int rank = 0; rank < accounts; rank++) {
+		sum += 1.0 / Math.pow(rank + 1, 0.99);
+		cdf[rank] = sum;
+	    }
+	    final Random random = new Random(17);
+	    final int reads = 300_000;
+	    final int[] numbers = new int[reads];
+	    for (int i = 0; i < reads; i++) {
+		int rank = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+		rank = rank < 0 ? -rank - 1 : rank;
+		numbers[i] = first + (int) ((rank * 7919L) % accounts);
+	    }
+
+	    for (int percent : new int[] { 0, 1, 5, 10 }) {
+		final CachingRepository cache = percent == 0
+		    ? null
+		    : new CachingRepository(tiered, accounts / 100 * percent);
+		final Repository repository = cache == null ? tiered : cache;
+		// the first pass warms the cache, the second one is measured
+		final long[] latencies = new long[reads];
+		long hits = 0;
+		long misses = 0;
+		for (int pass = 0; pass < 2; pass++) {
+		    if (cache != null) {
+			hits = cache.getHits();
+			misses = cache.getMisses();
+		    }
+		    for (int i = 0; i < reads; i++) {
+			final long begin = System.nanoTime();
+			blackhole += repository.getAccountByNumber(numbers[i])
+			    .get().getNumber();
+			latencies[i] = System.nanoTime() - begin;
+		    }
+		}
+		if (cache != null) {
+		    hits = cache.getHits() - hits;
+		    misses = cache.getMisses() - misses;
+		}
+		double hitNanos = 0.0;
+		if (cache != null) {
+		    final int hot = numbers[0];
+		    final long begin = System.nanoTime();
+		    for (int i = 0; i < 1_000_000; i++)
+			blackhole += cache.getAccountByNumber(hot).get().getNumber();
+		    hitNanos = nanosPer(System.nanoTime() - begin, 1_000_000);
+		}
+		final double mean = Arrays.stream(latencies).average().orElse(0.0);
+		Arrays.sort(latencies);
+		System.out.printf("%10d %9d%% %10.3f %10.1f %10.1f %10.0f\n",
+				  accounts, percent,
+				  cache == null ? 0.0 : (double) hits / (hits + misses),
+				  mean / 1e3,
+				  latencies[(int) (reads * 0.99)] / 1e3,
+				  hitNanos);
+	    }
+	    tiered.close();
+	    deleteTree(directory);
+	}
+    }
+
+    // heap held by the tiered repository against the plain map for the
+    // same accounts, cold file bytes per account, and the latency of a
+    // hot hit and of a cold one, which reads, inflates and decodes a
+    // block and may trigger a demotion
+    static void tiering(String[] args) throws Exception {
+	System.out.printf("%10s %12s %12s %10s %10s %12s %12s %12s\n",
+			  "accounts", "map MB", "tiered MB", "file B/acc",
+			  "hot ns", "cold p50 us", "cold p99 us", "cold max us");
+	for (int accounts : sizes(args, 1_000_000, 3_000_000)) {
+	    final int first = Account.newNumber();
+	    // bcrypt hashes do not compress, so each gets its own salt and digest
+	    final Random salts = new Random(3);
+	    final IntFunction<Account> accountAt = i -> {
+		final char[] hash = hashPass.toCharArray();
+		for (int c = 7; c < hash.length; c++)
+		    hash[c] = (char) ('a' + salts.nextInt(26));
+		return CheckingAccount.restore(first + i, "4242-x", "bench" + i,
+					       i / 100.0, new String(hash),
+					       500.0, 0.0, 0L, "BRL");
+	    };
+	    long before = usedHeap();
+	    Map<Integer, Account> map = new ConcurrentHashMap<>(2 * accounts);
+	    for (int i = 0; i < accounts; i++)
+		map.put(first + i, accountAt.apply(i));
+	    final long mapBytes = usedHeap() - before;
+	    blackhole += map.size();
+	    map = null;
+
+	    final Path directory = Files.createTempDirectory("bench-tier");
+	    before = usedHeap();
+	    final TieredRepository repository =
+		TieredRepository.open(directory, 60_000L, 50_000, false);
+	    for (int i = 0; i < accounts; i++)
+		repository.saveAccount(accountAt.apply(i));
+	    final long tieredBytes = usedHeap() - before;
+
+	    final int hits = 1_000_000;
+	    final int hotNumber = first + accounts - 1;
+	    long hotNanos = 0;
+	    for (int round = 0; round < 2; round++) {
+		final long begin = System.nanoTime();
+		for (int i = 0; i < hits; i++)
+		    blackhole += repository.getAccountByNumber(hotNumber - i % 1000)
+			.get().getNumber();
+		hotNanos = System.nanoTime() - begin;
+	    }
+
+	    final int misses = 200_000;
+	    final long[] latencies = new long[misses];
+	    final Random random = new Random(5);
+	    for (int i = 0; i < misses; i++) {
+		final int number = first + random.nextInt(accounts - 100_000);
+		final long begin = System.nanoTime();
+		blackhole += repository.getAccountByNumber(number).get().getNumber();
+		latencies[i] = System.nanoTime() - begin;
+	    }
+	    Arrays.sort(latencies);
+
+	    System.out.printf("%10d %12.1f %12.1f %10.1f %10.0f %12.1f %12.1f %12.1f\n",
+			      accounts,
+			      mapBytes / 1e6,
+			      tieredBytes / 1e6,
+			      (double) repository.getColdBytes() / accounts,
+			      nanosPer(hotNanos, hits),
+			      latencies[misses / 2] / 1e3,
+			      latencies[(int) (misses * 0.99)] / 1e3,
+			      latencies[misses - 1] / 1e3);
+	    repository.close();
+	    deleteTree(directory);
+	}
+    }
+
+    // what the branch totals cost each deposit, next to a Service whose
+    // totals are never read, and what a dashboard poll takes against a
+    // scan grouping every account by branch
+    static void branches(String[] args) {
+	final String[] codes = new String[8];
+	for (int i = 0; i < codes.length; i++)
+	    codes[i] = String.format("%04d-%d", i + 1, i);
+	System.out.printf("%10s %12s %12s %12s %12s\n",
+			  "accounts", "deposit ns", "polled ns", "poll ns",
+			  "scan ms");
+	for (int accounts : sizes(args, 100_000, 1_000_000)) {
+	    final BranchTotals branches = new BranchTotals(codes);
+	    final Repository repository =
+		new RepositoryInMemory(new ConcurrentHashMap<>(2 * accounts));
+	    final Service service =
+		new Service(repository,
+			    new OperationJournal(),
+			    new IdempotencyCache(1 << 10, 60_000L),
+			    VelocityGuard.unlimited(),
+			    new FxRates(FxTable.single(Account.defaultCurrency)),
+			    AdmissionControl.unlimited(),
+			    branches);
+	    final Account[] opened = new Account[accounts];
+	    for (int i = 0; i < accounts; i++) {
+		opened[i] = CheckingAccount.ofHash("bench" + i, hashPass,
+						   codes[i % codes.length]);
+		service.createAccount(opened[i]);
+	    }
+
+	    final int deposits = 1_000_000;
+	    long depositNanos = 0;
+	    long polledNanos = 0;
+	    for (int round = 0; round < 2; round++) {
+		// a dashboard polling all branches between every 100 deposits
+		long begin = System.nanoTime();
+		for (int i = 0; i < deposits; i++) {
+		    service.deposit(0.37, opened[(int) ((i * 7919L) % accounts)]);
+		    if (i % 100 == 0)
+			for (String code : codes)
+			    blackhole += (long) branches.totalsOf(code).get()
+				.getDeposits(Account.defaultCurrency);
+		}
+		polledNanos = System.nanoTime() - begin;
+		begin = System.nanoTime();
+		for (int i = 0; i < deposits; i++)
+		    service.deposit(0.37, opened[(int) ((i * 7919L) % accounts)]);
+		depositNanos = System.nanoTime() - begin;
+	    }
+
+	    final int polls = 100_000;
+	    long pollNanos = 0;
+	    for (int round = 0; round < 2; round++) {
+		final long begin = System.nanoTime();
+		for (int i = 0; i < polls; i++)
+		    for (String code : codes)
+			blackhole += (long) branches.totalsOf(code).get()
+			    .getDeposits(Account.defaultCurrency);
+		pollNanos = System.nanoTime() - begin;
+	    }
+	    final long begin = System.nanoTime();
+	    final Map<String, Double> scanned = repository.streamAccounts()
+		.collect(Collectors.groupingBy(Account::getBranch,
+					       Collectors.summingDouble(Account::getBalance)));
+	    final long scanNanos = System.nanoTime() - begin;
+	    blackhole += scanned.size();
+
+	    System.out.printf("%10d %12.0f %12.0f %12.0f %12.1f\n",
+			      accounts,
+			      nanosPer(depositNanos, deposits),
+			      nanosPer(polledNanos, deposits),
+			      nanosPer(pollNanos, polls),
+			      scanNanos / 1e6);
+	}
+    }
+
+    // the username index next to a skip list of the same names: insert
+    // and lookup times, and heap bytes per entry after a full collection
+    static void usernames(String[] args) {
+	System.out.printf("%10s %10s %10s %10s %10s %12s %12s\n",
+			  "names", "add ns", "get ns", "prefix ns", "map get ns",
+			  "index B/ent", "map B/ent");
+	for (int names : sizes(args, 1_000_000, 3_000_000)) {
+	    final Random random = new Random(11);
+	    final String[] userNames = new String[names];
+	    for (int i = 0; i < names; i++)
+		userNames[i] = "user" + random.nextInt(names) + "_" + (i & 7);
+
+	    final long before = usedHeap();
+	    UsernameIndex index = new UsernameIndex();
+	    long begin = System.nanoTime();
+	    for (int i = 0; i < names; i++)
+		index.add(userNames[i], i);
+	    final long addNanos = System.nanoTime() - begin;
+	    final long indexBytes = usedHeap() - before;
+
+	    final int lookups = 1_000_000;
+	    long getNanos = 0;
+	    long prefixNanos = 0;
+	    for (int round = 0; round < 2; round++) {
+		begin = System.nanoTime();
+		for (int i = 0; i < lookups; i++)
+		    blackhole += index.numbersOf(userNames[(int) ((i * 7919L) % names)]).length;
+		getNanos = System.nanoTime() - begin;
+		begin = System.nanoTime();
+		for (int i = 0; i < lookups / 10; i++)
+		    blackhole += index.withPrefix("user" + (i % 1000), 10).size();
+		prefixNanos = System.nanoTime() - begin;
+	    }
+	    index = null;
+
+	    final long mapBefore = usedHeap();
+	    final ConcurrentSkipListMap<String, int[]> map =
+		new ConcurrentSkipListMap<>();
+	    for (int i = 0; i < names; i++)
+		map.merge(userNames[i], new int[] { i }, (numbers, added) -> {
+			final int[] joined = Arrays.copyOf(numbers, numbers.length + 1);
+			joined[numbers.length] = added[0];
+			return joined;
+		    });
+	    final long mapBytes = usedHeap() - mapBefore;
+	    long mapNanos = 0;
+	    for (int round = 0; round < 2; round++) {
+		begin = System.nanoTime();
+		for (int i = 0; i < lookups; i++)
+		    blackhole += map.get(userNames[(int) ((i * 7919L) % names)]).length;
+		mapNanos = System.nanoTime() - begin;
+	    }
+
+	    System.out.printf("%10d %10.0f %10.0f %10.0f %10.0f %12.1f %12.1f\n",
+			      names,
+			      nanosPer(addNanos, names),
+			      nanosPer(getNanos, lookups),
+			      nanosPer(prefixNanos, lookups / 10),
+			      nanosPer(mapNanos, lookups),
+			      (double) indexBytes / names,
+			      (double) mapBytes / names);
+	}
+    }
+
+    static long usedHeap() {
+	for (int i = 0; i < 3; i++)
+	    System.gc();
+	final Runtime runtime = Runtime.getRuntime();
+	return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // what keeping the balance index costs a deposit, and what its
+    // queries take next to a scan of every account
+    static void balanceIndex(String[] args) {
+	final Random random = new Random(7);
+	System.out.printf("%10s %12s %12s %10s %10s %10s %12s\n",
+			  "accounts", "plain ns", "indexed ns", "top10 us",
+			  "below us", "count us", "scan ms");
+	for (int accounts : sizes(args, 100_000, 1_000_000)) {
+	    final Service plain = new Service(
+					      new RepositoryInMemory(new ConcurrentHashMap<>(2 * accounts)));
+	    final BalanceIndexedRepository repository =
+		new BalanceIndexedRepository(
+					     new RepositoryInMemory(new ConcurrentHashMap<>(2 * accounts)));
+	    final Service indexed = new Service(repository);
+	    final Account[] opened = new Account[accounts];
+	    for (int i = 0; i < accounts; i++) {
+		opened[i] = CheckingAccount.ofHash("bench" + i, hashPass);
+		plain.createAccount(opened[i]);
+		indexed.createAccount(opened[i]);
+		final double balance = random.nextInt(10_000_000) / 100.0;
+		plain.deposit(balance, opened[i]);
+		indexed.deposit(balance, opened[i]);
+	    }
+
+	    final int deposits = 1_000_000;
+	    long plainNanos = 0;
+	    long indexedNanos = 0;
+	    for (int round = 0; round < 2; round++) {
+		long begin = System.nanoTime();
+		for (int i = 0; i < deposits; i++)
+		    plain.deposit(0.37, opened[(int) ((i * 7919L) % accounts)]);
+		plainNanos = System.nanoTime() - begin;
+		begin = System.nanoTime();
+		for (int i = 0; i < deposits; i++)
+		    indexed.deposit(0.37, opened[(int) ((i * 7919L) % accounts)]);
+		indexedNanos = System.nanoTime() - begin;
+	    }
+
+	    final int queries = 10_000;
+	    long topNanos = 0;
+	    long belowNanos = 0;
+	    long countNanos = 0;
+	    for (int round = 0; round < 2; round++) {
+		long begin = System.nanoTime();
+		for (int i = 0; i < queries; i++)
+		    blackhole += repository.richest(10).size();
+		topNanos = System.nanoTime() - begin;
+		begin = System.nanoTime();
+		for (int i = 0; i < queries; i++)
+		    blackhole += repository.below(random.nextInt(100_000), 10)
+			.size();
+		belowNanos = System.nanoTime() - begin;
+		begin = System.nanoTime();
+		for (int i = 0; i < queries; i++) {
+		    final double from = random.nextInt(10_000_000) / 100.0;
+		    blackhole += repository.countBetween(from, from + 1_000.0);
+		}
+		countNanos = System.nanoTime() - begin;
+	    }
+	    final long begin = System.nanoTime();
+	    blackhole += repository.streamAccounts()
+		.filter(account -> account.getBalance() >= 500.0
+			&& account.getBalance() < 1_500.0)
+		.count();
+	    final long scanNanos = System.nanoTime() - begin;
+
+	    System.out.printf("%10d %12.0f %12.0f %10.2f %10.2f %10.2f %12.1f\n",
+			      accounts,
+			      nanosPer(plainNanos, deposits),
+			      nanosPer(indexedNanos, deposits),
+			      nanosPer(topNanos, queries) / 1e3,
+			      nanosPer(belowNanos, queries) / 1e3,
+			      nanosPer(countNanos, queries) / 1e3,
+			      scanNanos / 1e6);
+	}
+    }
+
+    // one employer paying every employee, as one batch and as separate
+    // transfers, in memory and on the event log syncing every append;
+    // the in memory rounds run a few times over so the batch loop is
+    // compiled before it is timed, as it would be in a running server
+    static void payroll(String[] args) throws Exception {
+	System.out.printf("%10s %10s %14s %14s %10s\n",
+			  "legs", "store", "batch ms", "transfers ms",
+			  "speedup");
+	for (int legs : sizes(args, 10_000, 100_000)) {
+	    for (String store : new String[] { "memory", "events" }) {
+		final double[] millis = new double[2];
+		final int runs = store.equals("memory") ? 10 : 2;
+		for (int run = 0; run < runs; run++) {
+		    final Path directory = Files.createTempDirectory("payroll");
+		    final Repository repository = store.equals("memory")
+			? new RepositoryInMemory(new ConcurrentHashMap<>())
+			: EventSourcedRepository.open(directory, 1, 64L << 20,
+						      true, Long.MAX_VALUE);
+		    final Service service = new Service(repository);
+		    final Account employer =
+			CheckingAccount.ofHash("employer", hashPass);
+		    service.createAccount(employer);
+		    service.deposit(10.0 * legs, employer);
+		    final ArrayList<TransferLeg> payroll = new ArrayList<>();
+		    for (int i = 0; i < legs; i++) {
+			final Account employee =
+			    SavingAccount.ofHash("bench" + i, hashPass);
+			service.createAccount(employee);
+			payroll.add(new TransferLeg(employer, employee, 5.0));
+		    }
+
+		    final long begin = System.nanoTime();
+		    if (run % 2 == 0) {
+			if (!service.transferAll(payroll).isPresent())
+			    throw new IllegalStateException("payroll refused");
+		    } else {
+			for (TransferLeg leg : payroll)
+			    service.transfer(leg.getAmount(), leg.getFrom(),
+					     leg.getTo());
+		    }
+		    millis[run % 2] = (System.nanoTime() - begin) / 1e6;
+		    if (repository instanceof EventSourcedRepository)
+			((EventSourcedRepository) repository).close();
+		}
+		System.out.printf("%10d %10s %14.1f %14.1f %10.1f\n",
+				  legs, store, millis[0], millis[1],
+				  millis[1] / millis[0]);
+	    }
+	}
+    }
+
+    // logins arriving on a fixed schedule at twice what the box can
+    // verify, once straight through and once behind admission control;
+    // latency runs from the scheduled arrival to the answer
+    static void admission(String[] args) throws Exception {
+	final String hash = BCrypt.hashpw("1234", BCrypt.gensalt(6));
+	final Account account = CheckingAccount.ofHash("bench", hash);
+	int verified = 0;
+	final long probe = System.nanoTime();
+	while (System.nanoTime() - probe < 1_000_000_000L) {
+	    account.verifyPass("1234");
+	    verified++;
+	}
+	final double capacity =
+	    verified * Runtime.getRuntime().availableProcessors();
+	System.out.printf("capacity about %.0f logins/s\n", capacity);
+	System.out.printf("%10s %10s %10s %10s %10s %10s %10s\n",
+			  "admission", "seconds", "offered/s", "served/s",
+			  "rejected", "p50 ms", "p99 ms");
+	for (int seconds : sizes(args, 5)) {
+	    for (boolean admitted : new boolean[] { false, true }) {
+		final AdmissionControl admission = admitted
+		    ? AdmissionControl.standard()
+		    : AdmissionControl.unlimited();
+		final int arrivals = (int) (2 * capacity * seconds);
+		final long interval = (long) (1e9 / (2 * capacity));
+		final long[] latencies = new long[arrivals];
+		final AtomicLong served = new AtomicLong();
+		final AtomicLong rejected = new AtomicLong();
+		final ExecutorService workers = Executors.newFixedThreadPool(64);
+		final long start = System.nanoTime();
+		for (int i = 0; i < arrivals; i++) {
+		    final long arrival = start + i * interval;
+		    final int request = i;
+		    LockSupport.parkNanos(arrival - System.nanoTime());
+		    workers.execute(() -> {
+			    try {
+				admission.admit(WorkClass.LOGIN,
+						() -> account.verifyPass("1234"));
+				latencies[request] = System.nanoTime() - arrival;
+				served.incrementAndGet();
+			    } catch (ServiceBusyException ex) {
+				latencies[request] = Long.MAX_VALUE;
+				rejected.incrementAndGet();
+			    }
+			});
+		}
+		workers.shutdown();
+		workers.awaitTermination(10, TimeUnit.MINUTES);
+		final long nanos = System.nanoTime() - start;
+
+		final long[] answered = Arrays.stream(latencies)
+		    .filter(latency -> latency != Long.MAX_VALUE)
+		    .sorted()
+		    .toArray();
+		System.out.printf("%10s %10d %10.0f %10.0f %10d %10.1f %10.1f\n",
+				  admitted,
+				  seconds,
+				  arrivals / (seconds * 1.0),
+				  served.get() / (nanos / 1e9),
+				  rejected.get(),
+				  answered[answered.length / 2] / 1e6,
+				  answered[(int) (answered.length * 0.99)] / 1e6);
+	    }
+	}
+    }
+
+    // transfers with and without the change stream, with one subscriber
+    // following in batches, flat out and then paced so the subscriber
+    // is not fighting the writer for a core; lag runs from the transfer
+    // starting to its second leg reaching the subscriber
+    static void changes(String[] args) throws Exception {
+	final int accounts = 10_000;
+	System.out.printf("%10s %10s %14s %14s %12s %12s %10s\n",
+			  "transfers", "pace us", "plain/s", "captured/s",
+			  "lag p50 us", "lag p99 us", "spilled");
+	for (int transfers : sizes(args, 200_000, 1_000_000)) {
+	    final Service plain = new Service(new MvccRepository());
+	    final Path directory = Files.createTempDirectory("changes");
+	    final ChangeStream changes =
+		ChangeStream.open(directory, 1 << 16, 64L << 20);
+	    final Service captured =
+		new Service(new ChangeCapturingRepository(new MvccRepository(),
+							  changes));
+	    final Account[] plainAccounts = new Account[accounts];
+	    final Account[] capturedAccounts = new Account[accounts];
+	    for (int i = 0; i < accounts; i++) {
+		plainAccounts[i] = CheckingAccount.ofHash("bench" + i, hashPass);
+		capturedAccounts[i] = CheckingAccount.ofHash("bench" + i, hashPass);
+		plain.createAccount(plainAccounts[i]);
+		captured.createAccount(capturedAccounts[i]);
+		plain.deposit(1_000_000.0, plainAccounts[i]);
+		captured.deposit(1_000_000.0, capturedAccounts[i]);
+	    }
+
+	    final long plainBegin = System.nanoTime();
+	    for (int i = 0; i < transfers; i++)
+		plain.transfer(0.01, plainAccounts[i % accounts],
+			       plainAccounts[otherThan(i, accounts)]);
+	    final long plainNanos = System.nanoTime() - plainBegin;
+
+	    for (long pace : new long[] { 0L, 20_000L }) {
+		final int count = pace == 0 ? transfers : transfers / 20;
+		final long base = changes.getNextSeq();
+		final long[] starts = new long[count];
+		final long[] lags = new long[count];
+		final ChangeStream.Subscriber subscriber =
+		    changes.subscribe(base);
+		final Thread follower = new Thread(() -> {
+			try {
+			    long received = 0;
+			    while (received < 2L * count) {
+				for (ChangeEvent event : subscriber
+					 .poll(1024, 10, TimeUnit.MILLISECONDS)) {
+				    final long seq = event.getSeq() - base;
+				    if (seq % 2 == 1)
+					lags[(int) (seq / 2)] = System.nanoTime()
+					    - starts[(int) (seq / 2)];
+				    received++;
+				}
+			    }
+			} catch (InterruptedException ex) {
+			    Thread.currentThread().interrupt();
+			}
+		    });
+		follower.start();
+		final long begin = System.nanoTime();
+		for (int i = 0; i < count; i++) {
+		    starts[i] = System.nanoTime();
+		    captured.transfer(0.01, capturedAccounts[i % accounts],
+				      capturedAccounts[otherThan(i, accounts)]);
+		    if (pace > 0)
+			LockSupport.parkNanos(pace);
+		}
+		final long capturedNanos = System.nanoTime() - begin;
+		follower.join();
+		subscriber.close();
+
+		Arrays.sort(lags);
+		System.out.printf("%10d %10d %14.0f %14.0f %12.1f %12.1f %10d\n",
+				  count,
+				  pace / 1_000,
+				  transfers / (plainNanos / 1e9),
+				  count / (capturedNanos / 1e9),
+				  lags[count / 2] / 1e3,
+				  lags[(int) (count * 0.99)] / 1e3,
+				  changes.getSpilled());
+	    }
+	    changes.close();
+	}
+    }
+
+    // a spread of accounts that is never i itself
+    static int otherThan(int i, int accounts) {
+	return (i + 1 + (int) ((i * 7919L) % (accounts - 1))) % accounts;
+    }
+
+    // transfer latency alone, then while another thread keeps summing
+    // every balance through snapshots that must all see the same total
+    static void mvcc(String[] args) throws Exception {
+	final int transfers = 200_000;
+	System.out.printf("%10s %10s %12s %12s %12s %10s\n",
+			  "accounts", "analytics", "mean ns", "p99 ns",
+			  "snapshots", "invariant");
+	for (int accounts : sizes(args, 10_000, 100_000)) {
+	    final MvccRepository repository = new MvccRepository();
+	    final Service service = new Service(repository);
+	    final Account[] opened = new Account[accounts];
+	    for (int i = 0; i < accounts; i++) {
+		opened[i] = CheckingAccount.ofHash("bench" + i, hashPass);
+		service.createAccount(opened[i]);
+		service.deposit(100.0, opened[i]);
+	    }
+	    final long totalCents = 100L * 100L * accounts;
+
+	    for (boolean analytics : new boolean[] { false, true }) {
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicLong snapshots = new AtomicLong();
+		final AtomicBoolean invariant = new AtomicBoolean(true);
+		final Thread reader = new Thread(() -> {
+			while (running.get()) {
+			    try (MvccRepository.Snapshot snapshot =
+				 repository.snapshot()) {
+				final long cents = snapshot.streamAccounts()
+				    .mapToLong(account ->
+					       Math.round(account.getBalance() * 100.0))
+				    .sum();
+				if (cents != totalCents)
+				    invariant.set(false);
+			    }
+			    snapshots.incrementAndGet();
+			}
+		    });
+		if (analytics)
+		    reader.start();
+
+		final long[] latencies = new long[transfers];
+		for (int i = 0; i < transfers; i++) {
+		    final long begin = System.nanoTime();
+		    service.transfer(0.01, opened[i % accounts],
+				     opened[(int) ((i * 7919L) % accounts)]);
+		    latencies[i] = System.nanoTime() - begin;
+		}
+		running.set(false);
+		if (analytics)
+		    reader.join();
+
+		Arrays.sort(latencies);
+		System.out.printf("%10d %10s %12.0f %12d %12d %10s\n",
+				  accounts,
+				  analytics,
+				  Arrays.stream(latencies).average().orElse(0.0),
+				  latencies[(int) (transfers * 0.99)],
+				  snapshots.get(),
+				  invariant.get());
+	    }
+	}
+    }
+
+    // the same transfers between accounts of one currency, then between
+    // USD and BRL accounts, plus what a bare conversion costs
+    static void fx(String[] args) throws Exception {
+	final com.sun.management.ThreadMXBean threads =
+	    (com.sun.management.ThreadMXBean)
+	    java.lang.management.ManagementFactory.getThreadMXBean();
+	final long threadId = Thread.currentThread().getId();
+	final FxRates fx = new FxRates(FxTable.parse(
+						     Arrays.asList("USD,BRL,5.4321",
+								   "EUR,BRL,5.9876",
+								   "EUR,USD,1.0876"),
+						     0L));
+	System.out.printf("%10s %14s %14s %14s %16s\n",
+			  "transfers", "same ns", "cross ns", "convert ns",
+			  "convert bytes");
+	for (int transfers : sizes(args, 100_000, 1_000_000)) {
+	    final int accounts = 1_000;
+	    final Service service =
+		new Service(new RepositoryInMemory(new ConcurrentHashMap<>()),
+			    new OperationJournal(),
+			    new IdempotencyCache(64, 60_000L),
+			    VelocityGuard.unlimited(),
+			    fx);
+	    final Account[] reais = new Account[accounts];
+	    final Account[] dollars = new Account[accounts];
+	    for (int i = 0; i < accounts; i++) {
+		reais[i] = CheckingAccount.ofHash("bench" + i, hashPass);
+		dollars[i] = CheckingAccount.restore(Account.newNumber(), "4242-x",
+						     "bench" + i, 0.0, hashPass,
+						     500.0, 0.0, 0L, "USD");
+		service.createAccount(reais[i]);
+		service.createAccount(dollars[i]);
+		service.deposit(1_000_000.0, reais[i]);
+		service.deposit(1_000_000.0, dollars[i]);
+	    }
+
+	    long sameNanos = 0;
+	    long crossNanos = 0;
+	    for (int round = 0; round < 2; round++) {
+		long begin = System.nanoTime();
+		for (int i = 0; i < transfers; i++)
+		    service.transfer(1.25, reais[i % accounts],
+				     reais[(i + 1) % accounts]);
+		sameNanos = System.nanoTime() - begin;
+
+		begin = System.nanoTime();
+		for (int i = 0; i < transfers; i++)
+		    service.transfer(1.25, dollars[i % accounts],
+				     reais[(i + 1) % accounts]);
+		crossNanos = System.nanoTime() - begin;
+	    }
+
+	    long sink = 0;
+	    long convertNanos = 0;
+	    long allocated = 0;
+	    for (int round = 0; round < 2; round++) {
+		final long bytes = threads.getThreadAllocatedBytes(threadId);
+		final long begin = System.nanoTime();
+		for (int i = 0; i < transfers; i++)
+		    sink += fx.current().convertCents(125 + i, "USD", "BRL");
+		convertNanos = System.nanoTime() - begin;
+		allocated = threads.getThreadAllocatedBytes(threadId) - bytes;
+	    }
+
+	    blackhole = sink;
+	    System.out.printf("%10d %14.1f %14.1f %14.1f %16.3f\n",
+			      transfers,
+			      nanosPer(sameNanos, transfers),
+			      nanosPer(crossNanos, transfers),
+			      nanosPer(convertNanos, transfers),
+			      (double) allocated / transfers);
+	}
+    }
+
+    // a check plus a record per movement over many accounts, with the
+    // bytes the timed loop allocated, measured by the JVM for this thread
+    static void velocity(String[] args) {
+	final com.sun.management.ThreadMXBean threads =
+	    (com.sun.management.ThreadMXBean)
+	    java.lang.management.ManagementFactory.getThreadMXBean();
+	final long threadId = Thread.currentThread().getId();
+	System.out.printf("%10s %14s %14s %14s\n",
+			  "accounts", "ns/check", "bytes/check", "allowed");
+	for (int accounts : sizes(args, 1_000, 100_000, 1_000_000)) {
+	    final AtomicLong clock = new AtomicLong(1_700_000_000_000L);
+	    final VelocityGuard velocity =
+		new VelocityGuard(new VelocityLimits(1_000.0, 100, 5_000.0, 500),
+				  new VelocityLimits(1_000.0, 100, 5_000.0, 500),
+				  clock::get);
+	    final int checks = 10_000_000;
+	    final Random random = new Random(42);
+	    final int[] picks = new int[1 << 16];
+	    for (int i = 0; i < picks.length; i++)
+		picks[i] = 1 + random.nextInt(accounts);
+	    for (int i = 0; i < accounts; i++)
+		velocity.record(Operation.WITHDRAW, i + 1, 1.0);
+
+	    long allowed = 0;
+	    for (int round = 0; round < 2; round++) {
+		allowed = 0;
+		final long bytes = threads.getThreadAllocatedBytes(threadId);
+		final long begin = System.nanoTime();
+		for (int i = 0; i < checks; i++) {
+		    final int account = picks[i & (picks.length - 1)];
+		    // a minute of simulated time every thousand checks
+		    if ((i & 1023) == 0)
+			clock.addAndGet(60_000L);
+		    if (velocity.allows(Operation.WITHDRAW, account, 10.0)) {
+			velocity.record(Operation.WITHDRAW, account, 10.0);
+			allowed++;
+		    }
+		}
+		final long nanos = System.nanoTime() - begin;
+		final long allocated =
+		    threads.getThreadAllocatedBytes(threadId) - bytes;
+		if (round == 1)
+		    System.out.printf("%10d %14.1f %14.3f %14d\n",
+				      accounts,
+				      nanosPer(nanos, checks),
+				      (double) allocated / checks,
+				      allowed);
+	    }
+	}
+    }
+
+    // deposits with no key against deposits with a fresh key each, so the
+    // cache is only ever missed and filled, in memory and on disk
+    static void idempotency(String[] args) throws Exception {
+	System.out.printf("%10s %12s %14s %14s %12s\n",
+			  "deposits", "no key ns", "keyed ns", "durable ns",
+			  "overhead %");
+	for (int deposits : sizes(args, 100_000, 1_000_000)) {
+	    final int accounts = 1_000;
+	    final int[] numbers = new int[accounts];
+	    final Service plain = serviceWithCheckingAccounts(accounts, numbers);
+	    final String[] keys = new String[deposits];
+	    for (int i = 0; i < deposits; i++)
+		keys[i] = "bench-" + i;
+
+	    final Repository repository =
+		new RepositoryInMemory(new ConcurrentHashMap<>());
+	    for (int number : numbers)
+		repository.saveAccount(plain.getAccountByNumber(number).get());
+	    final Service keyed = new Service(repository, new OperationJournal(),
+					      new IdempotencyCache(1 << 16, 60_000L));
+	    final Path path = Files.createTempFile("bench-idempotency", ".log");
+	    final IdempotencyCache cache =
+		IdempotencyCache.open(path, 1 << 16, 60_000L);
+	    final Service durable =
+		new Service(repository, new OperationJournal(), cache);
+
+	    final Account[] targets = new Account[accounts];
+	    for (int i = 0; i < accounts; i++)
+		targets[i] = plain.getAccountByNumber(numbers[i]).get();
+	    // warm every path up on keys the timed rounds do not use
+	    for (int i = 0; i < deposits; i++) {
+		plain.deposit(1.0, targets[i % accounts]);
+		keyed.deposit(1.0, targets[i % accounts], "warm-" + i);
+		durable.deposit(1.0, targets[i % accounts], "warm-" + i);
+	    }
+
+	    long begin = System.nanoTime();
+	    for (int i = 0; i < deposits; i++)
+		plain.deposit(1.0, targets[i % accounts]);
+	    final long plainNanos = System.nanoTime() - begin;
+
+	    begin = System.nanoTime();
+	    for (int i = 0; i < deposits; i++)
+		keyed.deposit(1.0, targets[i % accounts], keys[i]);
+	    final long keyedNanos = System.nanoTime() - begin;
+
+	    begin = System.nanoTime();
+	    for (int i = 0; i < deposits; i++)
+		durable.deposit(1.0, targets[i % accounts], keys[i]);
+	    final long durableNanos = System.nanoTime() - begin;
+	    cache.close();
+	    Files.delete(path);
+
+	    System.out.printf("%10d %12.1f %14.1f %14.1f %12.1f\n",
+			      deposits,
+			      nanosPer(plainNanos, deposits),
+			      nanosPer(keyedNanos, deposits),
+			      nanosPer(durableNanos, deposits),
+			      100.0 * (keyedNanos - plainNanos) / plainNanos);
+	}
+    }
+
+    // writes events straight into the repository, then replays them with
+    // growing partition counts, and once more from a checkpoint
+    static void replay(String[] args) throws Exception {
+	System.out.printf("%10s %6s %12s %16s %14s\n",
+			  "events", "parts", "replay ms", "events/s/core",
+			  "from ckpt ms");
+	final int cores = Runtime.getRuntime().availableProcessors();
+	for (int events : sizes(args, 100_000, 1_000_000, 4_000_000)) {
+	    final Path directory = Files.createTempDirectory("bench-events");
+	    final int accounts = Math.max(1, events / 100);
+	    EventSourcedRepository repository =
+		EventSourcedRepository.open(directory, 1, 64L << 20,
+					    false, Long.MAX_VALUE);
+	    final Random random = new Random(42);
+	    final Account[] opened = new Account[accounts];
+	    for (int i = 0; i < accounts; i++) {
+		opened[i] = CheckingAccount.ofHash("bench" + i, hashPass);
+		repository.saveAccount(opened[i]);
+	    }
+	    for (int i = accounts; i < events; i++) {
+		final int number = random.nextInt(accounts);
+		final Account account = repository
+		    .getAccountByNumber(opened[number].getNumber()).get();
+		if (i % 4 == 0) {
+		    final Account to = repository
+			.getAccountByNumber(opened[(number + 1) % accounts]
+					    .getNumber()).get();
+		    repository.update(account.transfer(0.0, to));
+		} else {
+		    repository.update(account.deposit(1.0));
+		}
+	    }
+	    repository.close();
+
+	    for (int parts = 1; parts <= cores * 2; parts *= 2) {
+		repository = EventSourcedRepository.open(directory, parts,
+							 64L << 20, false,
+							 Long.MAX_VALUE);
+		final ReplayReport report = repository.getLastReplay();
+		repository.close();
+		System.out.printf("%10d %6d %12.1f %16.0f %14s\n",
+				  report.getEvents(), parts,
+				  report.getNanos() / 1e6,
+				  report.eventsPerSecondPerCore(), "");
+	    }
+
+	    repository = EventSourcedRepository.open(directory, cores,
+						     64L << 20, false,
+						     Long.MAX_VALUE);
+	    repository.checkpoint();
+	    for (int i = 0; i < events / 10; i++) {
+		final Account account = repository
+		    .getAccountByNumber(opened[i % accounts].getNumber()).get();
+		repository.update(account.deposit(1.0));
+	    }
+	    repository.close();
+	    repository = EventSourcedRepository.open(directory, cores,
+						     64L << 20, false,
+						     Long.MAX_VALUE);
+	    final ReplayReport fromCheckpoint = repository.getLastReplay();
+	    repository.close();
+	    System.out.printf("%10d %6d %12s %16.0f %14.1f\n",
+			      fromCheckpoint.getEvents(), cores, "",
+			      fromCheckpoint.eventsPerSecondPerCore(),
+			      fromCheckpoint.getNanos() / 1e6);
+
+	    try (Stream<Path> files = Files.list(directory)) {
+		files.forEach(file -> file.toFile().delete());
+	    }
+	    Files.delete(directory);
+	}
+    }
+
+    // accounts with 200 entries each, exported per account then combined
+    static void export(String[] args) throws Exception {
+	System.out.printf("%10s %12s %12s %14s %14s\n",
+			  "accounts", "rows", "MB", "split MB/s", "combined MB/s");
+	for (int accounts : sizes(args, 1_000, 10_000)) {
+	    final int[] numbers = new int[accounts];
+	    final Service service = serviceWithCheckingAccounts(accounts, numbers);
+	    final OperationJournal journal = service.getJournal();
+	    for (int round = 0; round < 199; round++)
+		for (int i = 0; i < accounts; i++)
+		    service.deposit(1.25, service.getAccountByNumber(numbers[i]).get());
+
+	    final Path directory = Files.createTempDirectory("bench-export");
+	    final Repository repository = new RepositoryInMemory(
+								 new ConcurrentHashMap<>());
+	    for (int number : numbers)
+		repository.saveAccount(service.getAccountByNumber(number).get());
+	    final StatementExporter exporter =
+		new StatementExporter(repository, journal);
+	    final LocalDateTime from = LocalDateTime.now().minusDays(1);
+	    final LocalDateTime to = LocalDateTime.now().plusDays(1);
+	    final ExportReport split = exporter.export(directory, from, to, false);
+
+	    Files.delete(directory.resolve("statement-" + numbers[0] + ".csv"));
+	    final ExportReport combined = exporter.export(directory, from, to, true);
+
+	    System.out.printf("%10d %12d %12.1f %14.1f %14.1f\n",
+			      accounts,
+			      split.getRows(),
+			      split.getBytes() / 1e6,
+			      split.megabytesPerSecond(),
+			      combined.megabytesPerSecond());
+	    try (Stream<Path> files = Files.list(directory)) {
+		files.forEach(file -> file.toFile().delete());
+	    }
+	    Files.delete(directory);
+	}
+    }
+
+    // one account with millions of entries, one entry a minute
+    static void statement(String[] args) {
+	System.out.printf("%10s %12s %14s %14s\n",
+			  "entries", "append ns", "count ns", "page ns");
+	for (int entries : sizes(args, 1_000_000, 5_000_000)) {
+	    final long[] now = {0L};
+	    final OperationJournal journal =
+		new OperationJournal(ZoneId.of("UTC"), () -> now[0]);
+	    final Service service = new Service(
+						new RepositoryInMemory(new ConcurrentHashMap<>()),
+						journal);
+	    final CheckingAccount account =
+		CheckingAccount.ofHash("bench", hashPass);
+	    service.createAccount(account);
+
+	    long begin = System.nanoTime();
+	    for (int i = 0; i < entries; i++) {
+		now[0] = i * 60_000L;
+		service.deposit(1.0, account);
+	    }
+	    final long appendNanos = System.nanoTime() - begin;
+
+	    final int queries = 100_000;
+	    final Random random = new Random(42);
+	    final LocalDateTime start = journal.toDateTime(0L);
+	    final long minutes = entries;
+	    long found = 0;
+	    begin = System.nanoTime();
+	    for (int q = 0; q < queries; q++) {
+		final LocalDateTime from =
+		    start.plusMinutes((long) (random.nextDouble() * minutes));
+		found += service.countStatement(account, from, from.plusDays(1));
+	    }
+	    final long countNanos = System.nanoTime() - begin;
+
+	    begin = System.nanoTime();
+	    for (int q = 0; q < queries; q++) {
+		final LocalDateTime from =
+		    start.plusMinutes((long) (random.nextDouble() * minutes));
+		found += service.statement(account, from, from.plusDays(1),
+					   20, 10).size();
+	    }
+	    final long pageNanos = System.nanoTime() - begin;
+
+	    System.out.printf("%10d %12.1f %14.1f %14.1f\n",
+			      entries,
+			      nanosPer(appendNanos, entries),
+			      nanosPer(countNanos, queries),
+			      nanosPer(pageNanos, queries));
+	    if (found == 0)
+		System.out.printf("no entries found\n");
+	}
+    }
+
+    // reconciles while a writer keeps transferring between accounts
+    static void reconcile(String[] args) throws Exception {
+	System.out.printf("%10s %12s %10s %12s %12s %10s\n",
+			  "accounts", "entries", "ms", "accounts/s",
+			  "writes", "balanced");
+	for (int accounts : sizes(args, 100_000, 1_000_000)) {
+	    final int[] numbers = new int[accounts];
+	    final Repository repository =
+		new RepositoryInMemory(new ConcurrentHashMap<>(accounts * 2));
+	    final Service service = new Service(repository);
+	    for (int i = 0; i < accounts; i++) {
+		final Account account = i % 2 == 0
+		    ? CheckingAccount.ofHash("bench" + i, hashPass)
+		    : SavingAccount.ofHash("bench" + i, hashPass);
+		service.createAccount(account);
+		service.deposit(100.0, account);
+		numbers[i] = account.getNumber();
+	    }
+
+	    final AtomicBoolean running = new AtomicBoolean(true);
+	    final AtomicLong writes = new AtomicLong();
+	    final Thread writer = new Thread(() -> {
+		    int i = 0;
+		    while (running.get()) {
+			final Account from =
+			    service.getAccountByNumber(numbers[i % accounts]).get();
+			final Account to = service
+			    .getAccountByNumber(numbers[(i + 1) % accounts]).get();
+			service.transfer(0.01, from, to);
+			writes.incrementAndGet();
+			i += 7;
+		    }
+		});
+	    writer.start();
+	    final long begin = System.nanoTime();
+	    final ReconciliationReport report =
+		new Reconciler(repository, service.getJournal()).run();
+	    final long nanos = System.nanoTime() - begin;
+	    running.set(false);
+	    writer.join();
+
+	    System.out.printf("%10d %12d %10.1f %12.0f %12d %10s\n",
+			      accounts,
+			      report.getSnapshot(),
+			      nanos / 1e6,
+			      accounts / (nanos / 1e9),
+			      writes.get(),
+			      report.isBalanced());
+	}
+    }
+
+    // payday: every order comes due on the same tick
+    static void transferBurst(String[] args) {
+	final int sources = 10_000;
+	final int targets = 10_000;
+	System.out.printf("%10s %10s %14s %14s\n",
+			  "orders", "threads", "burst ms", "orders/s");
+	for (int orderCount : sizes(args, 100_000, 1_000_000)) {
+	    final int[] numbers = new int[sources + targets];
+	    final Service service =
+		serviceWithCheckingAccounts(sources + targets, numbers);
+	    final LocalDateTime start = LocalDateTime.of(2024, 1, 1, 0, 0);
+	    final TransferScheduler scheduler = new TransferScheduler(
+								      ZoneId.of("UTC"),
+								      RetryPolicy.none,
+								      new TransferOrderStoreInMemory(),
+								      start);
+	    for (int i = 0; i < orderCount; i++)
+		scheduler.schedule(numbers[i % sources],
+				   numbers[sources + (int) ((i * 7919L) % targets)],
+				   0.01, start.plusDays(1), 1);
+
+	    final long begin = System.nanoTime();
+	    final TransferRunReport report =
+		scheduler.runDue(service, start.plusDays(1));
+	    final long nanos = System.nanoTime() - begin;
+
+	    System.out.printf("%10d %10d %14.1f %14.0f\n",
+			      report.getExecuted(),
+			      Runtime.getRuntime().availableProcessors(),
+			      nanos / 1e6,
+			      report.getExecuted() / (nanos / 1e9));
+	}
+    }
+}
@@ -3,6 +3,7 @@ package dio.challenge;
 import org.junit.Test;
 import org.junit.Before;
 import org.junit.After;
+import org.mindrot.jbcrypt.BCrypt;
 import static org.junit.Assert.*;
 import java.io.PrintStream;
 import java.io.PrintWriter;
@@ -14,7 +15,32 @@ import java.io.IOException;
 import java.util.HashMap;
 import java.util.Arrays;
 import java.util.Optional;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.ByteBuffer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.zip.Deflater;
+import java.nio.charset.StandardCharsets;
 
 public class TestMain {
 
@@ -295,4 +321,1937 @@ public class TestMain {
         assertTrue("Expected output to contain e line that contains Welcome and contains Mbr",
                    actualTypeYourName.isPresent());
     }
+
+    @Test
+    public void testTimingWheelExpiresOnDeadline() throws Exception {
+
+	final TimingWheel<Long> wheel = new TimingWheel<>(1L, 0L);
+	final long[] deadlines = {1L, 5L, 63L, 64L, 65L, 4095L, 4096L,
+				  300_000L, 20_000_000L};
+	for (long deadline : deadlines)
+	    wheel.schedule(deadline, deadline);
+
+	final ArrayList<Long> fired = new ArrayList<>();
+	for (long now = 1; now <= 20_000_000L; now++) {
+	    final long tick = now;
+	    wheel.advance(now, deadline -> {
+		    assertEquals("Expected entry to fire on its deadline",
+				 (long) deadline, tick);
+		    fired.add(deadline);
+		});
+	}
+	assertEquals("Expected every entry to fire",
+		     deadlines.length, fired.size());
+	assertEquals("Expected wheel to be empty", 0, wheel.size());
+    }
+
+    @Test
+    public void testLoanScheduleRepaysAndRestoresLimit() throws Exception {
+
+	final HashMap<Integer, Account> repoBack = new HashMap<>();
+	final CheckingAccount account = new CheckingAccount("Mbr", "1234");
+	repoBack.put(account.getNumber(), account);
+	final Service service = new Service(new RepositoryInMemory(repoBack));
+	final LocalDateTime start = LocalDateTime.of(2024, 1, 15, 10, 0);
+	final LoanScheduler scheduler = new LoanScheduler(
+							  ZoneId.of("UTC"),
+							  0.12,
+							  12,
+							  Duration.ofDays(1),
+							  start);
+
+	assertTrue("Expected loan to be opened",
+		   scheduler.openLoan(service, 120.0, account, start)
+		   .isPresent());
+	service.deposit(10.0, account);
+
+	assertEquals("Expected nothing due before first month",
+		     0, scheduler.runDue(service, start.plusDays(20)));
+	assertEquals("Expected first installment collected",
+		     1, scheduler.runDue(service, start.plusMonths(1)));
+
+	// second installment misses with no funds and is retried
+	service.withdraw(service.getAccountByNumber(account.getNumber())
+			 .get().getBalance(), account);
+	assertEquals("Expected missed installment",
+		     0, scheduler.runDue(service, start.plusMonths(2)));
+	service.deposit(200.0, account);
+	assertEquals("Expected retried installment collected",
+		     1, scheduler.runDue(service,
+					 start.plusMonths(2).plusDays(1)));
+
+	for (int month = 3; month <= 12; month++)
+	    scheduler.runDue(service, start.plusMonths(month));
+
+	final CheckingAccount repaid = (CheckingAccount)
+	    service.getAccountByNumber(account.getNumber()).get();
+	assertEquals("Expected no outstanding loans",
+		     0, scheduler.outstanding());
+	assertEquals("Expected loan fully repaid",
+		     0.0, repaid.getLoanCurrent(), 0.001);
+	assertEquals("Expected loan limit restored",
+		     500.0, repaid.getLoanLimit(), 0.001);
+	assertTrue("Expected interest to have been charged",
+		   repaid.getBalance() < 200.0);
+
+	// a plan paid off ahead of time is not outstanding, though its
+	// timer has not fired yet
+	final LocalDateTime later = start.plusMonths(13);
+	assertTrue(scheduler.openLoan(service, 120.0, repaid, later).isPresent());
+	service.deposit(500.0, repaid);
+	assertEquals(1, scheduler.outstanding());
+	for (int i = 0; i < 12; i++)
+	    assertTrue(scheduler.payNext(service, (CheckingAccount)
+					 service.getAccountByNumber(account.getNumber())
+					 .get()).isPresent());
+	assertEquals("Expected the prepaid plan settled",
+		     0, scheduler.outstanding());
+    }
+
+    @Test
+    public void testLoanPlansSurviveRestartAndServiceErrors() throws Exception {
+
+	final AtomicBoolean broken = new AtomicBoolean();
+	final Service service = new Service(
+					    new RepositoryInMemory(new ConcurrentHashMap<>()) {
+						@Override
+						public boolean update(Account account) {
+						    if (broken.get())
+							throw new UncheckedIOException(new IOException("disk"));
+						    return super.update(account);
+						}
+					    });
+	final CheckingAccount account = new CheckingAccount("Mbr", "1234");
+	service.createAccount(account);
+	service.deposit(100.0, account);
+	final Path path = Files.createTempFile("loans", ".log");
+	final LocalDateTime start = LocalDateTime.of(2024, 1, 15, 10, 0);
+	LoanScheduler scheduler =
+	    new LoanScheduler(ZoneId.of("UTC"), 0.12, 12, Duration.ofDays(1),
+			      new LoanPlanStoreFile(path), start);
+	assertTrue(scheduler.openLoan(service, 120.0, account, start)
+		   .isPresent());
+
+	broken.set(true);
+	assertEquals("Expected nothing collected while the service throws",
+		     0, scheduler.runDue(service, start.plusMonths(1)));
+	broken.set(false);
+	assertEquals("Expected the installment armed again for the next tick",
+		     1, scheduler.runDue(service,
+					 start.plusMonths(1).plusMinutes(1)));
+	assertEquals("Expected no missed installment for a service error",
+		     0, scheduler.nextPlan(account.getNumber()).get().getMissed());
+
+	scheduler = new LoanScheduler(ZoneId.of("UTC"), 0.12, 12,
+				      Duration.ofDays(1),
+				      new LoanPlanStoreFile(path),
+				      start.plusMonths(1).plusMinutes(1));
+	final LoanPlan restored = scheduler.nextPlan(account.getNumber()).get();
+	assertEquals("Expected the paid installment restored",
+		     11, restored.getInstallmentsLeft());
+	assertEquals(start.plusMonths(2), restored.getNextAttempt());
+	assertTrue(scheduler.payNext(service, account).isPresent());
+	assertEquals(10, scheduler.nextPlan(account.getNumber()).get()
+		     .getInstallmentsLeft());
+	assertEquals("Expected the installment paid ahead not collected again",
+		     0, scheduler.runDue(service, start.plusMonths(2)));
+	assertEquals(1, scheduler.runDue(service, start.plusMonths(3)));
+	Files.deleteIfExists(path);
+    }
+
+    @Test
+    public void testScheduledTransfersRetryAndRecur() throws Exception {
+
+	final Service service = new Service(
+					    new RepositoryInMemory(new ConcurrentHashMap<>()));
+	final CheckingAccount from = new CheckingAccount("Mbr", "1234");
+	final SavingAccount to = new SavingAccount("Rdj", "4321");
+	service.createAccount(from);
+	service.createAccount(to);
+	final LocalDateTime start = LocalDateTime.of(2024, 1, 1, 9, 0);
+	final TransferScheduler scheduler = new TransferScheduler(
+								  ZoneId.of("UTC"),
+								  new RetryPolicy(2, Duration.ofHours(1)),
+								  new TransferOrderStoreInMemory(),
+								  start);
+
+	scheduler.schedule(from.getNumber(), to.getNumber(), 50.0,
+			   start.plusDays(1), 1);
+	assertEquals("Expected nothing due yet",
+		     0, scheduler.runDue(service, start.plusHours(1))
+		     .getExecuted());
+
+	final TransferRunReport missed =
+	    scheduler.runDue(service, start.plusDays(1));
+	assertEquals("Expected transfer retried without funds",
+		     1, missed.getRetried());
+
+	service.deposit(60.0, from);
+	final TransferRunReport retried =
+	    scheduler.runDue(service, start.plusDays(1).plusHours(1));
+	assertEquals("Expected retried transfer executed",
+		     1, retried.getExecuted());
+	assertEquals("Expected destination credited", 50.0,
+		     service.getAccountByNumber(to.getNumber())
+		     .get().getBalance(), 0.001);
+
+	final TransferRunReport nextMonth =
+	    scheduler.runDue(service, start.plusMonths(1).plusDays(1));
+	assertEquals("Expected recurring transfer waiting for a retry",
+		     1, nextMonth.getRetried());
+	assertEquals("Expected recurring order kept", 1, scheduler.pending());
+    }
+
+    @Test
+    public void testScheduledTransfersOutliveServiceAndStoreErrors()
+	throws Exception {
+
+	final AtomicBoolean brokenRepository = new AtomicBoolean();
+	final Service service = new Service(
+					    new RepositoryInMemory(new ConcurrentHashMap<>()) {
+						@Override
+						public boolean update(Pair<Account, Account> accountPair) {
+						    if (brokenRepository.get())
+							throw new UncheckedIOException(new IOException("disk"));
+						    return super.update(accountPair);
+						}
+					    });
+	final AtomicBoolean brokenStore = new AtomicBoolean();
+	final TransferOrderStoreInMemory store = new TransferOrderStoreInMemory() {
+		@Override
+		public synchronized void save(
+					      ArrayList<StandingOrder> saved,
+					      ArrayList<Long> removed) {
+		    if (brokenStore.get())
+			throw new UncheckedIOException(new IOException("disk"));
+		    super.save(saved, removed);
+		}
+	    };
+	final CheckingAccount from = new CheckingAccount("Mbr", "1234");
+	final SavingAccount to = new SavingAccount("Rdj", "4321");
+	service.createAccount(from);
+	service.createAccount(to);
+	service.deposit(100.0, from);
+	final LocalDateTime start = LocalDateTime.of(2024, 1, 1, 9, 0);
+	final TransferScheduler scheduler = new TransferScheduler(
+								  ZoneId.of("UTC"),
+								  new RetryPolicy(2, Duration.ofHours(1)),
+								  store,
+								  start);
+	final StandingOrder order =
+	    scheduler.schedule(from.getNumber(), to.getNumber(), 50.0,
+			       start.plusDays(1), 1);
+
+	brokenRepository.set(true);
+	assertEquals("Expected the failed order armed again",
+		     1, scheduler.runDue(service, start.plusDays(1)).getRetried());
+	brokenRepository.set(false);
+	brokenStore.set(true);
+	assertEquals("Expected the same attempt run on the next tick",
+		     1, scheduler.runDue(service, start.plusDays(1).plusSeconds(1))
+		     .getExecuted());
+	assertEquals(50.0, service.getAccountByNumber(to.getNumber())
+		     .get().getBalance(), 0.001);
+	assertEquals("Expected the store to still hold the first due date",
+		     start.plusDays(1), store.loadAll().get(0).getDue());
+
+	brokenStore.set(false);
+	scheduler.runDue(service, start.plusDays(1).plusSeconds(2));
+	assertEquals("Expected the next period saved once the store is back",
+		     start.plusDays(1).plusMonths(1), store.loadAll().get(0).getDue());
+	assertEquals(order.getId(), store.loadAll().get(0).getId());
+    }
+
+    @Test
+    public void testTransferOrderStoreFileSurvivesRestart() throws Exception {
+
+	final Path path = Files.createTempFile("orders", ".log");
+	final LocalDateTime start = LocalDateTime.of(2024, 1, 1, 9, 0);
+	final RetryPolicy retryPolicy = new RetryPolicy(3, Duration.ofHours(1));
+	final TransferScheduler scheduler = new TransferScheduler(
+								  ZoneId.of("UTC"),
+								  retryPolicy,
+								  new TransferOrderStoreFile(path),
+								  start);
+	final StandingOrder kept =
+	    scheduler.schedule(1, 2, 10.0, start.plusDays(3), 0);
+	final StandingOrder cancelled =
+	    scheduler.schedule(1, 3, 20.0, start.plusDays(4), 1);
+	scheduler.cancel(cancelled.getId());
+	Files.write(path, "S,9,1,2,".getBytes(), StandardOpenOption.APPEND);
+
+	final TransferScheduler restarted = new TransferScheduler(
+								  ZoneId.of("UTC"),
+								  retryPolicy,
+								  new TransferOrderStoreFile(path),
+								  start);
+	final ArrayList<StandingOrder> orders = restarted.ordersFrom(1);
+	assertEquals("Expected only live order restored", 1, orders.size());
+	assertEquals("Expected same order restored",
+		     kept.getId(), orders.get(0).getId());
+	assertEquals("Expected same amount restored",
+		     10.0, orders.get(0).getAmount(), 0.0);
+	Files.deleteIfExists(path);
+    }
+
+    @Test
+    public void testReconcilerBalancesServiceOperations() throws Exception {
+
+	final Repository repository =
+	    new RepositoryInMemory(new ConcurrentHashMap<>());
+	final Service service = new Service(repository);
+	final CheckingAccount checking = new CheckingAccount("Mbr", "1234");
+	final SavingAccount saving = new SavingAccount("Rdj", "4321");
+	service.createAccount(checking);
+	service.createAccount(saving);
+
+	service.deposit(100.0, checking);
+	service.loan(50.0, checking);
+	service.transfer(70.0, checking, saving);
+	service.withdraw(20.0, saving);
+	service.repay(10.0, 0.5, checking);
+
+	final ReconciliationReport report =
+	    new Reconciler(repository, service.getJournal(), 2).run();
+
+	assertTrue("Expected no violations but got " + report.getViolations(),
+		   report.isBalanced());
+	assertEquals("Expected both accounts checked", 2, report.getChecked());
+	assertEquals("Expected balances to add up to money handed out",
+		     119.5, report.expectedTotalBalance(), 0.001);
+	assertEquals("Expected deposits total", 100.0,
+		     report.total(Operation.DEPOSIT), 0.001);
+    }
+
+    @Test
+    public void testReconcilerSpansOnlyTheNumbersJournaled() throws Exception {
+
+	// the numbers node 4 of a cluster hands out; put the sequence back after
+	final int numbersBefore = Account.number.number;
+	Account.number.number = 4 << 24;
+	try {
+	    final Repository repository =
+		new RepositoryInMemory(new ConcurrentHashMap<>());
+	    final Service service = new Service(repository);
+	    final CheckingAccount checking = new CheckingAccount("Mbr", "1234");
+	    final SavingAccount saving = new SavingAccount("Rdj", "4321");
+	    service.createAccount(checking);
+	    service.createAccount(saving);
+	    service.deposit(100.0, checking);
+	    service.transfer(30.0, checking, saving);
+
+	    final ReconciliationReport report =
+		new Reconciler(repository, service.getJournal(), 2).run();
+	    assertTrue("Expected no violations but got " + report.getViolations(),
+		       report.isBalanced());
+	    assertEquals(2, report.getChecked());
+	    assertEquals(100.0, report.total(Operation.DEPOSIT), 0.001);
+	} finally {
+	    Account.number.number = numbersBefore;
+	}
+    }
+
+    @Test
+    public void testReconcilerChecksAccountsAfterARestart() throws Exception {
+
+	final Path directory = Files.createTempDirectory("reconcile");
+	EventSourcedRepository repository =
+	    EventSourcedRepository.open(directory.resolve("events"), 1,
+					1L << 20, false, 100_000);
+	OperationJournal journal =
+	    OperationJournal.open(directory.resolve("journal"));
+	Service service = new Service(repository, journal);
+	final CheckingAccount checking = new CheckingAccount("Mbr", "1234");
+	final SavingAccount saving = new SavingAccount("Rdj", "4321");
+	service.createAccount(checking);
+	service.createAccount(saving);
+	service.deposit(100.0, checking);
+	service.transfer(70.0, checking, saving);
+	service.withdraw(20.0, saving);
+	journal.close();
+	repository.close();
+
+	repository = EventSourcedRepository.open(directory.resolve("events"), 1,
+						 1L << 20, false, 100_000);
+	journal = OperationJournal.open(directory.resolve("journal"));
+	service = new Service(repository, journal);
+	service.deposit(5.0, saving);
+	final ReconciliationReport report =
+	    new Reconciler(repository, journal).run();
+
+	assertTrue("Expected no violations but got " + report.getViolations(),
+		   report.isBalanced());
+	assertEquals("Expected both accounts checked, none left as changed",
+		     2, report.getChecked());
+	assertEquals(0L, report.getChanged());
+	journal.close();
+	repository.close();
+    }
+
+    @Test
+    public void testReconcilerReportsMoneyWithoutJournal() throws Exception {
+
+	final HashMap<Integer, Account> repoBack = new HashMap<>();
+	final CheckingAccount account = new CheckingAccount("Mbr", "1234");
+	repoBack.put(account.getNumber(), account.copyWithAmount(1000.0));
+	final Repository repository = new RepositoryInMemory(repoBack);
+	final Service service = new Service(repository);
+
+	service.deposit(10.0, account);
+	final ReconciliationReport report =
+	    new Reconciler(repository, service.getJournal()).run();
+
+	assertFalse("Expected violation for unjournaled balance",
+		    report.isBalanced());
+    }
+
+    @Test
+    public void testStatementTimeRangeAndPages() throws Exception {
+
+	final AtomicLong now = new AtomicLong(0L);
+	final OperationJournal journal =
+	    new OperationJournal(ZoneId.of("UTC"), now::get);
+	final Service service = new Service(
+					    new RepositoryInMemory(new HashMap<>()),
+					    journal);
+	final CheckingAccount account = new CheckingAccount("Mbr", "1234");
+	service.createAccount(account);
+	final LocalDateTime start = LocalDateTime.of(2024, 1, 1, 0, 0);
+	for (int day = 0; day < 30; day++) {
+	    now.set(journal.toMillis(start.plusDays(day)));
+	    service.deposit(day + 1.0, account);
+	}
+
+	final LocalDateTime from = start.plusDays(10);
+	final LocalDateTime to = start.plusDays(20);
+	assertEquals("Expected ten deposits in range",
+		     10, service.countStatement(account, from, to));
+
+	final ArrayList<Transaction> page =
+	    service.statement(account, from, to, 8, 5);
+	assertEquals("Expected last page to hold the rest", 2, page.size());
+	assertEquals("Expected entries in time order",
+		     start.plusDays(18), page.get(0).getTime());
+	assertEquals("Expected deposit amount", 19.0,
+		     page.get(0).getAmount(), 0.0);
+	assertEquals("Expected resulting balance",
+		     210.0, page.get(1).getBalanceAfter(), 0.001);
+    }
+
+    @Test
+    public void testJournalOpenedOnADirectoryOutlivesARestart() throws Exception {
+
+	final Path directory = Files.createTempDirectory("journal");
+	final AtomicLong now = new AtomicLong(0L);
+	OperationJournal journal =
+	    OperationJournal.open(directory, ZoneId.of("UTC"), now::get);
+	// past the first chunk, so reopening maps more than one file
+	for (int i = 0; i < 70_000; i++) {
+	    now.set(i * 1_000L);
+	    journal.append(Operation.DEPOSIT, i % 7, 0, 1.0, i / 7 + 1.0);
+	}
+	journal.close();
+
+	journal = OperationJournal.open(directory, ZoneId.of("UTC"), now::get);
+	assertEquals(70_000L, journal.size());
+	assertEquals(6, journal.maxAccount());
+	assertEquals(10_000, journal.countOf(3));
+	assertEquals("Expected the time index rebuilt",
+		     100, journal.countOf(3, 0L, 700_000L));
+	final double[] last = new double[1];
+	journal.forEach(69_999L, 70_000L,
+			(seq, timestamp, operation, account, counterparty,
+			 amount, balanceAfter) -> {
+			    assertEquals(Operation.DEPOSIT, operation);
+			    assertEquals(69_999_000L, timestamp);
+			    last[0] = balanceAfter;
+			});
+	assertEquals(10_000.0, last[0], 0.0);
+	journal.append(Operation.WITHDRAW, 3, 0, 1.0, 9_999.0);
+	assertEquals(70_001L, journal.size());
+	journal.close();
+    }
+
+    @Test
+    public void testStatementMenu() throws Exception {
+
+	final HashMap<Integer, Account> repoBack = new HashMap<>();
+	final CheckingAccount account = new CheckingAccount("Mbr", "1234");
+	repoBack.put(account.getNumber(), account);
+	final Service service = new Service(new RepositoryInMemory(repoBack));
+	final Presenter presenter = Main.defaultPresenter(ioAdapter);
+	service.deposit(42.0, account);
+
+	Thread feedIn = new Thread(() -> {
+		writeToIn.println("1");
+		writeToIn.println(account.getNumber());
+		writeToIn.println("1234");
+		writeToIn.println("8");
+		writeToIn.println("1");
+		writeToIn.flush();
+		writeToIn.close();
+	});
+
+	feedIn.start();
+	feedIn.join();
+	presenter.mainMenu(service);
+	String output = outContent.toString();
+	String[] outSplit = output.split("\n");
+
+	Optional<String> actualDeposit = Arrays.stream(outSplit)
+	    .dropWhile(str -> !str.equals("Statement:"))
+	    .dropWhile(str -> !str.contains("1 transactions in the last 1 days"))
+	    .dropWhile(str -> !str.contains("DEPOSIT") || !str.contains("42.00"))
+	    .findFirst();
+
+	assertTrue("Expected output to contain a line with the deposit",
+		   actualDeposit.isPresent());
+    }
+
+    @Test
+    public void testStatementExportCsvAndRestart() throws Exception {
+
+	final AtomicLong now = new AtomicLong(0L);
+	final OperationJournal journal =
+	    new OperationJournal(ZoneId.of("UTC"), now::get);
+	final Repository repository =
+	    new RepositoryInMemory(new ConcurrentHashMap<>());
+	final Service service = new Service(repository, journal);
+	final CheckingAccount checking = new CheckingAccount("Mbr", "1234");
+	final SavingAccount saving = new SavingAccount("Rdj, Jr", "4321");
+	service.createAccount(checking);
+	service.createAccount(saving);
+	final LocalDateTime start = LocalDateTime.of(2024, 3, 1, 8, 30, 5);
+	now.set(journal.toMillis(start));
+	service.deposit(100.0, checking);
+	now.set(journal.toMillis(start.plusHours(1)));
+	service.transfer(25.5, checking, saving);
+
+	final Path directory = Files.createTempDirectory("export");
+	final StatementExporter exporter =
+	    new StatementExporter(repository, journal, 64, true);
+	final ExportReport report = exporter.export(directory,
+						    start.minusDays(1),
+						    start.plusDays(1),
+						    true);
+	assertEquals("Expected both accounts exported", 2, report.getAccounts());
+	assertEquals("Expected three rows", 3, report.getRows());
+
+	final List<String> lines = Files.readAllLines(
+								StatementExporter.accountFile(directory, checking.getNumber()));
+	assertEquals("Expected header and two rows", 3, lines.size());
+	assertEquals("Expected account header",
+		     "account," + checking.getNumber() + ",CheckingAccount,4242-x,Mbr",
+		     lines.get(0));
+	assertTrue("Expected transfer row but got " + lines.get(2),
+		   lines.get(2).endsWith(",2024-03-01T09:30:05,TRANSFER_OUT,-25.50,"
+					 + saving.getNumber() + ",74.50"));
+
+	final String combined = new String(Files.readAllBytes(
+							      directory.resolve(StatementExporter.combinedName)));
+	final String first = new String(Files.readAllBytes(
+							   StatementExporter.accountFile(directory, checking.getNumber())));
+	final String second = new String(Files.readAllBytes(
+							    StatementExporter.accountFile(directory, saving.getNumber())));
+	assertEquals("Expected combined file in account order",
+		     first + second, combined);
+	assertTrue("Expected quoted user name",
+		   second.startsWith("account," + saving.getNumber()
+				     + ",SavingAccount,4242-x,\"Rdj, Jr\""));
+
+	Files.delete(StatementExporter.accountFile(directory, saving.getNumber()));
+	final ExportReport restarted = exporter.export(directory,
+						       start.minusDays(1),
+						       start.plusDays(1),
+						       false);
+	assertEquals("Expected finished account skipped", 1, restarted.getSkipped());
+	assertEquals("Expected missing account exported", 1, restarted.getAccounts());
+
+	// another range finds files it must not take as its own
+	final ExportReport later = exporter.export(directory,
+						   start.plusHours(2),
+						   start.plusDays(1),
+						   false);
+	assertEquals("Expected nothing skipped for a new range",
+		     0, later.getSkipped());
+	assertEquals(2, later.getAccounts());
+	assertEquals("Expected only the header left in range",
+		     1, Files.readAllLines(StatementExporter.accountFile(
+									  directory, checking.getNumber())).size());
+	assertFalse("Expected the combined file of the old range gone",
+		    Files.exists(directory.resolve(StatementExporter.combinedName)));
+
+	// a range reaching the present is exported again once the journal grew
+	now.set(journal.toMillis(start.plusHours(3)));
+	service.deposit(1.0, checking);
+	final ExportReport grown = exporter.export(directory,
+						   start.plusHours(2),
+						   start.plusDays(1),
+						   false);
+	assertEquals("Expected nothing skipped after new entries",
+		     0, grown.getSkipped());
+	assertEquals(2, Files.readAllLines(StatementExporter.accountFile(
+									directory, checking.getNumber())).size());
+
+	// once over, the range keeps its files however the journal grows
+	now.set(journal.toMillis(start.plusDays(2)));
+	exporter.export(directory, start.plusHours(2), start.plusDays(1), false);
+	service.deposit(1.0, checking);
+	assertEquals(2, exporter.export(directory, start.plusHours(2),
+					start.plusDays(1), false).getSkipped());
+    }
+
+    @Test
+    public void testCsvTextIsUtf8AndReadsBackOnImport() throws Exception {
+
+	final Path directory = Files.createTempDirectory("csv");
+	final Path csv = directory.resolve("users.csv");
+	final String name = "Jo\u00e3o \"Z\u00e9\" \ud83d\ude00";
+	final CsvBuffer buffer = new CsvBuffer(8, ZoneId.of("UTC"));
+	try (FileChannel channel = FileChannel.open(csv, StandardOpenOption.CREATE,
+						    StandardOpenOption.WRITE)) {
+	    buffer.target(channel);
+	    buffer.putText("checking").putByte(',').putText(name).putByte(',')
+		.putText("1234").putByte('\n');
+	    buffer.putText("a\nb").putByte(',').putText("\ud800").putByte('\n');
+	    buffer.flush();
+	}
+	final String written =
+	    new String(Files.readAllBytes(csv), StandardCharsets.UTF_8);
+	assertEquals("checking,\"Jo\u00e3o \"\"Z\u00e9\"\" \ud83d\ude00\",1234\n"
+		     + "\"a\nb\",?\n", written);
+
+	Files.writeString(csv, written.substring(0, written.indexOf('\n') + 1));
+	final Service service = new Service(new MvccRepository());
+	assertEquals(1L, new BulkImporter(service, 1, 4, 4).run(csv).getImported());
+	assertEquals(1, service.accountsOf(name).size());
+    }
+
+    @Test
+    public void testEventSourcedRepositoryReplaysAfterRestart() throws Exception {
+
+	final Path directory = Files.createTempDirectory("events");
+	EventSourcedRepository repository =
+	    EventSourcedRepository.open(directory, 3, 256, false, 1_000_000);
+	Service service = new Service(repository);
+	final CheckingAccount checking = new CheckingAccount("Mbr", "1234");
+	final SavingAccount saving = new SavingAccount("Rdj", "4321");
+	service.createAccount(checking);
+	service.createAccount(saving);
+
+	service.deposit(100.0, checking);
+	service.loan(50.0, checking);
+	repository.checkpoint();
+	service.transfer(70.0, checking, saving);
+	service.withdraw(20.0, saving);
+	service.repay(10.0, 0.5, checking);
+	final Account checkingBefore =
+	    repository.getAccountByNumber(checking.getNumber()).get();
+	final Account savingBefore =
+	    repository.getAccountByNumber(saving.getNumber()).get();
+	repository.close();
+
+	// a write torn by a crash at the end of the log
+	final Path last;
+	try (Stream<Path> files = Files.list(directory)) {
+	    last = files
+		.filter(file -> file.getFileName().toString().endsWith(".log"))
+		.sorted()
+		.reduce((first, second) -> second)
+		.get();
+	}
+	Files.write(last, new byte[] { 0, 0, 0, 40, 1, 2, 3 },
+		    StandardOpenOption.APPEND);
+
+	repository =
+	    EventSourcedRepository.open(directory, 4, 256, false, 1_000_000);
+	final CheckingAccount checkingAfter = (CheckingAccount)
+	    repository.getAccountByNumber(checking.getNumber()).get();
+	final Account savingAfter =
+	    repository.getAccountByNumber(saving.getNumber()).get();
+
+	assertEquals("Expected replay to start at the checkpoint",
+		     4, repository.getLastReplay().getFromSeq());
+	assertEquals("Expected events after the checkpoint replayed",
+		     3, repository.getLastReplay().getEvents());
+	assertEquals("Expected checking balance restored",
+		     checkingBefore.getBalance(), checkingAfter.getBalance(), 0.0);
+	assertEquals("Expected checking version restored",
+		     checkingBefore.getVersion(), checkingAfter.getVersion());
+	assertEquals("Expected loan restored", 40.0,
+		     checkingAfter.getLoanCurrent(), 0.0);
+	assertEquals("Expected saving balance restored",
+		     savingBefore.getBalance(), savingAfter.getBalance(), 0.0);
+	assertTrue("Expected password hash restored",
+		   checkingAfter.verifyPass("1234"));
+
+	service = new Service(repository);
+	service.deposit(1.0, savingAfter);
+	repository.close();
+	repository =
+	    EventSourcedRepository.open(directory, 1, 256, false, 1_000_000);
+	assertEquals("Expected append after the torn tail to survive",
+		     51.0,
+		     repository.getAccountByNumber(saving.getNumber())
+		     .get().getBalance(), 0.0);
+	repository.close();
+    }
+
+    @Test
+    public void testIdempotencyKeyAppliesMutationOnce() throws Exception {
+
+	final Path path = Files.createTempFile("idempotency", ".log");
+	final AtomicLong clock = new AtomicLong(1_000_000L);
+	final Repository repository =
+	    new RepositoryInMemory(new ConcurrentHashMap<>());
+	IdempotencyCache cache =
+	    IdempotencyCache.open(path, 64, 60_000L, clock::get);
+	Service service =
+	    new Service(repository, new OperationJournal(), cache);
+	final CheckingAccount checking = new CheckingAccount("Mbr", "1234");
+	final SavingAccount saving = new SavingAccount("Rdj", "4321");
+	service.createAccount(checking);
+	service.createAccount(saving);
+
+	final Account first = service.deposit(100.0, checking, "dep-1").get();
+	service.deposit(5.0, checking);
+	final Account retried = service.deposit(100.0, checking, "dep-1").get();
+	assertEquals("Expected the retry to return the first result",
+		     100.0, retried.getBalance(), 0.0);
+	assertEquals("Expected the retry to return the first version",
+		     first.getVersion(), retried.getVersion());
+	assertEquals("Expected the deposit applied once", 105.0,
+		     repository.getAccountByNumber(checking.getNumber())
+		     .get().getBalance(), 0.0);
+
+	assertFalse("Expected the transfer to fail without funds",
+		    service.transfer(500.0, checking, saving, "tr-1").isPresent());
+	service.deposit(1000.0, checking);
+	assertFalse("Expected a retried failure to stay failed",
+		    service.transfer(500.0, checking, saving, "tr-1").isPresent());
+	assertTrue("Expected a new key to go through",
+		   service.transfer(500.0, checking, saving, "tr-2").isPresent());
+	service.transfer(500.0, checking, saving, "tr-2");
+	assertEquals("Expected the transfer applied once", 500.0,
+		     repository.getAccountByNumber(saving.getNumber())
+		     .get().getBalance(), 0.0);
+
+	cache.close();
+	cache = IdempotencyCache.open(path, 64, 60_000L, clock::get);
+	service = new Service(repository, new OperationJournal(), cache);
+	service.deposit(100.0, checking, "dep-1");
+	assertEquals("Expected the key remembered after a restart", 605.0,
+		     repository.getAccountByNumber(checking.getNumber())
+		     .get().getBalance(), 0.0);
+
+	clock.addAndGet(60_001L);
+	service.deposit(100.0, checking, "dep-1");
+	assertEquals("Expected an expired key to apply again", 705.0,
+		     repository.getAccountByNumber(checking.getNumber())
+		     .get().getBalance(), 0.0);
+	cache.close();
+    }
+
+    @Test
+    public void testIdempotencyKeyBegunBeforeACrashIsSettled() throws Exception {
+
+	final Path directory = Files.createTempDirectory("events");
+	final Path path = directory.resolve("idempotency.log");
+	EventSourcedRepository repository =
+	    EventSourcedRepository.open(directory, 1, 1 << 20, false, 1_000_000);
+	IdempotencyCache cache = IdempotencyCache.open(path, 64, 60_000L, false);
+	Service service = new Service(repository, new OperationJournal(), cache);
+	final CheckingAccount checking = new CheckingAccount("Mbr", "1234");
+	service.createAccount(checking);
+	service.deposit(100.0, checking);
+
+	// killed after the withdrawal reached the event log, before its
+	// outcome reached the idempotency log; and once before it ran
+	final long version = repository.getAccountByNumber(checking.getNumber())
+	    .get().getVersion();
+	cache.begin("wd-1", checking.getNumber(), version);
+	service.withdraw(40.0, checking);
+	cache.begin("wd-2", checking.getNumber(), version + 1);
+	cache.close();
+	repository.close();
+
+	repository =
+	    EventSourcedRepository.open(directory, 1, 1 << 20, false, 1_000_000);
+	cache = IdempotencyCache.open(path, 64, 60_000L, false);
+	service = new Service(repository, new OperationJournal(), cache);
+	assertEquals("Expected the retry to get the first outcome back", 60.0,
+		     service.withdraw(40.0, checking, "wd-1").get().getBalance(), 0.0);
+	assertEquals("Expected the withdrawal taken once", 60.0,
+		     repository.getAccountByNumber(checking.getNumber())
+		     .get().getBalance(), 0.0);
+	assertEquals("Expected a key that never ran to run", 20.0,
+		     service.withdraw(40.0, checking, "wd-2").get().getBalance(), 0.0);
+
+	// settled keys outlive another restart as outcomes
+	cache.close();
+	cache = IdempotencyCache.open(path, 64, 60_000L, false);
+	service = new Service(repository, new OperationJournal(), cache);
+	service.withdraw(40.0, checking, "wd-1");
+	service.withdraw(40.0, checking, "wd-2");
+	assertEquals("Expected neither key applied again", 20.0,
+		     repository.getAccountByNumber(checking.getNumber())
+		     .get().getBalance(), 0.0);
+	cache.close();
+	repository.close();
+    }
+
+    @Test
+    public void testVelocityLimitsSlideOverHourAndDay() throws Exception {
+
+	final AtomicLong clock = new AtomicLong(1_700_000_000_000L);
+	final VelocityGuard velocity =
+	    new VelocityGuard(new VelocityLimits(100.0, 3, 250.0, 10),
+			      new VelocityLimits(50.0, 1, 500.0, 10),
+			      clock::get);
+	final Repository repository =
+	    new RepositoryInMemory(new ConcurrentHashMap<>());
+	final Service service =
+	    new Service(repository, new OperationJournal(),
+			new IdempotencyCache(64, 60_000L), velocity);
+	final CheckingAccount checking = new CheckingAccount("Mbr", "1234");
+	final SavingAccount saving = new SavingAccount("Rdj", "4321");
+	service.createAccount(checking);
+	service.createAccount(saving);
+	service.deposit(1000.0, checking);
+
+	assertTrue("Expected first withdraw within limits",
+		   service.withdraw(60.0, checking).isPresent());
+	assertFalse("Expected hourly amount limit",
+		    service.withdraw(50.0, checking).isPresent());
+	assertFalse("Expected the refusal reported as a limit",
+		    service.withinLimits(Operation.WITHDRAW, checking, 50.0));
+	assertTrue("Expected withdraw up to the hourly amount",
+		   service.withdraw(40.0, checking).isPresent());
+	assertTrue("Expected a third withdraw within the hourly count",
+		   service.withdraw(0.0, checking).isPresent());
+	assertFalse("Expected hourly count limit",
+		    service.withdraw(0.0, checking).isPresent());
+
+	clock.addAndGet(Duration.ofMinutes(65).toMillis());
+	assertTrue("Expected the hour to have slid past",
+		   service.withdraw(100.0, checking).isPresent());
+	clock.addAndGet(Duration.ofMinutes(65).toMillis());
+	assertFalse("Expected daily amount limit",
+		    service.withdraw(60.0, checking).isPresent());
+	assertTrue("Expected transfers counted apart from withdraws",
+		   service.transfer(50.0, checking, saving).isPresent());
+	assertFalse("Expected hourly transfer count limit",
+		    service.transfer(1.0, checking, saving).isPresent());
+
+	clock.addAndGet(Duration.ofHours(24).toMillis());
+	assertTrue("Expected the day to have slid past",
+		   service.withdraw(60.0, checking).isPresent());
+	assertEquals("Expected only allowed movements applied", 690.0,
+		     repository.getAccountByNumber(checking.getNumber())
+		     .get().getBalance(), 0.001);
+    }
+
+    @Test
+    public void testCrossCurrencyTransferWithReloadedRates() throws Exception {
+
+	final Path path = Files.createTempFile("fx", ".csv");
+	Files.write(path, Arrays.asList("# usd to brl", "USD,BRL,5.0"));
+	final FxRates fx = FxRates.load(path);
+	final Repository repository =
+	    new RepositoryInMemory(new ConcurrentHashMap<>());
+	final Service service =
+	    new Service(repository, new OperationJournal(),
+			new IdempotencyCache(64, 60_000L),
+			VelocityGuard.unlimited(), fx);
+	final CheckingAccount dollars =
+	    new CheckingAccount("Mbr", "1234", "USD");
+	final SavingAccount reais = new SavingAccount("Rdj", "4321");
+	assertTrue("Expected a USD account", service.createAccount(dollars));
+	assertTrue("Expected a BRL account", service.createAccount(reais));
+	assertFalse("Expected a currency without rates refused",
+		    service.createAccount(new SavingAccount("Eur", "1111", "EUR")));
+
+	service.deposit(100.0, dollars);
+	service.transfer(10.01, dollars, reais);
+	assertEquals("Expected converted credit", 50.05,
+		     repository.getAccountByNumber(reais.getNumber())
+		     .get().getBalance(), 0.0);
+	assertEquals("Expected debit in the source currency", 89.99,
+		     repository.getAccountByNumber(dollars.getNumber())
+		     .get().getBalance(), 1e-9);
+	assertEquals("Expected derived inverse rate", 2,
+		     fx.current().convertCents(10, "BRL", "USD"));
+	final FxTable halves = FxTable.parse(Arrays.asList("A,B,0.5"), 0);
+	assertEquals("Expected half rounded down to even", 2,
+		     halves.convertCents(5, "A", "B"));
+	assertEquals("Expected half rounded up to even", 4,
+		     halves.convertCents(7, "A", "B"));
+
+	Files.write(path, Arrays.asList("USD,BRL,6.0"));
+	Files.setLastModifiedTime(path, FileTime.fromMillis(
+							    fx.current().getModified() + 1000));
+	assertTrue("Expected the changed file reloaded", fx.reloadIfChanged());
+	service.transfer(1.0, dollars, reais);
+	assertEquals("Expected the new rate used", 56.05,
+		     repository.getAccountByNumber(reais.getNumber())
+		     .get().getBalance(), 1e-9);
+
+	Files.write(path, Arrays.asList("USD,BRL,oops"));
+	Files.setLastModifiedTime(path, FileTime.fromMillis(
+							    fx.current().getModified() + 2000));
+	assertFalse("Expected a broken file ignored", fx.reloadIfChanged());
+	assertEquals("Expected the last good table kept", 600,
+		     fx.current().convertCents(100, "USD", "BRL"));
+    }
+
+    @Test
+    public void testMvccSnapshotReadsWhileWritesContinue() throws Exception {
+
+	final MvccRepository repository = new MvccRepository();
+	final Service service = new Service(repository);
+	final CheckingAccount checking = new CheckingAccount("Mbr", "1234");
+	final SavingAccount saving = new SavingAccount("Rdj", "4321");
+	service.createAccount(checking);
+	service.createAccount(saving);
+	service.deposit(100.0, checking);
+
+	final MvccRepository.Snapshot snapshot = repository.snapshot();
+	service.transfer(30.0, checking, saving);
+	service.transfer(20.0, checking, saving);
+	final SavingAccount late = new SavingAccount("Late", "1111");
+	service.createAccount(late);
+
+	assertEquals("Expected the snapshot to keep the old balance", 100.0,
+		     snapshot.getAccountByNumber(checking.getNumber())
+		     .get().getBalance(), 0.0);
+	assertEquals("Expected the snapshot total unchanged by transfers",
+		     100.0, snapshot.streamAccounts()
+		     .mapToDouble(Account::getBalance).sum(), 0.0);
+	assertFalse("Expected accounts opened later to be invisible",
+		    snapshot.getAccountByNumber(late.getNumber()).isPresent());
+	assertEquals("Expected current reads to see the writes", 50.0,
+		     repository.getAccountByNumber(saving.getNumber())
+		     .get().getBalance(), 0.0);
+	assertEquals("Expected versions kept for the open snapshot", 3,
+		     repository.versionCount(checking.getNumber()));
+
+	snapshot.close();
+	assertEquals("Expected old versions collected once closed", 1,
+		     repository.versionCount(checking.getNumber()));
+	assertEquals("Expected old versions collected once closed", 1,
+		     repository.versionCount(saving.getNumber()));
+	service.deposit(1.0, checking);
+	assertEquals("Expected no history kept without snapshots", 1,
+		     repository.versionCount(checking.getNumber()));
+    }
+
+    @Test
+    public void testChangeStreamSpillsForSlowSubscriberAndResumes()
+	throws Exception {
+
+	final Path directory = Files.createTempDirectory("changes");
+	final ChangeStream changes = ChangeStream.open(directory, 4, 256);
+	final Service service =
+	    new Service(new ChangeCapturingRepository(new MvccRepository(),
+						      changes));
+	final ChangeStream.Subscriber slow = changes.subscribe(0);
+	final CheckingAccount checking = new CheckingAccount("Mbr", "1234");
+	final SavingAccount saving = new SavingAccount("Rdj", "4321");
+	service.createAccount(checking);
+	service.createAccount(saving);
+	service.deposit(100.0, checking);
+	service.transfer(30.0, checking, saving);
+	for (int i = 0; i < 6; i++)
+	    service.withdraw(1.0, saving);
+
+	assertEquals("Expected one event per leg and account change", 11,
+		     changes.getNextSeq());
+	assertTrue("Expected events past the ring spilled",
+		   changes.getSpilled() > 0);
+
+	final ArrayList<ChangeEvent> seen = new ArrayList<>();
+	seen.addAll(slow.poll(3, 0, TimeUnit.MILLISECONDS));
+	final long resumeAt = slow.getOffset();
+	slow.close();
+	final ChangeStream.Subscriber resumed = changes.subscribe(resumeAt);
+	while (seen.size() < 11)
+	    seen.addAll(resumed.poll(3, 0, TimeUnit.MILLISECONDS));
+
+	for (int i = 0; i < seen.size(); i++)
+	    assertEquals("Expected the stream in seq order", i,
+			 seen.get(i).getSeq());
+	assertEquals(Operation.OPEN, seen.get(0).getOperation());
+	assertEquals(Operation.DEPOSIT, seen.get(2).getOperation());
+	assertEquals(Operation.TRANSFER_OUT, seen.get(3).getOperation());
+	assertEquals(Operation.TRANSFER_IN, seen.get(4).getOperation());
+	assertEquals(saving.getNumber(), seen.get(4).getAccount());
+	assertEquals(0.0, seen.get(4).getBefore(), 0.0);
+	assertEquals(30.0, seen.get(4).getAfter(), 0.0);
+	assertEquals(Operation.WITHDRAW, seen.get(10).getOperation());
+	assertEquals(25.0, seen.get(10).getBefore(), 0.0);
+	assertEquals(24.0, seen.get(10).getAfter(), 0.0);
+	assertTrue("Expected nothing more to read",
+		   resumed.poll(3, 1, TimeUnit.MILLISECONDS).isEmpty());
+
+	resumed.close();
+	service.deposit(1.0, saving);
+	try {
+	    changes.subscribe(0);
+	    fail("Expected offsets nobody held on to to be dropped");
+	} catch (IllegalArgumentException ex) {
+	}
+	changes.close();
+    }
+
+    @Test
+    public void testAdmissionRejectsBeyondBudgetAndAdaptsToLatency()
+	throws Exception {
+
+	final AdmissionControl admission =
+	    new AdmissionControl(new AdaptiveLimit(1, 1, 1, 0, 0L),
+				 AdaptiveLimit.unlimited(),
+				 AdaptiveLimit.unlimited());
+	final CountDownLatch inside = new CountDownLatch(1);
+	final CountDownLatch leave = new CountDownLatch(1);
+	final Thread holder = new Thread(() ->
+					 admission.admit(WorkClass.LOGIN, () -> {
+						 inside.countDown();
+						 try {
+						     leave.await();
+						 } catch (InterruptedException ex) {
+						 }
+						 return true;
+					     }));
+	holder.start();
+	inside.await();
+	try {
+	    admission.admit(WorkClass.LOGIN, () -> true);
+	    fail("Expected a login beyond the budget to be refused");
+	} catch (ServiceBusyException ex) {
+	    assertEquals(WorkClass.LOGIN, ex.getWorkClass());
+	}
+	assertTrue("Expected reads to keep their own budget",
+		   admission.admit(WorkClass.READ, () -> true));
+	leave.countDown();
+	holder.join();
+	assertTrue("Expected the slot back once the login finished",
+		   admission.admit(WorkClass.LOGIN, () -> true));
+	assertEquals(1, admission.limitOf(WorkClass.LOGIN).getRejected());
+
+	final AdaptiveLimit limit = new AdaptiveLimit(10, 1, 100, 0, 0L);
+	for (int round = 0; round < 50; round++) {
+	    final int slots = limit.getLimit();
+	    for (int i = 0; i < slots; i++)
+		assertTrue(limit.acquire());
+	    for (int i = 0; i < slots; i++)
+		limit.release(1_000_000L);
+	}
+	final int grown = limit.getLimit();
+	assertTrue("Expected steady latency to raise the limit", grown > 10);
+	for (int round = 0; round < 2; round++) {
+	    final int slots = limit.getLimit();
+	    for (int i = 0; i < slots; i++)
+		assertTrue(limit.acquire());
+	    for (int i = 0; i < slots; i++)
+		limit.release(10_000_000L);
+	}
+	assertTrue("Expected rising latency to lower the limit",
+		   limit.getLimit() < grown / 2);
+    }
+
+    @Test
+    public void testTransferAllAppliesEveryLegOrNone() throws Exception {
+
+	final Path directory = Files.createTempDirectory("events");
+	EventSourcedRepository repository =
+	    EventSourcedRepository.open(directory, 2, 256, false, 1_000_000);
+	final Service service = new Service(repository);
+	final CheckingAccount employer = new CheckingAccount("Mbr", "1234");
+	service.createAccount(employer);
+	service.deposit(100.0, employer);
+	final ArrayList<Account> staff = new ArrayList<>();
+	final ArrayList<TransferLeg> payroll = new ArrayList<>();
+	for (int i = 0; i < 50; i++) {
+	    final SavingAccount employee = new SavingAccount("Rdj" + i, "4321");
+	    service.createAccount(employee);
+	    staff.add(employee);
+	    payroll.add(new TransferLeg(employer, employee, 1.5));
+	}
+
+	assertTrue("Expected a payroll the employer covers to go through",
+		   service.transferAll(payroll).isPresent());
+	assertEquals(25.0, service.getAccountByNumber(employer.getNumber())
+		     .get().getBalance(), 0.001);
+	assertEquals(1.5, service.getAccountByNumber(staff.get(49).getNumber())
+		     .get().getBalance(), 0.0);
+
+	// the last leg would overdraw, so the first must not happen either
+	final ArrayList<TransferLeg> overdrawn = new ArrayList<>(payroll);
+	overdrawn.add(new TransferLeg(staff.get(0), employer, 2.0));
+	assertFalse("Expected the batch refused as a whole",
+		    service.transferAll(overdrawn).isPresent());
+	assertEquals(25.0, service.getAccountByNumber(employer.getNumber())
+		     .get().getBalance(), 0.001);
+	// a negative leg would pull money from its payee
+	final ArrayList<TransferLeg> reversed = new ArrayList<>();
+	reversed.add(new TransferLeg(employer, staff.get(0), -1.0));
+	assertFalse("Expected a leg of less than nothing refused",
+		    service.transferAll(reversed).isPresent());
+	assertEquals(25.0, service.getAccountByNumber(employer.getNumber())
+		     .get().getBalance(), 0.001);
+
+	// a split payment, where later legs spend what earlier ones brought
+	final ArrayList<TransferLeg> split = new ArrayList<>();
+	split.add(new TransferLeg(staff.get(0), staff.get(1), 1.5));
+	split.add(new TransferLeg(staff.get(1), employer, 3.0));
+	assertTrue(service.transferAll(split).isPresent());
+	assertEquals("Expected both legs of every transfer journaled",
+		     51 + 1 + 2 * 50 + 2 * 2, service.getJournal().size());
+	repository.close();
+
+	repository =
+	    EventSourcedRepository.open(directory, 3, 256, false, 1_000_000);
+	assertEquals("Expected a batch replayed as one event", 28.0,
+		     repository.getAccountByNumber(employer.getNumber())
+		     .get().getBalance(), 0.001);
+	assertEquals(0.0, repository.getAccountByNumber(staff.get(1)
+							.getNumber())
+		     .get().getBalance(), 0.0);
+	repository.close();
+    }
+
+    @Test
+    public void testBalanceIndexAnswersRangesAndTopAccounts() {
+
+	final BalanceIndexedRepository repository =
+	    new BalanceIndexedRepository(new MvccRepository());
+	final Service service = new Service(repository);
+	final Random random = new Random(42);
+	final ArrayList<Account> accounts = new ArrayList<>();
+	for (int i = 0; i < 500; i++) {
+	    final Account account =
+		CheckingAccount.restore(Account.newNumber(), "4242-x",
+					"user" + i, 0.0, "hash", 500.0, 0.0, 0L,
+					Account.defaultCurrency);
+	    service.createAccount(account);
+	    service.deposit(random.nextInt(2_000_000) / 100.0, account);
+	    accounts.add(account);
+	}
+	for (int i = 0; i < 300; i++)
+	    service.transfer(random.nextInt(10_000) / 100.0,
+			     accounts.get(random.nextInt(accounts.size())),
+			     accounts.get(random.nextInt(accounts.size())));
+
+	final List<Double> balances = accounts.stream()
+	    .map(account -> service.getAccountByNumber(account.getNumber())
+		 .get().getBalance())
+	    .sorted()
+	    .collect(Collectors.toList());
+	for (int i = 0; i < 200; i++) {
+	    final double from = random.nextInt(2_000_000) / 100.0;
+	    final double to = from + random.nextInt(500_000) / 100.0;
+	    assertEquals("Expected the count for " + from + " to " + to,
+			 balances.stream()
+			 .filter(balance -> balance >= from && balance < to)
+			 .count(),
+			 repository.countBetween(from, to));
+	}
+
+	final List<Account> richest = repository.richest(3);
+	assertEquals(3, richest.size());
+	assertEquals(balances.get(balances.size() - 1),
+		     richest.get(0).getBalance(), 0.0);
+	assertEquals(balances.get(balances.size() - 3),
+		     richest.get(2).getBalance(), 0.0);
+	final List<Account> poorest = repository.below(1_000.0, 1_000);
+	assertEquals(balances.stream().filter(balance -> balance < 1_000.0)
+		     .count(), poorest.size());
+	assertTrue(poorest.stream()
+		   .allMatch(account -> account.getBalance() < 1_000.0));
+    }
+
+    @Test
+    public void testUsernameIndexFindsAcrossMergesAndLogsInByName()
+	throws Exception {
+
+	final UsernameIndex index = new UsernameIndex();
+	for (int i = 0; i < 10_000; i++)
+	    index.add("user" + (i % 7_000), i);
+	index.add("ana", 10_001);
+	index.add("ana", 10_000);
+	assertEquals(10_002L, index.size());
+	assertArrayEquals(new int[] { 3, 7_003 }, index.numbersOf("user3"));
+	assertArrayEquals(new int[] { 10_000, 10_001 }, index.numbersOf("ana"));
+	assertEquals(0, index.numbersOf("nobody").length);
+	assertEquals(Arrays.asList("user69", "user690", "user6900"),
+		     index.withPrefix("user69", 3));
+	assertEquals(Arrays.asList("ana"), index.withPrefix("an", 10));
+
+	final UsernameIndexedRepository repository =
+	    new UsernameIndexedRepository(new MvccRepository());
+	final Service service = new Service(repository);
+	final Account checking = new CheckingAccount("Mbr", "1234");
+	final Account saving = new SavingAccount("Mbr", "1234");
+	service.createAccount(checking);
+	service.createAccount(saving);
+	final Account single = new CheckingAccount("Mbx", "1234");
+	service.createAccount(single);
+	assertEquals(Arrays.asList("Mbr", "Mbx"),
+		     service.userNamesStartingWith("Mb", 10));
+	assertEquals(2, service.accountsOf("Mbr").size());
+
+	final Thread feedIn = new Thread(() -> {
+		writeToIn.println("Mbr");
+		writeToIn.println("Mbx");
+		writeToIn.println("1234");
+		writeToIn.flush();
+		writeToIn.close();
+	});
+	feedIn.start();
+	feedIn.join();
+	final LoginIoForm form = new LoginIoForm(ioAdapter);
+	assertFalse("Expected a shared name to need the account number",
+		    form.collect(service).isPresent());
+	final String output = outContent.toString();
+	assertTrue(output.contains("log in with the account number"));
+	assertFalse("Expected no account listed before the password",
+		    output.contains(Integer.toString(saving.getNumber())));
+	final Optional<Account> loggedIn = form.collect(service);
+	assertTrue("Expected the login by a name of one account to succeed",
+		   loggedIn.isPresent());
+	assertEquals(single.getNumber(), loggedIn.get().getNumber());
+    }
+
+    @Test
+    public void testBranchTotalsFollowEveryMutation() throws Exception {
+
+	final BranchTotals branches = new BranchTotals("0001-9", "0002-7");
+	final Service service =
+	    new Service(new MvccRepository(), new OperationJournal(),
+			new IdempotencyCache(1 << 10, 60_000L),
+			VelocityGuard.unlimited(),
+			new FxRates(FxTable.single(Account.defaultCurrency)),
+			AdmissionControl.unlimited(), branches);
+	final String hash = BCrypt.hashpw("1234", BCrypt.gensalt(4));
+	final Account[] accounts = new Account[40];
+	for (int i = 0; i < accounts.length; i++) {
+	    final String branch = i % 2 == 0 ? "0001-9" : "0002-7";
+	    accounts[i] = i % 4 < 2
+		? CheckingAccount.ofHash("user" + i, hash, branch)
+		: SavingAccount.ofHash("user" + i, hash, branch);
+	    assertTrue(service.createAccount(accounts[i]));
+	    service.deposit(100.0, accounts[i]);
+	}
+	assertFalse("Expected a branch that is not open to be refused",
+		    service.createAccount(CheckingAccount.ofHash("x", hash,
+								 "9999-0")));
+
+	final Thread[] workers = new Thread[4];
+	for (int w = 0; w < workers.length; w++) {
+	    final Random random = new Random(w);
+	    workers[w] = new Thread(() -> {
+		    for (int i = 0; i < 500; i++) {
+			final Account account =
+			    accounts[random.nextInt(accounts.length)];
+			switch (random.nextInt(4)) {
+			case 0:
+			    service.deposit(random.nextInt(1000) / 100.0, account);
+			    break;
+			case 1:
+			    service.withdraw(random.nextInt(1000) / 100.0, account);
+			    break;
+			case 2:
+			    service.transfer(random.nextInt(1000) / 100.0, account,
+					     accounts[random.nextInt(accounts.length)]);
+			    break;
+			default:
+			    if (account instanceof CheckingAccount)
+				service.loan(random.nextInt(1000) / 100.0,
+					     (CheckingAccount) account);
+			}
+		    }
+	    });
+	    workers[w].start();
+	}
+	for (Thread worker : workers)
+	    worker.join();
+
+	for (String branch : Arrays.asList("0001-9", "0002-7")) {
+	    final List<Account> stored = Arrays.stream(accounts)
+		.map(account -> service.getAccountByNumber(account.getNumber())
+		     .get())
+		.filter(account -> account.getBranch().equals(branch))
+		.collect(Collectors.toList());
+	    final BranchTotals.Totals totals =
+		branches.totalsOf(branch).get();
+	    assertEquals(20L, totals.getAccounts());
+	    assertEquals("Expected the deposits of " + branch,
+			 stored.stream()
+			 .mapToLong(account ->
+				    Math.round(account.getBalance() * 100.0))
+			 .sum() / 100.0,
+			 totals.getDeposits(Account.defaultCurrency), 1e-9);
+	    assertEquals("Expected the loans of " + branch,
+			 stored.stream()
+			 .filter(account -> account instanceof CheckingAccount)
+			 .mapToLong(account -> Math.round(((CheckingAccount) account)
+							  .getLoanCurrent() * 100.0))
+			 .sum() / 100.0,
+			 totals.getLoans(Account.defaultCurrency), 1e-9);
+	}
+    }
+
+    @Test
+    public void testTieredRepositoryPagesColdAccountsBackIn() throws Exception {
+
+	final Path directory = Files.createTempDirectory("tier");
+	final AtomicLong now = new AtomicLong(1_000L);
+	TieredRepository repository =
+	    TieredRepository.open(directory, 60_000L, 100, now::get);
+	Service service = new Service(repository);
+	final String hash = BCrypt.hashpw("1234", BCrypt.gensalt(4));
+	final ArrayList<Account> accounts = new ArrayList<>();
+	for (int i = 0; i < 1_000; i++) {
+	    final Account account = i % 2 == 0
+		? CheckingAccount.ofHash("user" + i, hash)
+		: SavingAccount.ofHash("user" + i, hash);
+	    assertTrue(service.createAccount(account));
+	    service.deposit(i, account);
+	    accounts.add(account);
+	    assertTrue("Expected the hot accounts to stay under the cap",
+		       repository.getHotCount() <= 100);
+	}
+	assertTrue(repository.getDemoted() >= 900);
+	assertFalse("Expected a cold account to still count as existing",
+		    repository.saveAccount(accounts.get(0)));
+
+	// the first accounts went cold long ago and are paged back in
+	for (int i = 0; i < 50; i++)
+	    service.deposit(0.5, accounts.get(i));
+	assertTrue(repository.getColdHits() >= 50);
+	assertEquals(3.5, service.getAccountByNumber(accounts.get(3).getNumber())
+		     .get().getBalance(), 0.0);
+
+	now.addAndGet(120_000L);
+	service.deposit(1.0, accounts.get(7));
+	repository.demoteIdle();
+	assertEquals("Expected only the account used since to stay hot",
+		     1, repository.getHotCount());
+	assertEquals(1_000L, repository.streamAccounts().count());
+	repository.close();
+
+	repository = TieredRepository.open(directory, 60_000L, 100, now::get);
+	service = new Service(repository);
+	assertEquals(0, repository.getHotCount());
+	final List<Account> reopened = repository.streamAccounts()
+	    .collect(Collectors.toList());
+	assertEquals(1_000, reopened.size());
+	for (int i = 0; i < accounts.size(); i++) {
+	    final double expected = i + (i < 50 ? 0.5 : 0.0) + (i == 7 ? 1.0 : 0.0);
+	    final Account account =
+		service.getAccountByNumber(accounts.get(i).getNumber()).get();
+	    assertEquals("Expected the balance of account " + i,
+			 expected, account.getBalance(), 0.0);
+	    assertEquals(accounts.get(i).getClass(), account.getClass());
+	}
+	assertTrue(reopened.get(0).verifyPass("1234"));
+
+	// a cold account updated and a new one opened, then a crash: the
+	// repository is dropped without a close and the directory reopened
+	service.deposit(2.0, accounts.get(3));
+	final Account late = CheckingAccount.ofHash("late", hash);
+	assertTrue(service.createAccount(late));
+	service.deposit(9.0, late);
+	repository = TieredRepository.open(directory, 60_000L, 100, now::get);
+	service = new Service(repository);
+	assertEquals("Expected the logged update over the stale cold copy",
+		     5.5, service.getAccountByNumber(accounts.get(3).getNumber())
+		     .get().getBalance(), 0.0);
+	assertEquals("Expected the account opened since the checkpoint",
+		     9.0, service.getAccountByNumber(late.getNumber())
+		     .get().getBalance(), 0.0);
+	assertEquals(1_001L, repository.streamAccounts().count());
+	repository.close();
+    }
+
+    @Test
+    public void testCachingRepositoryReadsThroughAndWritesThrough() {
+
+	final AtomicLong loads = new AtomicLong();
+	final Repository slow =
+	    new RepositoryInMemory(new ConcurrentHashMap<>()) {
+		@Override
+		public Optional<Account> getAccountByNumber(int accountNumber) {
+		    loads.incrementAndGet();
+		    return super.getAccountByNumber(accountNumber);
+		}
+	    };
+	final ArrayList<Account> accounts = new ArrayList<>();
+	for (int i = 0; i < 20; i++) {
+	    final Account account =
+		CheckingAccount.restore(Account.newNumber(), "4242-x",
+					"user" + i, i, "hash", 500.0, 0.0, 0L,
+					Account.defaultCurrency);
+	    slow.saveAccount(account);
+	    accounts.add(account);
+	}
+	final CachingRepository cache = new CachingRepository(slow, 8);
+	final Service service = new Service(cache);
+
+	// a hot account keeps its reference bit through a scan of the rest
+	for (int round = 0; round < 3; round++)
+	    for (Account account : accounts) {
+		cache.getAccountByNumber(accounts.get(0).getNumber());
+		cache.getAccountByNumber(account.getNumber());
+	    }
+	assertEquals(8, cache.size());
+	assertTrue(cache.getEvictions() > 0);
+	final long loaded = loads.get();
+	cache.getAccountByNumber(accounts.get(0).getNumber());
+	assertEquals("Expected the hot account to be served from the cache",
+		     loaded, loads.get());
+	assertEquals(121L, cache.getHits() + cache.getMisses());
+	assertEquals(loads.get(), cache.getMisses());
+
+	service.deposit(100.0, accounts.get(0));
+	assertEquals("Expected the write to replace the cached copy",
+		     100.0, cache.getAccountByNumber(accounts.get(0).getNumber())
+		     .get().getBalance(), 0.0);
+	assertEquals(100.0, slow.getAccountByNumber(accounts.get(0).getNumber())
+		     .get().getBalance(), 0.0);
+	service.transfer(1.0, accounts.get(0), accounts.get(19));
+	assertEquals(20.0, cache.getAccountByNumber(accounts.get(19).getNumber())
+		     .get().getBalance(), 0.0);
+	assertEquals(99.0, cache.getAccountByNumber(accounts.get(0).getNumber())
+		     .get().getBalance(), 0.0);
+    }
+
+    @Test
+    public void testBloomFilterTurnsAwayUnknownNumbersAndPersists()
+	throws Exception {
+
+	final BloomFilter filter = BloomFilter.sized(10_000, 0.01);
+	for (int number = 0; number < 10_000; number++)
+	    filter.add(number);
+	for (int number = 0; number < 10_000; number++)
+	    assertTrue(filter.mightContain(number));
+	long falsePositives = 0;
+	for (int number = 10_000; number < 110_000; number++)
+	    if (filter.mightContain(number))
+		falsePositives++;
+	assertTrue("Expected about 1% false positives, got " + falsePositives,
+		   falsePositives > 500 && falsePositives < 1_500);
+
+	final AtomicLong loads = new AtomicLong();
+	final Repository slow =
+	    new RepositoryInMemory(new ConcurrentHashMap<>()) {
+		@Override
+		public Optional<Account> getAccountByNumber(int accountNumber) {
+		    loads.incrementAndGet();
+		    return super.getAccountByNumber(accountNumber);
+		}
+	    };
+	final Path directory = Files.createTempDirectory("bloom");
+	final Path path = directory.resolve("accounts.bloom");
+	BloomFilteredRepository repository =
+	    BloomFilteredRepository.open(slow, path, 1_000, 0.001);
+	final Service service = new Service(repository);
+	final int first = Account.newNumber();
+	for (int i = 1; i <= 500; i++)
+	    assertTrue(service.createAccount(
+					     CheckingAccount.restore(first + i, "4242-x",
+								     "user" + i, 0.0, "hash",
+								     500.0, 0.0, 0L,
+								     Account.defaultCurrency)));
+	for (int i = 1; i <= 500; i++)
+	    assertTrue(service.getAccountByNumber(first + i).isPresent());
+	loads.set(0);
+	for (int i = 1_000; i < 2_000; i++)
+	    assertFalse(service.getAccountByNumber(first + i).isPresent());
+	assertTrue("Expected nearly every unknown number to stop at the filter",
+		   loads.get() < 20);
+	assertEquals(1_000L - loads.get(), repository.getRejected());
+	repository.close();
+
+	// reloaded from the file, which is gone until the next close
+	repository = BloomFilteredRepository.open(slow, path, 1_000, 0.001);
+	assertFalse(Files.exists(path));
+	assertEquals(500L, repository.getFilter().getCount());
+	for (int i = 1; i <= 500; i++)
+	    assertTrue(repository.getAccountByNumber(first + i).isPresent());
+
+	// without a close the next open rebuilds it from the accounts
+	repository = BloomFilteredRepository.open(slow, path, 1_000, 0.001);
+	assertEquals(500L, repository.getFilter().getCount());
+	assertTrue(repository.getAccountByNumber(first + 250).isPresent());
+    }
+
+    @Test
+    public void testSessionsRefreshOnChangeAndExpireWhenIdle() {
+
+	final Service service = new Service(new MvccRepository());
+	final String hash = BCrypt.hashpw("1234", BCrypt.gensalt(4));
+	final Account alice = CheckingAccount.ofHash("alice", hash);
+	final Account bob = SavingAccount.ofHash("bob", hash);
+	service.createAccount(alice);
+	service.createAccount(bob);
+	service.deposit(100.0, alice);
+
+	final AtomicLong now = new AtomicLong(0L);
+	final SessionManager sessions = new SessionManager(60_000L, now::get);
+	final Session aliceSession = sessions.open(alice);
+	final Session bobSession = sessions.open(bob);
+	assertNotEquals(aliceSession.getToken(), bobSession.getToken());
+	assertEquals(2, sessions.size());
+
+	// the login copy is checked once, then served without a read
+	assertEquals(100.0, sessions.refresh(aliceSession, service)
+		     .getBalance(), 0.0);
+	assertEquals(0.0, sessions.refresh(bobSession, service)
+		     .getBalance(), 0.0);
+	final long reloads = sessions.getReloads();
+	for (int i = 0; i < 100; i++) {
+	    sessions.refresh(aliceSession, service);
+	    sessions.refresh(bobSession, service);
+	}
+	assertEquals(reloads, sessions.getReloads());
+
+	// a transfer made in one session shows up in the other's balance
+	service.transfer(40.0, sessions.refresh(aliceSession, service),
+			 sessions.refresh(bobSession, service));
+	assertEquals(40.0, sessions.refresh(bobSession, service)
+		     .getBalance(), 0.0);
+	assertEquals(60.0, sessions.refresh(aliceSession, service)
+		     .getBalance(), 0.0);
+	assertEquals(reloads + 2, sessions.getReloads());
+
+	// bob keeps using his session, alice idles past the timeout
+	for (int second = 1; second <= 90; second++) {
+	    now.set(second * 1_000L);
+	    if (second % 20 == 0)
+		assertTrue(sessions.find(bobSession.getToken()).isPresent());
+	    sessions.expireDue();
+	}
+	assertEquals(1L, sessions.getExpired());
+	assertTrue(aliceSession.isClosed());
+	assertFalse(sessions.touch(aliceSession));
+	assertFalse(sessions.find(aliceSession.getToken()).isPresent());
+	assertTrue(sessions.touch(bobSession));
+	assertEquals(1, sessions.size());
+    }
+
+    @Test
+    public void testLoginThrottleBacksOffBeforeCheckingPasswords()
+	throws Exception {
+
+	final AtomicLong now = new AtomicLong(1_000_000L);
+	final LoginThrottle throttle = new LoginThrottle(now::get);
+	for (int i = 0; i < 5; i++)
+	    assertEquals(0L, throttle.attempt(7, "a"));
+	assertEquals(1_000L, throttle.attempt(7, "a"));
+	now.addAndGet(1_000L);
+	assertEquals(0L, throttle.attempt(7, "a"));
+	assertEquals(2_000L, throttle.attempt(7, "a"));
+	assertEquals(0L, throttle.attempt(8, "a"));
+	throttle.succeeded(7, "a");
+	assertEquals(0L, throttle.attempt(7, "a"));
+
+	// an account sharing a slot with a locked one logging in leaves
+	// the locked one locked
+	final int mask = (1 << 16) - 1;
+	final int locked = 1000;
+	int sharing = locked + 1;
+	while (LoginThrottle.first(sharing, mask) != LoginThrottle.first(locked, mask))
+	    sharing++;
+	for (int i = 0; i < 5; i++)
+	    assertEquals(0L, throttle.attempt(locked, "e" + i));
+	assertTrue(throttle.attempt(locked, "e") > 0L);
+	assertEquals(0L, throttle.attempt(sharing, "f"));
+	throttle.succeeded(sharing, "f");
+	assertTrue(throttle.attempt(locked, "e") > 0L);
+
+	// a check shed by admission control is given back
+	for (int i = 0; i < 4; i++)
+	    assertEquals(0L, throttle.attempt(11, "d"));
+	for (int i = 0; i < 3; i++) {
+	    assertEquals(0L, throttle.attempt(11, "d"));
+	    throttle.refund(11, "d");
+	}
+	assertEquals(0L, throttle.attempt(11, "d"));
+	assertTrue(throttle.attempt(11, "d") > 0L);
+
+	for (int i = 0; i < 20; i++)
+	    throttle.missed("b");
+	assertTrue(throttle.waitOf("b") > 0L);
+	assertTrue(throttle.attempt(9, "b") > 0L);
+	assertEquals(0L, throttle.attempt(9, "c"));
+	now.addAndGet(Duration.ofMinutes(15).toMillis());
+	assertEquals(0L, throttle.waitOf("b"));
+
+	// the backoff stops growing at the lockout
+	long longest = 0L;
+	for (int i = 0; i < 40; i++) {
+	    final long wait = throttle.attempt(10, "s" + i);
+	    longest = Math.max(longest, wait);
+	    now.addAndGet(wait);
+	}
+	assertEquals(Duration.ofMinutes(15).toMillis(), longest);
+
+	final Service service = new Service(new MvccRepository());
+	final Account account = new CheckingAccount("Mbr", "1234");
+	service.createAccount(account);
+	for (int i = 0; i < 5; i++)
+	    throttle.attempt(account.getNumber(), "10.0.0.1");
+	final Thread feedIn = new Thread(() -> {
+		writeToIn.println(account.getNumber());
+		writeToIn.println("1234");
+		writeToIn.println(account.getNumber());
+		writeToIn.println("1234");
+		writeToIn.flush();
+		writeToIn.close();
+	});
+	feedIn.start();
+	feedIn.join();
+	final LoginIoForm form =
+	    new LoginIoForm(new StreamWrapper(out, pipeIn, "10.0.0.9"), throttle);
+	assertFalse(form.collect(service).isPresent());
+	assertTrue(outContent.toString()
+		   .contains("Too many attempts, try again in 1 seconds"));
+	now.addAndGet(1_000L);
+	assertTrue(form.collect(service).isPresent());
+	assertEquals(0L, throttle.attempt(account.getNumber(), "10.0.0.9"));
+    }
+
+    @Test
+    public void testBulkImportReportsRowsAndResumes() throws Exception {
+
+	final Path directory = Files.createTempDirectory("import");
+	final Path csv = directory.resolve("users.csv");
+	Files.writeString(csv, String.join("\n",
+					   "type,name,password,currency,branch",
+					   "checking,ana,1234",
+					   "saving,\"Silva, Bia\",4321,BRL",
+					   "checking,bob,12ab",
+					   "bond,carl,1111",
+					   "checking,dan,2222,USD",
+					   "saving,eve,3333,BRL,4242-x",
+					   "checking,fay,4444,BRL,0001-9",
+					   "onlytwo,fields") + "\n");
+	final MvccRepository repository = new MvccRepository();
+	final Service service = new Service(repository);
+	final BulkImporter importer = new BulkImporter(service, 2, 2, 4);
+
+	final ImportReport report = importer.run(csv);
+	assertEquals(3L, report.getImported());
+	assertEquals(5L, report.getFailed());
+	assertEquals("4: password is not 4 digits", report.getFailures().get(0));
+	assertEquals("9", Files.readString(BulkImporter.progressFile(csv)).trim());
+	assertEquals(5, Files.readAllLines(BulkImporter.rejectsFile(csv)).size());
+	assertEquals(1, service.accountsOf("Silva, Bia").size());
+	assertTrue(service.accountsOf("Silva, Bia").get(0) instanceof SavingAccount);
+	assertTrue(service.accountsOf("ana").get(0).verifyPass("1234"));
+
+	// as if the batch of lines 6 and 7 was saved but not its progress
+	final int eve = service.accountsOf("eve").get(0).getNumber();
+	Files.writeString(BulkImporter.progressFile(csv), "5\n7," + eve + "\n");
+	final ImportReport resumed = importer.run(csv);
+	assertEquals(0L, resumed.getImported());
+	assertEquals(1L, resumed.getSkipped());
+	assertEquals(1, service.accountsOf("eve").size());
+
+	// a second account just like eve's is one more account
+	Files.writeString(csv, "checking,gus,5555\nsaving,eve,3333,BRL,4242-x\n",
+			  StandardOpenOption.APPEND);
+	final ImportReport appended = importer.run(csv);
+	assertEquals(2L, appended.getImported());
+	assertEquals(0L, appended.getFailed());
+	assertEquals("11", Files.readString(BulkImporter.progressFile(csv)).trim());
+	assertEquals(2, service.accountsOf("eve").size());
+
+	// as if gus was saved and the run stopped before eve's second one
+	final int gus = service.accountsOf("gus").get(0).getNumber();
+	Files.writeString(BulkImporter.progressFile(csv),
+			  "9\n10," + gus + "\n11," + (gus + 1000) + "\n");
+	final ImportReport cut = importer.run(csv);
+	assertEquals(1L, cut.getImported());
+	assertEquals(1L, cut.getSkipped());
+	assertEquals(1, service.accountsOf("gus").size());
+	assertEquals(3, service.accountsOf("eve").size());
+	assertEquals(6L, repository.streamAccounts().count());
+    }
+
+    @Test
+    public void testPartitionedServiceKeepsMoneyAcrossPartitions()
+	throws Exception {
+
+	final String hash = BCrypt.hashpw("1234", BCrypt.gensalt(4));
+	try (PartitionedService service = new PartitionedService(4)) {
+	    final Account[] accounts = new Account[40];
+	    for (int i = 0; i < accounts.length; i++) {
+		accounts[i] = CheckingAccount.ofHash("part" + i, hash);
+		assertTrue(service.createAccount(accounts[i]).join());
+		assertTrue(service.deposit(100.0, accounts[i]).join().isPresent());
+	    }
+	    assertFalse(service.withdraw(100.01, accounts[0]).join().isPresent());
+
+	    final ArrayList<Thread> clients = new ArrayList<>();
+	    for (int t = 0; t < 4; t++) {
+		final Random random = new Random(t);
+		clients.add(new Thread(() -> {
+			    final ArrayList<CompletableFuture<Optional<Account>>> sent =
+				new ArrayList<>();
+			    for (int i = 0; i < 5_000; i++)
+				sent.add(service.transfer(random.nextInt(500) / 100.0,
+							  accounts[random.nextInt(accounts.length)],
+							  accounts[random.nextInt(accounts.length)]));
+			    sent.forEach(CompletableFuture::join);
+		}));
+	    }
+	    clients.forEach(Thread::start);
+	    for (Thread client : clients)
+		client.join();
+	    assertTrue(service.getCrossTransfers() > 0);
+	    assertEquals(4_000.0, service.snapshot().stream()
+			 .mapToDouble(Account::getBalance).sum(), 1e-6);
+
+	    // a credit to an account its partition never saw comes back
+	    Account ghost = CheckingAccount.ofHash("ghost", hash);
+	    while (service.partitionOf(ghost.getNumber())
+		   == service.partitionOf(accounts[0].getNumber()))
+		ghost = CheckingAccount.ofHash("ghost", hash);
+	    final double before =
+		service.getAccountByNumber(accounts[0].getNumber()).join()
+		.get().getBalance();
+	    assertFalse(service.transfer(1.0, accounts[0], ghost).join().isPresent());
+	    assertEquals(1L, service.getRefunds());
+	    assertEquals(before,
+			 service.getAccountByNumber(accounts[0].getNumber()).join()
+			 .get().getBalance(), 1e-9);
+	}
+    }
+
+    @Test
+    public void testClusterRoutesRebalancesAndFinishesSagasAfterACrash()
+	throws Exception {
+
+	// nodes hand out numbers from id << 24; put the sequence back after
+	final int numbersBefore = Account.number.number;
+	final Path directory = Files.createTempDirectory("cluster");
+	final String hash = BCrypt.hashpw("1234", BCrypt.gensalt(4));
+	final HashMap<Integer, String> nodes = new HashMap<>();
+	for (int id = 1; id <= 2; id++)
+	    nodes.put(id, ClusterNode.socketOf(directory.resolve("" + id)).toString());
+	final HashRing ring = new HashRing(1, nodes);
+	ClusterNode first = ClusterNode.start(1, directory.resolve("1"), ring, false);
+	final ClusterNode second =
+	    ClusterNode.start(2, directory.resolve("2"), ring, false);
+	ClusterNode third = null;
+	try (ClusterClient client = ClusterClient.connect(nodes.get(1))) {
+	    final int[] numbers = new int[60];
+	    for (int i = 0; i < numbers.length; i++) {
+		numbers[i] = client.open(true, "node" + i, hash);
+		assertTrue(client.deposit(100.0, numbers[i]).isPresent());
+	    }
+	    assertTrue(Arrays.stream(numbers).anyMatch(number -> ring.ownerOf(number) == 1));
+	    assertTrue(Arrays.stream(numbers).anyMatch(number -> ring.ownerOf(number) == 2));
+	    final Random random = new Random(7);
+	    for (int i = 0; i < 200; i++)
+		client.transfer(1.0, numbers[random.nextInt(numbers.length)],
+				numbers[random.nextInt(numbers.length)]);
+	    assertFalse(client.withdraw(1e6, numbers[0]).isPresent());
+	    assertEquals(60.0, client.totals()[0], 0.0);
+	    assertEquals(6_000.0, client.totals()[1], 1e-6);
+	    for (int number : numbers)
+		assertEquals(ClusterWire.ok,
+			     client.route(number,
+					  ClusterClient.change(ClusterWire.withdraw,
+							       number, 1.0, "pre" + number),
+					  Long.MAX_VALUE).status);
+
+	    // a third node joins and takes its share while the others serve
+	    third = ClusterNode.join(3, directory.resolve("3"), nodes.get(2), false);
+	    final HashRing grown = third.getRing();
+	    assertEquals(2L, grown.getVersion());
+	    final int[] moved = Arrays.stream(numbers)
+		.filter(number -> grown.ownerOf(number) == 3)
+		.toArray();
+	    assertTrue(moved.length > 0);
+	    assertTrue(client.deposit(1.0, moved[0]).isPresent());
+	    assertEquals(3, client.getRing().getNodes().size());
+	    assertTrue(client.withdraw(1.0, moved[0]).isPresent());
+	    // keys went along with the account, so a retry is not applied
+	    client.route(moved[0],
+			 ClusterClient.change(ClusterWire.withdraw, moved[0],
+					      1.0, "pre" + moved[0]),
+			 Long.MAX_VALUE);
+	    assertEquals(60.0, client.totals()[0], 0.0);
+	    assertEquals(5_940.0, client.totals()[1], 1e-6);
+
+	    // the first node dies after logging a saga and debiting its source
+	    final int from = Arrays.stream(numbers)
+		.filter(number -> grown.ownerOf(number) == 1).findFirst().getAsInt();
+	    final int to = Arrays.stream(numbers)
+		.filter(number -> grown.ownerOf(number) == 2).findFirst().getAsInt();
+	    final double fromBefore = client.getAccountByNumber(from).get().getBalance();
+	    final double toBefore = client.getAccountByNumber(to).get().getBalance();
+	    Files.writeString(directory.resolve("1").resolve(ClusterNode.sagaName),
+			      "begin crashed " + from + " " + to + " 5.0\n",
+			      StandardOpenOption.APPEND);
+	    assertTrue(first.getService()
+		       .withdraw(5.0, first.getService().getAccountByNumber(from).get(),
+				 "crashed:debit")
+		       .isPresent());
+	    first.close();
+	    first = ClusterNode.start(1, directory.resolve("1"), ring, false);
+	    assertEquals(2L, first.getRing().getVersion());
+	    for (int i = 0; i < 500
+		     && client.getAccountByNumber(to).get().getBalance() == toBefore; i++)
+		Thread.sleep(10);
+	    assertEquals(toBefore + 5.0,
+			 client.getAccountByNumber(to).get().getBalance(), 1e-9);
+	    assertEquals(fromBefore - 5.0,
+			 client.getAccountByNumber(from).get().getBalance(), 1e-9);
+	    assertEquals(5_940.0, client.totals()[1], 1e-6);
+
+	    // a name past the old fixed buffer goes through, one past a
+	    // frame is refused
+	    final char[] name = new char[70_000];
+	    Arrays.fill(name, 'n');
+	    final int longer = client.open(true, new String(name, 0, 5_000), hash);
+	    assertTrue(longer > 0);
+	    assertEquals(5_000, client.getAccountByNumber(longer).get()
+			 .getUserName().length());
+	    assertTrue(client.deposit(1.0, longer).isPresent());
+	    assertEquals(-1, client.open(true, new String(name), hash));
+	} finally {
+	    first.close();
+	    second.close();
+	    if (third != null)
+		third.close();
+	    Account.number.number = numbersBefore;
+	}
+    }
+
+    @Test
+    public void testFollowerReplicatesSnapshotsAndTakesOver() throws Exception {
+	final String hash = BCrypt.hashpw("1234", BCrypt.gensalt(4));
+	final ReplicationLeader leader =
+	    ReplicationLeader.listen(new MvccRepository(), 0, true, 5_000L, 8);
+	try {
+	    final Service service = new Service(leader);
+	    final Account from = CheckingAccount.ofHash("primary", hash);
+	    final Account to = SavingAccount.ofHash("replica", hash);
+	    assertTrue(service.createAccount(from));
+	    assertTrue(service.createAccount(to));
+	    assertTrue(service.deposit(100.0, from).isPresent());
+
+	    try (ReplicationFollower follower =
+		 ReplicationFollower.follow(leader.getPort())) {
+		assertTrue(follower.awaitOffset(leader.getNextSeq(), 10, TimeUnit.SECONDS));
+		assertEquals(100.0, follower.balanceOf(from.getNumber()).get(), 1e-9);
+		// in sync mode the transfer is on the follower once it returns
+		assertTrue(service.transfer(30.0, from, to).isPresent());
+		assertEquals(1L, leader.getSynced());
+		assertEquals(70.0, follower.balanceOf(from.getNumber()).get(), 1e-9);
+		assertEquals(30.0, follower.balanceOf(to.getNumber()).get(), 1e-9);
+		assertEquals(0L, leader.getLag());
+	    }
+
+	    // with nobody following the transfer goes on, and the log only
+	    // keeps the last eight records, so the next follower needs a
+	    // snapshot to catch up
+	    for (int i = 0; i < 20; i++)
+		assertTrue(service.deposit(1.0, to).isPresent());
+	    for (int i = 0; i < 200 && leader.getFollowers() > 0; i++)
+		Thread.sleep(10);
+	    assertTrue(service.transfer(10.0, from, to).isPresent());
+	    assertEquals(1L, leader.getDegraded());
+
+	    final ReplicationFollower follower =
+		ReplicationFollower.follow(leader.getPort());
+	    assertTrue(follower.awaitOffset(leader.getNextSeq(), 10, TimeUnit.SECONDS));
+	    assertEquals(2L, leader.getSnapshots());
+	    assertEquals(60.0, follower.balanceOf(from.getNumber()).get(), 1e-9);
+	    assertEquals(60.0, follower.balanceOf(to.getNumber()).get(), 1e-9);
+	    assertFalse(follower.balanceOf(-1).isPresent());
+
+	    final Service promoted = new Service(follower.promote());
+	    assertEquals(61.0,
+			 promoted.deposit(1.0,
+					  promoted.getAccountByNumber(to.getNumber()).get())
+			 .get().getBalance(), 1e-9);
+	    assertEquals("primary",
+			 promoted.getAccountByNumber(from.getNumber()).get().getUserName());
+	} finally {
+	    leader.close();
+	}
+    }
+
+    @Test
+    public void testFollowerDropsAFrameCutShortAndDialsAgain() throws Exception {
+	final byte[] raw = new byte[4096];
+	new Random(7).nextBytes(raw);
+	final Deflater deflater = new Deflater();
+	deflater.setInput(raw);
+	deflater.finish();
+	final byte[] packed = new byte[8192];
+	final int length = deflater.deflate(packed);
+	deflater.end();
+
+	try (ServerSocketChannel server = ServerSocketChannel.open()) {
+	    server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+	    final int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+	    try (ReplicationFollower follower = ReplicationFollower.follow(port);
+		 SocketChannel first = server.accept()) {
+		ReplicationLeader.write(first, ByteBuffer.allocate(8).putLong(1L).flip());
+		ReplicationLeader.readFully(first, ByteBuffer.allocate(8));
+		// a header promising the whole frame, then half of what it packed
+		ReplicationLeader.write(first, ByteBuffer.allocate(ReplicationLeader.headerBytes)
+					.put(ReplicationLeader.records).putLong(0L).putInt(1)
+					.putInt(raw.length).putInt(length / 2).flip());
+		ReplicationLeader.write(first, ByteBuffer.wrap(packed, 0, length / 2));
+
+		server.configureBlocking(false);
+		SocketChannel second = null;
+		for (int i = 0; i < 500 && second == null; i++) {
+		    second = server.accept();
+		    if (second == null)
+			Thread.sleep(10);
+		}
+		assertNotNull("Expected the follower to dial again", second);
+		second.close();
+		assertEquals(0L, follower.getOffset());
+	    }
+	}
+    }
+
+    @Test
+    public void testLeaderSplitsWritesTooBigForAFrame() throws Exception {
+	final String hash = BCrypt.hashpw("1234", BCrypt.gensalt(4));
+	final ReplicationLeader leader =
+	    ReplicationLeader.listen(new MvccRepository(), 0, false);
+	try (ReplicationFollower follower =
+	     ReplicationFollower.follow(leader.getPort())) {
+	    // each account takes over the 1024 bytes a record used to
+	    // allow it, and all of them together over a frame
+	    final char[] name = new char[3000];
+	    Arrays.fill(name, 'x');
+	    final ArrayList<Account> accounts = new ArrayList<>();
+	    for (int i = 0; i < 3000; i++) {
+		final Account account =
+		    SavingAccount.ofHash(new String(name) + i, hash);
+		assertTrue(leader.saveAccount(account));
+		accounts.add(AccountCodec.withState(account, 5.0, 0.0, 0.0,
+						    account.getVersion() + 1));
+	    }
+	    final long before = leader.getNextSeq();
+	    assertTrue(leader.update(accounts));
+	    assertTrue(leader.getNextSeq() - before > 1);
+	    assertTrue(follower.awaitOffset(leader.getNextSeq(), 30, TimeUnit.SECONDS));
+	    for (Account account : accounts)
+		assertEquals(5.0, follower.balanceOf(account.getNumber()).get(), 1e-9);
+	} finally {
+	    leader.close();
+	}
+    }
 }